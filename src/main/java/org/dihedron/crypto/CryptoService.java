@@ -7,6 +7,8 @@ import java.security.Security;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.dihedron.core.License;
+import org.dihedron.crypto.exceptions.ProviderException;
+import org.dihedron.crypto.providers.ProviderSelector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,8 +25,9 @@ public abstract class CryptoService {
 
 	/**
 	 * The library startup method; this method installs the required security 
-	 * providers and should be invoked prior to any operations pertaining to 
-	 * cryptography and digital signature.
+	 * providers, starts selecting the fastest ones for each algorithm (see
+	 * {@link ProviderSelector#initialise()}), and should be invoked prior to 
+	 * any operations pertaining to cryptography and digital signature.
 	 */
 	static {
 		logger.info("installing BouncyCastle security provider...");		
@@ -33,6 +36,22 @@ public abstract class CryptoService {
 		} else {
 			logger.info("... done installing provider!");
 		}
+		
+		// select the fastest providers in the background, so that the first 
+		// operations do not pay for the benchmarks (or only wait for the ones
+		// they need)
+		Thread selector = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ProviderSelector.getDefault().initialise();
+				} catch(ProviderException e) {
+					logger.error("error selecting security providers", e);
+				}
+			}
+		}, "provider-selector");
+		selector.setDaemon(true);
+		selector.start();
 	}
 	
 	/**
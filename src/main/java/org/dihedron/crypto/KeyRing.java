@@ -4,6 +4,7 @@
 
 package org.dihedron.crypto;
 
+import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyPair;
@@ -14,13 +15,24 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cms.KeyAgreeRecipientId;
+import org.bouncycastle.cms.KeyTransRecipientId;
+import org.bouncycastle.cms.RecipientId;
+import org.bouncycastle.cms.SignerId;
+import org.bouncycastle.util.encoders.Hex;
 import org.dihedron.core.License;
-import org.dihedron.crypto.certificates.Certificates;
+import org.dihedron.crypto.certificates.CertificateHandle;
+import org.dihedron.crypto.certificates.CertificateProfile;
+import org.dihedron.crypto.certificates.IssuerAndSerial;
 import org.dihedron.crypto.exceptions.CryptoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,12 +64,19 @@ public abstract class KeyRing implements AutoCloseable {
 	 */
 	protected KeyStore keystore;
 	
+	/**
+	 * The index from certificate identifiers to the aliases of private keys; 
+	 * it is built on first use and rebuilt whenever the key store is replaced.
+	 */
+	private volatile AliasIndex index;
+	
 	/**
 	 * Attempts to log out of the KeyStore if supported by the underlying 
 	 * technology, and releases its reference.
 	 */
 	public void close() {
 		keystore = null;
+		index = null;
 	}
 
 	/**
@@ -296,8 +315,8 @@ public abstract class KeyRing implements AutoCloseable {
 					Certificate certificate = keystore.getCertificate(alias);
 					if(certificate instanceof X509Certificate) {
 						logger.debug(" - certificate      : 'X.509'");
-						if(	Certificates.isNonRepudiationX509Certificate((X509Certificate)certificate) && 
-							Certificates.hasCriticalExtension((X509Certificate)certificate, SIGNATURE_CRITICAL_EXTENSION_OID)) {
+						CertificateProfile profile = CertificateProfile.of((X509Certificate)certificate);
+						if(profile.isNonRepudiation() && profile.hasCriticalExtension(SIGNATURE_CRITICAL_EXTENSION_OID)) {
 							logger.debug(" - good for signing : true");
 							signatureAliases.add(alias);
 						} else {
@@ -320,6 +339,77 @@ public abstract class KeyRing implements AutoCloseable {
 		}
 	}
 	
+	/**
+	 * Returns the alias of the private key that can decrypt the content 
+	 * encryption key for the given recipient, looking it up by issuer and 
+	 * serial number or by subject key identifier.
+	 * 
+	 * @param recipient
+	 *   the recipient identifier, as found in an envelope.
+	 * @return
+	 *   the alias, or null if the key ring has no key for the recipient.
+	 * @throws CryptoException
+	 *   if the key store cannot be indexed.
+	 */
+	public String getAlias(RecipientId recipient) throws CryptoException {
+		if(recipient instanceof KeyTransRecipientId) {
+			KeyTransRecipientId id = (KeyTransRecipientId)recipient;
+			return getIndex().find(id.getIssuer(), id.getSerialNumber(), id.getSubjectKeyIdentifier());
+		} else if(recipient instanceof KeyAgreeRecipientId) {
+			KeyAgreeRecipientId id = (KeyAgreeRecipientId)recipient;
+			AliasIndex current = getIndex();
+			if(id.getSubjectKeyIdentifier() != null) {
+				return current.find(null, null, id.getSubjectKeyIdentifier());
+			}
+			// the issuer is not exposed, but the identifier can be used as a key as is 
+			return current.byKeyAgreeRecipientId.get(id);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the alias of the private key of the given signer, looking it up 
+	 * by issuer and serial number or by subject key identifier.
+	 * 
+	 * @param signer
+	 *   the signer identifier.
+	 * @return
+	 *   the alias, or null if the key ring has no key for the signer.
+	 * @throws CryptoException
+	 *   if the key store cannot be indexed.
+	 */
+	public String getAlias(SignerId signer) throws CryptoException {
+		return getIndex().find(signer.getIssuer(), signer.getSerialNumber(), signer.getSubjectKeyIdentifier());
+	}
+	
+	/**
+	 * Rebuilds the index of private key aliases; it must be invoked when keys 
+	 * are added to or removed from the underlying key store.
+	 * 
+	 * @throws CryptoException
+	 *   if the key store cannot be indexed.
+	 */
+	public synchronized void reindex() throws CryptoException {
+		index = new AliasIndex(this);
+	}
+	
+	/**
+	 * Returns the index of private key aliases, building it if needed.
+	 */
+	private AliasIndex getIndex() throws CryptoException {
+		AliasIndex current = index;
+		if(current == null || current.keystore != keystore) {
+			synchronized(this) {
+				current = index;
+				if(current == null || current.keystore != keystore) {
+					current = new AliasIndex(this);
+					index = current;
+				}
+			}
+		}
+		return current;
+	}
+	
 	/**
 	 * Gets the certificate chain for the given alias.
 	 * 
@@ -357,4 +447,80 @@ public abstract class KeyRing implements AutoCloseable {
 		}
 		return null;
 	}
+	
+	/**
+	 * An immutable index from the identifiers of the certificates of private 
+	 * keys (issuer and serial number, subject key identifier) to their aliases.
+	 */
+	private static class AliasIndex {
+		
+		/**
+		 * The key store the index was built from.
+		 */
+		final KeyStore keystore;
+		
+		/**
+		 * The aliases, by issuer and serial number.
+		 */
+		final Map<IssuerAndSerial, String> byIssuerAndSerial = new HashMap<>();
+		
+		/**
+		 * The aliases, by hex encoded subject key identifier.
+		 */
+		final Map<String, String> bySubjectKeyIdentifier = new HashMap<>();
+		
+		/**
+		 * The aliases, by key agreement recipient identifier (issuer and serial
+		 * number).
+		 */
+		final Map<KeyAgreeRecipientId, String> byKeyAgreeRecipientId = new HashMap<>();
+		
+		AliasIndex(KeyRing keyring) throws CryptoException {
+			long start = System.currentTimeMillis();
+			this.keystore = keyring.keystore;
+			if(keystore == null) {
+				logger.error("the key ring has been closed");
+				throw new CryptoException("the key ring has been closed");
+			}
+			for(String alias : keyring.enumerateAliases()) {
+				try {
+					if(!keystore.isKeyEntry(alias)) {
+						continue;
+					}
+					Certificate certificate = keystore.getCertificate(alias);
+					if(certificate instanceof X509Certificate) {
+						// the identifiers are read off the encoding, without decoding extensions
+						CertificateHandle handle = new CertificateHandle((X509Certificate)certificate);
+						X500Name issuer = X500Name.getInstance(handle.getIssuer().getEncoded());
+						BigInteger serial = handle.getSerialNumber();
+						byIssuerAndSerial.put(new IssuerAndSerial(handle.getIssuer(), serial), alias);
+						byKeyAgreeRecipientId.put(new KeyAgreeRecipientId(issuer, serial), alias);
+						byte[] identifier = handle.getSubjectKeyIdentifier();
+						if(identifier != null) {
+							bySubjectKeyIdentifier.put(Hex.toHexString(identifier), alias);
+						}
+					}
+				} catch (KeyStoreException | CertificateException e) {
+					// a failure on one alias should not prevent the indexing of the others
+					logger.error("error accessing certificate for alias '{}'", alias);
+				}
+			}
+			logger.debug("{} private keys indexed in {} ms", byIssuerAndSerial.size(), System.currentTimeMillis() - start);
+		}
+		
+		/**
+		 * Looks up an alias by issuer and serial number first, then by subject 
+		 * key identifier.
+		 */
+		String find(X500Name issuer, BigInteger serial, byte[] identifier) {
+			String alias = null;
+			if(issuer != null && serial != null) {
+				alias = byIssuerAndSerial.get(IssuerAndSerial.of(issuer, serial));
+			}
+			if(alias == null && identifier != null) {
+				alias = bySubjectKeyIdentifier.get(Hex.toHexString(identifier));
+			}
+			return alias;
+		}
+	}
 }
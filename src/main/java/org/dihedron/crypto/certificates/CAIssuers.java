@@ -0,0 +1,649 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.dihedron.core.License;
+import org.dihedron.core.streams.Streams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retrieves missing intermediate CA certificates through the "CA Issuers"
+ * access method of the "Authority Information Access" extension. Fetched
+ * certificates are kept in a bounded in-memory cache, by URL and by subject
+ * key identifier, and persisted to disk, so that only the first certificate
+ * issued by a new CA pays for the download, and all later ones (even across
+ * restarts) are resolved locally. Cached certificates are used until they
+ * expire, and at most for a configurable time to live, after which they are 
+ * fetched again; on disk they are only kept in a directory that other users
+ * cannot write to (see {@link CacheDirectories}).
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class CAIssuers {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(CAIssuers.class);
+
+	/**
+	 * The name of the system property giving the directory where fetched
+	 * certificates are stored.
+	 */
+	public static final String CACHE_DIRECTORY_PROPERTY = "org.dihedron.crypto.aia.cache";
+
+	/**
+	 * The default number of entries kept in memory.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * The default number of files kept on disk.
+	 */
+	public static final int DEFAULT_DISK_CAPACITY = 4096;
+
+	/**
+	 * The default time to live of cached certificates, in milliseconds (one day).
+	 */
+	public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * The default connection timeout, in milliseconds.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * The default read timeout, in milliseconds.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 10000;
+
+	/**
+	 * The maximum number of certificates chased above a certificate.
+	 */
+	private static final int MAX_DEPTH = 8;
+
+	/**
+	 * How long a URL that could not be fetched is not tried again, in milliseconds.
+	 */
+	private static final long FAILURE_TTL = 60000;
+
+	/**
+	 * The prefix of files holding the contents fetched from a URL.
+	 */
+	private static final String URL_PREFIX = "url-";
+
+	/**
+	 * The prefix of files holding a certificate, by subject key identifier.
+	 */
+	private static final String KEY_PREFIX = "ski-";
+
+	/**
+	 * The extension of cache files.
+	 */
+	private static final String EXTENSION = ".der";
+
+	/**
+	 * The character set used to hash URLs into file names.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The cache shared by all certificate verifications.
+	 */
+	private static final CAIssuers defaultCache = new CAIssuers();
+
+	/**
+	 * Returns the cache shared by all certificate verifications.
+	 *
+	 * @return
+	 *   the shared cache.
+	 */
+	public static CAIssuers getDefault() {
+		return defaultCache;
+	}
+
+	/**
+	 * The directory where fetched certificates are stored, or null if they are
+	 * only kept in memory.
+	 */
+	private final File directory;
+
+	/**
+	 * The maximum number of files kept on disk.
+	 */
+	private final int diskCapacity;
+
+	/**
+	 * The fetched certificates, by URL; they are only decoded when returned.
+	 */
+	private final Map<String, Cached<List<CertificateHandle>>> byURL;
+
+	/**
+	 * The fetched certificates, by (hex encoded) subject key identifier.
+	 */
+	private final Map<String, Cached<CertificateHandle>> byKeyIdentifier;
+
+	/**
+	 * The time of the last failure, by URL.
+	 */
+	private final Map<String, Long> failures;
+
+	/**
+	 * The connection timeout, in milliseconds.
+	 */
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	/**
+	 * The read timeout, in milliseconds.
+	 */
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+	/**
+	 * The time to live of cached certificates, in milliseconds.
+	 */
+	private long ttl = DEFAULT_TTL;
+
+	/**
+	 * Constructor; certificates are stored in the directory given by the {@link
+	 * #CACHE_DIRECTORY_PROPERTY} system property, or in the user's private
+	 * cache directory.
+	 */
+	public CAIssuers() {
+		this(System.getProperty(CACHE_DIRECTORY_PROPERTY) != null ? new File(System.getProperty(CACHE_DIRECTORY_PROPERTY)) : CacheDirectories.getDefault("aia"), DEFAULT_CAPACITY, DEFAULT_DISK_CAPACITY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *   the directory where fetched certificates are stored; if null, they are
+	 *   only kept in memory.
+	 * @param capacity
+	 *   the number of entries kept in memory.
+	 * @param diskCapacity
+	 *   the number of files kept on disk.
+	 */
+	public CAIssuers(File directory, int capacity, int diskCapacity) {
+		this.directory = directory;
+		this.diskCapacity = diskCapacity;
+		this.byURL = new BoundedMap<>(capacity);
+		this.byKeyIdentifier = new BoundedMap<>(capacity);
+		this.failures = new BoundedMap<>(capacity);
+	}
+
+	/**
+	 * Sets the timeouts used when fetching certificates.
+	 *
+	 * @param connectTimeout
+	 *   the connection timeout, in milliseconds.
+	 * @param readTimeout
+	 *   the read timeout, in milliseconds.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public CAIssuers setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the time to live of cached certificates, both in memory and on disk;
+	 * certificates are never used past their expiry date anyway.
+	 *
+	 * @param ttl
+	 *   the time to live, in milliseconds.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public CAIssuers setTTL(long ttl) {
+		this.ttl = ttl;
+		return this;
+	}
+
+	/**
+	 * Returns the candidate issuers of the given certificate: the cached
+	 * certificate whose subject key identifier matches the certificate's
+	 * authority key identifier, if any, or else the certificates at the
+	 * certificate's "CA Issuers" URLs, fetched if not cached.
+	 *
+	 * @param certificate
+	 *   the certificate whose issuer is sought.
+	 * @return
+	 *   the certificates whose subject matches the certificate's issuer,
+	 *   possibly empty.
+	 */
+	public List<X509Certificate> getIssuers(X509Certificate certificate) {
+		X500Principal issuer = certificate.getIssuerX500Principal();
+		byte[] identifier = TrustStore.getAuthorityKeyIdentifier(certificate);
+		if(identifier != null) {
+			CertificateHandle cached = getByKeyIdentifier(Hex.toHexString(identifier));
+			if(cached != null && cached.getSubject().equals(issuer)) {
+				X509Certificate decoded = getCertificate(cached);
+				if(decoded != null) {
+					logger.trace("issuer of '{}' found in cache by key identifier", certificate.getSubjectX500Principal());
+					return Collections.singletonList(decoded);
+				}
+			}
+		}
+
+		List<X509Certificate> issuers = new ArrayList<>();
+		for(String url : CertificateProfile.of(certificate).getCAIssuersURLs()) {
+			for(CertificateHandle candidate : getByURL(url)) {
+				if(candidate.getSubject().equals(issuer)) {
+					X509Certificate decoded = getCertificate(candidate);
+					if(decoded != null && !issuers.contains(decoded)) {
+						issuers.add(decoded);
+					}
+				}
+			}
+			if(!issuers.isEmpty()) {
+				break;
+			}
+		}
+		return issuers;
+	}
+
+	/**
+	 * Walks the chain upwards from the given certificate, through the known
+	 * certificates where available and chasing the "CA Issuers" URLs where not,
+	 * until a self-issued certificate is reached.
+	 *
+	 * @param certificate
+	 *   the certificate whose chain must be completed.
+	 * @param known
+	 *   the certificates already available (trust anchors and intermediates).
+	 * @return
+	 *   the missing intermediate certificates, possibly empty.
+	 */
+	public List<X509Certificate> complete(X509Certificate certificate, Collection<X509Certificate> known) {
+		Map<X500Principal, X509Certificate> subjects = new HashMap<>();
+		for(X509Certificate other : known) {
+			subjects.put(other.getSubjectX500Principal(), other);
+		}
+		List<X509Certificate> missing = new ArrayList<>();
+		X509Certificate current = certificate;
+		for(int depth = 0; depth < MAX_DEPTH; ++depth) {
+			X500Principal issuer = current.getIssuerX500Principal();
+			if(issuer.equals(current.getSubjectX500Principal())) {
+				break;
+			}
+			X509Certificate next = subjects.get(issuer);
+			if(next == null) {
+				next = pickIssuer(current, getIssuers(current));
+				if(next == null || missing.contains(next)) {
+					break;
+				}
+				logger.debug("retrieved missing intermediate '{}'", next.getSubjectX500Principal());
+				missing.add(next);
+			}
+			current = next;
+		}
+		return missing;
+	}
+
+	/**
+	 * Empties the in-memory cache; the certificates stored on disk are kept.
+	 */
+	public void clear() {
+		synchronized(this) {
+			byURL.clear();
+			byKeyIdentifier.clear();
+			failures.clear();
+		}
+	}
+
+	/**
+	 * Fetches the contents of a "CA Issuers" URL.
+	 *
+	 * @param location
+	 *   the URL.
+	 * @return
+	 *   the contents, either a DER encoded certificate or a "certs-only" PKCS#7.
+	 * @throws IOException
+	 *   if the URL cannot be fetched.
+	 */
+	protected byte[] fetch(String location) throws IOException {
+		URLConnection connection = new URL(location).openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		try(InputStream input = connection.getInputStream(); ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+			Streams.copy(input, output);
+			return output.toByteArray();
+		} finally {
+			if(connection instanceof HttpURLConnection) {
+				((HttpURLConnection)connection).disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Picks, among the candidates, the one whose key verifies the certificate's
+	 * signature, or the first one if none does (path building will tell).
+	 */
+	private static X509Certificate pickIssuer(X509Certificate certificate, List<X509Certificate> candidates) {
+		for(X509Certificate candidate : candidates) {
+			try {
+				certificate.verify(candidate.getPublicKey());
+				return candidate;
+			} catch(GeneralSecurityException e) {
+				logger.trace("candidate issuer '{}' does not verify certificate", candidate.getSubjectX500Principal());
+			}
+		}
+		return candidates.isEmpty() ? null : candidates.get(0);
+	}
+
+	/**
+	 * Decodes a cached certificate, returning null if it cannot be decoded.
+	 */
+	private static X509Certificate getCertificate(CertificateHandle handle) {
+		try {
+			return handle.getCertificate();
+		} catch(CertificateException e) {
+			logger.warn("invalid CA certificate '{}'", handle.getSubject());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the certificate with the given subject key identifier, from memory
+	 * or from disk.
+	 */
+	private CertificateHandle getByKeyIdentifier(String identifier) {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			Cached<CertificateHandle> cached = byKeyIdentifier.get(identifier);
+			if(cached != null && cached.expires > now) {
+				return cached.value;
+			}
+			byKeyIdentifier.remove(identifier);
+		}
+		byte[] data = read(KEY_PREFIX + identifier);
+		if(data != null) {
+			List<CertificateHandle> certificates = decode(data, now);
+			if(!certificates.isEmpty()) {
+				synchronized(this) {
+					byKeyIdentifier.put(identifier, new Cached<>(certificates.get(0), getExpiry(certificates, now)));
+				}
+				return certificates.get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the certificates at the given URL, from memory, from disk or by
+	 * fetching them.
+	 */
+	private List<CertificateHandle> getByURL(String url) {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			Cached<List<CertificateHandle>> cached = byURL.get(url);
+			if(cached != null && cached.expires > now) {
+				return cached.value;
+			}
+			byURL.remove(url);
+			Long failure = failures.get(url);
+			if(failure != null && System.currentTimeMillis() - failure < FAILURE_TTL) {
+				return Collections.emptyList();
+			}
+		}
+
+		String name = URL_PREFIX + hash(url);
+		byte[] data = read(name);
+		boolean fetched = false;
+		if(data == null) {
+			if(!url.toLowerCase().startsWith("http")) {
+				logger.debug("unsupported CA issuers URL '{}'", url);
+				return Collections.emptyList();
+			}
+			try {
+				logger.debug("fetching CA issuers from '{}'", url);
+				data = fetch(url);
+				fetched = true;
+			} catch(IOException e) {
+				logger.warn("error fetching CA issuers from '" + url + "'", e);
+				synchronized(this) {
+					failures.put(url, System.currentTimeMillis());
+				}
+				return Collections.emptyList();
+			}
+		}
+
+		List<CertificateHandle> certificates = decode(data, now);
+		Map<String, CertificateHandle> identifiers = new LinkedHashMap<>();
+		for(CertificateHandle certificate : certificates) {
+			try {
+				byte[] identifier = certificate.getSubjectKeyIdentifier();
+				if(identifier != null) {
+					identifiers.put(Hex.toHexString(identifier), certificate);
+				}
+			} catch(CertificateParsingException e) {
+				logger.debug("invalid subject key identifier in CA certificate '{}'", certificate.getSubject());
+			}
+		}
+		long expires = getExpiry(certificates, now);
+		synchronized(this) {
+			byURL.put(url, new Cached<>(certificates, expires));
+			for(Map.Entry<String, CertificateHandle> entry : identifiers.entrySet()) {
+				byKeyIdentifier.put(entry.getKey(), new Cached<>(entry.getValue(), getExpiry(Collections.singletonList(entry.getValue()), now)));
+			}
+		}
+
+		// disk I/O happens outside the lock
+		if(fetched && !certificates.isEmpty()) {
+			write(name, data);
+			for(Map.Entry<String, CertificateHandle> entry : identifiers.entrySet()) {
+				write(KEY_PREFIX + entry.getKey(), entry.getValue().getEncoded());
+			}
+			prune();
+		}
+		return certificates;
+	}
+
+	/**
+	 * Returns the time when an entry holding the given certificates expires:
+	 * when the first of them expires, or when its time to live elapses.
+	 */
+	private long getExpiry(List<CertificateHandle> certificates, long now) {
+		long expires = now + ttl;
+		for(CertificateHandle certificate : certificates) {
+			try {
+				expires = Math.min(expires, certificate.getNotAfter().getTime());
+			} catch(CertificateParsingException e) {
+				// checked when decoded
+				throw new IllegalStateException(e);
+			}
+		}
+		return expires;
+	}
+
+	/**
+	 * Decodes a DER or PEM certificate, or a "certs-only" PKCS#7, discarding
+	 * the certificates that have expired; DER certificates (the most common 
+	 * case) are only scanned, not decoded.
+	 */
+	private static List<CertificateHandle> decode(byte[] data, long now) {
+		List<CertificateHandle> handles = new ArrayList<>();
+		try {
+			handles.add(new CertificateHandle(data));
+		} catch(CertificateParsingException e) {
+			try {
+				for(Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(new ByteArrayInputStream(data))) {
+					if(certificate instanceof X509Certificate) {
+						handles.add(new CertificateHandle((X509Certificate)certificate));
+					}
+				}
+			} catch(CertificateException e2) {
+				logger.warn("invalid CA issuers data", e2);
+			}
+		}
+		List<CertificateHandle> certificates = new ArrayList<>();
+		for(CertificateHandle handle : handles) {
+			try {
+				if(handle.getNotAfter().getTime() <= now) {
+					logger.debug("discarding expired CA certificate '{}'", handle.getSubject());
+					continue;
+				}
+				certificates.add(handle);
+			} catch(CertificateParsingException e) {
+				logger.warn("invalid validity in CA certificate '{}'", handle.getSubject());
+			}
+		}
+		return certificates;
+	}
+
+	/**
+	 * Reads a cache file, returning null if not available or past its time to
+	 * live.
+	 */
+	private byte[] read(String name) {
+		if(directory == null || !CacheDirectories.isPrivate(directory)) {
+			return null;
+		}
+		File file = new File(directory, name + EXTENSION);
+		if(!file.isFile()) {
+			return null;
+		}
+		if(file.lastModified() + ttl <= System.currentTimeMillis()) {
+			logger.debug("cache file '{}' is past its time to live", file);
+			return null;
+		}
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch(IOException e) {
+			logger.warn("error reading cached certificates from '" + file + "'", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a cache file.
+	 */
+	private void write(String name, byte[] data) {
+		if(directory == null) {
+			return;
+		}
+		try {
+			CacheDirectories.create(directory);
+			File file = new File(directory, name + EXTENSION);
+			File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+			try {
+				try(FileOutputStream output = new FileOutputStream(temporary)) {
+					output.write(data);
+				}
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temporary.toPath());
+			}
+		} catch(IOException e) {
+			logger.warn("error caching certificates to '" + directory + "'", e);
+		}
+	}
+
+	/**
+	 * Removes the least recently written files in excess of the disk capacity.
+	 */
+	private void prune() {
+		if(directory == null) {
+			return;
+		}
+		File[] files = directory.listFiles();
+		if(files == null || files.length <= diskCapacity) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File first, File second) {
+				return Long.compare(first.lastModified(), second.lastModified());
+			}
+		});
+		for(int i = 0; i < files.length - diskCapacity; ++i) {
+			if(!files[i].delete() && files[i].exists()) {
+				logger.warn("cannot remove cache file '{}'", files[i]);
+			}
+		}
+	}
+
+	/**
+	 * Hashes a URL into a file name.
+	 */
+	private static String hash(String url) {
+		try {
+			return Hex.toHexString(MessageDigest.getInstance("SHA-1").digest(url.getBytes(UTF8)));
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+
+	/**
+	 * A cached value, along with the time when it expires.
+	 */
+	private static class Cached<T> {
+
+		final T value;
+
+		final long expires;
+
+		Cached(T value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * A map evicting its least recently used entries past a given size.
+	 */
+	private static class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		BoundedMap(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > capacity;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import org.dihedron.core.License;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helper methods for the directories where certificates, trusted lists and
+ * their snapshots are cached on disk. Since whatever is found there is trusted
+ * (at least in part) without further checks, the default directories are
+ * private to the user, under {@code ~/.dihedron-crypto}, and a directory that
+ * other users can write to is never used: otherwise anybody on the machine
+ * could plant certificates there, under predictable file names.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public final class CacheDirectories {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(CacheDirectories.class);
+
+	/**
+	 * The name of the base directory, under the user's home directory.
+	 */
+	public static final String BASE_DIRECTORY = ".dihedron-crypto";
+
+	/**
+	 * The permissions of the directories created here (rwx------).
+	 */
+	private static final Set<PosixFilePermission> PRIVATE = PosixFilePermissions.fromString("rwx------");
+
+	/**
+	 * Returns the default cache directory with the given name, under the base
+	 * directory in the user's home directory.
+	 *
+	 * @param name
+	 *   the name of the cache directory (e.g. "tsl").
+	 * @return
+	 *   the default cache directory.
+	 */
+	public static File getDefault(String name) {
+		return new File(System.getProperty("user.home") + File.separator + BASE_DIRECTORY + File.separator + name);
+	}
+
+	/**
+	 * Creates the given directory (and its missing parents) so that it is only
+	 * accessible by the current user, and checks that other users cannot write
+	 * to it.
+	 *
+	 * @param directory
+	 *   the directory to create.
+	 * @throws IOException
+	 *   if the directory cannot be created, or other users can write to it.
+	 */
+	public static void create(File directory) throws IOException {
+		Path path = directory.getAbsoluteFile().toPath();
+		if(!Files.isDirectory(path)) {
+			if(FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+				Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PRIVATE));
+			} else {
+				Files.createDirectories(path);
+			}
+			logger.debug("cache directory '{}' created", directory);
+		}
+		if(!isPrivate(directory)) {
+			logger.error("cache directory '{}' is writable by other users", directory);
+			throw new IOException("cache directory '" + directory + "' is writable by other users");
+		}
+	}
+
+	/**
+	 * Returns whether the given directory exists and no user other than its
+	 * owner can write to it; on file systems without POSIX permissions, this
+	 * only checks that the directory exists.
+	 *
+	 * @param directory
+	 *   the directory to check.
+	 * @return
+	 *   whether the directory can be trusted.
+	 */
+	public static boolean isPrivate(File directory) {
+		Path path = directory.getAbsoluteFile().toPath();
+		if(!Files.isDirectory(path)) {
+			return false;
+		}
+		PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+		if(view == null) {
+			return true;
+		}
+		try {
+			Set<PosixFilePermission> permissions = view.readAttributes().permissions();
+			return !permissions.contains(PosixFilePermission.GROUP_WRITE) && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+		} catch(IOException e) {
+			logger.warn("cannot read permissions of '{}'", directory);
+			return false;
+		}
+	}
+
+	/**
+	 * Private constructor, to prevent instantiation.
+	 */
+	private CacheDirectories() {
+	}
+}
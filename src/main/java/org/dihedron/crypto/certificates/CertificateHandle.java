@@ -0,0 +1,498 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.util.encoders.Hex;
+import org.dihedron.core.License;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * A lightweight handle on a DER encoded X.509 certificate: the encoding is
+ * only scanned for the boundaries of the few fields that cache lookups need
+ * (serial number, issuer, subject and extensions), fingerprints are computed
+ * on the raw bytes, and the full JCA certificate object is only built when
+ * actually requested.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public final class CertificateHandle {
+
+	/**
+	 * The DER tag of SEQUENCE.
+	 */
+	private static final int SEQUENCE = 0x30;
+
+	/**
+	 * The DER tag of INTEGER.
+	 */
+	private static final int INTEGER = 0x02;
+
+	/**
+	 * The DER tag of BOOLEAN.
+	 */
+	private static final int BOOLEAN = 0x01;
+
+	/**
+	 * The DER tag of BIT STRING.
+	 */
+	private static final int BIT_STRING = 0x03;
+
+	/**
+	 * The DER tag of OCTET STRING.
+	 */
+	private static final int OCTET_STRING = 0x04;
+
+	/**
+	 * The DER tag of the explicitly tagged version in a TBS certificate.
+	 */
+	private static final int VERSION = 0xA0;
+
+	/**
+	 * The DER tag of the explicitly tagged extensions in a TBS certificate.
+	 */
+	private static final int EXTENSIONS = 0xA3;
+
+	/**
+	 * The factory used to materialise certificates, one per thread.
+	 */
+	private static final ThreadLocal<CertificateFactory> factories = new ThreadLocal<CertificateFactory>() {
+		@Override
+		protected CertificateFactory initialValue() {
+			try {
+				return CertificateFactory.getInstance("X.509");
+			} catch(CertificateException e) {
+				throw new IllegalStateException("X.509 certificate factory not available", e);
+			}
+		}
+	};
+
+	/**
+	 * The DER encoding of the certificate.
+	 */
+	private final byte[] encoded;
+
+	/**
+	 * The offset and length of the serial number contents.
+	 */
+	private final int serialOffset, serialLength;
+
+	/**
+	 * The offset and length of the whole issuer name element.
+	 */
+	private final int issuerOffset, issuerLength;
+
+	/**
+	 * The offset and length of the validity contents.
+	 */
+	private final int validityOffset, validityLength;
+
+	/**
+	 * The offset and length of the whole subject name element.
+	 */
+	private final int subjectOffset, subjectLength;
+
+	/**
+	 * The offset and length of the contents of the extensions sequence, or -1
+	 * if the certificate has no extensions.
+	 */
+	private final int extensionsOffset, extensionsLength;
+
+	/**
+	 * The SHA-256 fingerprint, computed on first use.
+	 */
+	private volatile byte[] fingerprint;
+
+	/**
+	 * The certificate, built on first use.
+	 */
+	private volatile X509Certificate certificate;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param encoded
+	 *   the DER encoding of the certificate.
+	 * @throws CertificateParsingException
+	 *   if the encoding is not a well-formed certificate.
+	 */
+	public CertificateHandle(byte[] encoded) throws CertificateParsingException {
+		this.encoded = encoded.clone();
+		try {
+			int[] element = header(this.encoded, 0, this.encoded.length, SEQUENCE);
+			int[] tbs = header(this.encoded, element[0], element[0] + element[1], SEQUENCE);
+			int end = tbs[0] + tbs[1];
+			int position = tbs[0];
+			if((this.encoded[position] & 0xFF) == VERSION) {
+				position = skip(this.encoded, position, end);
+			}
+			int[] serial = header(this.encoded, position, end, INTEGER);
+			serialOffset = serial[0];
+			serialLength = serial[1];
+			position = serial[0] + serial[1];
+			position = skip(this.encoded, position, end);			// signature algorithm
+			issuerOffset = position;
+			position = skip(this.encoded, position, end);
+			issuerLength = position - issuerOffset;
+			int[] validity = header(this.encoded, position, end, SEQUENCE);
+			validityOffset = validity[0];
+			validityLength = validity[1];
+			position = validity[0] + validity[1];
+			subjectOffset = position;
+			position = skip(this.encoded, position, end);
+			subjectLength = position - subjectOffset;
+			position = skip(this.encoded, position, end);			// subject public key info
+			int extensionsOffset = -1;
+			int extensionsLength = -1;
+			while(position < end) {
+				if((this.encoded[position] & 0xFF) == EXTENSIONS) {
+					int[] wrapper = header(this.encoded, position, end, EXTENSIONS);
+					int[] extensions = header(this.encoded, wrapper[0], wrapper[0] + wrapper[1], SEQUENCE);
+					extensionsOffset = extensions[0];
+					extensionsLength = extensions[1];
+				}
+				position = skip(this.encoded, position, end);
+			}
+			this.extensionsOffset = extensionsOffset;
+			this.extensionsLength = extensionsLength;
+		} catch(IOException | ArrayIndexOutOfBoundsException e) {
+			throw new CertificateParsingException("malformed certificate encoding", e);
+		}
+	}
+
+	/**
+	 * Constructor, for an already decoded certificate.
+	 *
+	 * @param certificate
+	 *   the certificate.
+	 * @throws CertificateException
+	 *   if the certificate cannot be encoded.
+	 */
+	public CertificateHandle(X509Certificate certificate) throws CertificateException {
+		this(certificate.getEncoded());
+		this.certificate = certificate;
+	}
+
+	/**
+	 * Loads a certificate through the given loader, without decoding the whole
+	 * certificate unless the loader already holds it decoded; use this when 
+	 * only fingerprints or issuer and serial number are needed (e.g. for cache 
+	 * lookups).
+	 *
+	 * @param loader
+	 *   the loader holding the certificate.
+	 * @param properties
+	 *   the loader-specific properties identifying the certificate.
+	 * @return
+	 *   a handle on the certificate, or null if not found.
+	 * @throws CertificateLoaderException
+	 *   if the certificate cannot be loaded or is malformed.
+	 */
+	public static CertificateHandle of(CertificateLoader loader, Properties properties) throws CertificateLoaderException {
+		return loader.loadCertificateHandle(properties);
+	}
+
+	/**
+	 * Wraps certificate data loaded by a {@link CertificateLoader}.
+	 *
+	 * @param data
+	 *   the DER encoding of the certificate, or null.
+	 * @return
+	 *   a handle on the certificate, or null if no data was given.
+	 * @throws CertificateLoaderException
+	 *   if the certificate is malformed.
+	 */
+	public static CertificateHandle of(byte[] data) throws CertificateLoaderException {
+		if(data == null) {
+			return null;
+		}
+		try {
+			return new CertificateHandle(data);
+		} catch(CertificateParsingException e) {
+			throw new CertificateLoaderException("error parsing certificate", e);
+		}
+	}
+
+	/**
+	 * Returns the DER encoding of the certificate.
+	 *
+	 * @return
+	 *   a copy of the encoding.
+	 */
+	public byte[] getEncoded() {
+		return encoded.clone();
+	}
+
+	/**
+	 * Returns the SHA-256 fingerprint of the certificate.
+	 *
+	 * @return
+	 *   the fingerprint.
+	 */
+	public byte[] getFingerprint() {
+		byte[] result = fingerprint;
+		if(result == null) {
+			try {
+				fingerprint = result = getFingerprint("SHA-256");
+			} catch(NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 not available", e);
+			}
+		}
+		return result.clone();
+	}
+
+	/**
+	 * Returns the fingerprint of the certificate with the given digest algorithm.
+	 *
+	 * @param algorithm
+	 *   the digest algorithm, e.g. "SHA-1".
+	 * @return
+	 *   the fingerprint.
+	 * @throws NoSuchAlgorithmException
+	 *   if the algorithm is not available.
+	 */
+	public byte[] getFingerprint(String algorithm) throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance(algorithm).digest(encoded);
+	}
+
+	/**
+	 * Returns the certificate serial number.
+	 *
+	 * @return
+	 *   the serial number.
+	 */
+	public BigInteger getSerialNumber() {
+		return new BigInteger(Arrays.copyOfRange(encoded, serialOffset, serialOffset + serialLength));
+	}
+
+	/**
+	 * Returns the issuer distinguished name.
+	 *
+	 * @return
+	 *   the issuer.
+	 */
+	public X500Principal getIssuer() {
+		return new X500Principal(Arrays.copyOfRange(encoded, issuerOffset, issuerOffset + issuerLength));
+	}
+
+	/**
+	 * Returns the end of the certificate validity period.
+	 *
+	 * @return
+	 *   the expiry date.
+	 * @throws CertificateParsingException
+	 *   if the validity is malformed.
+	 */
+	public Date getNotAfter() throws CertificateParsingException {
+		try {
+			int end = validityOffset + validityLength;
+			int notAfter = skip(encoded, validityOffset, end);
+			return Time.getInstance(ASN1Primitive.fromByteArray(Arrays.copyOfRange(encoded, notAfter, skip(encoded, notAfter, end)))).getDate();
+		} catch(IOException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			throw new CertificateParsingException("malformed certificate validity", e);
+		}
+	}
+
+	/**
+	 * Returns the subject distinguished name.
+	 *
+	 * @return
+	 *   the subject.
+	 */
+	public X500Principal getSubject() {
+		return new X500Principal(Arrays.copyOfRange(encoded, subjectOffset, subjectOffset + subjectLength));
+	}
+
+	/**
+	 * Returns the DER encoded value of the given extension (i.e. the contents
+	 * of its "extnValue" OCTET STRING).
+	 *
+	 * @param oid
+	 *   the extension OID.
+	 * @return
+	 *   the extension value, or null if the certificate has no such extension.
+	 * @throws CertificateParsingException
+	 *   if the extensions are malformed.
+	 */
+	public byte[] getExtensionValue(String oid) throws CertificateParsingException {
+		if(extensionsOffset < 0) {
+			return null;
+		}
+		try {
+			byte[] identifier = new ASN1ObjectIdentifier(oid).getEncoded();
+			int end = extensionsOffset + extensionsLength;
+			int position = extensionsOffset;
+			while(position < end) {
+				int[] extension = header(encoded, position, end, SEQUENCE);
+				int next = extension[0] + extension[1];
+				int value = extension[0] + identifier.length;
+				if(value <= next && regionMatches(encoded, extension[0], identifier)) {
+					if((encoded[value] & 0xFF) == BOOLEAN) {
+						value = skip(encoded, value, next);
+					}
+					int[] octets = header(encoded, value, next, OCTET_STRING);
+					return Arrays.copyOfRange(encoded, octets[0], octets[0] + octets[1]);
+				}
+				position = next;
+			}
+			return null;
+		} catch(IOException | ArrayIndexOutOfBoundsException e) {
+			throw new CertificateParsingException("malformed certificate extensions", e);
+		}
+	}
+
+	/**
+	 * Returns the subject key identifier.
+	 *
+	 * @return
+	 *   the subject key identifier, or null if not available.
+	 * @throws CertificateParsingException
+	 *   if the extension is malformed.
+	 */
+	public byte[] getSubjectKeyIdentifier() throws CertificateParsingException {
+		byte[] value = getExtensionValue(Extension.subjectKeyIdentifier.getId());
+		if(value == null) {
+			return null;
+		}
+		try {
+			int[] octets = header(value, 0, value.length, OCTET_STRING);
+			return Arrays.copyOfRange(value, octets[0], octets[0] + octets[1]);
+		} catch(IOException e) {
+			throw new CertificateParsingException("malformed subject key identifier", e);
+		}
+	}
+
+	/**
+	 * Returns whether the given key usage bit is set.
+	 *
+	 * @param bit
+	 *   the index of the key usage bit, e.g. {@link CertificateProfile#NON_REPUDIATION}.
+	 * @return
+	 *   whether the bit is set; false if the certificate has no key usage
+	 *   extension.
+	 * @throws CertificateParsingException
+	 *   if the extension is malformed.
+	 */
+	public boolean hasKeyUsage(int bit) throws CertificateParsingException {
+		byte[] value = getExtensionValue(Extension.keyUsage.getId());
+		if(value == null) {
+			return false;
+		}
+		try {
+			int[] bits = header(value, 0, value.length, BIT_STRING);
+			// the first content byte is the number of unused bits
+			int index = bits[0] + 1 + bit / 8;
+			return index < bits[0] + bits[1] && (value[index] & (0x80 >> (bit % 8))) != 0;
+		} catch(IOException e) {
+			throw new CertificateParsingException("malformed key usage", e);
+		}
+	}
+
+	/**
+	 * Returns the certificate, building it on first use.
+	 *
+	 * @return
+	 *   the certificate.
+	 * @throws CertificateException
+	 *   if the certificate cannot be decoded.
+	 */
+	public X509Certificate getCertificate() throws CertificateException {
+		X509Certificate result = certificate;
+		if(result == null) {
+			certificate = result = (X509Certificate)factories.get().generateCertificate(new ByteArrayInputStream(encoded));
+		}
+		return result;
+	}
+
+	/**
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof CertificateHandle && Arrays.equals(encoded, ((CertificateHandle)other).encoded);
+	}
+
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(encoded);
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "{ issuer: '" + getIssuer() + "', serial: " + getSerialNumber() + ", fingerprint: " + Hex.toHexString(getFingerprint()) + " }";
+	}
+
+	/**
+	 * Reads the header of the element at the given position, checking its tag.
+	 *
+	 * @return
+	 *   the offset and length of the element contents.
+	 */
+	private static int[] header(byte[] data, int position, int end, int tag) throws IOException {
+		if(position >= end || (data[position] & 0xFF) != tag) {
+			throw new IOException("unexpected element at offset " + position);
+		}
+		int length = data[position + 1] & 0xFF;
+		int offset = position + 2;
+		if(length > 0x7F) {
+			int count = length & 0x7F;
+			if(count == 0 || count > 4) {
+				throw new IOException("unsupported length at offset " + position);
+			}
+			length = 0;
+			for(int i = 0; i < count; ++i) {
+				length = (length << 8) | (data[offset++] & 0xFF);
+			}
+		}
+		if(length < 0 || length > end - offset) {
+			throw new IOException("element at offset " + position + " exceeds its container");
+		}
+		return new int[] { offset, length };
+	}
+
+	/**
+	 * Returns the position of the element following the one at the given position.
+	 */
+	private static int skip(byte[] data, int position, int end) throws IOException {
+		int[] element = header(data, position, end, data[position] & 0xFF);
+		return element[0] + element[1];
+	}
+
+	/**
+	 * Returns whether the data at the given position starts with the given bytes.
+	 */
+	private static boolean regionMatches(byte[] data, int position, byte[] prefix) {
+		for(int i = 0; i < prefix.length; ++i) {
+			if(data[position + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.util.encoders.Hex;
+import org.dihedron.core.License;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable collection of certificates, indexed by subject, by subject key
+ * identifier, by issuer and serial number and by e-mail address, so that large
+ * sets of recipient certificates (e.g. loaded in bulk at startup) can be
+ * queried without scanning them. Certificates are held as {@link 
+ * CertificateHandle}s, indexed without being decoded, and only decoded when 
+ * returned by a query.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class CertificateIndex {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(CertificateIndex.class);
+
+	/**
+	 * The distinct certificates, in insertion order.
+	 */
+	private final Set<CertificateHandle> certificates;
+
+	/**
+	 * The certificates, by subject.
+	 */
+	private final Map<X500Principal, List<CertificateHandle>> bySubject = new HashMap<>();
+
+	/**
+	 * The certificates, by (hex encoded) subject key identifier.
+	 */
+	private final Map<String, List<CertificateHandle>> byKeyIdentifier = new HashMap<>();
+
+	/**
+	 * The certificates, by issuer and serial number.
+	 */
+	private final Map<IssuerAndSerial, CertificateHandle> byIssuerAndSerial = new HashMap<>();
+
+	/**
+	 * The certificates, by lower-case e-mail address.
+	 */
+	private final Map<String, List<CertificateHandle>> byEmail = new HashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param certificates
+	 *   the certificates; duplicates are discarded.
+	 */
+	public CertificateIndex(Collection<X509Certificate> certificates) {
+		this(wrap(certificates));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param certificates
+	 *   the distinct certificates.
+	 */
+	private CertificateIndex(LinkedHashSet<CertificateHandle> certificates) {
+		this.certificates = Collections.unmodifiableSet(certificates);
+		for(CertificateHandle certificate : this.certificates) {
+			add(certificate);
+		}
+		logger.debug("certificate index ready with {} certificates ({} distinct subjects)", this.certificates.size(), bySubject.size());
+	}
+
+	/**
+	 * Constructor, merging indexes built independently (e.g. in parallel); the
+	 * certificates are not indexed again.
+	 *
+	 * @param parts
+	 *   the indexes to merge, in order.
+	 */
+	private CertificateIndex(List<CertificateIndex> parts) {
+		LinkedHashSet<CertificateHandle> all = new LinkedHashSet<>();
+		for(CertificateIndex part : parts) {
+			// only the certificates not already in a previous part are merged
+			Set<CertificateHandle> added = new HashSet<>();
+			for(CertificateHandle certificate : part.certificates) {
+				if(all.add(certificate)) {
+					added.add(certificate);
+				}
+			}
+			merge(bySubject, part.bySubject, added);
+			merge(byKeyIdentifier, part.byKeyIdentifier, added);
+			merge(byEmail, part.byEmail, added);
+			for(Map.Entry<IssuerAndSerial, CertificateHandle> entry : part.byIssuerAndSerial.entrySet()) {
+				if(added.contains(entry.getValue())) {
+					byIssuerAndSerial.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		this.certificates = Collections.unmodifiableSet(all);
+		logger.debug("certificate index merged from {} parts, with {} certificates ({} distinct subjects)", parts.size(), certificates.size(), bySubject.size());
+	}
+
+	/**
+	 * Builds an index of certificates that have not been decoded yet.
+	 *
+	 * @param certificates
+	 *   the certificates; duplicates are discarded.
+	 * @return
+	 *   the index.
+	 */
+	public static CertificateIndex of(Collection<CertificateHandle> certificates) {
+		return new CertificateIndex(new LinkedHashSet<>(certificates));
+	}
+
+	/**
+	 * Merges indexes built independently, e.g. on chunks of a large set of
+	 * certificates loaded in parallel, without indexing the certificates again.
+	 * Certificates present in more than one index are only kept once.
+	 *
+	 * @param indexes
+	 *   the indexes to merge, in order.
+	 * @return
+	 *   the merged index.
+	 */
+	public static CertificateIndex merge(List<CertificateIndex> indexes) {
+		return new CertificateIndex(indexes);
+	}
+
+	/**
+	 * Returns all certificates in the index, decoding them.
+	 *
+	 * @return
+	 *   an unmodifiable list of the certificates.
+	 */
+	public Collection<X509Certificate> getCertificates() {
+		return decode(certificates);
+	}
+
+	/**
+	 * Returns all certificates in the index, without decoding them.
+	 *
+	 * @return
+	 *   an unmodifiable view of the certificates.
+	 */
+	public Collection<CertificateHandle> getHandles() {
+		return certificates;
+	}
+
+	/**
+	 * Returns the number of certificates in the index.
+	 *
+	 * @return
+	 *   the number of certificates.
+	 */
+	public int size() {
+		return certificates.size();
+	}
+
+	/**
+	 * Returns the certificates with the given subject.
+	 *
+	 * @param subject
+	 *   the subject distinguished name.
+	 * @return
+	 *   the matching certificates, possibly empty.
+	 */
+	public List<X509Certificate> getBySubject(X500Principal subject) {
+		return get(bySubject, subject);
+	}
+
+	/**
+	 * Returns the certificates with the given subject key identifier.
+	 *
+	 * @param identifier
+	 *   the subject key identifier.
+	 * @return
+	 *   the matching certificates, possibly empty.
+	 */
+	public List<X509Certificate> getBySubjectKeyIdentifier(byte[] identifier) {
+		return get(byKeyIdentifier, identifier != null ? Hex.toHexString(identifier) : null);
+	}
+
+	/**
+	 * Returns the certificate with the given issuer and serial number, as used
+	 * to identify recipients and signers in CMS messages.
+	 *
+	 * @param issuer
+	 *   the issuer distinguished name.
+	 * @param serial
+	 *   the serial number.
+	 * @return
+	 *   the matching certificate, or null if none.
+	 */
+	public X509Certificate getByIssuerAndSerial(X500Principal issuer, BigInteger serial) {
+		CertificateHandle certificate = byIssuerAndSerial.get(new IssuerAndSerial(issuer, serial));
+		List<X509Certificate> decoded = certificate != null ? decode(Collections.singletonList(certificate)) : Collections.<X509Certificate>emptyList();
+		return decoded.isEmpty() ? null : decoded.get(0);
+	}
+
+	/**
+	 * Returns the certificates bound to the given e-mail address, either in the
+	 * subject alternative names or in the subject.
+	 *
+	 * @param email
+	 *   the e-mail address (case insensitive).
+	 * @return
+	 *   the matching certificates, possibly empty.
+	 */
+	public List<X509Certificate> getByEmail(String email) {
+		return get(byEmail, email != null ? email.toLowerCase(Locale.ROOT) : null);
+	}
+
+	/**
+	 * Adds a certificate to all indexes.
+	 */
+	private void add(CertificateHandle certificate) {
+		index(bySubject, certificate.getSubject(), certificate);
+		try {
+			byte[] identifier = certificate.getSubjectKeyIdentifier();
+			if(identifier != null) {
+				index(byKeyIdentifier, Hex.toHexString(identifier), certificate);
+			}
+		} catch(CertificateParsingException e) {
+			logger.warn("invalid subject key identifier in certificate '{}'", certificate.getSubject());
+		}
+		byIssuerAndSerial.put(new IssuerAndSerial(certificate.getIssuer(), certificate.getSerialNumber()), certificate);
+		for(String email : getEmailAddresses(certificate)) {
+			index(byEmail, email, certificate);
+		}
+	}
+
+	/**
+	 * Wraps decoded certificates into handles, discarding duplicates.
+	 */
+	private static LinkedHashSet<CertificateHandle> wrap(Collection<X509Certificate> certificates) {
+		LinkedHashSet<CertificateHandle> handles = new LinkedHashSet<>();
+		for(X509Certificate certificate : certificates) {
+			try {
+				handles.add(new CertificateHandle(certificate));
+			} catch(CertificateException e) {
+				logger.warn("skipping certificate '{}' that cannot be encoded", certificate.getSubjectX500Principal());
+			}
+		}
+		return handles;
+	}
+
+	/**
+	 * Extracts the e-mail addresses from the subject alternative names and from
+	 * the subject of a certificate.
+	 */
+	private static Set<String> getEmailAddresses(CertificateHandle certificate) {
+		Set<String> addresses = new LinkedHashSet<>();
+		try {
+			byte[] names = certificate.getExtensionValue(Extension.subjectAlternativeName.getId());
+			if(names != null) {
+				for(GeneralName name : GeneralNames.getInstance(ASN1Primitive.fromByteArray(names)).getNames()) {
+					if(name.getTagNo() == GeneralName.rfc822Name) {
+						addresses.add(DERIA5String.getInstance(name.getName()).getString().toLowerCase(Locale.ROOT));
+					}
+				}
+			}
+		} catch(CertificateParsingException | IOException | IllegalArgumentException e) {
+			logger.warn("invalid subject alternative names in certificate '{}'", certificate.getSubject());
+		}
+		for(RDN rdn : X500Name.getInstance(certificate.getSubject().getEncoded()).getRDNs(BCStyle.EmailAddress)) {
+			addresses.add(IETFUtils.valueToString(rdn.getFirst().getValue()).toLowerCase(Locale.ROOT));
+		}
+		return addresses;
+	}
+
+	/**
+	 * Decodes the given certificates, skipping (and logging) those that cannot
+	 * be decoded.
+	 */
+	private static List<X509Certificate> decode(Collection<CertificateHandle> handles) {
+		List<X509Certificate> certificates = new ArrayList<>(handles.size());
+		for(CertificateHandle handle : handles) {
+			try {
+				certificates.add(handle.getCertificate());
+			} catch(CertificateException e) {
+				logger.warn("skipping certificate '{}' that cannot be decoded", handle.getSubject());
+			}
+		}
+		return Collections.unmodifiableList(certificates);
+	}
+
+	/**
+	 * Looks up an index.
+	 */
+	private static <K> List<X509Certificate> get(Map<K, List<CertificateHandle>> index, K key) {
+		List<CertificateHandle> matches = key != null ? index.get(key) : null;
+		return matches != null ? decode(matches) : Collections.<X509Certificate>emptyList();
+	}
+
+	/**
+	 * Merges the given certificates of a partial index into an index.
+	 */
+	private static <K> void merge(Map<K, List<CertificateHandle>> index, Map<K, List<CertificateHandle>> part, Set<CertificateHandle> certificates) {
+		for(Map.Entry<K, List<CertificateHandle>> entry : part.entrySet()) {
+			for(CertificateHandle certificate : entry.getValue()) {
+				if(certificates.contains(certificate)) {
+					index(index, entry.getKey(), certificate);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a certificate to an index.
+	 */
+	private static <K> void index(Map<K, List<CertificateHandle>> index, K key, CertificateHandle certificate) {
+		List<CertificateHandle> list = index.get(key);
+		if(list == null) {
+			index.put(key, list = new ArrayList<>(1));
+		}
+		list.add(certificate);
+	}
+}
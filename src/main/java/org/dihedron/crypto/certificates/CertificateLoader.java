@@ -15,4 +15,16 @@ public interface CertificateLoader {
 	Certificate loadCertificate(Properties properties) throws CertificateLoaderException;
 	
 	byte [] loadCertificateData(Properties properties) throws CertificateLoaderException;
+	
+	/**
+	 * Loads a certificate as a {@link CertificateHandle}, which is only decoded 
+	 * in full when the certificate itself is requested.
+	 * 
+	 * @param properties
+	 *   the loader-specific properties identifying the certificate.
+	 * @return
+	 *   a handle on the certificate, or null if not found.
+	 * @throws CertificateLoaderException
+	 */
+	CertificateHandle loadCertificateHandle(Properties properties) throws CertificateLoaderException;
 }
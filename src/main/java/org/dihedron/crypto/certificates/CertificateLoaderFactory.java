@@ -6,19 +6,31 @@ package org.dihedron.crypto.certificates;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.dihedron.core.License;
-import org.dihedron.crypto.certificates.impl.FileCertificateLoader;
-import org.dihedron.crypto.certificates.impl.LDAPCertificateLoader;
 import org.dihedron.crypto.exceptions.CertificateLoaderException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * CertificateLoader factory class; in order to create new instances, it uses the
- * set of properties provided as input; no state is kept between invocations, so 
- * the class is fully re-entrant.
+ * set of properties provided as input, whose "provider" property selects the 
+ * {@link CertificateLoaderProvider} (built-in ones are "file", "base64", "ldap", 
+ * "ldap-mirror", "memory", "disk" and "tiered"; more can be plugged in through 
+ * the ServiceLoader mechanism). Loaders can also be shared: those 
+ * returned by {@link #getCertificateLoader(Properties)} are created once per 
+ * configuration (concurrent requests wait for the one being created, so no
+ * duplicate is ever built and discarded) and reused, so that their connection pools and caches survive
+ * across invocations; the class is fully re-entrant.
  * NOTE: before invoking methods from this class, the BouncyCastle security
  * provider must have been laoded.
  * 
@@ -37,6 +49,68 @@ public class CertificateLoaderFactory {
 	 */
 	private final static String DEFAULT_PROPERTIES_FILENAME = "certificate_loader.properties"; 
 	
+	/**
+	 * The shared loaders, by configuration; each is created by the first thread
+	 * requesting it, while the others wait for it.
+	 */
+	private static final ConcurrentMap<String, FutureTask<CertificateLoader>> loaders = new ConcurrentHashMap<>();
+	
+	/**
+	 * The discovered providers, by lower-case name.
+	 */
+	private static final ConcurrentMap<String, CertificateLoaderProvider> providers = new ConcurrentHashMap<>();
+	
+	/**
+	 * Returns the shared CertificateLoader for the given property set, creating
+	 * it on first use.
+	 * 
+	 * @param properties
+	 *   a set of properties used to initialise the CertificateLoader.
+	 * @return
+	 *   a shared CertificateLoader instance.
+	 * @throws CertificateLoaderException
+	 */
+	static public CertificateLoader getCertificateLoader(final Properties properties) throws CertificateLoaderException {
+		assert(properties != null);
+		String key = new TreeMap<Object, Object>(properties).toString();
+		FutureTask<CertificateLoader> task = loaders.get(key);
+		if(task == null) {
+			FutureTask<CertificateLoader> created = new FutureTask<>(new Callable<CertificateLoader>() {
+				@Override
+				public CertificateLoader call() throws CertificateLoaderException {
+					return makeCertificateLoader(properties);
+				}
+			});
+			task = loaders.putIfAbsent(key, created);
+			if(task == null) {
+				task = created;
+				task.run();
+			}
+		}
+		try {
+			CertificateLoader loader = task.get();
+			if(loader == null) {
+				// let later invocations try again (e.g. once the provider is available)
+				loaders.remove(key, task);
+			}
+			return loader;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CertificateLoaderException("interrupted while waiting for certificate loader", e);
+		} catch(ExecutionException e) {
+			loaders.remove(key, task);
+			Throwable cause = e.getCause();
+			if(cause instanceof CertificateLoaderException) {
+				throw (CertificateLoaderException)cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			} else if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new CertificateLoaderException("error creating certificate loader", cause);
+		}
+	}
+	
 	/**
 	 * Creates a new CertificateLoader loading its property set from the given file. 
 	 * 
@@ -79,22 +153,40 @@ public class CertificateLoaderFactory {
 	 */
 	static public CertificateLoader makeCertificateLoader(Properties properties) throws CertificateLoaderException {		
 		assert(properties != null);		
-		String provider = (String) properties.get("provider");		
-		if(provider.equalsIgnoreCase("file")) {
-			logger.info("instantiating a FileCertificateLoader...");
-			return new FileCertificateLoader();
-		} else if(provider.equalsIgnoreCase("ldap")) {
-			logger.info("instantiating a LDAPCertificateLoader...");
-			if(properties.containsKey("ldap.url")) {
-				String ldapUrl = (String) properties.get("ldap.url");
-				return new LDAPCertificateLoader(ldapUrl);
-			} else {			
-				String ldapServer = (String) properties.get("ldap.server");
-				String ldapPort = (String) properties.get("ldap.port");
-				return new LDAPCertificateLoader(ldapServer, Integer.parseInt(ldapPort));
-			}		
+		String provider = (String) properties.get("provider");
+		CertificateLoaderProvider factory = getProvider(provider);
+		if(factory == null) {
+			logger.error("no certificate loader provider available for \"{}\"", provider);
+			return null;
+		}
+		logger.info("instantiating a certificate loader through provider \"{}\"...", factory.getName());
+		return factory.makeCertificateLoader(properties);
+	}
+	
+	/**
+	 * Returns the provider registered under the given name; providers are 
+	 * discovered once, and again whenever an unknown name is requested so that 
+	 * providers made available later (e.g. by a different context class loader)
+	 * are picked up.
+	 * 
+	 * @param name
+	 *   the name of the provider (case insensitive).
+	 * @return
+	 *   the provider, or null if none is registered under the given name.
+	 */
+	static CertificateLoaderProvider getProvider(String name) {
+		if(name == null) {
+			return null;
+		}
+		String key = name.toLowerCase(Locale.ROOT);
+		CertificateLoaderProvider provider = providers.get(key);
+		if(provider == null) {
+			for(CertificateLoaderProvider discovered : ServiceLoader.load(CertificateLoaderProvider.class)) {
+				providers.putIfAbsent(discovered.getName().toLowerCase(Locale.ROOT), discovered);
+			}
+			provider = providers.get(key);
 		}
-		return null;
+		return provider;
 	}
 	
 	/**
@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates;
+
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * The service provider interface through which {@link CertificateLoaderFactory}
+ * creates certificate loaders: implementations are discovered with a {@link 
+ * java.util.ServiceLoader}, so third party loaders can be plugged in by listing
+ * them in a <code>META-INF/services/org.dihedron.crypto.certificates.CertificateLoaderProvider</code>
+ * file, and selected by name through the "provider" property.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public interface CertificateLoaderProvider {
+	
+	/**
+	 * Returns the name of the provider, as used in the "provider" property.
+	 * 
+	 * @return
+	 *   the name of the provider, e.g. "ldap".
+	 */
+	String getName();
+	
+	/**
+	 * Creates a new CertificateLoader using the given property set.
+	 * 
+	 * @param properties
+	 *   a set of properties used to initialise the new CertificateLoader.
+	 * @return
+	 *   a CertificateLoader instance.
+	 * @throws CertificateLoaderException
+	 */
+	CertificateLoader makeCertificateLoader(Properties properties) throws CertificateLoaderException;
+}
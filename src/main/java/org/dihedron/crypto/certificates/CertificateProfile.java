@@ -0,0 +1,385 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.dihedron.core.License;
+import org.dihedron.crypto.crl.CRL;
+import org.dihedron.crypto.ocsp.OCSP;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable view of the properties of a certificate that policy checks
+ * look at (key usage, critical extensions, distribution points and access
+ * locations, key identifiers and fingerprint), decoded once and cached along
+ * with the certificate, so that each check is a plain field read instead of
+ * a new ASN.1 parse. Extensions that cannot be parsed are logged and treated
+ * as absent.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public final class CertificateProfile {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(CertificateProfile.class);
+
+	/**
+	 * The index of the "digital signature" bit in the key usage.
+	 */
+	public static final int DIGITAL_SIGNATURE = 0;
+
+	/**
+	 * The index of the "non repudiation" bit in the key usage.
+	 */
+	public static final int NON_REPUDIATION = 1;
+
+	/**
+	 * The index of the "key encipherment" bit in the key usage.
+	 */
+	public static final int KEY_ENCIPHERMENT = 2;
+
+	/**
+	 * The index of the "data encipherment" bit in the key usage.
+	 */
+	public static final int DATA_ENCIPHERMENT = 3;
+
+	/**
+	 * The index of the "key agreement" bit in the key usage.
+	 */
+	public static final int KEY_AGREEMENT = 4;
+
+	/**
+	 * The index of the "key certificate sign" bit in the key usage.
+	 */
+	public static final int KEY_CERT_SIGN = 5;
+
+	/**
+	 * The index of the "CRL sign" bit in the key usage.
+	 */
+	public static final int CRL_SIGN = 6;
+
+	/**
+	 * The number of stripes the profiles cache is split into, so that threads
+	 * looking up different certificates seldom contend for the same lock.
+	 */
+	private static final int STRIPES = 16;
+
+	/**
+	 * The profiles computed so far, striped by certificate hash code; since 
+	 * profiles do not refer to their certificates, entries go away along with
+	 * the certificates.
+	 */
+	private static final List<Map<X509Certificate, CertificateProfile>> profiles = new ArrayList<>(STRIPES);
+	static {
+		for(int i = 0; i < STRIPES; ++i) {
+			profiles.add(new WeakHashMap<X509Certificate, CertificateProfile>());
+		}
+	}
+
+	/**
+	 * Returns the profile of the given certificate, computing it on first use;
+	 * the profile is computed outside of any lock, so concurrent first uses of
+	 * the same certificate may compute it more than once.
+	 *
+	 * @param certificate
+	 *   the certificate.
+	 * @return
+	 *   the certificate's profile.
+	 */
+	public static CertificateProfile of(X509Certificate certificate) {
+		Map<X509Certificate, CertificateProfile> stripe = profiles.get((certificate.hashCode() & 0x7FFFFFFF) % STRIPES);
+		synchronized(stripe) {
+			CertificateProfile profile = stripe.get(certificate);
+			if(profile != null) {
+				return profile;
+			}
+		}
+		CertificateProfile profile = new CertificateProfile(certificate);
+		synchronized(stripe) {
+			CertificateProfile previous = stripe.get(certificate);
+			if(previous != null) {
+				return previous;
+			}
+			stripe.put(certificate, profile);
+		}
+		return profile;
+	}
+
+	/**
+	 * The key usage bits, or null if the certificate has no key usage extension.
+	 */
+	private final boolean[] keyUsage;
+
+	/**
+	 * The OIDs of the critical extensions.
+	 */
+	private final Set<String> criticalExtensions;
+
+	/**
+	 * The URLs of the CRL distribution points.
+	 */
+	private final List<String> crlDistributionPoints;
+
+	/**
+	 * The URLs of the delta CRL distribution points.
+	 */
+	private final List<String> freshestCrlDistributionPoints;
+
+	/**
+	 * The URLs of the OCSP responders.
+	 */
+	private final List<String> ocspURLs;
+
+	/**
+	 * The URLs of the issuer's certificates.
+	 */
+	private final List<String> caIssuersURLs;
+
+	/**
+	 * Whether the distribution points and access locations could be parsed.
+	 */
+	private final boolean revocationInformationValid;
+
+	/**
+	 * The subject key identifier, or null.
+	 */
+	private final byte[] subjectKeyIdentifier;
+
+	/**
+	 * The authority key identifier, or null.
+	 */
+	private final byte[] authorityKeyIdentifier;
+
+	/**
+	 * The SHA-256 fingerprint of the certificate's encoding.
+	 */
+	private final byte[] fingerprint;
+
+	/**
+	 * Constructor.
+	 */
+	private CertificateProfile(X509Certificate certificate) {
+		this.keyUsage = certificate.getKeyUsage();
+		Set<String> critical = certificate.getCriticalExtensionOIDs();
+		this.criticalExtensions = critical != null ? Collections.unmodifiableSet(new HashSet<>(critical)) : Collections.<String>emptySet();
+
+		boolean valid = true;
+		List<String> crls = Collections.emptyList();
+		List<String> freshest = Collections.emptyList();
+		try {
+			crls = Collections.unmodifiableList(CRL.getCrlDistributionPoints(certificate));
+			freshest = Collections.unmodifiableList(CRL.getFreshestCrlDistributionPoints(certificate));
+		} catch(CertificateParsingException | IOException | RuntimeException e) {
+			logger.warn("invalid distribution points in certificate '{}'", certificate.getSubjectX500Principal());
+			valid = false;
+		}
+		this.crlDistributionPoints = crls;
+		this.freshestCrlDistributionPoints = freshest;
+
+		List<String> ocsp = Collections.emptyList();
+		List<String> issuers = Collections.emptyList();
+		try {
+			ocsp = Collections.unmodifiableList(OCSP.getAuthorityInformationAccessURLs(certificate, AccessDescription.id_ad_ocsp));
+			issuers = Collections.unmodifiableList(OCSP.getAuthorityInformationAccessURLs(certificate, AccessDescription.id_ad_caIssuers));
+		} catch(IOException | RuntimeException e) {
+			logger.warn("invalid authority information access in certificate '{}'", certificate.getSubjectX500Principal());
+			valid = false;
+		}
+		this.ocspURLs = ocsp;
+		this.caIssuersURLs = issuers;
+		this.revocationInformationValid = valid;
+
+		byte[] identifier = null;
+		byte[] extension = certificate.getExtensionValue(Extension.subjectKeyIdentifier.getId());
+		if(extension != null) {
+			try {
+				identifier = SubjectKeyIdentifier.getInstance(JcaX509ExtensionUtils.parseExtensionValue(extension)).getKeyIdentifier();
+			} catch(IOException | IllegalArgumentException e) {
+				logger.warn("invalid subject key identifier in certificate '{}'", certificate.getSubjectX500Principal());
+			}
+		}
+		this.subjectKeyIdentifier = identifier;
+
+		identifier = null;
+		extension = certificate.getExtensionValue(Extension.authorityKeyIdentifier.getId());
+		if(extension != null) {
+			try {
+				identifier = AuthorityKeyIdentifier.getInstance(JcaX509ExtensionUtils.parseExtensionValue(extension)).getKeyIdentifier();
+			} catch(IOException | IllegalArgumentException e) {
+				logger.warn("invalid authority key identifier in certificate '{}'", certificate.getSubjectX500Principal());
+			}
+		}
+		this.authorityKeyIdentifier = identifier;
+
+		byte[] digest = null;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+		} catch(CertificateEncodingException | NoSuchAlgorithmException e) {
+			logger.warn("cannot compute fingerprint of certificate '{}'", certificate.getSubjectX500Principal());
+		}
+		this.fingerprint = digest;
+	}
+
+	/**
+	 * Returns whether the given key usage bit is set.
+	 *
+	 * @param bit
+	 *   the index of the key usage bit, e.g. {@link #NON_REPUDIATION}.
+	 * @return
+	 *   whether the bit is set; false if the certificate has no key usage
+	 *   extension.
+	 */
+	public boolean hasKeyUsage(int bit) {
+		return keyUsage != null && bit < keyUsage.length && keyUsage[bit];
+	}
+
+	/**
+	 * Returns whether the certificate can be used for signing (both the
+	 * "digital signature" and the "key encipherment" bits are set).
+	 *
+	 * @return
+	 *   whether the certificate is good for signing.
+	 */
+	public boolean isSignature() {
+		return hasKeyUsage(DIGITAL_SIGNATURE) && hasKeyUsage(KEY_ENCIPHERMENT);
+	}
+
+	/**
+	 * Returns whether the certificate can be used for non repudiation signatures.
+	 *
+	 * @return
+	 *   whether the "non repudiation" bit is set.
+	 */
+	public boolean isNonRepudiation() {
+		return hasKeyUsage(NON_REPUDIATION);
+	}
+
+	/**
+	 * Returns whether the given extension is among the critical ones; unlike
+	 * {@link Certificates#hasCriticalExtension(X509Certificate, String)}, the
+	 * OID must match exactly.
+	 *
+	 * @param oid
+	 *   the extension OID.
+	 * @return
+	 *   whether the extension is present and critical.
+	 */
+	public boolean hasCriticalExtension(String oid) {
+		return criticalExtensions.contains(oid);
+	}
+
+	/**
+	 * Returns the OIDs of the critical extensions.
+	 *
+	 * @return
+	 *   an unmodifiable set of OIDs.
+	 */
+	public Set<String> getCriticalExtensions() {
+		return criticalExtensions;
+	}
+
+	/**
+	 * Returns the URLs of the CRL distribution points.
+	 *
+	 * @return
+	 *   an unmodifiable, possibly empty list of URLs.
+	 */
+	public List<String> getCrlDistributionPoints() {
+		return crlDistributionPoints;
+	}
+
+	/**
+	 * Returns the URLs of the delta CRL distribution points ("Freshest CRL").
+	 *
+	 * @return
+	 *   an unmodifiable, possibly empty list of URLs.
+	 */
+	public List<String> getFreshestCrlDistributionPoints() {
+		return freshestCrlDistributionPoints;
+	}
+
+	/**
+	 * Returns the URLs of the OCSP responders.
+	 *
+	 * @return
+	 *   an unmodifiable, possibly empty list of URLs.
+	 */
+	public List<String> getOcspURLs() {
+		return ocspURLs;
+	}
+
+	/**
+	 * Returns the URLs where the issuer's certificate can be retrieved.
+	 *
+	 * @return
+	 *   an unmodifiable, possibly empty list of URLs.
+	 */
+	public List<String> getCAIssuersURLs() {
+		return caIssuersURLs;
+	}
+
+	/**
+	 * Returns whether the CRL distribution points and the authority information
+	 * access extensions could be parsed; if not, the corresponding URLs are
+	 * empty and the revocation status of the certificate cannot be checked.
+	 *
+	 * @return
+	 *   whether the revocation information is well formed.
+	 */
+	public boolean hasValidRevocationInformation() {
+		return revocationInformationValid;
+	}
+
+	/**
+	 * Returns the subject key identifier.
+	 *
+	 * @return
+	 *   the subject key identifier, or null if not available.
+	 */
+	public byte[] getSubjectKeyIdentifier() {
+		return subjectKeyIdentifier != null ? subjectKeyIdentifier.clone() : null;
+	}
+
+	/**
+	 * Returns the authority key identifier.
+	 *
+	 * @return
+	 *   the authority key identifier, or null if not available.
+	 */
+	public byte[] getAuthorityKeyIdentifier() {
+		return authorityKeyIdentifier != null ? authorityKeyIdentifier.clone() : null;
+	}
+
+	/**
+	 * Returns the SHA-256 fingerprint of the certificate.
+	 *
+	 * @return
+	 *   the fingerprint, or null if not available.
+	 */
+	public byte[] getFingerprint() {
+		return fingerprint != null ? fingerprint.clone() : null;
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates;
+
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * A CertificateLoader that can also hold certificates found elsewhere, so that
+ * it can be used as a cache tier in front of slower loaders (see {@link 
+ * org.dihedron.crypto.certificates.impl.TieredCertificateLoader}).
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public interface CertificateStore extends CertificateLoader {
+
+	/**
+	 * Stores the certificate data, so that subsequent loads with the same 
+	 * properties return it.
+	 * 
+	 * @param properties
+	 *   the properties identifying the certificate.
+	 * @param data
+	 *   the certificate data.
+	 * @throws CertificateLoaderException
+	 */
+	void storeCertificateData(Properties properties, byte[] data) throws CertificateLoaderException;
+
+	/**
+	 * Stores a certificate, so that subsequent loads with the same properties 
+	 * return it.
+	 * 
+	 * @param properties
+	 *   the properties identifying the certificate.
+	 * @param handle
+	 *   the certificate.
+	 * @throws CertificateLoaderException
+	 */
+	void storeCertificateHandle(Properties properties, CertificateHandle handle) throws CertificateLoaderException;
+}
@@ -3,10 +3,11 @@
  */ 
 package org.dihedron.crypto.certificates;
 
-import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -21,6 +22,7 @@ import java.security.cert.CertStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
 import java.security.cert.CollectionCertStoreParameters;
 import java.security.cert.PKIXBuilderParameters;
 import java.security.cert.PKIXCertPathBuilderResult;
@@ -30,12 +32,18 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Integer;
-import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.ASN1Primitive;
 import org.bouncycastle.asn1.ess.ESSCertID;
 import org.bouncycastle.asn1.ess.ESSCertIDv2;
@@ -43,10 +51,11 @@ import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.IssuerSerial;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
 import org.dihedron.core.License;
 import org.dihedron.crypto.CryptoService;
 import org.dihedron.crypto.constants.DigestAlgorithm;
-import org.dihedron.crypto.crl.CRL;
+import org.dihedron.crypto.crl.RevocationChecker;
 import org.dihedron.crypto.exceptions.CertificateVerificationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,23 +78,12 @@ public final class Certificates extends CryptoService {
 	 * The logger.
 	 */
 	private static final Logger logger = LoggerFactory.getLogger(Certificates.class);
-	
+
 	/**
-	 * Possible values of certificates usage.
-	 * 
-	 * @author Andrea Funto'
+	 * The number of certificates whose revocation status is checked in bulk by
+	 * each task.
 	 */
-	private enum KeyUsage {
-		digitalSignature, 
-		nonRepudiation, 
-		keyEncipherment, 
-		dataEncipherment, 
-		keyAgreement, 
-		keyCertSign, 
-		cRLSign, 
-		encipherOnly, 
-		decipherOnly;
-	};
+	private static final int REVOCATION_CHUNK_SIZE = 256;
 	
 	/**
 	 * Checks if the given certificate has all the necessary extensions to be used 
@@ -97,14 +95,7 @@ public final class Certificates extends CryptoService {
 	 *   whether the certificate is good for signing.
 	 */
 	public static boolean isSignatureX509Certificate(X509Certificate certificate) {
-		boolean[] usage = certificate.getKeyUsage();
-		
-		for (KeyUsage u : KeyUsage.values()) {
-			if (usage[u.ordinal()]) {
-				logger.trace("bit '{}' set", u.name());
-			}
-		}
-		if (usage != null && usage[KeyUsage.keyEncipherment.ordinal()] && usage[KeyUsage.digitalSignature.ordinal()]) {
+		if (CertificateProfile.of(certificate).isSignature()) {
 			logger.trace("this is a signing certificate (bits set)");
 			return true;
 		}
@@ -122,20 +113,73 @@ public final class Certificates extends CryptoService {
 	 *   whether the certificate is good for signing.
 	 */
 	public static boolean isNonRepudiationX509Certificate(X509Certificate certificate) {
-		boolean[] usage = certificate.getKeyUsage();
-		
-		for (KeyUsage u : KeyUsage.values()) {
-			if (usage[u.ordinal()]) {
-				logger.trace("bit '{}' set", u.name());
-			}
-		}
-		if (usage != null && usage[KeyUsage.nonRepudiation.ordinal()]) {
+		if (CertificateProfile.of(certificate).isNonRepudiation()) {
 			logger.trace("this is a non repudiation certificate (bits set)");
 			return true;
 		}
 		return false;	
 	}
 	
+	/**
+	 * Parses all the certificates in a base64 or PEM text, decoding it on the 
+	 * fly (see {@link PEMInputStream}).
+	 * 
+	 * @param text
+	 *   the base64 or PEM text, e.g. the contents of an XML element.
+	 * @return
+	 *   the certificates, in order.
+	 * @throws CertificateException
+	 *   if the text is not valid base64 or holds invalid certificates.
+	 */
+	public static List<X509Certificate> fromBase64(CharSequence text) throws CertificateException {
+		return fromBase64(new PEMInputStream(text));
+	}
+	
+	/**
+	 * Parses all the certificates in a base64 or PEM text, as US-ASCII bytes 
+	 * (e.g. an HTTP body), decoding it on the fly (see {@link PEMInputStream}).
+	 * 
+	 * @param buffer
+	 *   the base64 or PEM text; its position is not changed.
+	 * @return
+	 *   the certificates, in order.
+	 * @throws CertificateException
+	 *   if the text is not valid base64 or holds invalid certificates.
+	 */
+	public static List<X509Certificate> fromBase64(ByteBuffer buffer) throws CertificateException {
+		return fromBase64(new PEMInputStream(buffer));
+	}
+	
+	/**
+	 * Parses all the certificates in a base64 or PEM text, decoding it on the 
+	 * fly (see {@link PEMInputStream}); the reader is closed.
+	 * 
+	 * @param reader
+	 *   the reader providing the base64 or PEM text.
+	 * @return
+	 *   the certificates, in order.
+	 * @throws CertificateException
+	 *   if the text is not valid base64 or holds invalid certificates.
+	 */
+	public static List<X509Certificate> fromBase64(Reader reader) throws CertificateException {
+		return fromBase64(new PEMInputStream(reader));
+	}
+	
+	/**
+	 * Parses the concatenated DER certificates coming out of a decoder.
+	 */
+	private static List<X509Certificate> fromBase64(PEMInputStream stream) throws CertificateException {
+		try(PEMInputStream input = stream) {
+			List<X509Certificate> certificates = new ArrayList<>();
+			for(Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(input)) {
+				certificates.add((X509Certificate)certificate);
+			}
+			return certificates;
+		} catch(IOException e) {
+			throw new CertificateException("error closing base64 input", e);
+		}
+	}
+	
 	/**
 	 * Checks whether given X.509 certificate is self-signed.
 	 */
@@ -164,8 +208,7 @@ public final class Certificates extends CryptoService {
 	 */
 	public static boolean hasCriticalExtension(X509Certificate certificate, String oid) {
 		logger.debug("looking for critical extension OID '{}'...", oid);
-		Set<String> extensions = certificate.getCriticalExtensionOIDs();
-		for(String extension : extensions) {			
+		for(String extension : CertificateProfile.of(certificate).getCriticalExtensions()) {
 			logger.trace("... analysing critical extension '{}'", extension);
 			if(extension.contains(oid)) {
 				logger.trace("... OID found!");
@@ -175,6 +218,19 @@ public final class Certificates extends CryptoService {
 		return false;
 	}
 	
+	/**
+	 * Returns the certificate of the issuer of the first certificate in the
+	 * given certification chain, which is either the next certificate in the 
+	 * chain or the trust anchor.
+	 */
+	private static X509Certificate getIssuer(PKIXCertPathBuilderResult chain) {
+		List<? extends Certificate> certificates = chain.getCertPath().getCertificates();
+		if(certificates.size() > 1) {
+			return (X509Certificate)certificates.get(1);
+		}
+		return chain.getTrustAnchor().getTrustedCert();
+	}
+
 	/**
 	 * Attempts to build a certification chain for given certificate and to
 	 * verify it. Relies on a set of root CA certificates and intermediate
@@ -223,16 +279,21 @@ public final class Certificates extends CryptoService {
 				}
 			}
 
+			// retrieve the intermediates that were not provided (e.g. when the
+			// envelope only contains the signer's certificate) through the
+			// "CA Issuers" URLs, unless already cached
+			intermediateCerts.addAll(CAIssuers.getDefault().complete(certificate, additionalCerts));
+
 			// attempt to build the certification chain and verify it
 			PKIXCertPathBuilderResult verifiedCertChain = verifyCertificate(certificate, trustedRootCerts, intermediateCerts);
 
 			logger.info("certification chain verified");
 			
-			// check whether the certificate is revoked by the CRL given in its 
-			// CRL distribution point extension
-			CRL.verifyCertificateCRLs(certificate);
+			// check whether the certificate is revoked, through OCSP or through 
+			// the CRL given in its CRL distribution point extension
+			RevocationChecker.getDefault().verify(certificate, getIssuer(verifiedCertChain));
 			
-			logger.info("CRL verified");
+			logger.info("revocation status verified");
 
 			// the chain is built and verified; return it as a result
 			return verifiedCertChain;
@@ -251,6 +312,214 @@ public final class Certificates extends CryptoService {
 		}
 	}
 
+	/**
+	 * Verifies a batch of certificates against the given trust store. Since large
+	 * batches are usually issued by a handful of CAs, the chain of each distinct
+	 * issuer (along with its revocation status) is built and verified only once;
+	 * each certificate is only checked against its issuer (validity, signature,
+	 * and the issuer being a CA allowed to sign certificates), and the 
+	 * revocation status of the certificates an issuer issued is checked in bulk.
+	 * Checks on the individual certificates, and bulk revocation checks on 
+	 * chunks of them, run in parallel.
+	 * 
+	 * @param certificates
+	 *   the certificates to verify.
+	 * @param store
+	 *   the trust anchors; missing intermediates are retrieved through the
+	 *   certificates' "CA Issuers" URLs.
+	 * @return
+	 *   the certificates that failed verification, each with the reason; if 
+	 *   empty, all certificates are valid.
+	 * @throws CertificateVerificationException
+	 *   if the verification is interrupted.
+	 */
+	public static Map<X509Certificate, CertificateVerificationException> verifyCertificates(Collection<X509Certificate> certificates, TrustStore store) throws CertificateVerificationException {
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			return verifyCertificates(certificates, store, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Verifies a batch of certificates against the given trust store, running
+	 * the checks on the given executor.
+	 * 
+	 * @param certificates
+	 *   the certificates to verify.
+	 * @param store
+	 *   the trust anchors; missing intermediates are retrieved through the
+	 *   certificates' "CA Issuers" URLs.
+	 * @param executor
+	 *   the executor running the checks.
+	 * @return
+	 *   the certificates that failed verification, each with the reason; if 
+	 *   empty, all certificates are valid.
+	 * @throws CertificateVerificationException
+	 *   if the verification is interrupted.
+	 * @see #verifyCertificates(Collection, TrustStore)
+	 */
+	public static Map<X509Certificate, CertificateVerificationException> verifyCertificates(Collection<X509Certificate> certificates, final TrustStore store, ExecutorService executor) throws CertificateVerificationException {
+		Map<X509Certificate, CertificateVerificationException> failures = new LinkedHashMap<>();
+		
+		// check each certificate on its own and find its issuer, in parallel
+		Map<X509Certificate, Future<X509Certificate>> issuers = new LinkedHashMap<>();
+		for(final X509Certificate certificate : new LinkedHashSet<>(certificates)) {
+			issuers.put(certificate, executor.submit(new Callable<X509Certificate>() {
+				@Override
+				public X509Certificate call() throws Exception {
+					return findIssuer(certificate, store);
+				}
+			}));
+		}
+		
+		// group the certificates by issuer
+		Map<X509Certificate, List<X509Certificate>> groups = new LinkedHashMap<>();
+		for(Map.Entry<X509Certificate, Future<X509Certificate>> entry : issuers.entrySet()) {
+			try {
+				X509Certificate issuer = get(entry.getValue());
+				List<X509Certificate> group = groups.get(issuer);
+				if(group == null) {
+					groups.put(issuer, group = new ArrayList<>());
+				}
+				group.add(entry.getKey());
+			} catch(CertificateVerificationException e) {
+				failures.put(entry.getKey(), e);
+			}
+		}
+		logger.debug("verifying {} certificates from {} issuers", issuers.size(), groups.size());
+		
+		// verify each issuer's chain once...
+		Map<X509Certificate, Future<Void>> chains = new LinkedHashMap<>();
+		for(final X509Certificate issuer : groups.keySet()) {
+			chains.put(issuer, executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					verifyIssuer(issuer, store);
+					return null;
+				}
+			}));
+		}
+		
+		// ... then the revocation status of the certificates it issued, in bulk
+		// chunks spread across the executor
+		Map<List<X509Certificate>, Future<Collection<X509Certificate>>> revocations = new LinkedHashMap<>();
+		for(Map.Entry<X509Certificate, Future<Void>> entry : chains.entrySet()) {
+			final X509Certificate issuer = entry.getKey();
+			List<X509Certificate> group = groups.get(issuer);
+			try {
+				get(entry.getValue());
+			} catch(CertificateVerificationException e) {
+				for(X509Certificate certificate : group) {
+					failures.put(certificate, e);
+				}
+				continue;
+			}
+			for(int i = 0; i < group.size(); i += REVOCATION_CHUNK_SIZE) {
+				final List<X509Certificate> chunk = group.subList(i, Math.min(i + REVOCATION_CHUNK_SIZE, group.size()));
+				revocations.put(chunk, executor.submit(new Callable<Collection<X509Certificate>>() {
+					@Override
+					public Collection<X509Certificate> call() throws Exception {
+						return RevocationChecker.getDefault().verify(chunk, issuer);
+					}
+				}));
+			}
+		}
+		for(Map.Entry<List<X509Certificate>, Future<Collection<X509Certificate>>> entry : revocations.entrySet()) {
+			try {
+				for(X509Certificate revoked : get(entry.getValue())) {
+					failures.put(revoked, new CertificateVerificationException("The certificate is revoked: " + revoked.getSubjectX500Principal()));
+				}
+			} catch(CertificateVerificationException e) {
+				for(X509Certificate certificate : entry.getKey()) {
+					failures.put(certificate, e);
+				}
+			}
+		}
+		logger.info("{} certificates verified, {} failed", issuers.size(), failures.size());
+		return failures;
+	}
+	
+	/**
+	 * Checks a certificate's validity period and finds the certificate of its
+	 * issuer, either among the trust anchors or through its "CA Issuers" URLs;
+	 * the issuer must be a valid CA allowed to sign certificates, and its key 
+	 * must verify the certificate's signature. This is the only check on the
+	 * certificate itself: the issuer's own chain is verified (once) separately.
+	 */
+	private static X509Certificate findIssuer(X509Certificate certificate, TrustStore store) throws CertificateVerificationException {
+		try {
+			if (isSelfSigned(certificate)) {
+				throw new CertificateVerificationException("the certificate is self-signed");
+			}
+			certificate.checkValidity();
+		} catch (CertificateException | NoSuchAlgorithmException | NoSuchProviderException e) {
+			throw new CertificateVerificationException("Error verifying the certificate: " + certificate.getSubjectX500Principal(), e);
+		}
+		List<X509Certificate> candidates = store.getIssuerCandidates(certificate);
+		if(candidates.isEmpty()) {
+			candidates = CAIssuers.getDefault().getIssuers(certificate);
+		}
+		for(X509Certificate candidate : candidates) {
+			if(candidate.getBasicConstraints() < 0 || !CertificateProfile.of(candidate).hasKeyUsage(CertificateProfile.KEY_CERT_SIGN)) {
+				logger.trace("candidate issuer '{}' is not a CA allowed to sign certificates", candidate.getSubjectX500Principal());
+				continue;
+			}
+			try {
+				candidate.checkValidity();
+				certificate.verify(candidate.getPublicKey());
+				return candidate;
+			} catch (GeneralSecurityException e) {
+				logger.trace("candidate issuer '{}' does not verify certificate", candidate.getSubjectX500Principal());
+			}
+		}
+		throw new CertificateVerificationException("Error building certification path: " + certificate.getSubjectX500Principal());
+	}
+	
+	/**
+	 * Verifies the certification chain of an issuer (unless it is a trust anchor
+	 * itself) and the revocation status of each intermediate in it.
+	 */
+	private static void verifyIssuer(X509Certificate issuer, TrustStore store) throws CertificateVerificationException {
+		if(store.contains(issuer)) {
+			return;
+		}
+		try {
+			Collection<X509Certificate> intermediates = CAIssuers.getDefault().complete(issuer, store.getCertificates());
+			PKIXCertPathBuilderResult result = buildPath(issuer, store.getTrustAnchors(), intermediates);
+			List<? extends Certificate> path = result.getCertPath().getCertificates();
+			for(int i = 0; i < path.size(); ++i) {
+				X509Certificate next = i + 1 < path.size() ? (X509Certificate)path.get(i + 1) : result.getTrustAnchor().getTrustedCert();
+				RevocationChecker.getDefault().verify((X509Certificate)path.get(i), next);
+			}
+			logger.debug("issuer '{}' verified", issuer.getSubjectX500Principal());
+		} catch (CertPathBuilderException e) {
+			logger.error("error building certification path for " + issuer.getSubjectX500Principal(), e);
+			throw new CertificateVerificationException("Error building certification path: " + issuer.getSubjectX500Principal(), e);
+		} catch (GeneralSecurityException e) {
+			logger.error("error verifying certificate " + issuer.getSubjectX500Principal(), e);
+			throw new CertificateVerificationException("Error verifying the certificate: " + issuer.getSubjectX500Principal(), e);
+		}
+	}
+	
+	/**
+	 * Waits for the result of a check, unwrapping verification errors.
+	 */
+	private static <T> T get(Future<T> future) throws CertificateVerificationException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof CertificateVerificationException) {
+				throw (CertificateVerificationException)e.getCause();
+			}
+			throw new CertificateVerificationException("Error verifying the certificate", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CertificateVerificationException("Certificate verification interrupted", e);
+		}
+	}
+
 	/**
 	 * Attempts to build a certification chain for given certificate and to
 	 * verify it. Relies on a set of root CA certificates (trust anchors) and a
@@ -273,15 +542,23 @@ public final class Certificates extends CryptoService {
 	 */
 	private static PKIXCertPathBuilderResult verifyCertificate(X509Certificate certificate, Collection<X509Certificate> trustedRootCerts, Collection<X509Certificate> intermediateCerts) throws InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchProviderException, CertPathBuilderException {
 
-		// create the selector that specifies the starting certificate
-		X509CertSelector selector = new X509CertSelector();
-		selector.setCertificate(certificate);
-
 		// create the trust anchors (set of root CA certificates)
 		Set<TrustAnchor> trustAnchors = new HashSet<>();
 		for (X509Certificate trustedRootCert : trustedRootCerts) {
 			trustAnchors.add(new TrustAnchor(trustedRootCert, null));
 		}
+		return buildPath(certificate, trustAnchors, intermediateCerts);
+	}
+	
+	/**
+	 * Builds and verifies a certification chain from the given certificate to
+	 * one of the given trust anchors.
+	 */
+	private static PKIXCertPathBuilderResult buildPath(X509Certificate certificate, Set<TrustAnchor> trustAnchors, Collection<X509Certificate> intermediateCerts) throws InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchProviderException, CertPathBuilderException {
+
+		// create the selector that specifies the starting certificate
+		X509CertSelector selector = new X509CertSelector();
+		selector.setCertificate(certificate);
 
 		// configure the PKIX certificate builder algorithm parameters
 		PKIXBuilderParameters pkixParams = new PKIXBuilderParameters(trustAnchors, selector);
@@ -312,10 +589,7 @@ public final class Certificates extends CryptoService {
         if (bytes == null) {
             return null;
         }
-        ASN1InputStream stream = new ASN1InputStream(new ByteArrayInputStream(bytes));
-        ASN1OctetString octets = (ASN1OctetString) stream.readObject();
-        stream = new ASN1InputStream(new ByteArrayInputStream(octets.getOctets()));
-        return stream.readObject();
+        return JcaX509ExtensionUtils.parseExtensionValue(bytes).toASN1Primitive();
     }
     
 	/**
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.dihedron.core.License;
+
+/**
+ * The issuer and serial number of a certificate, which identify it uniquely
+ * (e.g. as a recipient or signer in CMS messages); it is meant to be used as a
+ * map key. Issuers are compared in their canonical form.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public final class IssuerAndSerial {
+
+	/**
+	 * The issuer distinguished name.
+	 */
+	private final X500Principal issuer;
+
+	/**
+	 * The serial number.
+	 */
+	private final BigInteger serial;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param issuer
+	 *   the issuer distinguished name.
+	 * @param serial
+	 *   the serial number.
+	 */
+	public IssuerAndSerial(X500Principal issuer, BigInteger serial) {
+		if(issuer == null || serial == null) {
+			throw new IllegalArgumentException("issuer and serial number must not be null");
+		}
+		this.issuer = issuer;
+		this.serial = serial;
+	}
+
+	/**
+	 * Builds the issuer and serial number of a certificate from their Bouncy
+	 * Castle representation.
+	 *
+	 * @param issuer
+	 *   the issuer distinguished name.
+	 * @param serial
+	 *   the serial number.
+	 * @return
+	 *   the issuer and serial number.
+	 * @throws IllegalArgumentException
+	 *   if the issuer cannot be encoded.
+	 */
+	public static IssuerAndSerial of(X500Name issuer, BigInteger serial) {
+		try {
+			return new IssuerAndSerial(new X500Principal(issuer.getEncoded(ASN1Encoding.DER)), serial);
+		} catch(IOException e) {
+			throw new IllegalArgumentException("invalid issuer name", e);
+		}
+	}
+
+	/**
+	 * Returns the issuer distinguished name.
+	 *
+	 * @return
+	 *   the issuer distinguished name.
+	 */
+	public X500Principal getIssuer() {
+		return issuer;
+	}
+
+	/**
+	 * Returns the serial number.
+	 *
+	 * @return
+	 *   the serial number.
+	 */
+	public BigInteger getSerialNumber() {
+		return serial;
+	}
+
+	/**
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object object) {
+		if(!(object instanceof IssuerAndSerial)) {
+			return false;
+		}
+		IssuerAndSerial other = (IssuerAndSerial)object;
+		return issuer.equals(other.issuer) && serial.equals(other.serial);
+	}
+
+	/**
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return issuer.hashCode() * 31 + serial.hashCode();
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return issuer.getName() + " #" + serial.toString(16);
+	}
+}
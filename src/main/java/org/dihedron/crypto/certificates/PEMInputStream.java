@@ -0,0 +1,362 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dihedron.core.License;
+
+/**
+ * An input stream that decodes base64 text on the fly, so that certificates
+ * coming from XML, HTTP bodies or files can be fed straight into a {@link
+ * java.security.cert.CertificateFactory} without first copying the text into
+ * a String and the decoded data into a byte array. The text can be either
+ * plain base64 (whitespace is ignored), or PEM armoured, possibly with some
+ * explanatory text before the first block (as told by its first line, which
+ * is not plain base64 in that case): in that case only
+ * the contents of certificate blocks ("CERTIFICATE", "X509 CERTIFICATE",
+ * "PKCS7") are decoded, one after the other, and anything else (text, keys)
+ * is skipped; concatenated certificates come out as concatenated DER, which
+ * {@link java.security.cert.CertificateFactory#generateCertificates(InputStream)}
+ * splits.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class PEMInputStream extends InputStream {
+
+	/**
+	 * The labels of the PEM blocks that hold certificates.
+	 */
+	private static final List<String> LABELS = Arrays.asList("CERTIFICATE", "X509 CERTIFICATE", "PKCS7", "CERTIFICATE CHAIN");
+
+	/**
+	 * The size of the buffer used when reading from a Reader.
+	 */
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * The values of base64 characters, or -1 for invalid characters.
+	 */
+	private static final byte[] VALUES = new byte[128];
+
+	static {
+		Arrays.fill(VALUES, (byte)-1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for(int i = 0; i < alphabet.length(); ++i) {
+			VALUES[alphabet.charAt(i)] = (byte)i;
+		}
+	}
+
+	/**
+	 * A source of characters.
+	 */
+	private interface Source {
+
+		/**
+		 * Returns the next character, or -1 at the end of the input.
+		 */
+		int next() throws IOException;
+
+		void close() throws IOException;
+	}
+
+	/**
+	 * The source of base64 text.
+	 */
+	private final Source source;
+
+	/**
+	 * Whether the input is PEM armoured, or null if not known yet.
+	 */
+	private Boolean armoured;
+
+	/**
+	 * Whether the decoder is within a certificate block.
+	 */
+	private boolean inside;
+
+	/**
+	 * The buffer for armour lines, only used outside blocks.
+	 */
+	private final StringBuilder line = new StringBuilder();
+
+	/**
+	 * The position of the next character to replay from the line buffer, after
+	 * the first line turned out to be plain base64, or -1.
+	 */
+	private int replay = -1;
+
+	/**
+	 * The sextets of the current quantum.
+	 */
+	private int quantum;
+
+	/**
+	 * The number of sextets in the current quantum.
+	 */
+	private int sextets;
+
+	/**
+	 * The decoded bytes not yet returned.
+	 */
+	private final byte[] output = new byte[3];
+
+	private int outputPosition;
+
+	private int outputLength;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param text
+	 *   the base64 or PEM text; it is not copied.
+	 */
+	public PEMInputStream(final CharSequence text) {
+		this.source = new Source() {
+			private int position = 0;
+
+			@Override
+			public int next() {
+				return position < text.length() ? text.charAt(position++) : -1;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param buffer
+	 *   the base64 or PEM text, as US-ASCII bytes; it is read from its current
+	 *   position to its limit, without changing either.
+	 */
+	public PEMInputStream(ByteBuffer buffer) {
+		final ByteBuffer view = buffer.duplicate();
+		this.source = new Source() {
+			@Override
+			public int next() {
+				return view.hasRemaining() ? view.get() & 0xFF : -1;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param reader
+	 *   the reader providing the base64 or PEM text; it is closed along with
+	 *   this stream.
+	 */
+	public PEMInputStream(final Reader reader) {
+		this.source = new Source() {
+			private final char[] buffer = new char[BUFFER_SIZE];
+
+			private int position = 0;
+
+			private int length = 0;
+
+			@Override
+			public int next() throws IOException {
+				if(position == length) {
+					length = reader.read(buffer);
+					position = 0;
+					if(length <= 0) {
+						length = 0;
+						return -1;
+					}
+				}
+				return buffer[position++];
+			}
+
+			@Override
+			public void close() throws IOException {
+				reader.close();
+			}
+		};
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(outputPosition == outputLength && !fill()) {
+			return -1;
+		}
+		return output[outputPosition++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if(length == 0) {
+			return 0;
+		}
+		int count = 0;
+		while(count < length) {
+			if(outputPosition == outputLength && !fill()) {
+				break;
+			}
+			int n = Math.min(length - count, outputLength - outputPosition);
+			System.arraycopy(output, outputPosition, buffer, offset + count, n);
+			outputPosition += n;
+			count += n;
+		}
+		return count > 0 ? count : -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/**
+	 * Decodes the next quantum into the output buffer.
+	 *
+	 * @return
+	 *   whether any data was decoded, false at the end of the input.
+	 */
+	private boolean fill() throws IOException {
+		outputPosition = outputLength = 0;
+		if(armoured == null) {
+			detect();
+		}
+		while(outputLength == 0) {
+			int c = next();
+			if(c == -1) {
+				flush();
+				return outputLength > 0;
+			}
+			if(c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+				continue;
+			}
+			if(armoured && !inside) {
+				// outside blocks, look for the start of a certificate block
+				if(c == '-') {
+					inside = LABELS.contains(readArmour());
+				}
+			} else if(c == '-' && armoured) {
+				// the end of the block
+				readArmour();
+				flush();
+				inside = false;
+			} else if(c == '=') {
+				flush();
+			} else if(c < 128 && VALUES[c] >= 0) {
+				quantum = (quantum << 6) | VALUES[c];
+				if(++sextets == 4) {
+					output[0] = (byte)(quantum >> 16);
+					output[1] = (byte)(quantum >> 8);
+					output[2] = (byte)quantum;
+					outputLength = 3;
+					quantum = sextets = 0;
+				}
+			} else {
+				throw new IOException("invalid character '" + (char)c + "' in base64 data");
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells plain base64 from PEM armour by the first non-empty line: if it is
+	 * all base64, it is replayed as data; otherwise it is an armour line or some
+	 * text preceding the first block.
+	 */
+	private void detect() throws IOException {
+		int c;
+		do {
+			c = source.next();
+		} while(c == ' ' || c == '\t' || c == '\r' || c == '\n');
+		line.setLength(0);
+		while(c != -1 && c != '\n' && c != '\r') {
+			line.append((char)c);
+			c = source.next();
+		}
+		String first = line.toString().trim();
+		armoured = false;
+		boolean padding = false;
+		for(int i = 0; i < first.length() && !armoured; ++i) {
+			char d = first.charAt(i);
+			// padding can only be followed by more padding
+			padding = padding || d == '=';
+			armoured = padding ? d != '=' : d >= 128 || VALUES[d] < 0;
+		}
+		if(!armoured) {
+			replay = 0;
+		} else if(line.charAt(0) == '-') {
+			String label = label();
+			inside = label != null && LABELS.contains(label);
+		}
+	}
+
+	/**
+	 * Returns the next character, replaying the first line if needed.
+	 */
+	private int next() throws IOException {
+		if(replay >= 0) {
+			if(replay < line.length()) {
+				return line.charAt(replay++);
+			}
+			replay = -1;
+			line.setLength(0);
+			return '\n';
+		}
+		return source.next();
+	}
+
+	/**
+	 * Emits the bytes of an incomplete (padded) quantum.
+	 */
+	private void flush() throws IOException {
+		switch(sextets) {
+		case 0:
+			break;
+		case 2:
+			output[outputLength++] = (byte)(quantum >> 4);
+			break;
+		case 3:
+			output[outputLength++] = (byte)(quantum >> 10);
+			output[outputLength++] = (byte)(quantum >> 2);
+			break;
+		default:
+			throw new IOException("truncated base64 data");
+		}
+		quantum = sextets = 0;
+	}
+
+	/**
+	 * Reads the rest of an armour line (after its first dash), returning its
+	 * label for "BEGIN" lines, or null.
+	 */
+	private String readArmour() throws IOException {
+		line.setLength(0);
+		line.append('-');
+		int c;
+		while((c = source.next()) != -1 && c != '\n' && c != '\r') {
+			line.append((char)c);
+		}
+		return label();
+	}
+
+	/**
+	 * Returns the label of the "BEGIN" armour line in the line buffer, or null.
+	 */
+	private String label() {
+		String prefix = "-----BEGIN ";
+		if(line.length() > prefix.length() + 5 && line.indexOf(prefix) == 0 && line.lastIndexOf("-----") == line.length() - 5) {
+			return line.substring(prefix.length(), line.length() - 5);
+		}
+		return null;
+	}
+}
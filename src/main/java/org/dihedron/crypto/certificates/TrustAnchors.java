@@ -3,9 +3,9 @@
  */ 
 package org.dihedron.crypto.certificates;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.InvalidAlgorithmParameterException;
@@ -17,26 +17,19 @@ import java.security.cert.PKIXParameters;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 import org.dihedron.core.License;
 import org.dihedron.core.url.URLFactory;
 import org.dihedron.core.variables.SystemPropertyValueProvider;
 import org.dihedron.core.variables.Variables;
-import org.dihedron.core.xml.DOM;
-import org.dihedron.crypto.certificates.impl.Base64CertificateLoader;
+import org.dihedron.crypto.certificates.tsl.TSLSnapshot;
+import org.dihedron.crypto.certificates.tsl.TrustServiceFilter;
+import org.dihedron.crypto.certificates.tsl.TrustedList;
 import org.dihedron.crypto.exceptions.CertificateLoaderException;
 import org.dihedron.crypto.exceptions.CryptoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
 
 /**
  * @author Andrea Funto'
@@ -58,21 +51,64 @@ public final class TrustAnchors {
 	 * The default password of the CA root certificates key store.
 	 */
 	private static final String CACERTS_PASSWORD = "changeit";
+	
+	/**
+	 * The binary snapshots of the TSLs loaded so far.
+	 */
+	private static final TSLSnapshot snapshots = new TSLSnapshot();
+
+	/**
+	 * The cached root CAs from the JDK's cacerts key store.
+	 */
+	private static volatile CachedRootCAs rootCAs;
 
 	/**
 	 * Attempts to load the certificates of the most trusted CAs ("root CAs") as 
 	 * known to the Java Virtual Machine.
 	 * 
 	 * @return
-	 *   a List of certificates of the "root CAs".   
+	 *   a List of certificates of the "root CAs"; the list is a copy, and can
+	 *   be freely modified by the caller.   
 	 * @throws CryptoException
 	 */
 	public static List<X509Certificate> fromJavaRootCAs() throws CryptoException {
+		return new ArrayList<>(getJavaRootCAs().getCertificates());
+	}
+	
+	/**
+	 * Returns the certificates of the most trusted CAs ("root CAs") as known to
+	 * the Java Virtual Machine, as an indexed trust store; the cacerts key store
+	 * is only loaded on first use, and then again whenever it changes on disk.
+	 * 
+	 * @return
+	 *   the trust store of the "root CAs".
+	 * @throws CryptoException
+	 */
+	public static TrustStore getJavaRootCAs() throws CryptoException {
+		File file = new File(Variables.replaceVariables(CACERTS_PATH, new SystemPropertyValueProvider()));
+		CachedRootCAs cached = rootCAs;
+		if(cached != null && cached.isCurrent(file)) {
+			return cached.store;
+		}
+		synchronized(TrustAnchors.class) {
+			cached = rootCAs;
+			if(cached == null || !cached.isCurrent(file)) {
+				long lastModified = file.lastModified();
+				long length = file.length();
+				cached = new CachedRootCAs(loadJavaRootCAs(file), lastModified, length);
+				rootCAs = cached;
+			}
+			return cached.store;
+		}
+	}
+	
+	/**
+	 * Loads the root CAs from the given cacerts key store.
+	 */
+	private static TrustStore loadJavaRootCAs(File file) throws CryptoException {
 		List<X509Certificate> trustAnchors = new ArrayList<>();
-		try {
+		try(FileInputStream is = new FileInputStream(file)) {
 	        // load the JDK's cacerts keystore file
-			String filename = Variables.replaceVariables(CACERTS_PATH, new SystemPropertyValueProvider());
-	        FileInputStream is = new FileInputStream(filename);
 	        KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
 	        keystore.load(is, CACERTS_PASSWORD.toCharArray());
 	
@@ -80,16 +116,11 @@ public final class TrustAnchors {
 	        PKIXParameters parameters = new PKIXParameters(keystore);
 	
 	        // get the set of trust anchors, which contain the most-trusted CA certificates
-	        Iterator<TrustAnchor> iterator = parameters.getTrustAnchors().iterator();
-	        while( iterator.hasNext() ) {
-	            TrustAnchor trustAnchor = (TrustAnchor)iterator.next();
-	            // get certificate
-	            X509Certificate certificate = trustAnchor.getTrustedCert();
-//	            logger.trace("adding certificate '{}' to root CAs", certificate.getSubjectDN());
-	            trustAnchors.add(certificate);
+	        for(TrustAnchor trustAnchor : parameters.getTrustAnchors()) {
+	            trustAnchors.add(trustAnchor.getTrustedCert());
 	        }
-	        logger.trace("returning {} certificates as trust anchors", trustAnchors.size());
-	        return trustAnchors;
+	        logger.debug("loaded {} root CAs from '{}'", trustAnchors.size(), file);
+	        return new TrustStore(trustAnchors);
 	    } catch (CertificateException e) {
 	    	logger.error("certificate exception", e);
 	    	throw new CryptoException("certificate exception", e);
@@ -110,50 +141,88 @@ public final class TrustAnchors {
 	
 	/**
 	 * Attempts to load the certificates of a set of trust anchors from a TSL; if 
-	 * anything fails, returns an empty list of certificates.    
+	 * anything fails, returns null.    
 	 * 
 	 * @param tslURL
+	 *   the URL of the TSL (e.g. a "classpath:" URL).
 	 * @return
+	 *   the distinct certificates of the services listed in the TSL.
 	 * @throws MalformedURLException
 	 */
 	public static List<X509Certificate> fromTSL(String tslURL) throws MalformedURLException {
-		List<X509Certificate> trustAnchors = new ArrayList<>();
-		
+		return fromTSL(tslURL, null);
+	}
+	
+	/**
+	 * Attempts to load the certificates of a set of trust anchors from a TSL,
+	 * only taking the services of the given type and status (e.g. only granted 
+	 * qualified CAs, or only time stamping authorities); if anything fails, 
+	 * returns null.    
+	 * 
+	 * @param tslURL
+	 *   the URL of the TSL (e.g. a "classpath:" URL).
+	 * @param filter
+	 *   the filter on service type and status; if null, all services are taken.
+	 * @return
+	 *   the distinct certificates of the matching services listed in the TSL.
+	 * @throws MalformedURLException
+	 */
+	public static List<X509Certificate> fromTSL(String tslURL, TrustServiceFilter filter) throws MalformedURLException {
+		TrustedList list = loadTSL(tslURL);
+		return list != null ? list.getCertificates(filter) : null;
+	}
+	
+	/**
+	 * Attempts to load a TSL, with its services, their type and status, and the 
+	 * certificates identifying them; the TSL is only parsed the first time, and
+	 * then whenever it changes, since it is otherwise loaded from its binary 
+	 * snapshot. If anything fails, returns null.
+	 * 
+	 * @param tslURL
+	 *   the URL of the TSL (e.g. a "classpath:" URL).
+	 * @return
+	 *   the trusted list.
+	 * @throws MalformedURLException
+	 */
+	public static TrustedList loadTSL(String tslURL) throws MalformedURLException {
 		logger.trace("acquiring root CAs from TSL '{}'", tslURL);
 		
 		URL url = URLFactory.makeURL(tslURL);
 		if(url != null) {
-			try (InputStream stream = url.openStream()){
-				logger.trace("stream opened");
-				DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-				logger.trace("XML document builder ready, reading");
-				Document document = builder.parse(stream);
-				logger.trace("XML read and parsed");
-				List<Element> nodes = DOM.getDescendantsByTagName(document, "X509Certificate");
-				logger.trace("{} nodes found", nodes.size());
-				Base64CertificateLoader loader = new Base64CertificateLoader();			
-				for(Element node : nodes) {
-					String data = node.getTextContent();
-					try {
-						X509Certificate certificate = (X509Certificate)loader.loadCertificate(data);				
-	//					logger.trace("adding certificate '{}' to root CAs", certificate.getSubjectDN());
-						trustAnchors.add(certificate);
-					} catch(Exception e) {
-						logger.warn("discarding invalid (unparseable) certificate data '{}'", data);
-					}
-				}
-			} catch (ParserConfigurationException | SAXException | IOException e) {
+			try {
+				return snapshots.load(url);
+			} catch (IOException e) {
 				logger.error("error acquiring TSL from '" + tslURL + "'", e);
-				trustAnchors = null;
 			} catch (CertificateLoaderException e) {
-				logger.error("error initialising certificate loader", e);
-				trustAnchors = null;
+				logger.error("error parsing TSL from '" + tslURL + "'", e);
 			}
 		}
-		
-		return trustAnchors;
+		return null;
 	}
 		
+	/**
+	 * The root CAs, along with the modification time and size of the key store
+	 * they were loaded from.
+	 */
+	private static class CachedRootCAs {
+		
+		final TrustStore store;
+		
+		final long lastModified;
+		
+		final long length;
+		
+		CachedRootCAs(TrustStore store, long lastModified, long length) {
+			this.store = store;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+		
+		boolean isCurrent(File file) {
+			return file.lastModified() == lastModified && file.length() == length;
+		}
+	}
+	
 	/**
 	 * Private constructor, to prevent instantiation.
 	 */
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import java.security.cert.CertificateException;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.dihedron.core.License;
+
+/**
+ * An immutable set of trusted certificates, indexed by subject and by subject
+ * key identifier (see {@link CertificateIndex}), so that the candidate issuers
+ * of a certificate can be found without scanning the whole set, however large
+ * (e.g. when merging the trusted lists of all EU Member States).
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class TrustStore extends CertificateIndex {
+
+	/**
+	 * The certificates as PKIX trust anchors, created on first use.
+	 */
+	private volatile Set<TrustAnchor> anchors;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param certificates
+	 *   the trusted certificates; duplicates are discarded.
+	 */
+	public TrustStore(Collection<X509Certificate> certificates) {
+		super(certificates);
+	}
+
+	/**
+	 * Returns whether the given certificate is in the store.
+	 *
+	 * @param certificate
+	 *   the certificate.
+	 * @return
+	 *   whether the certificate is trusted.
+	 */
+	public boolean contains(X509Certificate certificate) {
+		try {
+			return getHandles().contains(new CertificateHandle(certificate));
+		} catch(CertificateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the certificates in the store that may have issued the given
+	 * certificate: those whose subject key identifier matches the certificate's
+	 * authority key identifier, if any, or else those whose subject matches the
+	 * certificate's issuer.
+	 *
+	 * @param certificate
+	 *   the certificate whose issuer is sought.
+	 * @return
+	 *   the candidate issuers, possibly empty.
+	 */
+	public List<X509Certificate> getIssuerCandidates(X509Certificate certificate) {
+		byte[] identifier = getAuthorityKeyIdentifier(certificate);
+		if(identifier != null) {
+			List<X509Certificate> matches = getBySubjectKeyIdentifier(identifier);
+			if(!matches.isEmpty()) {
+				return matches;
+			}
+		}
+		return getBySubject(certificate.getIssuerX500Principal());
+	}
+
+	/**
+	 * Returns the certificates in the store as PKIX trust anchors.
+	 *
+	 * @return
+	 *   an unmodifiable set of trust anchors.
+	 */
+	public Set<TrustAnchor> getTrustAnchors() {
+		Set<TrustAnchor> result = anchors;
+		if(result == null) {
+			result = new HashSet<>();
+			for(X509Certificate certificate : getCertificates()) {
+				result.add(new TrustAnchor(certificate, null));
+			}
+			anchors = result = Collections.unmodifiableSet(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Extracts the subject key identifier from a certificate.
+	 *
+	 * @param certificate
+	 *   the certificate.
+	 * @return
+	 *   the subject key identifier, or null if not available.
+	 */
+	public static byte[] getSubjectKeyIdentifier(X509Certificate certificate) {
+		return CertificateProfile.of(certificate).getSubjectKeyIdentifier();
+	}
+
+	/**
+	 * Extracts the authority key identifier from a certificate.
+	 *
+	 * @param certificate
+	 *   the certificate.
+	 * @return
+	 *   the authority key identifier, or null if not available.
+	 */
+	public static byte[] getAuthorityKeyIdentifier(X509Certificate certificate) {
+		return CertificateProfile.of(certificate).getAuthorityKeyIdentifier();
+	}
+}
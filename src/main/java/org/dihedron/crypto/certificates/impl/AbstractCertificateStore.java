@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateHandle;
+import org.dihedron.crypto.certificates.CertificateStore;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for certificate stores, which hold certificate data by the 
+ * properties that identify it, and hand out certificates through {@link 
+ * CertificateHandle}s, so that they are only decoded on request; stored data expires when its time to live 
+ * elapses, or when the certificate itself expires, whichever comes first.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public abstract class AbstractCertificateStore implements CertificateStore {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(AbstractCertificateStore.class);
+
+	/**
+	 * The default time to live of stored certificates (one day).
+	 */
+	public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * The time to live of stored certificates, in milliseconds.
+	 */
+	private long ttl = DEFAULT_TTL;
+
+	protected AbstractCertificateStore() throws CertificateLoaderException {
+	}
+	
+	@Override
+	public Certificate loadCertificate(Properties properties) throws CertificateLoaderException {
+		CertificateHandle handle = loadCertificateHandle(properties);
+		if (handle != null) {
+			try {
+				return handle.getCertificate();
+			} catch (CertificateException e) {
+				throw new CertificateLoaderException("error parsing certificate" , e);
+			}
+		}
+		return null;
+	}
+	
+	@Override
+	public CertificateHandle loadCertificateHandle(Properties properties) throws CertificateLoaderException {
+		return CertificateHandle.of(loadCertificateData(properties));
+	}
+	
+	@Override
+	public void storeCertificateHandle(Properties properties, CertificateHandle handle) throws CertificateLoaderException {
+		storeCertificateData(properties, handle.getEncoded());
+	}
+	
+	/**
+	 * Sets the time to live of stored certificates; certificates are never 
+	 * returned past their expiry date anyway.
+	 * 
+	 * @param ttl
+	 *   the time to live, in milliseconds.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public AbstractCertificateStore setTTL(long ttl) {
+		this.ttl = ttl;
+		return this;
+	}
+
+	/**
+	 * Returns the time when certificate data stored at the given time expires:
+	 * when its time to live elapses, or when the certificate expires, whichever 
+	 * comes first.
+	 * 
+	 * @param data
+	 *   the certificate data.
+	 * @param stored
+	 *   the time when the data was stored, in milliseconds.
+	 * @return
+	 *   the expiry time, in milliseconds.
+	 */
+	protected long getExpiry(byte[] data, long stored) {
+		try {
+			return getExpiry(new CertificateHandle(data), stored);
+		} catch (CertificateParsingException e) {
+			logger.debug("stored data is not a certificate, only its time to live applies");
+			return stored + ttl;
+		}
+	}
+
+	/**
+	 * Returns the time when a certificate stored at the given time expires,
+	 * without decoding the whole certificate.
+	 * 
+	 * @param handle
+	 *   the certificate.
+	 * @param stored
+	 *   the time when the certificate was stored, in milliseconds.
+	 * @return
+	 *   the expiry time, in milliseconds.
+	 */
+	protected long getExpiry(CertificateHandle handle, long stored) {
+		long expires = stored + ttl;
+		try {
+			expires = Math.min(expires, handle.getNotAfter().getTime());
+		} catch (CertificateParsingException e) {
+			logger.debug("invalid certificate validity, only its time to live applies");
+		}
+		return expires;
+	}
+
+	/**
+	 * Returns the key under which certificates are stored: the properties in a
+	 * canonical (sorted) form, so that equal lookups map to the same key 
+	 * regardless of the order in which properties were set.
+	 * 
+	 * @param properties
+	 *   the properties identifying the certificate.
+	 * @return
+	 *   the storage key.
+	 */
+	protected static String key(Properties properties) {
+		return new TreeMap<Object, Object>(properties).toString();
+	}
+}
@@ -4,21 +4,28 @@
 package org.dihedron.crypto.certificates.impl;
 
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.List;
 import java.util.Properties;
 
-import javax.xml.bind.DatatypeConverter;
-
 import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateHandle;
 import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.certificates.Certificates;
+import org.dihedron.crypto.certificates.PEMInputStream;
 import org.dihedron.crypto.exceptions.CertificateLoaderException;
 
 
 /**
+ * Loads certificates from base64 or PEM text, decoding it on the fly with a 
+ * {@link PEMInputStream} instead of copying it into intermediate buffers.
+ * 
  * @author Andrea Funto'
  */
 @License
@@ -39,36 +46,101 @@ public class Base64CertificateLoader implements CertificateLoader {
 		}
 	}
 	
-	public byte[] loadCertificateData(String base64) throws CertificateLoaderException {
-		Properties properties = new Properties();
-		properties.put(BASE64, base64);
-		return loadCertificateData(properties); 		
+	public byte[] loadCertificateData(CharSequence base64) throws CertificateLoaderException {
+		return decode(new PEMInputStream(base64), base64.length());
+	}
+	
+	public Certificate loadCertificate(CharSequence base64) throws CertificateLoaderException {	
+		return parse(new PEMInputStream(base64)); 				
 	}
 	
-	public Certificate loadCertificate(String base64) throws CertificateLoaderException {	
-		Properties properties = new Properties();
-		properties.put(BASE64, base64);
-		return loadCertificate(properties); 				
+	/**
+	 * Loads all the certificates in a base64 or PEM text, e.g. a bundle of 
+	 * concatenated PEM certificates.
+	 * 
+	 * @param base64
+	 *   the base64 or PEM text.
+	 * @return
+	 *   the certificates, in order.
+	 * @throws CertificateLoaderException
+	 */
+	public List<X509Certificate> loadCertificates(CharSequence base64) throws CertificateLoaderException {
+		try {
+			return Certificates.fromBase64(base64);
+		} catch (CertificateException e) {
+			throw new CertificateLoaderException("error parsing certificates" , e);
+		}
 	}
 
+	/**
+	 * Loads the certificate from the "base64" property, which can be any 
+	 * CharSequence (e.g. a String or a CharBuffer), or a ByteBuffer holding the
+	 * US-ASCII text; the text is decoded on the fly, straight into the 
+	 * certificate factory.
+	 */
 	@Override
 	public Certificate loadCertificate(Properties properties) throws CertificateLoaderException {
-		X509Certificate x509certificate = null;
-		
-		byte [] data = loadCertificateData(properties);
-		if (data!=null){
-			try {
-				x509certificate = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(data));
-			} catch (CertificateException e) {
-				throw new CertificateLoaderException("error parsing certificate" , e);
-			}
-		}
-		return x509certificate;
+		PEMInputStream stream = open(properties);
+		return stream != null ? parse(stream) : null;
+	}
+
+	@Override
+	public CertificateHandle loadCertificateHandle(Properties properties) throws CertificateLoaderException {
+		return CertificateHandle.of(loadCertificateData(properties));
 	}
 
 	@Override
 	public byte[] loadCertificateData(Properties properties) throws CertificateLoaderException {
-		String base64 = properties.getProperty(BASE64);
-		return DatatypeConverter.parseBase64Binary(base64);
-	}	
+		Object base64 = properties.get(BASE64);
+		PEMInputStream stream = open(properties);
+		if(stream == null) {
+			return null;
+		}
+		return decode(stream, base64 instanceof CharSequence ? ((CharSequence)base64).length() : ((ByteBuffer)base64).remaining());
+	}
+
+	/**
+	 * Opens a decoder on the "base64" property, if available.
+	 */
+	private static PEMInputStream open(Properties properties) throws CertificateLoaderException {
+		Object base64 = properties.get(BASE64);
+		if(base64 instanceof CharSequence) {
+			return new PEMInputStream((CharSequence)base64);
+		} else if(base64 instanceof ByteBuffer) {
+			return new PEMInputStream((ByteBuffer)base64);
+		} else if(base64 != null) {
+			throw new CertificateLoaderException("unsupported base64 input of class " + base64.getClass().getName());
+		}
+		return null;
+	}
+	
+	/**
+	 * Parses a certificate straight from the decoder.
+	 */
+	private X509Certificate parse(PEMInputStream stream) throws CertificateLoaderException {
+		try {
+			synchronized(certificateFactory) {
+				return (X509Certificate) certificateFactory.generateCertificate(stream);
+			}
+		} catch (CertificateException e) {
+			throw new CertificateLoaderException("error parsing certificate" , e);
+		}
+	}
+	
+	/**
+	 * Decodes the whole input into a buffer sized after the length of the text.
+	 */
+	private static byte[] decode(PEMInputStream stream, int length) throws CertificateLoaderException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(length * 3 / 4 + 3);
+		byte[] buffer = new byte[4096];
+		try {
+			int read;
+			while((read = stream.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			throw new CertificateLoaderException("error decoding base64 data" , e);
+		}
+		return output.toByteArray();
+	}
 }
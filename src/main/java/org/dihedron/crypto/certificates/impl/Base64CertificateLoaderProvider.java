@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.certificates.CertificateLoaderProvider;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * Creates {@link Base64CertificateLoader}s, under the name "base64".
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class Base64CertificateLoaderProvider implements CertificateLoaderProvider {
+
+	@Override
+	public String getName() {
+		return "base64";
+	}
+
+	@Override
+	public CertificateLoader makeCertificateLoader(Properties properties) throws CertificateLoaderException {
+		return new Base64CertificateLoader();
+	}
+}
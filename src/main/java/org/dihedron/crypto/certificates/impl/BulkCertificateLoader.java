@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateHandle;
+import org.dihedron.crypto.certificates.CertificateIndex;
+import org.dihedron.crypto.certificates.PEMInputStream;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads all the certificates in a set of files and directories at once: each
+ * file may hold a single DER certificate, a PKCS#7 certificate bundle or any
+ * number of PEM blocks (decoded by {@link PEMInputStream}). Files are read and certificates are parsed and indexed in parallel,
+ * and the result is returned as a {@link CertificateIndex}. Files that cannot
+ * be parsed are logged and skipped, since certificate directories often hold
+ * other files too (e.g. keys or hash links).
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class BulkCertificateLoader {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(BulkCertificateLoader.class);
+
+	/**
+	 * The number of certificates parsed by each task.
+	 */
+	private static final int CHUNK_SIZE = 256;
+
+	/**
+	 * The certificate factories, one per thread since they are not thread-safe.
+	 */
+	private static final ThreadLocal<CertificateFactory> factories = new ThreadLocal<CertificateFactory>() {
+		@Override
+		protected CertificateFactory initialValue() {
+			try {
+				return CertificateFactory.getInstance("X.509");
+			} catch (CertificateException e) {
+				throw new IllegalStateException("X.509 certificate factory not available", e);
+			}
+		}
+	};
+
+	/**
+	 * The executor used to read and parse files, or null to use a temporary
+	 * pool for each load.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Constructor; each load runs on a temporary pool with as many threads as
+	 * there are processors.
+	 */
+	public BulkCertificateLoader() {
+		this(null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executor
+	 *   the executor used to read and parse files; it is not shut down.
+	 */
+	public BulkCertificateLoader(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Loads all certificates in the given files and directories (recursively).
+	 *
+	 * @param paths
+	 *   the files and directories.
+	 * @return
+	 *   the certificates, indexed.
+	 * @throws CertificateLoaderException
+	 *   if a directory cannot be walked or a file cannot be read.
+	 */
+	public CertificateIndex load(File... paths) throws CertificateLoaderException {
+		return load(Arrays.asList(paths));
+	}
+
+	/**
+	 * Loads all certificates in the given files and directories (recursively).
+	 *
+	 * @param paths
+	 *   the files and directories.
+	 * @return
+	 *   the certificates, indexed.
+	 * @throws CertificateLoaderException
+	 *   if a directory cannot be walked or a file cannot be read.
+	 */
+	public CertificateIndex load(Collection<File> paths) throws CertificateLoaderException {
+		long start = System.currentTimeMillis();
+		final List<Path> files = new ArrayList<>();
+		for(File path : paths) {
+			try {
+				Files.walkFileTree(path.toPath(), new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+						if(attributes.isRegularFile()) {
+							files.add(file);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				logger.error("error walking '" + path + "'", e);
+				throw new CertificateLoaderException("error walking '" + path + "'", e);
+			}
+		}
+
+		ExecutorService pool = executor != null ? executor : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "bulk-certificate-loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			// read and split files in parallel...
+			List<Future<List<Blob>>> reads = new ArrayList<>(files.size());
+			for(final Path file : files) {
+				reads.add(pool.submit(new Callable<List<Blob>>() {
+					@Override
+					public List<Blob> call() throws IOException {
+						return split(file.toString(), Files.readAllBytes(file));
+					}
+				}));
+			}
+			List<Blob> blobs = new ArrayList<>();
+			for(int i = 0; i < reads.size(); ++i) {
+				try {
+					blobs.addAll(get(reads.get(i)));
+				} catch(ExecutionException e) {
+					logger.error("error reading '" + files.get(i) + "'", e.getCause());
+					throw new CertificateLoaderException("error reading '" + files.get(i) + "'", e.getCause());
+				}
+			}
+
+			// ... then parse and index certificates in parallel chunks, so large bundles are spread too
+			List<Future<CertificateIndex>> parses = new ArrayList<>();
+			for(int i = 0; i < blobs.size(); i += CHUNK_SIZE) {
+				final List<Blob> chunk = blobs.subList(i, Math.min(i + CHUNK_SIZE, blobs.size()));
+				parses.add(pool.submit(new Callable<CertificateIndex>() {
+					@Override
+					public CertificateIndex call() {
+						return CertificateIndex.of(parse(chunk));
+					}
+				}));
+			}
+			List<CertificateIndex> parts = new ArrayList<>(parses.size());
+			for(Future<CertificateIndex> parse : parses) {
+				try {
+					parts.add(get(parse));
+				} catch(ExecutionException e) {
+					throw new CertificateLoaderException("error parsing certificates", e.getCause());
+				}
+			}
+			CertificateIndex index = CertificateIndex.merge(parts);
+			logger.info("{} certificates loaded from {} files in {} ms", index.size(), files.size(), System.currentTimeMillis() - start);
+			return index;
+		} finally {
+			if(executor == null) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Splits the contents of a file into the DER encodings of the certificates
+	 * (or PKCS#7 bundles) it holds.
+	 *
+	 * @param source
+	 *   the name of the file, for logging.
+	 * @param data
+	 *   the contents of the file.
+	 * @return
+	 *   the DER encoded blocks, possibly none.
+	 */
+	static List<Blob> split(String source, byte[] data) {
+		List<Blob> blobs = new ArrayList<>();
+		if(data.length > 0 && data[0] == 0x30) {
+			// a DER SEQUENCE: a certificate or a PKCS#7 bundle
+			blobs.add(new Blob(source, data));
+			return blobs;
+		}
+		// decode the certificate blocks, then split the DER elements they hold
+		try(DataInputStream input = new DataInputStream(new PEMInputStream(ByteBuffer.wrap(data)))) {
+			int tag;
+			while((tag = input.read()) != -1) {
+				blobs.add(new Blob(source, readElement(tag, input, data.length)));
+			}
+		} catch(IOException e) {
+			logger.warn("invalid PEM data in '{}': {}", source, e.getMessage());
+		}
+		return blobs;
+	}
+
+	/**
+	 * Reads the rest of a DER element whose tag has already been read, returning
+	 * the whole element.
+	 *
+	 * @param tag
+	 *   the tag of the element.
+	 * @param input
+	 *   the stream of decoded PEM data.
+	 * @param limit
+	 *   the maximum length of the element contents.
+	 */
+	private static byte[] readElement(int tag, DataInputStream input, int limit) throws IOException {
+		ByteArrayOutputStream element = new ByteArrayOutputStream();
+		element.write(tag);
+		int length = input.readUnsignedByte();
+		element.write(length);
+		if(length > 0x7F) {
+			int count = length & 0x7F;
+			if(count == 0 || count > 4) {
+				throw new IOException("unsupported DER length");
+			}
+			length = 0;
+			for(int i = 0; i < count; ++i) {
+				int b = input.readUnsignedByte();
+				element.write(b);
+				length = (length << 8) | b;
+			}
+		}
+		if(length < 0 || length > limit) {
+			throw new IOException("invalid DER length " + length);
+		}
+		byte[] contents = new byte[length];
+		input.readFully(contents);
+		element.write(contents);
+		return element.toByteArray();
+	}
+
+	/**
+	 * Parses a chunk of DER encoded blocks, skipping those that are invalid;
+	 * single certificates are only scanned, whereas PKCS#7 bundles have to be
+	 * decoded.
+	 */
+	private static List<CertificateHandle> parse(List<Blob> chunk) {
+		List<CertificateHandle> certificates = new ArrayList<>(chunk.size());
+		for(Blob blob : chunk) {
+			try {
+				certificates.add(new CertificateHandle(blob.data));
+				continue;
+			} catch(CertificateParsingException e) {
+				// not a certificate, possibly a bundle
+			}
+			try {
+				for(Certificate certificate : factories.get().generateCertificates(new ByteArrayInputStream(blob.data))) {
+					if(certificate instanceof X509Certificate) {
+						certificates.add(new CertificateHandle((X509Certificate)certificate));
+					}
+				}
+			} catch(CertificateException e) {
+				logger.warn("skipping invalid certificate data in '{}': {}", blob.source, e.getMessage());
+			}
+		}
+		return certificates;
+	}
+
+	/**
+	 * Waits for a task, preserving the interrupted status.
+	 */
+	private static <T> T get(Future<T> future) throws ExecutionException, CertificateLoaderException {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CertificateLoaderException("interrupted while loading certificates", e);
+		}
+	}
+
+	/**
+	 * A DER encoded block, along with the file it comes from.
+	 */
+	static class Blob {
+
+		final String source;
+
+		final byte[] data;
+
+		Blob(String source, byte[] data) {
+			this.source = source;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CacheDirectories;
+import org.dihedron.crypto.certificates.CertificateHandle;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A certificate store on the local file system, holding one DER file per 
+ * certificate, named after the hash of the properties identifying it; files
+ * are written atomically, so concurrent readers never see partial data, and 
+ * are discarded once expired (according to their modification time). Since
+ * file names are predictable, the directory must be private to the user (see
+ * {@link CacheDirectories}): certificates are neither read from nor written 
+ * to a directory that other users can write to.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class DiskCertificateStore extends AbstractCertificateStore {
+	
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(DiskCertificateStore.class);
+
+	/**
+	 * The name of the system property that can be used to override the default
+	 * store directory.
+	 */
+	public static final String DIRECTORY_PROPERTY = "org.dihedron.crypto.certificates.cache";
+
+	/**
+	 * The extension of certificate files.
+	 */
+	private static final String EXTENSION = ".der";
+
+	/**
+	 * The UTF-8 character set.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The directory holding the certificates.
+	 */
+	private final File directory;
+	
+	/**
+	 * Constructor; certificates are stored in the directory given by the {@link
+	 * #DIRECTORY_PROPERTY} system property, or in the default "certificates"
+	 * cache directory under the user's home directory.
+	 */
+	public DiskCertificateStore() throws CertificateLoaderException {
+		this(System.getProperty(DIRECTORY_PROPERTY) != null ? new File(System.getProperty(DIRECTORY_PROPERTY)) : CacheDirectories.getDefault("certificates"));
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param directory
+	 *   the directory holding the certificates.
+	 * @throws CertificateLoaderException
+	 */
+	public DiskCertificateStore(File directory) throws CertificateLoaderException {
+		this.directory = directory;
+	}
+
+	@Override
+	public byte[] loadCertificateData(Properties properties) throws CertificateLoaderException {
+		File file = file(properties);
+		byte[] data = read(file);
+		if(data != null && getExpiry(data, file.lastModified()) <= System.currentTimeMillis()) {
+			discard(file);
+			return null;
+		}
+		return data;
+	}
+
+	@Override
+	public CertificateHandle loadCertificateHandle(Properties properties) throws CertificateLoaderException {
+		File file = file(properties);
+		CertificateHandle handle = CertificateHandle.of(read(file));
+		if(handle != null && getExpiry(handle, file.lastModified()) <= System.currentTimeMillis()) {
+			discard(file);
+			return null;
+		}
+		return handle;
+	}
+
+	@Override
+	public void storeCertificateData(Properties properties, byte[] data) throws CertificateLoaderException {
+		File file = file(properties);
+		try {
+			CacheDirectories.create(directory);
+			File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+			try {
+				try(FileOutputStream output = new FileOutputStream(temporary)) {
+					output.write(data);
+				}
+				Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temporary.toPath());
+			}
+		} catch(IOException e) {
+			logger.error("error writing certificate to '" + file + "'", e);
+			throw new CertificateLoaderException("error writing certificate to '" + file + "'", e);
+		}
+	}
+	
+	/**
+	 * Reads the contents of a certificate file, returning null if not available.
+	 */
+	private byte[] read(File file) {
+		if(!CacheDirectories.isPrivate(directory)) {
+			logger.debug("directory '{}' does not exist or is writable by other users", directory);
+			return null;
+		}
+		if(!file.isFile()) {
+			return null;
+		}
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch(IOException e) {
+			logger.warn("error reading certificate from '" + file + "'", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes an expired certificate file.
+	 */
+	private void discard(File file) {
+		logger.debug("certificate in '{}' has expired", file);
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch(IOException e) {
+			logger.warn("error deleting certificate file '" + file + "'", e);
+		}
+	}
+
+	/**
+	 * Returns the file holding the certificate identified by the given properties.
+	 */
+	private File file(Properties properties) {
+		try {
+			return new File(directory, Hex.toHexString(MessageDigest.getInstance("SHA-1").digest(key(properties).getBytes(UTF8))) + EXTENSION);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.certificates.CertificateLoaderProvider;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * Creates {@link DiskCertificateStore}s, under the name "disk"; the directory
+ * is read from the "disk.directory" property, if set, and the time to live of
+ * certificates (in milliseconds) from the "disk.ttl" property.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class DiskCertificateStoreProvider implements CertificateLoaderProvider {
+
+	@Override
+	public String getName() {
+		return "disk";
+	}
+
+	@Override
+	public CertificateLoader makeCertificateLoader(Properties properties) throws CertificateLoaderException {
+		String directory = properties.getProperty("disk.directory");
+		DiskCertificateStore store = directory != null ? new DiskCertificateStore(new File(directory)) : new DiskCertificateStore();
+		store.setTTL(Long.parseLong(properties.getProperty("disk.ttl", String.valueOf(AbstractCertificateStore.DEFAULT_TTL))));
+		return store;
+	}
+}
@@ -5,22 +5,25 @@ package org.dihedron.crypto.certificates.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.util.Properties;
 
 import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateHandle;
 import org.dihedron.crypto.certificates.CertificateLoader;
 import org.dihedron.crypto.exceptions.CertificateLoaderException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Loads single certificates from files; see {@link BulkCertificateLoader} to 
+ * load whole directories or PEM bundles at once.
+ * 
  * @author Andrea Funto'
  */
 @License
@@ -47,52 +50,45 @@ public class FileCertificateLoader implements CertificateLoader {
 	}
 	
 	public byte[] loadCertificateData(String filename) throws CertificateLoaderException {
-		Properties properties = new Properties();
-		properties.put(FILENAME, filename);
-		return loadCertificateData(properties);
+		if (filename == null) {
+			logger.error("no valid filename supplied for certificate"); 
+			throw new CertificateLoaderException("no valid filename supplied for certificate");
+		}
+		try {
+			// reads the whole file, even when the underlying stream returns short reads
+			return Files.readAllBytes(new File(filename).toPath());
+		} catch (NoSuchFileException e) {
+			logger.error("file '" + filename + "' not found", e);
+			throw new CertificateLoaderException("error loading file " + filename, e);
+		} catch (IOException e) {
+			logger.error("error reading from file '" + filename + "'", e);
+			throw new CertificateLoaderException("error reading certificate from " + filename, e);
+		}
 	}
 	
 	public Certificate loadCertificate(String filename) throws CertificateLoaderException {
-		Properties properties = new Properties();
-		properties.put("filename", filename);
-		return loadCertificate(properties);	
-	}
-	
-	//Override
-	public Certificate loadCertificate(Properties properties) throws CertificateLoaderException {
-		Certificate certificate = null;		
+		byte [] data = loadCertificateData(filename);
 		try {
-			byte [] data = loadCertificateData(properties);
-			certificate = certificateFactory.generateCertificate(new ByteArrayInputStream(data));
+			synchronized(certificateFactory) {
+				return certificateFactory.generateCertificate(new ByteArrayInputStream(data));
+			}
 		} catch (CertificateException e) {
 			throw new CertificateLoaderException("error parsing certificate from file", e);
 		}
-		return certificate;
 	}
 	
+	//Override
+	public Certificate loadCertificate(Properties properties) throws CertificateLoaderException {
+		return loadCertificate(properties.getProperty(FILENAME));
+	}
+	
+	@Override
+	public CertificateHandle loadCertificateHandle(Properties properties) throws CertificateLoaderException {
+		return CertificateHandle.of(loadCertificateData(properties));
+	}
+
 	//Override
 	public byte[] loadCertificateData(Properties properties)throws CertificateLoaderException {
-		byte [] data = null;
-		String filename = properties.getProperty(FILENAME);
-		if (filename != null) {
-			File f = new File(filename);
-			try(InputStream fis = new FileInputStream(f)) {
-				data = new byte[(int)f.length()];
-				if(fis.read(data) != (int)f.length()){
-					logger.error("error reading data from file");
-					throw new CertificateLoaderException("error reading data from file");
-				}
-			} catch (FileNotFoundException e) {
-				logger.error("file '" + filename + "' not found", e);
-				throw new CertificateLoaderException("error loading file " + filename, e);
-			} catch (IOException e) {
-				logger.error("error reading from file '" + filename + "'", e);
-				throw new CertificateLoaderException("error reading certificate from " + filename, e);
-			}
-		} else {
-			logger.error("no valid filename supplied for certificate"); 
-			throw new CertificateLoaderException("no valid filename supplied for certificate");
-		}
-		return data;
+		return loadCertificateData(properties.getProperty(FILENAME));
 	}
 }
@@ -1,144 +1,725 @@
 /**
  * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
- */ 
+ */
 package org.dihedron.crypto.certificates.impl;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateHandle;
 import org.dihedron.crypto.certificates.CertificateLoader;
-import org.dihedron.crypto.certificates.Certificates;
+import org.dihedron.crypto.certificates.CertificateProfile;
 import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
+ * Loads signature certificates from an LDAP directory. The loader is thread
+ * safe: searches run on a bounded pool of directory contexts, and their
+ * results (including misses) are cached for a configurable time, up to a 
+ * fixed number of the most recently used ones, so that repeated lookups of 
+ * the same recipient do not hit the directory. Many
+ * recipients can be looked up at once through {@link #loadCertificates(String,
+ * String, Collection)}, which combines them into a few paged OR-filter searches.
+ *
  * @author Andrea Funto'
  */
 @License
 public class LDAPCertificateLoader implements CertificateLoader {
 
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(LDAPCertificateLoader.class);
+
+	/**
+	 * The default number of pooled directory contexts.
+	 */
+	public static final int DEFAULT_POOL_SIZE = 4;
+
+	/**
+	 * The default connection timeout, in milliseconds.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * The default read timeout, in milliseconds.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 10000;
+
+	/**
+	 * The default time search results are cached for, in milliseconds.
+	 */
+	public static final long DEFAULT_CACHE_TTL = 10 * 60 * 1000;
+
+	/**
+	 * The default maximum number of cached search results.
+	 */
+	public static final int DEFAULT_CACHE_CAPACITY = 10000;
+
+	/**
+	 * The default number of recipients combined in a single OR-filter.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	/**
+	 * The default number of entries per page in batched searches.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 200;
+
+	/**
+	 * The attribute holding the certificates.
+	 */
+	private static final String CERTIFICATE_ATTRIBUTE = "userCertificate;binary";
+
 	private CertificateFactory certificateFactory;
-	private DirContext ldapContext;
+
 	private SearchControls controls;
-		
+
+	/**
+	 * The environment used to create directory contexts.
+	 */
+	private final Hashtable<String, String> environment = new Hashtable<String, String>();
+
+	/**
+	 * The idle directory contexts.
+	 */
+	private final BlockingQueue<LdapContext> contexts = new LinkedBlockingQueue<>();
+
+	/**
+	 * The permits to use a directory context, as many as the pool size.
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * The cached search results, by name and filter, in least recently used 
+	 * order.
+	 */
+	private final Map<String, CachedResult> cache = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+			return size() > cacheCapacity;
+		}
+	};
+
+	/**
+	 * The time search results are cached for, in milliseconds.
+	 */
+	private volatile long cacheTTL = DEFAULT_CACHE_TTL;
+
+	/**
+	 * The maximum number of cached search results.
+	 */
+	private volatile int cacheCapacity = DEFAULT_CACHE_CAPACITY;
+
+	/**
+	 * The last time expired results were purged from the cache.
+	 */
+	private long lastPurge = System.currentTimeMillis();
+
+	/**
+	 * The number of recipients combined in a single OR-filter.
+	 */
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * The number of entries per page in batched searches.
+	 */
+	private volatile int pageSize = DEFAULT_PAGE_SIZE;
+
 	public LDAPCertificateLoader(String ldapServer, int port) throws CertificateLoaderException {
-		String providerUrl = new String("ldap://" + ldapServer + ":" + port + "/");		
-		initialise(providerUrl);
+		this("ldap://" + ldapServer + ":" + port + "/");
 	}
-	
+
 	public LDAPCertificateLoader(String ldapProviderUrl) throws CertificateLoaderException {
-		initialise(ldapProviderUrl);
+		this(ldapProviderUrl, DEFAULT_POOL_SIZE, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
 	}
-	
-	private void initialise(String ldapProviderUrl) throws CertificateLoaderException {		
+
+	/**
+	 * Constructor.
+	 *
+	 * @param ldapProviderUrl
+	 *   the URL of the LDAP server.
+	 * @param poolSize
+	 *   the maximum number of concurrent connections to the server.
+	 * @param connectTimeout
+	 *   the connection timeout, in milliseconds.
+	 * @param readTimeout
+	 *   the read timeout, in milliseconds.
+	 * @throws CertificateLoaderException
+	 */
+	public LDAPCertificateLoader(String ldapProviderUrl, int poolSize, int connectTimeout, int readTimeout) throws CertificateLoaderException {
 		try {
-			Hashtable<String, String> environment = new Hashtable<String, String>();
-			environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");			
+			environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
 			environment.put(Context.PROVIDER_URL, ldapProviderUrl);
+			environment.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(connectTimeout));
+			environment.put("com.sun.jndi.ldap.read.timeout", String.valueOf(readTimeout));
 
-			ldapContext = new InitialDirContext(environment);
+			permits = new Semaphore(poolSize, true);
 
 			controls = new SearchControls();
 			controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			controls.setReturningAttributes(new String[] { CERTIFICATE_ATTRIBUTE });
 
 			certificateFactory = CertificateFactory.getInstance("X.509");
 		} catch (CertificateException e) {
 			throw new CertificateLoaderException("error instantiating certificate factory", e);
-		} catch (NamingException e) {
-			throw new CertificateLoaderException("error establishing directory context", e);
-		}		
+		}
+	}
+
+	/**
+	 * Sets the time search results (including misses) are cached for.
+	 *
+	 * @param cacheTTL
+	 *   the time to live of cached results, in milliseconds; 0 disables caching.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public LDAPCertificateLoader setCacheTTL(long cacheTTL) {
+		this.cacheTTL = cacheTTL;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of search results (including misses) held in the
+	 * cache; the least recently used ones are evicted first.
+	 *
+	 * @param cacheCapacity
+	 *   the maximum number of cached results.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public LDAPCertificateLoader setCacheCapacity(int cacheCapacity) {
+		this.cacheCapacity = Math.max(1, cacheCapacity);
+		return this;
 	}
-	
-	public byte[] loadCertificateData(String name, String filter) throws CertificateLoaderException {	
+
+	/**
+	 * Sets the number of recipients combined in a single OR-filter by batched
+	 * lookups.
+	 *
+	 * @param batchSize
+	 *   the maximum number of recipients per search.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public LDAPCertificateLoader setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+
+	/**
+	 * Sets the number of entries the server returns per page in batched lookups.
+	 *
+	 * @param pageSize
+	 *   the page size.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public LDAPCertificateLoader setPageSize(int pageSize) {
+		this.pageSize = Math.max(1, pageSize);
+		return this;
+	}
+
+	public byte[] loadCertificateData(String name, String filter) throws CertificateLoaderException {
 		Properties properties = new Properties();
 		properties.setProperty("name", name);
 		properties.setProperty("filter", filter);
 		return loadCertificateData(properties );
 	}
 
-	
+
+	@Override
+	public CertificateHandle loadCertificateHandle(Properties properties) throws CertificateLoaderException {
+		return CertificateHandle.of(loadCertificateData(properties));
+	}
+
 	//Override
 	public byte[] loadCertificateData(Properties properties) throws CertificateLoaderException {
-		byte [] data = null;
-		
 		String name = properties.getProperty("name");
 		String filter = properties.getProperty("filter");
-		
-		boolean found = false;
 
-		try {
-			NamingEnumeration<SearchResult> results = ldapContext.search(name, filter, controls);
-						
-			while (results.hasMore() && !found) {
-				SearchResult searchResult = (SearchResult) results.next();
-				Attributes attributes = searchResult.getAttributes();
-				Attribute attribute = attributes.get("userCertificate;binary");
-	
-				
-				if (attribute != null) {					
-					NamingEnumeration<?> values = attribute.getAll();
-					while (values.hasMoreElements()) {
-						data = (byte[]) values.nextElement();
-						//System.out.println("certificate: " + data.length);
-						X509Certificate x509certificate = (X509Certificate) certificateFactory
-								.generateCertificate(new ByteArrayInputStream(data));
-						if(Certificates.isSignatureX509Certificate(x509certificate)) {
-							//System.out.println("certificate found");							
-							found = true;
-							break;
-						} else {		
-							x509certificate = null;
-						}
-					}
-				}
-			}			
-		} catch (NamingException e) {
-			throw new CertificateLoaderException("ldap search error" , e);
-		} catch (CertificateException e) {
-			throw new CertificateLoaderException("error parsing certificate" , e);
+		String key = name + "\u0000" + filter;
+		CachedResult cached = getCached(key, System.currentTimeMillis());
+		if(cached != null) {
+			logger.trace("certificate for '{}' ({}) found in cache", name, filter);
+			return cached.data != null ? cached.data.clone() : null;
 		}
-		
-		return data;
-	}	
-	
-	public Certificate loadCertificate(String name, String filter) throws CertificateLoaderException {	
+
+		byte[] data = search(name, filter);
+		putCached(key, new CachedResult(data, System.currentTimeMillis() + cacheTTL));
+		return data != null ? data.clone() : null;
+	}
+
+	public Certificate loadCertificate(String name, String filter) throws CertificateLoaderException {
 		Properties properties = new Properties();
 		properties.setProperty("name", name);
 		properties.setProperty("filter", filter);
 		return loadCertificate(properties);
 	}
-	
+
 	//Override
 	public Certificate loadCertificate(Properties props) throws CertificateLoaderException {
-		
+
 		X509Certificate x509certificate = null;
-		
+
 		byte [] data = loadCertificateData(props);
 		if (data!=null){
 			try {
-				x509certificate = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(data));
+				synchronized(certificateFactory) {
+					x509certificate = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(data));
+				}
 			} catch (CertificateException e) {
 				throw new CertificateLoaderException("error parsing certificate" , e);
 			}
 		}
-				
+
 		return x509certificate;
-	}	
+	}
+
+	/**
+	 * Loads the signature certificates of many recipients at once. Recipients
+	 * are combined into OR-filters on the given attribute (e.g. "mail"), so that
+	 * a few paged searches replace one round trip per recipient; results are
+	 * shared with the cache used by {@link #loadCertificate(String, String)},
+	 * with the single-recipient filter "(attribute=recipient)" as key.
+	 *
+	 * @param name
+	 *   the name of the context to search.
+	 * @param attribute
+	 *   the attribute identifying recipients.
+	 * @param recipients
+	 *   the values of the attribute for the recipients.
+	 * @return
+	 *   the certificates by recipient, in the order recipients were given;
+	 *   recipients with no certificate in the directory are not in the map.
+	 * @throws CertificateLoaderException
+	 *   if a search fails or a certificate cannot be parsed.
+	 */
+	public Map<String, X509Certificate> loadCertificates(String name, String attribute, Collection<String> recipients) throws CertificateLoaderException {
+		Map<String, byte[]> found = new HashMap<>();
+		List<String> missing = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		for(String recipient : recipients) {
+			CachedResult cached = getCached(name + "\u0000" + makeFilter(attribute, recipient), now);
+			if(cached != null) {
+				found.put(recipient, cached.data);
+			} else if(!missing.contains(recipient)) {
+				missing.add(recipient);
+			}
+		}
+		logger.debug("{} recipients found in cache, {} to look up", recipients.size() - missing.size(), missing.size());
+
+		for(int i = 0; i < missing.size(); i += batchSize) {
+			List<String> batch = missing.subList(i, Math.min(i + batchSize, missing.size()));
+			Map<String, byte[]> results = search(name, attribute, batch);
+			long expires = System.currentTimeMillis() + cacheTTL;
+			for(String recipient : batch) {
+				byte[] data = results.get(recipient);
+				found.put(recipient, data);
+				putCached(name + "\u0000" + makeFilter(attribute, recipient), new CachedResult(data, expires));
+			}
+		}
+
+		Map<String, X509Certificate> certificates = new LinkedHashMap<>();
+		for(String recipient : recipients) {
+			byte[] data = found.get(recipient);
+			if(data != null && !certificates.containsKey(recipient)) {
+				try {
+					synchronized(certificateFactory) {
+						certificates.put(recipient, (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(data)));
+					}
+				} catch (CertificateException e) {
+					throw new CertificateLoaderException("error parsing certificate for '" + recipient + "'", e);
+				}
+			}
+		}
+		return certificates;
+	}
+
+	/**
+	 * Empties the cache of search results.
+	 */
+	public void clearCache() {
+		synchronized(cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Returns the cached result for the given key, if it has not expired yet;
+	 * expired results are removed.
+	 */
+	private CachedResult getCached(String key, long now) {
+		synchronized(cache) {
+			CachedResult cached = cache.get(key);
+			if(cached != null && cached.expires <= now) {
+				cache.remove(key);
+				return null;
+			}
+			return cached;
+		}
+	}
+
+	/**
+	 * Caches a search result, unless caching is disabled; expired results are
+	 * purged from the cache at most once per time to live, so that results no
+	 * longer looked up do not linger until they are evicted.
+	 */
+	private void putCached(String key, CachedResult result) {
+		long ttl = cacheTTL;
+		if(ttl <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		synchronized(cache) {
+			if(now - lastPurge >= ttl) {
+				for(Iterator<CachedResult> iterator = cache.values().iterator(); iterator.hasNext(); ) {
+					if(iterator.next().expires <= now) {
+						iterator.remove();
+					}
+				}
+				lastPurge = now;
+			}
+			cache.put(key, result);
+		}
+	}
+
+	/**
+	 * Returns the number of search results (including misses) in the cache.
+	 *
+	 * @return
+	 *   the number of cached results.
+	 */
+	public int getCacheSize() {
+		synchronized(cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Closes all idle directory contexts.
+	 */
+	public void close() {
+		LdapContext context;
+		while((context = contexts.poll()) != null) {
+			close(context);
+		}
+	}
+
+	/**
+	 * Looks up the directory for the first signature certificate matching the
+	 * given filter, on a pooled directory context.
+	 *
+	 * @param name
+	 *   the name of the context to search.
+	 * @param filter
+	 *   the search filter.
+	 * @return
+	 *   the certificate data, or null if not found.
+	 * @throws CertificateLoaderException
+	 *   if the search fails.
+	 */
+	protected byte[] search(String name, String filter) throws CertificateLoaderException {
+		LdapContext context = acquire();
+		boolean healthy = false;
+		try {
+			byte [] data = null;
+			boolean found = false;
+			NamingEnumeration<SearchResult> results = context.search(name, filter, controls);
+			try {
+				while (results.hasMore() && !found) {
+					SearchResult searchResult = (SearchResult) results.next();
+					Attributes attributes = searchResult.getAttributes();
+					Attribute attribute = attributes.get(CERTIFICATE_ATTRIBUTE);
+
+					if (attribute != null) {
+						NamingEnumeration<?> values = attribute.getAll();
+						while (values.hasMoreElements()) {
+							data = (byte[]) values.nextElement();
+							if(isSignature(data)) {
+								found = true;
+								break;
+							}
+						}
+					}
+				}
+			} finally {
+				results.close();
+			}
+			healthy = true;
+			return data;
+		} catch (NamingException e) {
+			throw new CertificateLoaderException("ldap search error" , e);
+		} catch (CertificateParsingException e) {
+			healthy = true;
+			throw new CertificateLoaderException("error parsing certificate" , e);
+		} finally {
+			release(context, healthy);
+		}
+	}
+
+	/**
+	 * Looks up the directory for the signature certificates of a batch of
+	 * recipients, with a single OR-filter search paged on a pooled directory
+	 * context.
+	 *
+	 * @param name
+	 *   the name of the context to search.
+	 * @param attribute
+	 *   the attribute identifying recipients.
+	 * @param recipients
+	 *   the values of the attribute for the recipients.
+	 * @return
+	 *   the certificate data by recipient; recipients not found are not in the
+	 *   map.
+	 * @throws CertificateLoaderException
+	 *   if the search fails.
+	 */
+	protected Map<String, byte[]> search(String name, final String attribute, List<String> recipients) throws CertificateLoaderException {
+		// directory attribute values are matched case-insensitively
+		final Map<String, String> lookup = new HashMap<>();
+		for(String recipient : recipients) {
+			lookup.put(recipient.toLowerCase(Locale.ROOT), recipient);
+		}
+		StringBuilder filter = new StringBuilder("(|");
+		for(String recipient : recipients) {
+			filter.append(makeFilter(attribute, recipient));
+		}
+		filter.append(")");
+
+		final Map<String, byte[]> certificates = new HashMap<>();
+		final Map<String, byte[]> fallbacks = new HashMap<>();
+		scan(name, filter.toString(), new String[] { CERTIFICATE_ATTRIBUTE, attribute }, new ResultHandler() {
+			@Override
+			public void onResult(String entry, Attributes attributes) throws NamingException, CertificateParsingException {
+				Attribute certificate = attributes.get(CERTIFICATE_ATTRIBUTE);
+				Attribute identifier = attributes.get(attribute);
+				if(certificate == null || identifier == null) {
+					return;
+				}
+				NamingEnumeration<?> identifiers = identifier.getAll();
+				while(identifiers.hasMoreElements()) {
+					String recipient = lookup.get(String.valueOf(identifiers.nextElement()).toLowerCase(Locale.ROOT));
+					if(recipient == null || certificates.containsKey(recipient)) {
+						continue;
+					}
+					NamingEnumeration<?> values = certificate.getAll();
+					while (values.hasMoreElements()) {
+						byte[] data = (byte[]) values.nextElement();
+						if(isSignature(data)) {
+							certificates.put(recipient, data);
+							break;
+						}
+						fallbacks.put(recipient, data);
+					}
+				}
+			}
+		});
+		logger.debug("{} recipients looked up, {} certificates found", recipients.size(), certificates.size());
+
+		// like single searches, fall back to the last certificate if none is for signature
+		for(Map.Entry<String, byte[]> fallback : fallbacks.entrySet()) {
+			if(!certificates.containsKey(fallback.getKey())) {
+				certificates.put(fallback.getKey(), fallback.getValue());
+			}
+		}
+		return certificates;
+	}
+
+	/**
+	 * Runs a search on a pooled directory context, paging through the results
+	 * so that large result sets are not truncated by server size limits.
+	 *
+	 * @param name
+	 *   the name of the context to search.
+	 * @param filter
+	 *   the search filter.
+	 * @param attributes
+	 *   the attributes to return.
+	 * @param handler
+	 *   the handler receiving the distinguished name and the attributes of each 
+	 *   entry.
+	 * @throws CertificateLoaderException
+	 *   if the search fails, or the handler fails to parse a certificate.
+	 */
+	void scan(String name, String filter, String[] attributes, ResultHandler handler) throws CertificateLoaderException {
+		SearchControls scanControls = new SearchControls();
+		scanControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		scanControls.setReturningAttributes(attributes);
+
+		LdapContext context = acquire();
+		boolean healthy = false;
+		try {
+			byte[] cookie = null;
+			int pages = 0;
+			do {
+				context.setRequestControls(new Control[] { new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL) });
+				NamingEnumeration<SearchResult> results = context.search(name, filter, scanControls);
+				try {
+					while (results.hasMore()) {
+						SearchResult result = results.next();
+						handler.onResult(result.getNameInNamespace(), result.getAttributes());
+					}
+				} finally {
+					results.close();
+				}
+				++pages;
+				cookie = null;
+				Control[] responses = context.getResponseControls();
+				if(responses != null) {
+					for(Control response : responses) {
+						if(response instanceof PagedResultsResponseControl) {
+							cookie = ((PagedResultsResponseControl)response).getCookie();
+						}
+					}
+				}
+			} while(cookie != null && cookie.length > 0);
+			context.setRequestControls(null);
+			logger.trace("search on '{}' completed in {} pages", name, pages);
+			healthy = true;
+		} catch (NamingException e) {
+			throw new CertificateLoaderException("ldap search error" , e);
+		} catch (IOException e) {
+			throw new CertificateLoaderException("error creating paged results control" , e);
+		} catch (CertificateParsingException e) {
+			throw new CertificateLoaderException("error parsing certificate" , e);
+		} finally {
+			release(context, healthy);
+		}
+	}
+
+	/**
+	 * Checks whether the given certificate is a signature certificate, only
+	 * scanning its key usage instead of decoding it whole.
+	 */
+	static boolean isSignature(byte[] data) throws CertificateParsingException {
+		CertificateHandle handle = new CertificateHandle(data);
+		return handle.hasKeyUsage(CertificateProfile.DIGITAL_SIGNATURE) && handle.hasKeyUsage(CertificateProfile.KEY_ENCIPHERMENT);
+	}
+
+	/**
+	 * Builds an equality filter on the given attribute, escaping the special
+	 * characters in the value as per RFC 4515.
+	 */
+	static String makeFilter(String attribute, String value) {
+		StringBuilder filter = new StringBuilder("(").append(attribute).append("=");
+		for(char c : value.toCharArray()) {
+			switch(c) {
+			case '\\': filter.append("\\5c"); break;
+			case '*': filter.append("\\2a"); break;
+			case '(': filter.append("\\28"); break;
+			case ')': filter.append("\\29"); break;
+			case '\u0000': filter.append("\\00"); break;
+			default: filter.append(c);
+			}
+		}
+		return filter.append(")").toString();
+	}
+
+	/**
+	 * Takes an idle directory context from the pool, or creates a new one if
+	 * none is idle, waiting if all are in use.
+	 */
+	private LdapContext acquire() throws CertificateLoaderException {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CertificateLoaderException("interrupted while waiting for a directory context", e);
+		}
+		LdapContext context = contexts.poll();
+		if(context != null) {
+			return context;
+		}
+		try {
+			logger.debug("opening new directory context to '{}'", environment.get(Context.PROVIDER_URL));
+			return new InitialLdapContext(environment, null);
+		} catch (NamingException e) {
+			permits.release();
+			throw new CertificateLoaderException("error establishing directory context", e);
+		}
+	}
+
+	/**
+	 * Returns a directory context to the pool, or closes it if it failed.
+	 */
+	private void release(LdapContext context, boolean healthy) {
+		if(healthy) {
+			contexts.offer(context);
+		} else {
+			close(context);
+		}
+		permits.release();
+	}
+
+	/**
+	 * Closes a directory context, logging errors.
+	 */
+	private static void close(LdapContext context) {
+		try {
+			context.close();
+		} catch (NamingException e) {
+			logger.warn("error closing directory context", e);
+		}
+	}
+
+	/**
+	 * Receives the entries found by a paged search.
+	 */
+	interface ResultHandler {
+
+		void onResult(String entry, Attributes attributes) throws NamingException, CertificateParsingException;
+	}
+
+	/**
+	 * A search result (possibly a miss), along with its expiry time.
+	 */
+	private static class CachedResult {
+
+		final byte[] data;
+
+		final long expires;
+
+		CachedResult(byte[] data, long expires) {
+			this.data = data;
+			this.expires = expires;
+		}
+	}
 }
@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.certificates.CertificateLoaderProvider;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * Creates {@link LDAPCertificateLoader}s, under the name "ldap".
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class LDAPCertificateLoaderProvider implements CertificateLoaderProvider {
+
+	@Override
+	public String getName() {
+		return "ldap";
+	}
+
+	@Override
+	public CertificateLoader makeCertificateLoader(Properties properties) throws CertificateLoaderException {
+		return makeLDAPCertificateLoader(properties);
+	}
+
+	/**
+	 * Creates a new LDAPCertificateLoader using the "ldap.*" properties in the 
+	 * given set.
+	 * 
+	 * @param properties
+	 *   a set of properties used to initialise the new loader.
+	 * @return
+	 *   a new LDAPCertificateLoader.
+	 * @throws CertificateLoaderException
+	 */
+	public static LDAPCertificateLoader makeLDAPCertificateLoader(Properties properties) throws CertificateLoaderException {
+		String ldapUrl = (String) properties.get("ldap.url");
+		if(ldapUrl == null) {
+			String ldapServer = (String) properties.get("ldap.server");
+			String ldapPort = (String) properties.get("ldap.port");
+			ldapUrl = "ldap://" + ldapServer + ":" + Integer.parseInt(ldapPort) + "/";
+		}
+		int poolSize = Integer.parseInt(properties.getProperty("ldap.pool.size", String.valueOf(LDAPCertificateLoader.DEFAULT_POOL_SIZE)));
+		int connectTimeout = Integer.parseInt(properties.getProperty("ldap.timeout.connect", String.valueOf(LDAPCertificateLoader.DEFAULT_CONNECT_TIMEOUT)));
+		int readTimeout = Integer.parseInt(properties.getProperty("ldap.timeout.read", String.valueOf(LDAPCertificateLoader.DEFAULT_READ_TIMEOUT)));
+		long cacheTTL = Long.parseLong(properties.getProperty("ldap.cache.ttl", String.valueOf(LDAPCertificateLoader.DEFAULT_CACHE_TTL)));
+		int cacheCapacity = Integer.parseInt(properties.getProperty("ldap.cache.capacity", String.valueOf(LDAPCertificateLoader.DEFAULT_CACHE_CAPACITY)));
+		return new LDAPCertificateLoader(ldapUrl, poolSize, connectTimeout, readTimeout).setCacheTTL(cacheTTL).setCacheCapacity(cacheCapacity);
+	}
+}
@@ -0,0 +1,651 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateHandle;
+import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers certificate lookups from a local replica of the signature
+ * certificates in an LDAP directory, indexed by an identifying attribute (e.g.
+ * "mail"). The replica is kept up to date incrementally, by fetching only the
+ * entries whose <code>modifyTimestamp</code> is more recent than the last
+ * synchronisation and by comparing the names of the mirrored entries with 
+ * those still in the directory, so that deleted entries (or entries with no 
+ * certificate left) are dropped too; it is fully reloaded every now and then, 
+ * and it can be persisted to a file, so that it is available right away on 
+ * restart. Lookups on another context, that are not of the form 
+ * <code>(attribute=value)</code>, or that miss the replica, fall back to the
+ * live directory.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class LDAPMirrorCertificateLoader implements CertificateLoader {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(LDAPMirrorCertificateLoader.class);
+
+	/**
+	 * The default interval between full synchronisations, in milliseconds.
+	 */
+	public static final long DEFAULT_FULL_SYNC_INTERVAL = 24 * 60 * 60 * 1000;
+
+	/**
+	 * The version of the snapshot file format.
+	 */
+	private static final int SNAPSHOT_VERSION = 2;
+
+	/**
+	 * The operational attribute holding the time of the last change to an entry.
+	 */
+	private static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+
+	/**
+	 * The loader used to query the live directory.
+	 */
+	private final LDAPCertificateLoader directory;
+
+	/**
+	 * The name of the context holding the certificates.
+	 */
+	private final String name;
+
+	/**
+	 * The attribute identifying the owners of the certificates.
+	 */
+	private final String attribute;
+
+	/**
+	 * The file the replica is persisted to, or null.
+	 */
+	private final File snapshot;
+
+	/**
+	 * The replica, by lower-case value of the identifying attribute; it only 
+	 * holds entries under the context given at construction.
+	 */
+	private volatile ConcurrentHashMap<String, Mirrored> index = new ConcurrentHashMap<>();
+
+	/**
+	 * The most recent modification time among synchronised entries, in LDAP
+	 * generalized time format, or null if never synchronised.
+	 */
+	private volatile String highWaterMark;
+
+	/**
+	 * The time of the last full synchronisation.
+	 */
+	private volatile long lastFullSync;
+
+	/**
+	 * The interval between full synchronisations, in milliseconds.
+	 */
+	private volatile long fullSyncInterval = DEFAULT_FULL_SYNC_INTERVAL;
+
+	/**
+	 * The scheduler running periodic synchronisations, if started.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	private final CertificateFactory certificateFactory;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *   the loader used to query the live directory.
+	 * @param name
+	 *   the name of the context holding the certificates.
+	 * @param attribute
+	 *   the attribute identifying the owners of the certificates (e.g. "mail").
+	 * @param snapshot
+	 *   the file the replica is persisted to, or null to keep it in memory only;
+	 *   if the file exists, the replica is initialised from it.
+	 * @throws CertificateLoaderException
+	 */
+	public LDAPMirrorCertificateLoader(LDAPCertificateLoader directory, String name, String attribute, File snapshot) throws CertificateLoaderException {
+		this.directory = directory;
+		this.name = name;
+		this.attribute = attribute;
+		this.snapshot = snapshot;
+		try {
+			certificateFactory = CertificateFactory.getInstance("X.509");
+		} catch (CertificateException e) {
+			throw new CertificateLoaderException("error instantiating certificate factory", e);
+		}
+		if(snapshot != null && snapshot.isFile()) {
+			load();
+		}
+	}
+
+	/**
+	 * Sets the interval between full synchronisations, which drop the entries
+	 * that have been deleted from the directory.
+	 *
+	 * @param fullSyncInterval
+	 *   the interval, in milliseconds.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public LDAPMirrorCertificateLoader setFullSyncInterval(long fullSyncInterval) {
+		this.fullSyncInterval = fullSyncInterval;
+		return this;
+	}
+
+	/**
+	 * Starts synchronising the replica periodically, on a background thread;
+	 * the first synchronisation is immediate.
+	 *
+	 * @param period
+	 *   the time between the end of a synchronisation and the start of the next.
+	 * @param unit
+	 *   the unit of the period.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public synchronized LDAPMirrorCertificateLoader start(long period, TimeUnit unit) {
+		if(scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ldap-mirror");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sync();
+					} catch(CertificateLoaderException e) {
+						logger.error("error synchronising directory mirror", e);
+					}
+				}
+			}, 0, period, unit);
+		}
+		return this;
+	}
+
+	/**
+	 * Stops the periodic synchronisations; the live directory loader is left
+	 * open, since it may be shared.
+	 */
+	public synchronized void close() {
+		if(scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Brings the replica up to date: only the entries changed since the last
+	 * synchronisation are fetched, unless the replica is empty or a full
+	 * synchronisation is due; on incremental synchronisations, the names of the 
+	 * entries still holding certificates are listed too, so that the entries
+	 * that have been deleted, or have lost all their certificates, are dropped.
+	 *
+	 * @return
+	 *   the number of entries fetched from the directory.
+	 * @throws CertificateLoaderException
+	 *   if the directory cannot be searched.
+	 */
+	public synchronized int sync() throws CertificateLoaderException {
+		long now = System.currentTimeMillis();
+		boolean full = highWaterMark == null || now - lastFullSync >= fullSyncInterval;
+		String filter = full ? "(userCertificate=*)" : "(&(userCertificate=*)(" + MODIFY_TIMESTAMP + ">=" + highWaterMark + "))";
+
+		final ConcurrentHashMap<String, Mirrored> target = full ? new ConcurrentHashMap<String, Mirrored>() : index;
+		// the mirrored entries, by distinguished name
+		final Map<String, Mirrored> entries = new HashMap<>();
+		for(Mirrored mirrored : target.values()) {
+			if(mirrored.entry != null) {
+				entries.put(mirrored.entry, mirrored);
+			}
+		}
+		final String[] latest = { highWaterMark };
+		final long[] latestTime = { Long.MIN_VALUE };
+		if(highWaterMark != null) {
+			try {
+				latestTime[0] = parseTimestamp(highWaterMark);
+			} catch(ParseException e) {
+				// validated when set
+				throw new IllegalStateException(e);
+			}
+		}
+		final int[] count = { 0 };
+		directory.scan(name, filter, new String[] { "userCertificate;binary", attribute, MODIFY_TIMESTAMP }, new LDAPCertificateLoader.ResultHandler() {
+			@Override
+			public void onResult(String entry, Attributes attributes) throws NamingException, CertificateParsingException {
+				++count[0];
+				Attribute timestamp = attributes.get(MODIFY_TIMESTAMP);
+				if(timestamp != null) {
+					String value = String.valueOf(timestamp.get());
+					try {
+						// generalized times may have different fractions and time zones
+						long time = parseTimestamp(value);
+						if(time > latestTime[0]) {
+							latest[0] = value;
+							latestTime[0] = time;
+						}
+					} catch(ParseException e) {
+						logger.warn("invalid modification time '{}' in directory entry, ignoring it", value);
+					}
+				}
+				// the entry may have been renamed, or lost some certificates
+				String dn = entry.toLowerCase(Locale.ROOT);
+				Mirrored previous = entries.remove(dn);
+				if(previous != null) {
+					previous.removeFrom(target);
+				}
+				Attribute certificate = attributes.get("userCertificate;binary");
+				Attribute identifier = attributes.get(attribute);
+				if(certificate == null || identifier == null) {
+					return;
+				}
+				// same selection as live lookups: the first signature certificate, or the last one
+				byte[] selected = null;
+				NamingEnumeration<?> values = certificate.getAll();
+				while(values.hasMoreElements()) {
+					selected = (byte[]) values.nextElement();
+					if(LDAPCertificateLoader.isSignature(selected)) {
+						break;
+					}
+				}
+				List<String> identifiers = new ArrayList<>();
+				NamingEnumeration<?> all = identifier.getAll();
+				while(all.hasMoreElements()) {
+					identifiers.add(String.valueOf(all.nextElement()).toLowerCase(Locale.ROOT));
+				}
+				Mirrored mirrored = new Mirrored(dn, identifiers.toArray(new String[identifiers.size()]), selected);
+				mirrored.addTo(target);
+				entries.put(dn, mirrored);
+			}
+		});
+
+		int removed = 0;
+		if(!full) {
+			// only names are listed, which is much cheaper than fetching certificates
+			final Set<String> present = new HashSet<>();
+			directory.scan(name, "(userCertificate=*)", new String[0], new LDAPCertificateLoader.ResultHandler() {
+				@Override
+				public void onResult(String entry, Attributes attributes) {
+					present.add(entry.toLowerCase(Locale.ROOT));
+				}
+			});
+			for(Mirrored mirrored : entries.values()) {
+				if(!present.contains(mirrored.entry)) {
+					mirrored.removeFrom(target);
+					++removed;
+				}
+			}
+			// certificates found through live lookups are in the replica from now on
+			for(Mirrored mirrored : target.values()) {
+				if(mirrored.entry == null) {
+					mirrored.removeFrom(target);
+				}
+			}
+		}
+
+		index = target;
+		highWaterMark = latest[0];
+		if(full) {
+			lastFullSync = now;
+		}
+		logger.info("{} synchronisation of directory mirror fetched {} entries and dropped {}, {} certificates in mirror", full ? "full" : "incremental", count[0], removed, target.size());
+		if(snapshot != null && (full || count[0] > 0 || removed > 0)) {
+			save();
+		}
+		return count[0];
+	}
+
+	/**
+	 * Returns the number of identifiers in the replica.
+	 *
+	 * @return
+	 *   the size of the replica.
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public CertificateHandle loadCertificateHandle(Properties properties) throws CertificateLoaderException {
+		return CertificateHandle.of(loadCertificateData(properties));
+	}
+
+	@Override
+	public byte[] loadCertificateData(Properties properties) throws CertificateLoaderException {
+		// the replica only holds the entries under its own context
+		String key = isMirrored(properties.getProperty("name")) ? parse(properties.getProperty("filter")) : null;
+		if(key != null) {
+			Mirrored mirrored = index.get(key);
+			if(mirrored != null) {
+				logger.trace("certificate for '{}' found in mirror", key);
+				return mirrored.data.clone();
+			}
+		}
+		byte[] data = directory.loadCertificateData(properties);
+		if(data != null && key != null) {
+			index.put(key, new Mirrored(null, new String[] { key }, data.clone()));
+		}
+		return data;
+	}
+
+	public Certificate loadCertificate(String value) throws CertificateLoaderException {
+		Properties properties = new Properties();
+		properties.setProperty("name", name);
+		properties.setProperty("filter", LDAPCertificateLoader.makeFilter(attribute, value));
+		return loadCertificate(properties);
+	}
+
+	@Override
+	public Certificate loadCertificate(Properties properties) throws CertificateLoaderException {
+		byte[] data = loadCertificateData(properties);
+		return data != null ? parse(data) : null;
+	}
+
+	/**
+	 * Loads the certificates of many recipients, from the replica or, for those
+	 * missing, with a batched search on the live directory.
+	 *
+	 * @param recipients
+	 *   the values of the identifying attribute for the recipients.
+	 * @return
+	 *   the certificates by recipient, in the order recipients were given;
+	 *   recipients with no certificate are not in the map.
+	 * @throws CertificateLoaderException
+	 */
+	public Map<String, X509Certificate> loadCertificates(Collection<String> recipients) throws CertificateLoaderException {
+		Map<String, X509Certificate> certificates = new LinkedHashMap<>();
+		List<String> missing = new ArrayList<>();
+		for(String recipient : recipients) {
+			Mirrored mirrored = index.get(recipient.toLowerCase(Locale.ROOT));
+			if(mirrored != null) {
+				certificates.put(recipient, parse(mirrored.data));
+			} else {
+				missing.add(recipient);
+			}
+		}
+		if(!missing.isEmpty()) {
+			logger.debug("{} recipients not in mirror, looking them up in the directory", missing.size());
+			Map<String, X509Certificate> found = directory.loadCertificates(name, attribute, missing);
+			for(Map.Entry<String, X509Certificate> entry : found.entrySet()) {
+				try {
+					String key = entry.getKey().toLowerCase(Locale.ROOT);
+					index.put(key, new Mirrored(null, new String[] { key }, entry.getValue().getEncoded()));
+				} catch (CertificateException e) {
+					throw new CertificateLoaderException("error encoding certificate", e);
+				}
+			}
+			// keep the order in which recipients were given
+			Map<String, X509Certificate> ordered = new LinkedHashMap<>();
+			for(String recipient : recipients) {
+				X509Certificate certificate = certificates.containsKey(recipient) ? certificates.get(recipient) : found.get(recipient);
+				if(certificate != null) {
+					ordered.put(recipient, certificate);
+				}
+			}
+			certificates = ordered;
+		}
+		return certificates;
+	}
+
+	/**
+	 * Checks whether the given search base is the context held in the replica.
+	 */
+	private boolean isMirrored(String base) {
+		return (base != null ? base : "").trim().equalsIgnoreCase(name.trim());
+	}
+
+	/**
+	 * Extracts the lower-case value from a filter of the form
+	 * <code>(attribute=value)</code> on the identifying attribute, returning null
+	 * for any other filter.
+	 */
+	private String parse(String filter) {
+		String prefix = "(" + attribute + "=";
+		if(filter == null || !filter.endsWith(")") || !filter.regionMatches(true, 0, prefix, 0, prefix.length())) {
+			return null;
+		}
+		String value = filter.substring(prefix.length(), filter.length() - 1);
+		StringBuilder key = new StringBuilder();
+		for(int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if(c == '*' || c == '(' || c == ')') {
+				// wildcards and nested filters are left to the directory
+				return null;
+			} else if(c == '\\') {
+				if(i + 2 >= value.length()) {
+					return null;
+				}
+				try {
+					key.append((char)Integer.parseInt(value.substring(i + 1, i + 3), 16));
+				} catch(NumberFormatException e) {
+					return null;
+				}
+				i += 2;
+			} else {
+				key.append(c);
+			}
+		}
+		return key.toString().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Decodes a certificate.
+	 */
+	private X509Certificate parse(byte[] data) throws CertificateLoaderException {
+		try {
+			synchronized(certificateFactory) {
+				return (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(data));
+			}
+		} catch (CertificateException e) {
+			throw new CertificateLoaderException("error parsing certificate" , e);
+		}
+	}
+
+	/**
+	 * Parses an LDAP generalized time (e.g. "20141015100000Z").
+	 */
+	private static long parseTimestamp(String value) throws ParseException {
+		try {
+			return new ASN1GeneralizedTime(value).getDate().getTime();
+		} catch(IllegalArgumentException e) {
+			throw new ParseException("invalid generalized time '" + value + "'", 0);
+		}
+	}
+
+	/**
+	 * Initialises the replica from the snapshot file; a snapshot that cannot be
+	 * read, or holds invalid values, is ignored altogether.
+	 */
+	private void load() {
+		try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+			if(input.readInt() != SNAPSHOT_VERSION) {
+				logger.warn("unsupported directory mirror snapshot '{}', ignoring it", snapshot);
+				return;
+			}
+			String mark = input.readUTF();
+			if(!mark.isEmpty()) {
+				try {
+					parseTimestamp(mark);
+				} catch(ParseException e) {
+					throw new IOException("invalid high-water mark '" + mark + "'", e);
+				}
+			}
+			long fullSync = input.readLong();
+			// no count or length can exceed the size of the file itself
+			long size = snapshot.length();
+			int count = input.readInt();
+			if(count < 0 || count > size) {
+				throw new IOException("invalid number of entries: " + count);
+			}
+			ConcurrentHashMap<String, Mirrored> entries = new ConcurrentHashMap<>();
+			for(int i = 0; i < count; ++i) {
+				String entry = input.readUTF();
+				int identifiers = input.readInt();
+				if(identifiers < 0 || identifiers > size) {
+					throw new IOException("invalid number of identifiers: " + identifiers);
+				}
+				String[] keys = new String[identifiers];
+				for(int j = 0; j < identifiers; ++j) {
+					keys[j] = input.readUTF();
+				}
+				int length = input.readInt();
+				if(length < 0 || length > size) {
+					throw new IOException("invalid certificate length: " + length);
+				}
+				byte[] data = new byte[length];
+				input.readFully(data);
+				new Mirrored(entry, keys, data).addTo(entries);
+			}
+			index = entries;
+			highWaterMark = mark.isEmpty() ? null : mark;
+			lastFullSync = fullSync;
+			logger.info("directory mirror initialised with {} entries from '{}'", count, snapshot);
+		} catch(IOException e) {
+			logger.warn("error reading directory mirror snapshot '" + snapshot + "', ignoring it", e);
+		}
+	}
+
+	/**
+	 * Persists the replica to the snapshot file, atomically replacing the
+	 * previous one.
+	 */
+	private void save() {
+		try {
+			File parent = snapshot.getAbsoluteFile().getParentFile();
+			if(!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("cannot create directory '" + parent + "'");
+			}
+			File temporary = File.createTempFile(snapshot.getName(), ".tmp", parent);
+			try {
+				// certificates found through live lookups are not persisted
+				Map<String, Mirrored> entries = new LinkedHashMap<>();
+				for(Mirrored mirrored : index.values()) {
+					if(mirrored.entry != null) {
+						entries.put(mirrored.entry, mirrored);
+					}
+				}
+				try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+					output.writeInt(SNAPSHOT_VERSION);
+					output.writeUTF(highWaterMark != null ? highWaterMark : "");
+					output.writeLong(lastFullSync);
+					output.writeInt(entries.size());
+					for(Mirrored mirrored : entries.values()) {
+						output.writeUTF(mirrored.entry);
+						output.writeInt(mirrored.identifiers.length);
+						for(String identifier : mirrored.identifiers) {
+							output.writeUTF(identifier);
+						}
+						output.writeInt(mirrored.data.length);
+						output.write(mirrored.data);
+					}
+				}
+				Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temporary.toPath());
+			}
+		} catch(IOException e) {
+			logger.warn("error writing directory mirror snapshot '" + snapshot + "'", e);
+		}
+	}
+
+	/**
+	 * A directory entry in the replica.
+	 */
+	private static class Mirrored {
+
+		/**
+		 * The lower-case distinguished name of the entry, or null if the 
+		 * certificate was found through a live lookup.
+		 */
+		final String entry;
+
+		/**
+		 * The lower-case values of the identifying attribute.
+		 */
+		final String[] identifiers;
+
+		/**
+		 * The certificate data.
+		 */
+		final byte[] data;
+
+		/**
+		 * Constructor.
+		 */
+		Mirrored(String entry, String[] identifiers, byte[] data) {
+			this.entry = entry;
+			this.identifiers = identifiers;
+			this.data = data;
+		}
+
+		/**
+		 * Indexes the entry under all of its identifiers.
+		 */
+		void addTo(Map<String, Mirrored> index) {
+			for(String identifier : identifiers) {
+				index.put(identifier, this);
+			}
+		}
+
+		/**
+		 * Removes the entry from the index, leaving alone the identifiers that 
+		 * have since been taken by other entries.
+		 */
+		void removeFrom(ConcurrentHashMap<String, Mirrored> index) {
+			for(String identifier : identifiers) {
+				index.remove(identifier, this);
+			}
+		}
+	}
+}
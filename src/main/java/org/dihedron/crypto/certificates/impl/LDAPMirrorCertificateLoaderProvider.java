@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.certificates.CertificateLoaderProvider;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * Creates {@link LDAPMirrorCertificateLoader}s, under the name "ldap-mirror";
+ * the live directory is configured through the "ldap.*" properties, the mirror
+ * through the "ldap.mirror.*" ones.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class LDAPMirrorCertificateLoaderProvider implements CertificateLoaderProvider {
+
+	/**
+	 * The default time between synchronisations, in milliseconds.
+	 */
+	public static final long DEFAULT_PERIOD = 15 * 60 * 1000;
+
+	@Override
+	public String getName() {
+		return "ldap-mirror";
+	}
+
+	@Override
+	public CertificateLoader makeCertificateLoader(Properties properties) throws CertificateLoaderException {
+		String base = properties.getProperty("ldap.mirror.base", "");
+		String attribute = properties.getProperty("ldap.mirror.attribute", "mail");
+		String snapshot = properties.getProperty("ldap.mirror.file");
+		long period = Long.parseLong(properties.getProperty("ldap.mirror.period", String.valueOf(DEFAULT_PERIOD)));
+		long fullSyncInterval = Long.parseLong(properties.getProperty("ldap.mirror.full", String.valueOf(LDAPMirrorCertificateLoader.DEFAULT_FULL_SYNC_INTERVAL)));
+		return new LDAPMirrorCertificateLoader(LDAPCertificateLoaderProvider.makeLDAPCertificateLoader(properties), base, attribute, snapshot != null ? new File(snapshot) : null)
+			.setFullSyncInterval(fullSyncInterval)
+			.start(period, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.security.cert.CertificateParsingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateHandle;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * An in-memory certificate store, holding the most recently used certificates 
+ * up to a fixed capacity, each until it expires; certificates are held as 
+ * {@link CertificateHandle}s.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class MemoryCertificateStore extends AbstractCertificateStore {
+	
+	/**
+	 * The default number of certificates held in memory.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The certificate data, in least recently used order.
+	 */
+	private final Map<String, Stored> certificates;
+
+	/**
+	 * Constructor.
+	 */
+	public MemoryCertificateStore() throws CertificateLoaderException {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity
+	 *   the maximum number of certificates held in memory.
+	 * @throws CertificateLoaderException
+	 */
+	public MemoryCertificateStore(final int capacity) throws CertificateLoaderException {
+		this.certificates = new LinkedHashMap<String, Stored>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Stored> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	@Override
+	public byte[] loadCertificateData(Properties properties) throws CertificateLoaderException {
+		Stored stored = get(properties);
+		if(stored == null) {
+			return null;
+		}
+		return stored.handle != null ? stored.handle.getEncoded() : stored.data.clone();
+	}
+	
+	@Override
+	public CertificateHandle loadCertificateHandle(Properties properties) throws CertificateLoaderException {
+		Stored stored = get(properties);
+		if(stored == null) {
+			return null;
+		}
+		return stored.handle != null ? stored.handle : CertificateHandle.of(stored.data);
+	}
+	
+	@Override
+	public void storeCertificateData(Properties properties, byte[] data) {
+		Stored stored;
+		try {
+			CertificateHandle handle = new CertificateHandle(data);
+			stored = new Stored(null, handle, getExpiry(handle, System.currentTimeMillis()));
+		} catch(CertificateParsingException e) {
+			stored = new Stored(data.clone(), null, getExpiry(data, System.currentTimeMillis()));
+		}
+		put(properties, stored);
+	}
+	
+	@Override
+	public void storeCertificateHandle(Properties properties, CertificateHandle handle) {
+		put(properties, new Stored(null, handle, getExpiry(handle, System.currentTimeMillis())));
+	}
+	
+	/**
+	 * Returns the unexpired entry for the given properties, if any.
+	 */
+	private Stored get(Properties properties) {
+		String key = key(properties);
+		synchronized(certificates) {
+			Stored stored = certificates.get(key);
+			if(stored != null && stored.expires <= System.currentTimeMillis()) {
+				certificates.remove(key);
+				stored = null;
+			}
+			return stored;
+		}
+	}
+
+	/**
+	 * Stores an entry under the given properties.
+	 */
+	private void put(Properties properties, Stored stored) {
+		synchronized(certificates) {
+			certificates.put(key(properties), stored);
+		}
+	}
+
+	/**
+	 * Returns the number of certificates in memory.
+	 * 
+	 * @return
+	 *   the number of certificates in memory.
+	 */
+	public int size() {
+		synchronized(certificates) {
+			return certificates.size();
+		}
+	}
+	
+	/**
+	 * Removes all certificates from memory.
+	 */
+	public void clear() {
+		synchronized(certificates) {
+			certificates.clear();
+		}
+	}
+
+	/**
+	 * A certificate (or, for data that is not a certificate, the raw data), 
+	 * along with the time when it expires; the handle keeps the certificate 
+	 * once decoded, so repeated loads do not decode it again.
+	 */
+	private static class Stored {
+		
+		final byte[] data;
+		
+		final CertificateHandle handle;
+		
+		final long expires;
+		
+		Stored(byte[] data, CertificateHandle handle, long expires) {
+			this.data = data;
+			this.handle = handle;
+			this.expires = expires;
+		}
+	}
+}
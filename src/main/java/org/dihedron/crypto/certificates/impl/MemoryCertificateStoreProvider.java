@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.certificates.CertificateLoaderProvider;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * Creates {@link MemoryCertificateStore}s, under the name "memory"; the 
+ * capacity is read from the "memory.capacity" property, and the time to live 
+ * of certificates (in milliseconds) from the "memory.ttl" property.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class MemoryCertificateStoreProvider implements CertificateLoaderProvider {
+
+	@Override
+	public String getName() {
+		return "memory";
+	}
+
+	@Override
+	public CertificateLoader makeCertificateLoader(Properties properties) throws CertificateLoaderException {
+		MemoryCertificateStore store = new MemoryCertificateStore(Integer.parseInt(properties.getProperty("memory.capacity", String.valueOf(MemoryCertificateStore.DEFAULT_CAPACITY))));
+		store.setTTL(Long.parseLong(properties.getProperty("memory.ttl", String.valueOf(AbstractCertificateStore.DEFAULT_TTL))));
+		return store;
+	}
+}
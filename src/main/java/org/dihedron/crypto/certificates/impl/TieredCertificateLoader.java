@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateHandle;
+import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.certificates.CertificateStore;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A chain of certificate loaders, consulted from the fastest (e.g. memory) to
+ * the slowest (e.g. a remote directory); when a tier finds a certificate, it is
+ * copied into all the tiers before it that are {@link CertificateStore}s, so 
+ * that the next lookup is answered higher up the chain. Certificates move 
+ * between tiers as {@link CertificateHandle}s, and are only decoded on request. Any CertificateLoader 
+ * can be used as a tier.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class TieredCertificateLoader implements CertificateLoader {
+	
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(TieredCertificateLoader.class);
+	
+	/**
+	 * The tiers, from the fastest to the slowest.
+	 */
+	private final List<CertificateLoader> tiers;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param tiers
+	 *   the tiers, from the fastest to the slowest.
+	 * @throws CertificateLoaderException
+	 */
+	public TieredCertificateLoader(List<? extends CertificateLoader> tiers) throws CertificateLoaderException {
+		this.tiers = Collections.unmodifiableList(new ArrayList<CertificateLoader>(tiers));
+	}
+	
+	/**
+	 * Returns the tiers, from the fastest to the slowest.
+	 * 
+	 * @return
+	 *   an unmodifiable list of tiers.
+	 */
+	public List<CertificateLoader> getTiers() {
+		return tiers;
+	}
+
+	@Override
+	public byte[] loadCertificateData(Properties properties) throws CertificateLoaderException {
+		CertificateHandle handle = loadCertificateHandle(properties);
+		return handle != null ? handle.getEncoded() : null;
+	}
+
+	@Override
+	public CertificateHandle loadCertificateHandle(Properties properties) throws CertificateLoaderException {
+		for(int i = 0; i < tiers.size(); ++i) {
+			CertificateHandle handle = tiers.get(i).loadCertificateHandle(properties);
+			if(handle != null) {
+				logger.trace("certificate found in tier {} ({})", i, tiers.get(i).getClass().getSimpleName());
+				for(int j = 0; j < i; ++j) {
+					if(tiers.get(j) instanceof CertificateStore) {
+						try {
+							((CertificateStore)tiers.get(j)).storeCertificateHandle(properties, handle);
+						} catch(CertificateLoaderException e) {
+							// a failing cache tier must not fail the lookup
+							logger.warn("error promoting certificate to tier " + j, e);
+						}
+					}
+				}
+				return handle;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Certificate loadCertificate(Properties properties) throws CertificateLoaderException {
+		CertificateHandle handle = loadCertificateHandle(properties);
+		if (handle != null) {
+			try {
+				return handle.getCertificate();
+			} catch (CertificateException e) {
+				throw new CertificateLoaderException("error parsing certificate" , e);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+package org.dihedron.crypto.certificates.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.certificates.CertificateLoaderFactory;
+import org.dihedron.crypto.certificates.CertificateLoaderProvider;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+
+/**
+ * Creates {@link TieredCertificateLoader}s, under the name "tiered"; the 
+ * "tiered.chain" property lists the names of the providers of each tier, from
+ * the fastest to the slowest (by default "memory,disk,ldap"), and each tier is
+ * created with the same property set.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class TieredCertificateLoaderProvider implements CertificateLoaderProvider {
+
+	/**
+	 * The default chain of tiers.
+	 */
+	public static final String DEFAULT_CHAIN = "memory,disk,ldap";
+
+	@Override
+	public String getName() {
+		return "tiered";
+	}
+
+	@Override
+	public CertificateLoader makeCertificateLoader(Properties properties) throws CertificateLoaderException {
+		List<CertificateLoader> tiers = new ArrayList<>();
+		for(String name : properties.getProperty("tiered.chain", DEFAULT_CHAIN).split(",")) {
+			if(name.trim().isEmpty() || name.trim().equalsIgnoreCase(getName())) {
+				throw new CertificateLoaderException("invalid tier \"" + name + "\" in chain");
+			}
+			Properties tier = new Properties();
+			tier.putAll(properties);
+			tier.setProperty("provider", name.trim());
+			CertificateLoader loader = CertificateLoaderFactory.makeCertificateLoader(tier);
+			if(loader == null) {
+				throw new CertificateLoaderException("unknown certificate loader provider \"" + name.trim() + "\"");
+			}
+			tiers.add(loader);
+		}
+		return new TieredCertificateLoader(tiers);
+	}
+}
@@ -0,0 +1,426 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dihedron.core.License;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.crypto.certificates.TrustStore;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the trust anchors of a federation of trusted lists, such as the EU
+ * List of Trusted Lists (LOTL): the LOTL is fetched first, then all the XML
+ * trusted lists it points to are fetched concurrently, with timeouts, and the
+ * certificates of their services are merged into a single, indexed {@link
+ * TrustStore}. Each list is cached until its "next update" time; past that
+ * time it is fetched again, but only re-parsed if its contents have actually
+ * changed. A list that cannot be fetched is taken from the cache, if
+ * available, or otherwise left out.
+ * <p>
+ * Every list must carry an XML signature covering the whole document: the 
+ * LOTL must be signed by one of the configured signing certificates (see
+ * {@link #setSigningCertificates(Collection)}), without which it is not 
+ * loaded at all, and each member list must be signed by one of the 
+ * certificates given for it by its pointer in the LOTL, or it is left out.
+ * </p>
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class LOTLLoader {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(LOTLLoader.class);
+
+	/**
+	 * The URL of the official EU List of Trusted Lists.
+	 */
+	public static final String EU_LOTL_URL = "https://ec.europa.eu/information_society/policy/esignature/trusted-list/tl-mp.xml";
+
+	/**
+	 * The default connection timeout, in milliseconds.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/**
+	 * The default read timeout, in milliseconds.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	/**
+	 * The default maximum time to wait for all lists to be loaded, in milliseconds.
+	 */
+	public static final long DEFAULT_TOTAL_TIMEOUT = 120000;
+
+	/**
+	 * The default number of lists fetched concurrently.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 8;
+
+	/**
+	 * The URL of the list of trusted lists.
+	 */
+	private final String url;
+
+	/**
+	 * The pool of threads fetching and parsing the lists.
+	 */
+	private final ExecutorService fetchers;
+
+	/**
+	 * The parser, which decodes certificates on its own pool of threads.
+	 */
+	private final TSLParser parser;
+
+	/**
+	 * The cached lists, by URL.
+	 */
+	private final ConcurrentMap<String, CachedList> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * The connection timeout, in milliseconds.
+	 */
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	/**
+	 * The read timeout, in milliseconds.
+	 */
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+	/**
+	 * The maximum time to wait for all lists to be loaded, in milliseconds.
+	 */
+	private long totalTimeout = DEFAULT_TOTAL_TIMEOUT;
+
+	/**
+	 * The filter on the type and status of the services whose certificates are
+	 * merged into the trust store; if null, all services are taken.
+	 */
+	private TrustServiceFilter filter;
+
+	/**
+	 * The certificates that may sign the list of trusted lists.
+	 */
+	private Set<X509Certificate> signers = new LinkedHashSet<>();
+
+	/**
+	 * The lists loaded by the last call to {@link #load()}, by territory.
+	 */
+	private volatile Map<String, TrustedList> lists = new LinkedHashMap<>();
+
+	/**
+	 * Constructor, for the official EU List of Trusted Lists.
+	 */
+	public LOTLLoader() {
+		this(EU_LOTL_URL);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param url
+	 *   the URL of the list of trusted lists.
+	 */
+	public LOTLLoader(String url) {
+		this(url, DEFAULT_CONCURRENCY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param url
+	 *   the URL of the list of trusted lists.
+	 * @param concurrency
+	 *   the number of lists fetched concurrently.
+	 */
+	public LOTLLoader(String url, int concurrency) {
+		this.url = url;
+		this.fetchers = Executors.newFixedThreadPool(concurrency, new DaemonThreadFactory("lotl-fetcher"));
+		this.parser = new TSLParser(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("lotl-decoder")));
+	}
+
+	/**
+	 * Sets the timeouts used when fetching each list.
+	 *
+	 * @param connectTimeout
+	 *   the connection timeout, in milliseconds.
+	 * @param readTimeout
+	 *   the read timeout, in milliseconds.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public LOTLLoader setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum time to wait for all lists to be loaded; lists that are
+	 * not available by then are taken from the cache, or left out.
+	 *
+	 * @param totalTimeout
+	 *   the overall timeout, in milliseconds.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public LOTLLoader setTotalTimeout(long totalTimeout) {
+		this.totalTimeout = totalTimeout;
+		return this;
+	}
+
+	/**
+	 * Sets the filter on the type and status of the services whose certificates
+	 * are merged into the trust store, e.g. to only trust granted qualified CAs;
+	 * the lists are still loaded and cached in full.
+	 *
+	 * @param filter
+	 *   the filter, or null to take all services.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public LOTLLoader setFilter(TrustServiceFilter filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/**
+	 * Sets the certificates that may sign the list of trusted lists (e.g. those
+	 * published in the Official Journal of the European Union, for the EU LOTL).
+	 *
+	 * @param certificates
+	 *   the signing certificates.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public LOTLLoader setSigningCertificates(Collection<X509Certificate> certificates) {
+		this.signers = new LinkedHashSet<>(certificates);
+		return this;
+	}
+
+	/**
+	 * Loads (or refreshes) the list of trusted lists and all the lists it points
+	 * to, merging the certificates of all their services (or of those matching
+	 * the filter, if any) into a trust store.
+	 *
+	 * @return
+	 *   the trust store.
+	 * @throws CertificateLoaderException
+	 *   if the list of trusted lists itself cannot be loaded, or its signature
+	 *   does not verify against the configured signing certificates.
+	 */
+	public TrustStore load() throws CertificateLoaderException {
+		TrustedList lotl;
+		try {
+			lotl = get(url, signers);
+		} catch(IOException e) {
+			logger.error("error loading list of trusted lists from '" + url + "'", e);
+			throw new CertificateLoaderException("error loading list of trusted lists from '" + url + "'", e);
+		}
+
+		// fetch all XML lists concurrently
+		Map<TSLPointer, Future<TrustedList>> futures = new LinkedHashMap<>();
+		for(final TSLPointer pointer : lotl.getPointers()) {
+			if(!pointer.isXML() || url.equals(pointer.getLocation())) {
+				continue;
+			}
+			futures.put(pointer, fetchers.submit(new Callable<TrustedList>() {
+				@Override
+				public TrustedList call() throws Exception {
+					return get(pointer.getLocation(), pointer.getCertificates());
+				}
+			}));
+		}
+		logger.debug("fetching {} trusted lists", futures.size());
+
+		// collect the results, within the overall timeout
+		long deadline = System.currentTimeMillis() + totalTimeout;
+		Map<String, TrustedList> loaded = new LinkedHashMap<>();
+		Set<X509Certificate> certificates = new LinkedHashSet<>();
+		for(Map.Entry<TSLPointer, Future<TrustedList>> entry : futures.entrySet()) {
+			TSLPointer pointer = entry.getKey();
+			TrustedList list = null;
+			try {
+				list = entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch(TimeoutException e) {
+				logger.warn("timeout loading trusted list for '{}' from '{}'", pointer.getTerritory(), pointer.getLocation());
+				entry.getValue().cancel(true);
+			} catch(ExecutionException e) {
+				logger.warn("error loading trusted list for '" + pointer.getTerritory() + "' from '" + pointer.getLocation() + "'", e.getCause());
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CertificateLoaderException("interrupted while loading trusted lists", e);
+			}
+			if(list == null) {
+				// fall back to the last version we have, even if stale, as long as
+				// its signer is still trusted
+				CachedList cached = cache.get(pointer.getLocation());
+				list = cached != null && pointer.getCertificates().contains(cached.signer) ? cached.list : null;
+			}
+			if(list != null) {
+				loaded.put(pointer.getTerritory() != null ? pointer.getTerritory() : pointer.getLocation(), list);
+				certificates.addAll(list.getCertificates(filter));
+			}
+		}
+		lists = loaded;
+		logger.info("{} trusted lists loaded, {} certificates", loaded.size(), certificates.size());
+		return new TrustStore(certificates);
+	}
+
+	/**
+	 * Returns the lists loaded by the last call to {@link #load()}.
+	 *
+	 * @return
+	 *   the trusted lists, by territory.
+	 */
+	public Map<String, TrustedList> getTrustedLists() {
+		return lists;
+	}
+
+	/**
+	 * Stops the threads used by this loader.
+	 */
+	public void shutdown() {
+		fetchers.shutdownNow();
+		parser.getExecutor().shutdownNow();
+	}
+
+	/**
+	 * Fetches the contents of a list.
+	 *
+	 * @param location
+	 *   the URL of the list.
+	 * @return
+	 *   the list contents.
+	 * @throws IOException
+	 *   if the list cannot be fetched.
+	 */
+	protected byte[] fetch(String location) throws IOException {
+		URLConnection connection = new URL(location).openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		try(InputStream input = connection.getInputStream(); ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+			Streams.copy(input, output);
+			return output.toByteArray();
+		} finally {
+			if(connection instanceof HttpURLConnection) {
+				((HttpURLConnection)connection).disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Returns the list at the given location, from the cache if still valid,
+	 * or by fetching it; if its contents have not changed since it was last
+	 * parsed, the cached list is kept, otherwise its signature is verified 
+	 * against the given certificates before it is parsed.
+	 */
+	private TrustedList get(String location, Collection<X509Certificate> signers) throws IOException, CertificateLoaderException {
+		CachedList cached = cache.get(location);
+		if(cached != null && !signers.contains(cached.signer)) {
+			logger.debug("trusted list at '{}' was signed by a certificate no longer trusted", location);
+			cached = null;
+		}
+		if(cached != null && cached.list.getNextUpdate() != null && cached.list.getNextUpdate().after(new Date())) {
+			logger.trace("trusted list at '{}' still valid", location);
+			return cached.list;
+		}
+		byte[] data = fetch(location);
+		byte[] digest = digest(data);
+		if(cached != null && Arrays.equals(cached.digest, digest)) {
+			logger.trace("trusted list at '{}' has not changed", location);
+			return cached.list;
+		}
+		X509Certificate signer = TSLSignature.verify(data, signers);
+		logger.debug("parsing trusted list at '{}'", location);
+		TrustedList list = parser.parse(new ByteArrayInputStream(data));
+		cache.put(location, new CachedList(list, digest, signer));
+		return list;
+	}
+
+	/**
+	 * Computes the SHA-256 digest of the given data.
+	 */
+	private static byte[] digest(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * A parsed list, along with the digest of the data it was parsed from and
+	 * the certificate that signed it.
+	 */
+	private static class CachedList {
+
+		final TrustedList list;
+
+		final byte[] digest;
+
+		final X509Certificate signer;
+
+		CachedList(TrustedList list, byte[] digest, X509Certificate signer) {
+			this.list = list;
+			this.digest = digest;
+			this.signer = signer;
+		}
+	}
+
+	/**
+	 * Creates named daemon threads, so that the pools never prevent the JVM
+	 * from exiting.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,345 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.PEMInputStream;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A streaming (StAX) parser for ETSI TS 119 612 Trust-service Status Lists.
+ * The document is never loaded in memory as a whole: certificates are handed
+ * over to a pool of threads for decoding and parsing as soon as they are read,
+ * while the parser moves on through the document. Only the certificates in
+ * the services' digital identities (both current and historical) are taken
+ * as trust anchors; those in the TSL signature are ignored, and those in the 
+ * pointers to other TSLs are collected along with the pointers, as the 
+ * certificates that may sign the pointed TSLs.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class TSLParser {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(TSLParser.class);
+
+	/**
+	 * The TSL XML namespace.
+	 */
+	public static final String NAMESPACE = "http://uri.etsi.org/02231/v2#";
+
+	/**
+	 * The TSL additional types XML namespace.
+	 */
+	public static final String ADDITIONAL_TYPES_NAMESPACE = "http://uri.etsi.org/02231/v2/additionaltypes#";
+
+	/**
+	 * The qualified name of the MIME type element, as pushed onto the path.
+	 */
+	private static final String MIME_TYPE = "{" + ADDITIONAL_TYPES_NAMESPACE + "}MimeType";
+
+	/**
+	 * The StAX factory, configured so that no external entities are resolved.
+	 */
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+	
+	/**
+	 * The factory used to parse XML Schema date and time values.
+	 */
+	private static final DatatypeFactory datatypes;
+
+	static {
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		try {
+			datatypes = DatatypeFactory.newInstance();
+		} catch (DatatypeConfigurationException e) {
+			logger.error("error instantiating the XML datatype factory", e);
+			throw new IllegalStateException("error instantiating the XML datatype factory", e);
+		}
+	}
+
+	/**
+	 * The X.509 certificate factories, one per thread since they are not
+	 * guaranteed to be thread safe.
+	 */
+	private static final ThreadLocal<CertificateFactory> certificateFactories = new ThreadLocal<CertificateFactory>() {
+		@Override
+		protected CertificateFactory initialValue() {
+			try {
+				return CertificateFactory.getInstance("X.509");
+			} catch (CertificateException e) {
+				logger.error("error instantiating the certificate factory", e);
+				throw new IllegalStateException("error instantiating the certificate factory", e);
+			}
+		}
+	};
+
+	/**
+	 * The executor service used to decode certificates; if null, a private pool
+	 * is created for each document.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Constructor; a private pool of threads, as large as the number of available
+	 * processors, is used for each document.
+	 */
+	public TSLParser() {
+		this(null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executor
+	 *   the executor service used to decode certificates, which can be shared
+	 *   among parsers; it is not shut down by the parser.
+	 */
+	public TSLParser(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns the executor service used to decode certificates.
+	 *
+	 * @return
+	 *   the executor service, or null if a private pool is used for each document.
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Parses a TSL from the given stream.
+	 *
+	 * @param stream
+	 *   the stream to read the TSL from; it is not closed.
+	 * @return
+	 *   the trusted list.
+	 * @throws CertificateLoaderException
+	 *   if the document is not well formed.
+	 */
+	public TrustedList parse(InputStream stream) throws CertificateLoaderException {
+		ExecutorService pool = executor != null ? executor : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			TrustedList list = new TrustedList();
+			List<ServiceEntry> entries = new ArrayList<>();
+			Deque<String> path = new ArrayDeque<>();
+			StringBuilder text = new StringBuilder();
+			ServiceEntry current = null;
+			TSLPointer pointer = null;
+			int count = 0;
+
+			XMLStreamReader reader = factory.createXMLStreamReader(stream);
+			try {
+				while(reader.hasNext()) {
+					switch(reader.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						String element = reader.getLocalName();
+						if(NAMESPACE.equals(reader.getNamespaceURI())) {
+							if("ServiceInformation".equals(element) && "TSPService".equals(path.peek())) {
+								current = new ServiceEntry(false);
+							} else if("ServiceHistoryInstance".equals(element)) {
+								current = new ServiceEntry(true);
+							} else if("OtherTSLPointer".equals(element)) {
+								pointer = new TSLPointer();
+							}
+						} else {
+							// make sure foreign elements (e.g. ds:X509Certificate) never match
+							element = "{" + reader.getNamespaceURI() + "}" + element;
+						}
+						path.push(element);
+						text.setLength(0);
+						break;
+					case XMLStreamConstants.CHARACTERS:
+					case XMLStreamConstants.CDATA:
+						text.append(reader.getText());
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						String name = path.pop();
+						String parent = path.peek();
+						String value = text.toString().trim();
+						text.setLength(0);
+						if(current != null) {
+							switch(name) {
+							case "ServiceTypeIdentifier":
+								current.type = value;
+								break;
+							case "Name":
+								if("ServiceName".equals(parent) && current.name == null) {
+									current.name = value;
+								}
+								break;
+							case "X509Certificate":
+								if("DigitalId".equals(parent)) {
+									current.certificates.add(pool.submit(new CertificateDecoder(value)));
+									++count;
+								}
+								break;
+							case "ServiceStatus":
+								current.status = value;
+								break;
+							case "StatusStartingTime":
+								current.statusStartingTime = parseDateTime(value);
+								break;
+							case "ServiceInformation":
+							case "ServiceHistoryInstance":
+								entries.add(current);
+								current = null;
+								break;
+							}
+						} else if(pointer != null) {
+							switch(name) {
+							case "TSLLocation":
+								pointer.setLocation(value);
+								break;
+							case "X509Certificate":
+								if("DigitalId".equals(parent)) {
+									try {
+										pointer.addCertificate(new CertificateDecoder(value).call());
+									} catch(CertificateException e) {
+										logger.warn("discarding invalid (unparseable) signing certificate in pointer to TSL");
+									}
+								}
+								break;
+							case "SchemeTerritory":
+								pointer.setTerritory(value);
+								break;
+							case "TSLType":
+								pointer.setType(value);
+								break;
+							case MIME_TYPE:
+								pointer.setMimeType(value);
+								break;
+							case "OtherTSLPointer":
+								list.addPointer(pointer);
+								pointer = null;
+								break;
+							}
+						} else if("SchemeInformation".equals(parent)) {
+							switch(name) {
+							case "TSLSequenceNumber":
+								list.setSequenceNumber(new BigInteger(value));
+								break;
+							case "SchemeTerritory":
+								list.setTerritory(value);
+								break;
+							case "ListIssueDateTime":
+								list.setIssueDate(parseDateTime(value));
+								break;
+							}
+						} else if("NextUpdate".equals(parent) && "dateTime".equals(name)) {
+							list.setNextUpdate(parseDateTime(value));
+						}
+						break;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			logger.trace("TSL read, {} certificates submitted for decoding", count);
+
+			// collect the decoded certificates, in document order
+			for(ServiceEntry entry : entries) {
+				for(Future<X509Certificate> future : entry.certificates) {
+					try {
+						list.addService(new TrustService(future.get(), entry.type, entry.name, entry.status, entry.statusStartingTime, entry.historical));
+					} catch(ExecutionException e) {
+						logger.warn("discarding invalid (unparseable) certificate for service '{}'", entry.name);
+					}
+				}
+			}
+			logger.debug("{} trust services loaded from TSL", list.getServices().size());
+			return list;
+		} catch(XMLStreamException | IllegalArgumentException e) {
+			logger.error("error parsing TSL", e);
+			throw new CertificateLoaderException("error parsing TSL", e);
+		} catch(InterruptedException e) {
+			logger.error("interrupted while decoding TSL certificates", e);
+			Thread.currentThread().interrupt();
+			throw new CertificateLoaderException("interrupted while decoding TSL certificates", e);
+		} finally {
+			if(pool != executor) {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Parses an XML Schema dateTime value.
+	 */
+	private static Date parseDateTime(String value) {
+		return datatypes.newXMLGregorianCalendar(value).toGregorianCalendar().getTime();
+	}
+
+	/**
+	 * The information about a service (or a historical state thereof) being
+	 * collected while parsing.
+	 */
+	private static class ServiceEntry {
+
+		final boolean historical;
+
+		String type;
+
+		String name;
+
+		String status;
+
+		Date statusStartingTime;
+
+		final List<Future<X509Certificate>> certificates = new ArrayList<>();
+
+		ServiceEntry(boolean historical) {
+			this.historical = historical;
+		}
+	}
+
+	/**
+	 * Decodes and parses a BASE64-encoded certificate.
+	 */
+	private static class CertificateDecoder implements Callable<X509Certificate> {
+
+		private final String base64;
+
+		CertificateDecoder(String base64) {
+			this.base64 = base64;
+		}
+
+		@Override
+		public X509Certificate call() throws CertificateException {
+			return (X509Certificate)certificateFactories.get().generateCertificate(new PEMInputStream(base64));
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dihedron.core.License;
+
+/**
+ * A pointer to another TSL, as found in a TSL (e.g. the pointers to the
+ * Member States' trusted lists in the EU List of Trusted Lists).
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class TSLPointer {
+
+	/**
+	 * The MIME type of TSLs in XML format.
+	 */
+	public static final String XML_MIME_TYPE = "application/vnd.etsi.tsl+xml";
+
+	/**
+	 * The URL of the pointed TSL.
+	 */
+	private String location;
+
+	/**
+	 * The country (or territory) of the pointed TSL.
+	 */
+	private String territory;
+
+	/**
+	 * The TSL type URI of the pointed TSL.
+	 */
+	private String type;
+
+	/**
+	 * The MIME type of the pointed TSL.
+	 */
+	private String mimeType;
+
+	/**
+	 * The certificates that may sign the pointed TSL, from the pointer's 
+	 * service digital identities.
+	 */
+	private final List<X509Certificate> certificates = new ArrayList<>();
+
+	/**
+	 * Returns the URL of the pointed TSL.
+	 *
+	 * @return
+	 *   the TSL location.
+	 */
+	public String getLocation() {
+		return location;
+	}
+
+	/**
+	 * Sets the URL of the pointed TSL.
+	 *
+	 * @param location
+	 *   the TSL location.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TSLPointer setLocation(String location) {
+		this.location = location;
+		return this;
+	}
+
+	/**
+	 * Returns the country (or territory) of the pointed TSL.
+	 *
+	 * @return
+	 *   the scheme territory, e.g. "IT".
+	 */
+	public String getTerritory() {
+		return territory;
+	}
+
+	/**
+	 * Sets the country (or territory) of the pointed TSL.
+	 *
+	 * @param territory
+	 *   the scheme territory.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TSLPointer setTerritory(String territory) {
+		this.territory = territory;
+		return this;
+	}
+
+	/**
+	 * Returns the TSL type URI of the pointed TSL.
+	 *
+	 * @return
+	 *   the TSL type.
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Sets the TSL type URI of the pointed TSL.
+	 *
+	 * @param type
+	 *   the TSL type.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TSLPointer setType(String type) {
+		this.type = type;
+		return this;
+	}
+
+	/**
+	 * Returns the MIME type of the pointed TSL.
+	 *
+	 * @return
+	 *   the MIME type.
+	 */
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * Sets the MIME type of the pointed TSL.
+	 *
+	 * @param mimeType
+	 *   the MIME type.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TSLPointer setMimeType(String mimeType) {
+		this.mimeType = mimeType;
+		return this;
+	}
+
+	/**
+	 * Returns the certificates that may sign the pointed TSL, as given by the
+	 * pointer's service digital identities.
+	 *
+	 * @return
+	 *   an unmodifiable view of the signing certificates.
+	 */
+	public List<X509Certificate> getCertificates() {
+		return Collections.unmodifiableList(certificates);
+	}
+
+	/**
+	 * Adds a certificate that may sign the pointed TSL.
+	 *
+	 * @param certificate
+	 *   the signing certificate.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TSLPointer addCertificate(X509Certificate certificate) {
+		certificates.add(certificate);
+		return this;
+	}
+
+	/**
+	 * Returns whether the pointed TSL is in XML format (as opposed to e.g. its
+	 * human readable PDF version); if no MIME type is given, the location is
+	 * used to guess.
+	 *
+	 * @return
+	 *   whether the pointed TSL is in XML format.
+	 */
+	public boolean isXML() {
+		if(mimeType != null) {
+			return XML_MIME_TYPE.equals(mimeType);
+		}
+		return location != null && location.toLowerCase().endsWith(".xml");
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "{ territory: '" + territory + "', location: '" + location + "', mime type: '" + mimeType + "' }";
+	}
+}
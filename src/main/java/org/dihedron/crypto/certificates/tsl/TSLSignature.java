@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dom.DOMStructure;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * Verifies the enveloped XML signature of a TSL against a set of trusted
+ * signing certificates, such as those given for a member list by the pointer
+ * in the List of Trusted Lists, or those configured for the List of Trusted
+ * Lists itself. The signature must be a child of the document element, and
+ * must cover the whole document: the reference to it may only apply the 
+ * enveloped signature transform and canonicalisation, so that no part of the
+ * document (e.g. some trust service entries) can be left out of the digest
+ * while still being parsed as trusted content.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public final class TSLSignature {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(TSLSignature.class);
+
+	/**
+	 * The name of the attribute holding the identifiers of the signed elements.
+	 */
+	private static final String ID = "Id";
+
+	/**
+	 * The transforms allowed on the reference covering the document.
+	 */
+	private static final List<String> TRANSFORMS = Arrays.asList(
+			Transform.ENVELOPED,
+			CanonicalizationMethod.EXCLUSIVE,
+			CanonicalizationMethod.EXCLUSIVE_WITH_COMMENTS,
+			CanonicalizationMethod.INCLUSIVE,
+			CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS,
+			"http://www.w3.org/2006/12/xml-c14n11",
+			"http://www.w3.org/2006/12/xml-c14n11#WithComments");
+
+	/**
+	 * Verifies the signature of the given TSL.
+	 *
+	 * @param document
+	 *   the TSL, as fetched.
+	 * @param trusted
+	 *   the certificates that may have signed the TSL.
+	 * @return
+	 *   the certificate whose key verified the signature.
+	 * @throws CertificateLoaderException
+	 *   if the TSL is not signed, or its signature does not verify against any
+	 *   of the trusted certificates.
+	 */
+	public static X509Certificate verify(byte[] document, Collection<X509Certificate> trusted) throws CertificateLoaderException {
+		if(trusted == null || trusted.isEmpty()) {
+			logger.error("no trusted signing certificates for TSL");
+			throw new CertificateLoaderException("no trusted signing certificates for TSL");
+		}
+		try {
+			Element root = parse(document).getDocumentElement();
+			Element element = null;
+			for(Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+				if(node instanceof Element && XMLSignature.XMLNS.equals(node.getNamespaceURI()) && "Signature".equals(node.getLocalName())) {
+					element = (Element)node;
+				}
+			}
+			if(element == null) {
+				logger.error("TSL is not signed");
+				throw new CertificateLoaderException("TSL is not signed");
+			}
+
+			XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+			if(!coversDocument(factory.unmarshalXMLSignature(new DOMStructure(element)), root)) {
+				logger.error("TSL signature does not cover the whole document");
+				throw new CertificateLoaderException("TSL signature does not cover the whole document");
+			}
+			for(X509Certificate certificate : trusted) {
+				DOMValidateContext context = new DOMValidateContext(certificate.getPublicKey(), element);
+				context.setProperty("org.jcp.xml.dsig.secureValidation", Boolean.TRUE);
+				XMLSignature signature = factory.unmarshalXMLSignature(context);
+				if(signature.validate(context)) {
+					logger.debug("TSL signature verified against '{}'", certificate.getSubjectX500Principal());
+					return certificate;
+				}
+			}
+			logger.error("TSL signature does not verify against any of the {} trusted certificates", trusted.size());
+			throw new CertificateLoaderException("TSL signature does not verify against any of the " + trusted.size() + " trusted certificates");
+		} catch(MarshalException | XMLSignatureException e) {
+			logger.error("invalid TSL signature", e);
+			throw new CertificateLoaderException("invalid TSL signature", e);
+		}
+	}
+
+	/**
+	 * Parses the document, registering the identifiers of the elements that
+	 * signature references may point to.
+	 */
+	private static Document parse(byte[] document) throws CertificateLoaderException {
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			Document parsed = factory.newDocumentBuilder().parse(new ByteArrayInputStream(document));
+			registerIds(parsed.getDocumentElement());
+			return parsed;
+		} catch(ParserConfigurationException | SAXException | IOException e) {
+			logger.error("error parsing TSL", e);
+			throw new CertificateLoaderException("error parsing TSL", e);
+		}
+	}
+
+	/**
+	 * Marks the "Id" attributes of the given element and its descendants as
+	 * identifiers.
+	 */
+	private static void registerIds(Element element) {
+		NamedNodeMap attributes = element.getAttributes();
+		if(attributes.getNamedItem(ID) != null) {
+			element.setIdAttribute(ID, true);
+		}
+		for(Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if(node instanceof Element) {
+				registerIds((Element)node);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether one of the signature's references is the whole document,
+	 * with no transforms other than the enveloped signature one and 
+	 * canonicalisation.
+	 */
+	private static boolean coversDocument(XMLSignature signature, Element root) {
+		String id = root.getAttribute(ID);
+		for(Object object : signature.getSignedInfo().getReferences()) {
+			Reference reference = (Reference)object;
+			String uri = reference.getURI();
+			if(!"".equals(uri) && (id.isEmpty() || !("#" + id).equals(uri))) {
+				continue;
+			}
+			boolean allowed = true;
+			for(Object transform : reference.getTransforms()) {
+				String algorithm = ((Transform)transform).getAlgorithm();
+				if(!TRANSFORMS.contains(algorithm)) {
+					logger.warn("reference to the whole document has disallowed transform '{}'", algorithm);
+					allowed = false;
+				}
+			}
+			if(allowed) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Private constructor, to prevent instantiation.
+	 */
+	private TSLSignature() {
+	}
+}
@@ -0,0 +1,470 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CacheDirectories;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compact binary snapshot of a parsed TSL, so that the XML document need not
+ * be parsed and its certificates BASE64-decoded at every start. The snapshot
+ * consists of a header (describing the source it was built from and the scheme
+ * information), an index of the trust services, the pointers to other TSLs,
+ * and the concatenated DER encodings of the services' certificates; it is read
+ * back in one go by memory-mapping the file. The snapshot is rebuilt whenever
+ * the source TSL changes: local sources (files and classpath resources) are
+ * compared by the SHA-256 digest of the document the snapshot was built from,
+ * remote ones are re-fetched once past their "next update" time. Snapshots 
+ * are only read from (and written to) directories that other users cannot
+ * write to (see {@link CacheDirectories}).
+ * <p>
+ * Trusted lists are also kept in memory once loaded, so that the snapshot is
+ * only read once per JVM, unless the source changes.
+ * </p>
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class TSLSnapshot {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(TSLSnapshot.class);
+
+	/**
+	 * The name of the system property that can be used to override the default
+	 * snapshot directory.
+	 */
+	public static final String SNAPSHOT_DIRECTORY_PROPERTY = "org.dihedron.crypto.tsl.snapshots";
+
+	/**
+	 * The snapshot file magic number ("TSLS").
+	 */
+	private static final int MAGIC = 0x54534C53;
+
+	/**
+	 * The snapshot file format version.
+	 */
+	private static final int VERSION = 4;
+
+	/**
+	 * The snapshot file extension.
+	 */
+	private static final String EXTENSION = ".tsls";
+
+	/**
+	 * The character set used for strings in the snapshot.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The directory where snapshots are stored.
+	 */
+	private final File directory;
+
+	/**
+	 * The trusted lists loaded so far, by URL.
+	 */
+	private final ConcurrentMap<String, Loaded> loaded = new ConcurrentHashMap<>();
+
+	/**
+	 * The algorithm used to digest the source TSL.
+	 */
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/**
+	 * Constructor; snapshots are stored in the directory given by the {@link
+	 * #SNAPSHOT_DIRECTORY_PROPERTY} system property, or in the user's private
+	 * cache directory.
+	 */
+	public TSLSnapshot() {
+		this(System.getProperty(SNAPSHOT_DIRECTORY_PROPERTY) != null ? new File(System.getProperty(SNAPSHOT_DIRECTORY_PROPERTY)) : CacheDirectories.getDefault("tsl"));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param directory
+	 *   the directory where snapshots are stored.
+	 */
+	public TSLSnapshot(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Loads the TSL at the given URL, from its snapshot if it is up to date, or
+	 * by parsing the TSL and (re)building the snapshot otherwise.
+	 *
+	 * @param url
+	 *   the URL of the TSL.
+	 * @return
+	 *   the trusted list.
+	 * @throws IOException
+	 *   if the TSL cannot be read.
+	 * @throws CertificateLoaderException
+	 *   if the TSL cannot be parsed.
+	 */
+	public TrustedList load(URL url) throws IOException, CertificateLoaderException {
+		Source source = new Source(url);
+		Loaded memory = loaded.get(source.url);
+		if(memory != null && source.isUnchanged(memory.source.lastModified, memory.source.length, memory.list.getNextUpdate())) {
+			logger.trace("TSL '{}' already loaded", url);
+			return memory.list;
+		}
+
+		File file = getSnapshotFile(url);
+		if(!CacheDirectories.isPrivate(directory)) {
+			logger.warn("snapshot directory '{}' is missing or writable by other users, ignoring snapshots", directory);
+		} else if(file.isFile()) {
+			try {
+				TrustedList list = read(file, source);
+				if(list != null) {
+					logger.debug("TSL '{}' loaded from snapshot '{}'", url, file);
+					loaded.put(source.url, new Loaded(list, source));
+					return list;
+				}
+				logger.debug("snapshot '{}' is out of date", file);
+			} catch(IOException | CertificateException | RuntimeException e) {
+				logger.warn("invalid snapshot '" + file + "', rebuilding", e);
+			}
+		}
+
+		TrustedList list;
+		try(DigestInputStream stream = new DigestInputStream(url.openStream(), newDigest())) {
+			// the parser may stop (and close the stream) before the end of the 
+			// document, whereas the digest must cover all of it
+			list = new TSLParser().parse(new FilterInputStream(stream) {
+				@Override
+				public void close() {
+				}
+			});
+			byte[] buffer = new byte[4096];
+			while(stream.read(buffer) != -1) {
+			}
+			source.digest = stream.getMessageDigest().digest();
+		}
+		try {
+			write(list, source, file);
+			logger.debug("snapshot of TSL '{}' written to '{}'", url, file);
+		} catch(IOException | CertificateEncodingException e) {
+			logger.warn("error writing snapshot of TSL '" + url + "'", e);
+		}
+		loaded.put(source.url, new Loaded(list, source));
+		return list;
+	}
+
+	/**
+	 * Returns a new digest for the source TSL.
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM + " not available", e);
+		}
+	}
+
+	/**
+	 * Returns the snapshot file for the given TSL URL.
+	 */
+	private File getSnapshotFile(URL url) {
+		try {
+			return new File(directory, Hex.toHexString(MessageDigest.getInstance("SHA-1").digest(url.toString().getBytes(UTF8))) + EXTENSION);
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+	}
+
+	/**
+	 * Writes the snapshot.
+	 */
+	private static void write(TrustedList list, Source source, File file) throws IOException, CertificateEncodingException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		CacheDirectories.create(parent);
+
+		// encode each distinct certificate once, even if shared by several services
+		List<byte[]> encodings = new ArrayList<>();
+		Map<X509Certificate, Integer> indexes = new HashMap<>();
+		for(TrustService service : list.getServices()) {
+			if(!indexes.containsKey(service.getCertificate())) {
+				indexes.put(service.getCertificate(), encodings.size());
+				encodings.add(service.getCertificate().getEncoded());
+			}
+		}
+
+		File temporary = File.createTempFile(file.getName(), ".tmp", parent);
+		try {
+			try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				writeString(output, source.url);
+				output.writeInt(source.digest.length);
+				output.write(source.digest);
+				writeString(output, list.getSequenceNumber() != null ? list.getSequenceNumber().toString() : null);
+				writeString(output, list.getTerritory());
+				writeDate(output, list.getIssueDate());
+				writeDate(output, list.getNextUpdate());
+
+				// the certificates index
+				output.writeInt(encodings.size());
+				for(byte[] encoding : encodings) {
+					output.writeInt(encoding.length);
+				}
+
+				// the services index
+				output.writeInt(list.getServices().size());
+				for(TrustService service : list.getServices()) {
+					output.writeInt(indexes.get(service.getCertificate()));
+					writeString(output, service.getType());
+					writeString(output, service.getName());
+					writeString(output, service.getStatus());
+					writeDate(output, service.getStatusStartingTime());
+					output.writeBoolean(service.isHistorical());
+				}
+
+				// the pointers to other TSLs
+				output.writeInt(list.getPointers().size());
+				for(TSLPointer pointer : list.getPointers()) {
+					writeString(output, pointer.getLocation());
+					writeString(output, pointer.getTerritory());
+					writeString(output, pointer.getType());
+					writeString(output, pointer.getMimeType());
+					output.writeInt(pointer.getCertificates().size());
+					for(X509Certificate certificate : pointer.getCertificates()) {
+						byte[] encoding = certificate.getEncoded();
+						output.writeInt(encoding.length);
+						output.write(encoding);
+					}
+				}
+
+				// the DER bundle
+				for(byte[] encoding : encodings) {
+					output.write(encoding);
+				}
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary.toPath());
+		}
+	}
+
+	/**
+	 * Reads the snapshot, returning null if it is out of date with respect to
+	 * the given source.
+	 */
+	private static TrustedList read(File file, Source source) throws IOException, CertificateException {
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("not a TSL snapshot, or unsupported version");
+			}
+			String url = readString(buffer);
+			byte[] digest = new byte[buffer.getInt()];
+			buffer.get(digest);
+			TrustedList list = new TrustedList();
+			String sequenceNumber = readString(buffer);
+			list.setSequenceNumber(sequenceNumber != null ? new BigInteger(sequenceNumber) : null);
+			list.setTerritory(readString(buffer));
+			list.setIssueDate(readDate(buffer));
+			list.setNextUpdate(readDate(buffer));
+			if(!source.url.equals(url) || !source.isUnchanged(digest, list.getNextUpdate())) {
+				return null;
+			}
+
+			int[] lengths = new int[buffer.getInt()];
+			for(int i = 0; i < lengths.length; ++i) {
+				lengths[i] = buffer.getInt();
+			}
+			int services = buffer.getInt();
+			int[] certificates = new int[services];
+			String[][] strings = new String[services][];
+			Date[] times = new Date[services];
+			boolean[] historical = new boolean[services];
+			for(int i = 0; i < services; ++i) {
+				certificates[i] = buffer.getInt();
+				strings[i] = new String[] { readString(buffer), readString(buffer), readString(buffer) };
+				times[i] = readDate(buffer);
+				historical[i] = buffer.get() != 0;
+			}
+
+			CertificateFactory factory = CertificateFactory.getInstance("X.509");
+			for(int i = 0, pointers = buffer.getInt(); i < pointers; ++i) {
+				TSLPointer pointer = new TSLPointer().setLocation(readString(buffer)).setTerritory(readString(buffer)).setType(readString(buffer)).setMimeType(readString(buffer));
+				for(int j = 0, signers = buffer.getInt(); j < signers; ++j) {
+					byte[] encoding = new byte[buffer.getInt()];
+					buffer.get(encoding);
+					pointer.addCertificate((X509Certificate)factory.generateCertificate(new ByteArrayInputStream(encoding)));
+				}
+				list.addPointer(pointer);
+			}
+
+			// now decode the DER bundle, with a single sequential pass
+			X509Certificate[] decoded = new X509Certificate[lengths.length];
+			for(int i = 0; i < lengths.length; ++i) {
+				byte[] encoding = new byte[lengths[i]];
+				buffer.get(encoding);
+				decoded[i] = (X509Certificate)factory.generateCertificate(new ByteArrayInputStream(encoding));
+			}
+			for(int i = 0; i < services; ++i) {
+				list.addService(new TrustService(decoded[certificates[i]], strings[i][0], strings[i][1], strings[i][2], times[i], historical[i]));
+			}
+			return list;
+		}
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		if(value == null) {
+			output.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(UTF8);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeDate(DataOutputStream output, Date value) throws IOException {
+		output.writeLong(value != null ? value.getTime() : Long.MIN_VALUE);
+	}
+
+	private static Date readDate(ByteBuffer buffer) {
+		long value = buffer.getLong();
+		return value != Long.MIN_VALUE ? new Date(value) : null;
+	}
+
+	/**
+	 * A trusted list in memory, along with the version of its source.
+	 */
+	private static class Loaded {
+
+		final TrustedList list;
+
+		final Source source;
+
+		Loaded(TrustedList list, Source source) {
+			this.list = list;
+			this.source = source;
+		}
+	}
+
+	/**
+	 * The information identifying the version of the source TSL.
+	 */
+	private static class Source {
+
+		final URL location;
+
+		final String url;
+
+		final boolean local;
+
+		final long lastModified;
+
+		final long length;
+
+		/**
+		 * The digest of the source document, once computed.
+		 */
+		byte[] digest;
+
+		Source(URL url) throws IOException {
+			this.location = url;
+			this.url = url.toString();
+			this.local = "file".equals(url.getProtocol()) || "jar".equals(url.getProtocol());
+			if("file".equals(url.getProtocol())) {
+				// a URLConnection on a file would open (and leak) an input stream
+				File file;
+				try {
+					file = new File(url.toURI());
+				} catch(URISyntaxException | IllegalArgumentException e) {
+					file = new File(url.getPath());
+				}
+				this.lastModified = file.lastModified();
+				this.length = file.length();
+			} else if(local) {
+				URLConnection connection = url.openConnection();
+				this.lastModified = connection.getLastModified();
+				this.length = connection.getContentLengthLong();
+			} else {
+				this.lastModified = -1;
+				this.length = -1;
+			}
+		}
+
+		/**
+		 * Returns whether the trusted list loaded from a source with the given
+		 * characteristics is still up to date.
+		 */
+		boolean isUnchanged(long lastModified, long length, Date nextUpdate) {
+			if(local) {
+				return this.lastModified == lastModified && this.length == length;
+			}
+			return nextUpdate != null && nextUpdate.after(new Date());
+		}
+
+		/**
+		 * Returns whether the snapshot, built from a source document with the 
+		 * given digest, is still up to date; local sources are digested again.
+		 */
+		boolean isUnchanged(byte[] digest, Date nextUpdate) throws IOException {
+			if(local) {
+				try(DigestInputStream stream = new DigestInputStream(location.openStream(), newDigest())) {
+					byte[] buffer = new byte[4096];
+					while(stream.read(buffer) != -1) {
+					}
+					this.digest = stream.getMessageDigest().digest();
+				}
+				return MessageDigest.isEqual(this.digest, digest);
+			}
+			return nextUpdate != null && nextUpdate.after(new Date());
+		}
+	}
+}
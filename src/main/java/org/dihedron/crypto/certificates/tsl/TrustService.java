@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.dihedron.core.License;
+
+/**
+ * A trust service (or a historical state thereof) as listed in a TSL, along
+ * with the certificate identifying it.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class TrustService {
+
+	/**
+	 * The certificate of the service's digital identity.
+	 */
+	private final X509Certificate certificate;
+
+	/**
+	 * The service type identifier URI (e.g. "http://uri.etsi.org/TrstSvc/Svctype/CA/QC").
+	 */
+	private final String type;
+
+	/**
+	 * The service name.
+	 */
+	private final String name;
+
+	/**
+	 * The service status URI (e.g. "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/accredited").
+	 */
+	private final String status;
+
+	/**
+	 * The time since when the status applies.
+	 */
+	private final Date statusStartingTime;
+
+	/**
+	 * Whether this is a historical state of the service, taken from its history.
+	 */
+	private final boolean historical;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param certificate
+	 *   the certificate of the service's digital identity.
+	 * @param type
+	 *   the service type identifier URI.
+	 * @param name
+	 *   the service name.
+	 * @param status
+	 *   the service status URI.
+	 * @param statusStartingTime
+	 *   the time since when the status applies.
+	 * @param historical
+	 *   whether this is a historical state of the service.
+	 */
+	public TrustService(X509Certificate certificate, String type, String name, String status, Date statusStartingTime, boolean historical) {
+		this.certificate = certificate;
+		this.type = type;
+		this.name = name;
+		this.status = status;
+		this.statusStartingTime = statusStartingTime;
+		this.historical = historical;
+	}
+
+	/**
+	 * Returns the certificate of the service's digital identity.
+	 *
+	 * @return
+	 *   the certificate.
+	 */
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	/**
+	 * Returns the service type identifier URI.
+	 *
+	 * @return
+	 *   the service type identifier.
+	 */
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the service name.
+	 *
+	 * @return
+	 *   the service name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the service status URI.
+	 *
+	 * @return
+	 *   the service status.
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the time since when the status applies.
+	 *
+	 * @return
+	 *   the status starting time, or null if not available.
+	 */
+	public Date getStatusStartingTime() {
+		return statusStartingTime;
+	}
+
+	/**
+	 * Returns whether this is a historical state of the service.
+	 *
+	 * @return
+	 *   whether this entry comes from the service history.
+	 */
+	public boolean isHistorical() {
+		return historical;
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "{ name: '" + name + "', type: '" + type + "', status: '" + status + "'" + (historical ? ", historical" : "") + " }";
+	}
+}
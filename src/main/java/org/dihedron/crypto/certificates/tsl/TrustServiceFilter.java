@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.dihedron.core.License;
+
+/**
+ * Selects the trust services of a TSL by their type and status, so that only
+ * the relevant certificates are used as trust anchors (e.g. only the granted
+ * qualified CAs when validating a signature, or only the time stamping
+ * authorities when validating a time stamp), thus reducing the search space
+ * of path building. Unless otherwise requested, historical states of services
+ * are left out.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class TrustServiceFilter {
+
+	/**
+	 * The type of CAs issuing qualified certificates.
+	 */
+	public static final String TYPE_CA_QC = "http://uri.etsi.org/TrstSvc/Svctype/CA/QC";
+
+	/**
+	 * The type of CAs issuing public key (non qualified) certificates.
+	 */
+	public static final String TYPE_CA_PKC = "http://uri.etsi.org/TrstSvc/Svctype/CA/PKC";
+
+	/**
+	 * The type of OCSP responders for qualified certificates.
+	 */
+	public static final String TYPE_OCSP_QC = "http://uri.etsi.org/TrstSvc/Svctype/Certstatus/OCSP/QC";
+
+	/**
+	 * The type of CRL issuers for qualified certificates.
+	 */
+	public static final String TYPE_CRL_QC = "http://uri.etsi.org/TrstSvc/Svctype/Certstatus/CRL/QC";
+
+	/**
+	 * The type of time stamping authorities.
+	 */
+	public static final String TYPE_TSA = "http://uri.etsi.org/TrstSvc/Svctype/TSA";
+
+	/**
+	 * The type of time stamping authorities supporting qualified certificates.
+	 */
+	public static final String TYPE_TSA_TSS_QC = "http://uri.etsi.org/TrstSvc/Svctype/TSA/TSS-QC";
+
+	/**
+	 * The type of time stamping authorities supporting advanced electronic
+	 * signatures and qualified electronic signatures.
+	 */
+	public static final String TYPE_TSA_TSS_ADES_QC_QES = "http://uri.etsi.org/TrstSvc/Svctype/TSA/TSS-AdESQCandQES";
+
+	/**
+	 * The type of qualified time stamping authorities (eIDAS).
+	 */
+	public static final String TYPE_TSA_QTST = "http://uri.etsi.org/TrstSvc/Svctype/TSA/QTST";
+
+	/**
+	 * The status of accredited services.
+	 */
+	public static final String STATUS_ACCREDITED = "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/accredited";
+
+	/**
+	 * The status of services under supervision.
+	 */
+	public static final String STATUS_UNDER_SUPERVISION = "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/undersupervision";
+
+	/**
+	 * The status of services whose supervision is being ceased.
+	 */
+	public static final String STATUS_SUPERVISION_IN_CESSATION = "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/supervisionincessation";
+
+	/**
+	 * The status of services whose supervision has ceased.
+	 */
+	public static final String STATUS_SUPERVISION_CEASED = "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/supervisionceased";
+
+	/**
+	 * The status of services whose supervision has been revoked.
+	 */
+	public static final String STATUS_SUPERVISION_REVOKED = "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/supervisionrevoked";
+
+	/**
+	 * The status of services whose accreditation has ceased.
+	 */
+	public static final String STATUS_ACCREDITATION_CEASED = "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/accreditationceased";
+
+	/**
+	 * The status of services whose accreditation has been revoked.
+	 */
+	public static final String STATUS_ACCREDITATION_REVOKED = "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/accreditationrevoked";
+
+	/**
+	 * The status of granted services (eIDAS).
+	 */
+	public static final String STATUS_GRANTED = "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/granted";
+
+	/**
+	 * The status of services recognised at national level (eIDAS).
+	 */
+	public static final String STATUS_RECOGNISED_AT_NATIONAL_LEVEL = "http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/recognisedatnationallevel";
+
+	/**
+	 * The statuses under which a service is currently trusted.
+	 */
+	public static final String[] GRANTED_STATUSES = {
+		STATUS_ACCREDITED,
+		STATUS_UNDER_SUPERVISION,
+		STATUS_SUPERVISION_IN_CESSATION,
+		STATUS_GRANTED,
+		STATUS_RECOGNISED_AT_NATIONAL_LEVEL
+	};
+
+	/**
+	 * The types of time stamping authorities.
+	 */
+	public static final String[] TSA_TYPES = {
+		TYPE_TSA,
+		TYPE_TSA_TSS_QC,
+		TYPE_TSA_TSS_ADES_QC_QES,
+		TYPE_TSA_QTST
+	};
+
+	/**
+	 * The accepted service types; if empty, any type is accepted.
+	 */
+	private final Set<String> types = new HashSet<>();
+
+	/**
+	 * The accepted service statuses; if empty, any status is accepted.
+	 */
+	private final Set<String> statuses = new HashSet<>();
+
+	/**
+	 * Whether historical states of services are accepted too.
+	 */
+	private boolean historical = false;
+
+	/**
+	 * Returns a filter accepting only the currently granted CAs issuing
+	 * qualified certificates.
+	 *
+	 * @return
+	 *   a new filter.
+	 */
+	public static TrustServiceFilter grantedQualifiedCAs() {
+		return new TrustServiceFilter().addTypes(TYPE_CA_QC).addStatuses(GRANTED_STATUSES);
+	}
+
+	/**
+	 * Returns a filter accepting only the currently granted time stamping
+	 * authorities.
+	 *
+	 * @return
+	 *   a new filter.
+	 */
+	public static TrustServiceFilter grantedTimeStampingAuthorities() {
+		return new TrustServiceFilter().addTypes(TSA_TYPES).addStatuses(GRANTED_STATUSES);
+	}
+
+	/**
+	 * Adds the given service types to those accepted.
+	 *
+	 * @param types
+	 *   the service type identifier URIs.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TrustServiceFilter addTypes(String... types) {
+		this.types.addAll(Arrays.asList(types));
+		return this;
+	}
+
+	/**
+	 * Adds the given service statuses to those accepted.
+	 *
+	 * @param statuses
+	 *   the service status URIs.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TrustServiceFilter addStatuses(String... statuses) {
+		this.statuses.addAll(Arrays.asList(statuses));
+		return this;
+	}
+
+	/**
+	 * Sets whether historical states of services are accepted too, e.g. to
+	 * validate signatures created when a now withdrawn service was granted.
+	 *
+	 * @param historical
+	 *   whether historical states of services are accepted.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TrustServiceFilter setIncludeHistorical(boolean historical) {
+		this.historical = historical;
+		return this;
+	}
+
+	/**
+	 * Returns whether historical states of services are accepted too.
+	 *
+	 * @return
+	 *   whether historical states of services are accepted.
+	 */
+	public boolean isIncludeHistorical() {
+		return historical;
+	}
+
+	/**
+	 * Returns whether the given service matches the filter.
+	 *
+	 * @param service
+	 *   the trust service.
+	 * @return
+	 *   whether the service is accepted.
+	 */
+	public boolean accept(TrustService service) {
+		if(service.isHistorical() && !historical) {
+			return false;
+		}
+		if(!types.isEmpty() && !types.contains(service.getType())) {
+			return false;
+		}
+		return statuses.isEmpty() || statuses.contains(service.getStatus());
+	}
+
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "{ types: " + types + ", statuses: " + statuses + ", historical: " + historical + " }";
+	}
+}
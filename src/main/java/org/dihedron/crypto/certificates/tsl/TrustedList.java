@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.dihedron.core.License;
+
+/**
+ * The contents of a TSL, as relevant to certificate validation: the scheme
+ * information and the trust services.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class TrustedList {
+
+	/**
+	 * The TSL sequence number.
+	 */
+	private BigInteger sequenceNumber;
+
+	/**
+	 * The country (or territory) the scheme refers to.
+	 */
+	private String territory;
+
+	/**
+	 * The time the TSL was issued.
+	 */
+	private Date issueDate;
+
+	/**
+	 * The time by which the next TSL will be issued.
+	 */
+	private Date nextUpdate;
+
+	/**
+	 * The trust services, both current and historical.
+	 */
+	private final List<TrustService> services = new ArrayList<>();
+
+	/**
+	 * The pointers to other TSLs.
+	 */
+	private final List<TSLPointer> pointers = new ArrayList<>();
+
+	/**
+	 * Returns the TSL sequence number.
+	 *
+	 * @return
+	 *   the sequence number, or null if not available.
+	 */
+	public BigInteger getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	/**
+	 * Sets the TSL sequence number.
+	 *
+	 * @param sequenceNumber
+	 *   the sequence number.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TrustedList setSequenceNumber(BigInteger sequenceNumber) {
+		this.sequenceNumber = sequenceNumber;
+		return this;
+	}
+
+	/**
+	 * Returns the country (or territory) the scheme refers to.
+	 *
+	 * @return
+	 *   the scheme territory, e.g. "IT".
+	 */
+	public String getTerritory() {
+		return territory;
+	}
+
+	/**
+	 * Sets the country (or territory) the scheme refers to.
+	 *
+	 * @param territory
+	 *   the scheme territory.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TrustedList setTerritory(String territory) {
+		this.territory = territory;
+		return this;
+	}
+
+	/**
+	 * Returns the time the TSL was issued.
+	 *
+	 * @return
+	 *   the issue time, or null if not available.
+	 */
+	public Date getIssueDate() {
+		return issueDate;
+	}
+
+	/**
+	 * Sets the time the TSL was issued.
+	 *
+	 * @param issueDate
+	 *   the issue time.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TrustedList setIssueDate(Date issueDate) {
+		this.issueDate = issueDate;
+		return this;
+	}
+
+	/**
+	 * Returns the time by which the next TSL will be issued.
+	 *
+	 * @return
+	 *   the next update time, or null if the scheme has been closed.
+	 */
+	public Date getNextUpdate() {
+		return nextUpdate;
+	}
+
+	/**
+	 * Sets the time by which the next TSL will be issued.
+	 *
+	 * @param nextUpdate
+	 *   the next update time.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TrustedList setNextUpdate(Date nextUpdate) {
+		this.nextUpdate = nextUpdate;
+		return this;
+	}
+
+	/**
+	 * Adds a trust service.
+	 *
+	 * @param service
+	 *   the trust service to add.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TrustedList addService(TrustService service) {
+		services.add(service);
+		return this;
+	}
+
+	/**
+	 * Returns the trust services, both current and historical.
+	 *
+	 * @return
+	 *   the trust services.
+	 */
+	public List<TrustService> getServices() {
+		return Collections.unmodifiableList(services);
+	}
+
+	/**
+	 * Adds a pointer to another TSL.
+	 *
+	 * @param pointer
+	 *   the pointer to add.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public TrustedList addPointer(TSLPointer pointer) {
+		pointers.add(pointer);
+		return this;
+	}
+
+	/**
+	 * Returns the pointers to other TSLs; in a list of trusted lists, these are
+	 * the pointers to the federated lists.
+	 *
+	 * @return
+	 *   the pointers to other TSLs.
+	 */
+	public List<TSLPointer> getPointers() {
+		return Collections.unmodifiableList(pointers);
+	}
+
+	/**
+	 * Returns the distinct certificates of all trust services.
+	 *
+	 * @return
+	 *   the certificates, in document order.
+	 */
+	public List<X509Certificate> getCertificates() {
+		return getCertificates(null);
+	}
+
+	/**
+	 * Returns the distinct certificates of the trust services matching the 
+	 * given filter.
+	 *
+	 * @param filter
+	 *   the filter on service type and status; if null, all services (current
+	 *   and historical) are taken.
+	 * @return
+	 *   the certificates, in document order.
+	 */
+	public List<X509Certificate> getCertificates(TrustServiceFilter filter) {
+		Set<X509Certificate> certificates = new LinkedHashSet<>();
+		for(TrustService service : services) {
+			if(filter == null || filter.accept(service)) {
+				certificates.add(service.getCertificate());
+			}
+		}
+		return new ArrayList<>(certificates);
+	}
+}
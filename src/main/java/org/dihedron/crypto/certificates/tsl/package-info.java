@@ -0,0 +1,11 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+
+/**
+ * The package containing classes supporting the parsing of ETSI TS 119 612 
+ * Trust-service Status Lists (TSLs), as published by the EU Member States.
+ * 
+ * @author Andrea Funto'
+ */
+package org.dihedron.crypto.certificates.tsl;
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.constants;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.cms.CMSAlgorithm;
+import org.dihedron.core.License;
+
+/**
+ * An enumeration of supported symmetric algorithms for the encryption of the
+ * content of CMS envelopes; CBC modes produce EnvelopedData (RFC 5652), GCM
+ * modes produce AuthEnvelopedData (RFC 5083, RFC 5084), which also protects the
+ * integrity of the content but is not understood by all readers.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public enum ContentEncryptionAlgorithm {
+
+	/**
+	 * Triple DES in CBC mode; only for compatibility with legacy readers, it is
+	 * much slower than AES.
+	 */
+	DES_EDE3_CBC("3des-cbc", "DESede/CBC/PKCS5Padding", CMSAlgorithm.DES_EDE3_CBC, 192, false),
+
+	/**
+	 * AES with a 128 bits key, in CBC mode.
+	 */
+	AES128_CBC("aes128-cbc", "AES/CBC/PKCS5Padding", CMSAlgorithm.AES128_CBC, 128, false),
+
+	/**
+	 * AES with a 256 bits key, in CBC mode.
+	 */
+	AES256_CBC("aes256-cbc", "AES/CBC/PKCS5Padding", CMSAlgorithm.AES256_CBC, 256, false),
+
+	/**
+	 * AES with a 128 bits key, in GCM (authenticated) mode.
+	 */
+	AES128_GCM("aes128-gcm", "AES/GCM/NoPadding", NISTObjectIdentifiers.id_aes128_GCM, 128, true),
+
+	/**
+	 * AES with a 256 bits key, in GCM (authenticated) mode.
+	 */
+	AES256_GCM("aes256-gcm", "AES/GCM/NoPadding", NISTObjectIdentifiers.id_aes256_GCM, 256, true);
+
+	/**
+	 * The default algorithm: AES-256 in CBC mode, which is fast wherever AES is
+	 * implemented in hardware and can be read by any S/MIME or PKCS#7 reader.
+	 */
+	public static final ContentEncryptionAlgorithm DEFAULT = AES256_CBC;
+
+	/**
+	 * Factory method: returns the algorithm corresponding to the given text
+	 * description.
+	 *
+	 * @param description
+	 *   the algorithm description, e.g. "aes256-gcm".
+	 * @return
+	 *   the algorithm, or null if none found corresponding to the given
+	 *   description.
+	 */
+	public static ContentEncryptionAlgorithm fromDescription(String description) {
+		for (ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			if(algorithm.getDescription().equalsIgnoreCase(description)) {
+				return algorithm;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Factory method: returns the algorithm corresponding to the given ASN.1
+	 * object identifier.
+	 *
+	 * @param oid
+	 *   the algorithm object identifier.
+	 * @return
+	 *   the algorithm, or null if none found corresponding to the given
+	 *   identifier.
+	 */
+	public static ContentEncryptionAlgorithm fromOID(ASN1ObjectIdentifier oid) {
+		for (ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			if(algorithm.getOID().equals(oid)) {
+				return algorithm;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the text description of the algorithm.
+	 *
+	 * @return
+	 *   the text description of the algorithm.
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * Returns the JCE transformation of the algorithm, e.g. "AES/CBC/PKCS5Padding".
+	 *
+	 * @return
+	 *   the JCE transformation of the algorithm.
+	 */
+	public String getTransformation() {
+		return transformation;
+	}
+
+	/**
+	 * Returns the ASN.1 object identifier of the algorithm.
+	 *
+	 * @return
+	 *   the object identifier of the algorithm.
+	 */
+	public ASN1ObjectIdentifier getOID() {
+		return oid;
+	}
+
+	/**
+	 * Returns the size of the key, in bits.
+	 *
+	 * @return
+	 *   the size of the key.
+	 */
+	public int getKeySize() {
+		return keySize;
+	}
+
+	/**
+	 * Returns whether the algorithm is an authenticated encryption mode, whose
+	 * output is AuthEnvelopedData rather than EnvelopedData.
+	 *
+	 * @return
+	 *   whether the algorithm is authenticated.
+	 */
+	public boolean isAuthenticated() {
+		return authenticated;
+	}
+
+	/**
+	 * Formats the object as a string.
+	 */
+	@Override
+	public String toString() {
+		return description + " (" + oid + ")";
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param description
+	 *   the algorithm description.
+	 * @param transformation
+	 *   the JCE transformation.
+	 * @param oid
+	 *   the algorithm ASN.1 object identifier.
+	 * @param keySize
+	 *   the size of the key, in bits.
+	 * @param authenticated
+	 *   whether the algorithm is an authenticated encryption mode.
+	 */
+	private ContentEncryptionAlgorithm(String description, String transformation, ASN1ObjectIdentifier oid, int keySize, boolean authenticated) {
+		this.description = description;
+		this.transformation = transformation;
+		this.oid = oid;
+		this.keySize = keySize;
+		this.authenticated = authenticated;
+	}
+
+	/**
+	 * The algorithm textual description.
+	 */
+	private String description;
+
+	/**
+	 * The JCE transformation.
+	 */
+	private String transformation;
+
+	/**
+	 * The algorithm object identifier.
+	 */
+	private ASN1ObjectIdentifier oid;
+
+	/**
+	 * The size of the key, in bits.
+	 */
+	private int keySize;
+
+	/**
+	 * Whether the algorithm is an authenticated encryption mode.
+	 */
+	private boolean authenticated;
+}
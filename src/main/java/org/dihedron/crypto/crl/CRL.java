@@ -6,8 +6,10 @@ package org.dihedron.crypto.crl;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.security.cert.CRLException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
@@ -16,6 +18,7 @@ import java.security.cert.X509CRL;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.Collection;
 import java.util.List;
 
 import javax.naming.Context;
@@ -26,6 +29,7 @@ import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
 
 import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Integer;
 import org.bouncycastle.asn1.DERIA5String;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.x509.CRLDistPoint;
@@ -34,7 +38,9 @@ import org.bouncycastle.asn1.x509.DistributionPointName;
 import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.asn1.x509.GeneralName;
 import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
 import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateProfile;
 import org.dihedron.crypto.exceptions.CertificateVerificationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,6 +62,21 @@ public class CRL {
 	 */
 	private static final Logger logger = LoggerFactory.getLogger(CRL.class);
 	
+	/**
+	 * The cache of (base and delta) CRLs, shared by all revocation checks.
+	 */
+	private static final CRLCache cache = new CRLCache();
+	
+	/**
+	 * The connection timeout for LDAP distribution points, in milliseconds.
+	 */
+	private static final int LDAP_CONNECT_TIMEOUT = 5000;
+	
+	/**
+	 * The read timeout for LDAP distribution points, in milliseconds.
+	 */
+	private static final int LDAP_READ_TIMEOUT = 30000;
+	
 	/**
 	 * Downloads the CRL from the given URL. Supports http, https, ftp and ldap 
 	 * based URLs.
@@ -80,18 +101,24 @@ public class CRL {
 		Hashtable<String, String> env = new Hashtable<String, String>();
 		env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
 		env.put(Context.PROVIDER_URL, ldapURL);
+		env.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(LDAP_CONNECT_TIMEOUT));
+		env.put("com.sun.jndi.ldap.read.timeout", String.valueOf(LDAP_READ_TIMEOUT));
 
 		DirContext ctx = new InitialDirContext(env);
-		Attributes attributes = ctx.getAttributes("");
-		Attribute attribute = attributes.get("certificateRevocationList;binary");
-		byte[] value = (byte[]) attribute.get();
-		if ((value == null) || (value.length == 0)) {
-			throw new CertificateVerificationException("error downloading CRL from '" + ldapURL + "'");
-		} else {
-			try(InputStream inStream = new ByteArrayInputStream(value)) {
-				CertificateFactory cf = CertificateFactory.getInstance("X.509");
-				return (X509CRL) cf.generateCRL(inStream);
+		try {
+			Attributes attributes = ctx.getAttributes("");
+			Attribute attribute = attributes.get("certificateRevocationList;binary");
+			byte[] value = attribute != null ? (byte[]) attribute.get() : null;
+			if ((value == null) || (value.length == 0)) {
+				throw new CertificateVerificationException("error downloading CRL from '" + ldapURL + "'");
+			} else {
+				try(InputStream inStream = new ByteArrayInputStream(value)) {
+					CertificateFactory cf = CertificateFactory.getInstance("X.509");
+					return (X509CRL) cf.generateCRL(inStream);
+				}
 			}
+		} finally {
+			ctx.close();
 		}
 	}
 
@@ -116,7 +143,11 @@ public class CRL {
 	 *   the certificate to be checked for revocation.
 	 * @throws CertificateVerificationException
 	 *   if the certificate is revoked.
+	 * @deprecated
+	 *   the CRLs are neither cached nor verified against the certificate issuer; 
+	 *   use {@link #verifyCertificateCRLs(X509Certificate, X509Certificate)} instead.
 	 */
+	@Deprecated
 	public static void verifyCertificateCRLs(X509Certificate certificate) throws CertificateVerificationException {
 		try {
 			logger.trace("verifying certificate {}...", certificate.getSubjectX500Principal());
@@ -141,7 +172,62 @@ public class CRL {
 			throw new CertificateVerificationException("Cannot verify CRL for certificate: " + certificate.getSubjectX500Principal(), e);
 		}
 	}
-
+	
+	/**
+	 * Extracts the CRL distribution points from the certificate (if available)
+	 * and checks the certificate revocation status against the CRLs coming from
+	 * the distribution points. Supports HTTP, HTTPS, FTP and LDAP based URLs.
+	 * CRLs are verified against the issuer certificate and kept in a shared 
+	 * cache and, whenever the certificate or the base CRL advertise delta CRLs 
+	 * (through the "Freshest CRL" extension), the cache is kept up to date by 
+	 * downloading the (much smaller) delta CRLs instead of the full base CRLs.
+	 * 
+	 * @param certificate
+	 *   the certificate to be checked for revocation.
+	 * @param issuer
+	 *   the certificate of the issuer, whose key must have signed the CRLs.
+	 * @throws CertificateVerificationException
+	 *   if the certificate is revoked.
+	 */
+	public static void verifyCertificateCRLs(X509Certificate certificate, X509Certificate issuer) throws CertificateVerificationException {
+		logger.trace("verifying certificate {}...", certificate.getSubjectX500Principal());
+		CertificateProfile profile = CertificateProfile.of(certificate);
+		if(!profile.hasValidRevocationInformation()) {
+			logger.error("error parsing certificate to get distribution points");
+			throw new CertificateVerificationException("Cannot verify CRL for certificate: " + certificate.getSubjectX500Principal());
+		}
+		List<String> distributionPoints = profile.getCrlDistributionPoints();
+		List<String> deltaDistributionPoints = profile.getFreshestCrlDistributionPoints();
+		for (String distributionPoint : distributionPoints) {
+			try {
+				logger.trace("... checking distribution point '{}'...", distributionPoint);
+				CachedCRL crl = cache.getCRL(distributionPoint, deltaDistributionPoints, issuer);
+				logger.trace("... CRL available (delta CRL {})", crl.hasDelta() ? "merged" : "not available");
+				if(!isInScope(crl.getBase(), certificate, distributionPoint)) {
+					logger.warn("... CRL at '{}' does not cover the certificate", distributionPoint);
+					continue;
+				}
+				if (crl.isRevoked(certificate)) {
+					logger.info("certificate is revoked by CRL at '{}'", distributionPoint);
+					throw new CertificateVerificationException("The certificate is revoked by CRL: " + distributionPoint);
+				} 
+				logger.trace("... certificate is not revoked by CRL at '{}'", distributionPoint);
+			} catch(IOException | CertificateException | NamingException | CRLException e) {
+				logger.warn("... error verifying against distribution point '{}'", distributionPoint);
+				// let's try with the next one
+			}
+		}
+	}
+	
+	/**
+	 * Returns the cache of CRLs shared by all revocation checks.
+	 * 
+	 * @return
+	 *   the shared CRL cache.
+	 */
+	public static CRLCache getCache() {
+		return cache;
+	}
 
 	/**
 	 * Extracts all CRL distribution point URLs from the "CRL Distribution Point" 
@@ -149,10 +235,163 @@ public class CRL {
 	 * unavailable, returns an empty list.
 	 */
 	public static List<String> getCrlDistributionPoints(X509Certificate certificate) throws CertificateParsingException, IOException {
+		return getDistributionPointURLs(certificate.getExtensionValue(Extension.cRLDistributionPoints.getId()));
+	}
+	
+	/**
+	 * Extracts all delta CRL distribution point URLs from the "Freshest CRL"
+	 * extension in a X.509 certificate. If the extension is unavailable, returns
+	 * an empty list.
+	 */
+	public static List<String> getFreshestCrlDistributionPoints(X509Certificate certificate) throws IOException {
+		return getDistributionPointURLs(certificate.getExtensionValue(Extension.freshestCRL.getId()));
+	}
+	
+	/**
+	 * Extracts all delta CRL distribution point URLs from the "Freshest CRL"
+	 * extension in a (base) CRL. If the extension is unavailable, returns an 
+	 * empty list.
+	 */
+	public static List<String> getFreshestCrlDistributionPoints(X509CRL crl) throws IOException {
+		return getDistributionPointURLs(crl.getExtensionValue(Extension.freshestCRL.getId()));
+	}
+	
+	/**
+	 * Checks whether the given CRL is a delta CRL, i.e. if it bears the critical 
+	 * "Delta CRL Indicator" extension.
+	 */
+	public static boolean isDeltaCRL(X509CRL crl) {
+		return crl.getExtensionValue(Extension.deltaCRLIndicator.getId()) != null;
+	}
+	
+	/**
+	 * Returns the sequence number of the given CRL, as per its "CRL Number"
+	 * extension, or null if the extension is unavailable.
+	 */
+	public static BigInteger getCRLNumber(X509CRL crl) throws IOException {
+		return getIntegerExtension(crl.getExtensionValue(Extension.cRLNumber.getId()));
+	}
+	
+	/**
+	 * Returns the number of the base CRL a delta CRL refers to, as per its "Delta 
+	 * CRL Indicator" extension, or null if the CRL is not a delta CRL.
+	 */
+	public static BigInteger getBaseCRLNumber(X509CRL crl) throws IOException {
+		return getIntegerExtension(crl.getExtensionValue(Extension.deltaCRLIndicator.getId()));
+	}
+	
+	/**
+	 * Returns the "Issuing Distribution Point" extension of the given CRL, or 
+	 * null if the extension is unavailable (i.e. the CRL covers all certificates
+	 * of its issuer, for all reasons).
+	 */
+	public static IssuingDistributionPoint getIssuingDistributionPoint(X509CRL crl) throws IOException {
+		byte[] extension = crl.getExtensionValue(Extension.issuingDistributionPoint.getId());
+		if(extension == null) {
+			return null;
+		}
+		try(ASN1InputStream stream = new ASN1InputStream(new ByteArrayInputStream(extension))) {
+			byte[] octets = ((DEROctetString) stream.readObject()).getOctets();
+			try(ASN1InputStream stream2 = new ASN1InputStream(new ByteArrayInputStream(octets))) {
+				return IssuingDistributionPoint.getInstance(stream2.readObject());
+			}
+		}
+	}
+	
+	/**
+	 * Checks that the given CRL was issued and signed by the given issuer, so 
+	 * that its entries can be trusted.
+	 * 
+	 * @param crl
+	 *   the CRL.
+	 * @param issuer
+	 *   the certificate of the issuer of the certificates the CRL is about.
+	 * @throws CRLException
+	 *   if no issuer is given, or the CRL was not issued or signed by it.
+	 */
+	public static void verify(X509CRL crl, X509Certificate issuer) throws CRLException {
+		if(issuer == null) {
+			throw new CRLException("no issuer certificate to verify the CRL against");
+		}
+		if(!crl.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+			throw new CRLException("CRL issued by '" + crl.getIssuerX500Principal() + "' instead of '" + issuer.getSubjectX500Principal() + "'");
+		}
+		try {
+			crl.verify(issuer.getPublicKey());
+		} catch(GeneralSecurityException e) {
+			throw new CRLException("invalid CRL signature by '" + issuer.getSubjectX500Principal() + "'", e);
+		}
+	}
+	
+	/**
+	 * Checks whether the given CRL, as retrieved from the given distribution 
+	 * point, covers the given certificate, as per its "Issuing Distribution 
+	 * Point" extension: a CRL restricted to other kinds of certificates (CA or 
+	 * end entity, attribute certificates), to some revocation reasons only, or 
+	 * to other distribution points, cannot tell whether the certificate is
+	 * revoked.
+	 * 
+	 * @param crl
+	 *   the CRL.
+	 * @param certificate
+	 *   the certificate to check.
+	 * @param url
+	 *   the URL the CRL was retrieved from.
+	 * @return
+	 *   whether the CRL is authoritative for the certificate.
+	 * @throws IOException
+	 *   if the extension cannot be parsed.
+	 */
+	public static boolean isInScope(X509CRL crl, X509Certificate certificate, String url) throws IOException {
+		IssuingDistributionPoint idp = getIssuingDistributionPoint(crl);
+		if(idp == null) {
+			return true;
+		}
+		boolean ca = certificate.getBasicConstraints() >= 0;
+		if(idp.onlyContainsAttributeCerts() || (idp.onlyContainsUserCerts() && ca) || (idp.onlyContainsCACerts() && !ca)) {
+			logger.debug("CRL from '{}' does not cover this kind of certificates", url);
+			return false;
+		}
+		if(idp.getOnlySomeReasons() != null) {
+			logger.debug("CRL from '{}' only covers some revocation reasons", url);
+			return false;
+		}
+		DistributionPointName name = idp.getDistributionPoint();
+		if(name != null && name.getType() == DistributionPointName.FULL_NAME) {
+			for(GeneralName generalName : GeneralNames.getInstance(name.getName()).getNames()) {
+				if(generalName.getTagNo() == GeneralName.uniformResourceIdentifier && DERIA5String.getInstance(generalName.getName()).getString().equals(url)) {
+					return true;
+				}
+			}
+			logger.debug("CRL from '{}' is for another distribution point", url);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Decodes the value of an extension whose contents is an ASN.1 INTEGER.
+	 */
+	private static BigInteger getIntegerExtension(byte[] extension) throws IOException {
+		if(extension == null) {
+			return null;
+		}
+		try(ASN1InputStream stream = new ASN1InputStream(new ByteArrayInputStream(extension))) {
+			byte[] octets = ((DEROctetString) stream.readObject()).getOctets();
+			try(ASN1InputStream stream2 = new ASN1InputStream(new ByteArrayInputStream(octets))) {
+				return ASN1Integer.getInstance(stream2.readObject()).getValue();
+			}
+		}
+	}
+
+	/**
+	 * Extracts all URLs from an extension containing a list of distribution
+	 * points, such as "CRL Distribution Points" and "Freshest CRL". 
+	 */
+	private static List<String> getDistributionPointURLs(byte[] extension) throws IOException {
 		
 		List<String> urls = new ArrayList<>();
 		
-		byte[] extension = certificate.getExtensionValue(Extension.cRLDistributionPoints.getId());
 		if (extension == null) {		
 			// return an empty list
 			return urls;
@@ -179,5 +418,34 @@ public class CRL {
 			}
 		}
 	}
-
+	
+	/**
+	 * Downloads the first valid delta CRL among those available at the given 
+	 * URLs, signed by the given issuer; returns null if none could be retrieved.
+	 * 
+	 * @param urls
+	 *   the delta CRL distribution points.
+	 * @param issuer
+	 *   the certificate of the issuer that must have signed the delta CRL.
+	 * @return
+	 *   the delta CRL, or null if none available.
+	 */
+	static X509CRL fromDeltaURLs(Collection<String> urls, X509Certificate issuer) {
+		for(String url : urls) {
+			try {
+				X509CRL crl = fromURL(url);
+				if(!isDeltaCRL(crl)) {
+					logger.warn("CRL at '{}' is not a delta CRL, discarding", url);
+					continue;
+				}
+				verify(crl, issuer);
+				return crl;
+			} catch(CRLException e) {
+				logger.warn("invalid delta CRL from '" + url + "', discarding", e);
+			} catch(IOException | CertificateException | CertificateVerificationException | NamingException e) {
+				logger.warn("error downloading delta CRL from '{}'", url);
+			}
+		}
+		return null;
+	}
 }
\ No newline at end of file
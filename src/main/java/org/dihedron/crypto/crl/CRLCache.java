@@ -0,0 +1,300 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.crl;
+
+import java.io.IOException;
+import java.security.PublicKey;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.naming.NamingException;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.exceptions.CertificateVerificationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of revocation states, by CRL distribution point. Full (base) CRLs are
+ * downloaded only when they expire; in between, whenever the certificate or
+ * the base CRL advertise delta CRL distribution points (via the "Freshest CRL"
+ * extension), only the delta CRLs are downloaded and merged into the cached
+ * revocation state. Base and delta CRLs are verified against the certificate 
+ * of their issuer before being cached or merged; the cache holds a bounded 
+ * number of distribution points, and concurrent requests for the same 
+ * distribution point share a single download.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class CRLCache {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(CRLCache.class);
+
+	/**
+	 * The default number of distribution points whose revocation state is cached.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * The cached revocation states, by base CRL distribution point URL, in least
+	 * recently used order.
+	 */
+	private final Map<String, Verified> crls;
+
+	/**
+	 * The downloads in progress, by base CRL distribution point URL.
+	 */
+	private final ConcurrentMap<String, FutureTask<Verified>> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor.
+	 */
+	public CRLCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *   the maximum number of distribution points whose revocation state is cached.
+	 */
+	public CRLCache(final int capacity) {
+		this.crls = new LinkedHashMap<String, Verified>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the up-to-date revocation state for the given distribution point,
+	 * downloading the base CRL only if it is not cached or expired, and the delta
+	 * CRL if the cached revocation state is past its "next update" time; if no
+	 * delta CRL can be downloaded and applied, the base CRL is downloaded again.
+	 * All CRLs must be issued and signed by the given issuer.
+	 *
+	 * @param url
+	 *   the URL of the base CRL distribution point.
+	 * @param deltaURLs
+	 *   the URLs of the delta CRL distribution points, as advertised by the
+	 *   certificate being checked; may be null or empty.
+	 * @param issuer
+	 *   the certificate of the issuer of the certificate being checked.
+	 * @return
+	 *   the revocation state, as a merge of the base and delta CRLs.
+	 * @throws CRLException
+	 *   if no issuer is given, or the base CRL was not issued and signed by it.
+	 */
+	public CachedCRL getCRL(final String url, final Collection<String> deltaURLs, final X509Certificate issuer) throws IOException, CertificateException, CRLException, CertificateVerificationException, NamingException {
+		if(issuer == null) {
+			throw new CRLException("no issuer certificate to verify the CRL from '" + url + "' against");
+		}
+		Verified cached;
+		synchronized(crls) {
+			cached = crls.get(url);
+		}
+		if(cached != null && !cached.state.isExpired(new Date())) {
+			logger.trace("using cached revocation state for '{}'", url);
+			return cached.check(issuer);
+		}
+
+		FutureTask<Verified> task = new FutureTask<>(new Callable<Verified>() {
+			@Override
+			public Verified call() throws Exception {
+				return refresh(url, deltaURLs, issuer);
+			}
+		});
+		FutureTask<Verified> running = pending.putIfAbsent(url, task);
+		if(running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				pending.remove(url, task);
+			}
+		} else {
+			logger.trace("waiting for running download of '{}'", url);
+		}
+		try {
+			return running.get().check(issuer);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CRLException("interrupted while waiting for CRL from '" + url + "'", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if(cause instanceof CRLException) {
+				throw (CRLException)cause;
+			} else if(cause instanceof CertificateException) {
+				throw (CertificateException)cause;
+			} else if(cause instanceof CertificateVerificationException) {
+				throw (CertificateVerificationException)cause;
+			} else if(cause instanceof NamingException) {
+				throw (NamingException)cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			} else if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new CRLException("error retrieving CRL from '" + url + "'", cause);
+		}
+	}
+
+	/**
+	 * Removes the revocation state of the given distribution point from the cache.
+	 *
+	 * @param url
+	 *   the URL of the base CRL distribution point.
+	 */
+	public void evict(String url) {
+		synchronized(crls) {
+			crls.remove(url);
+		}
+	}
+
+	/**
+	 * Removes all revocation states from the cache.
+	 */
+	public void clear() {
+		synchronized(crls) {
+			crls.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of distribution points whose revocation state is cached.
+	 *
+	 * @return
+	 *   the number of cached revocation states.
+	 */
+	public int size() {
+		synchronized(crls) {
+			return crls.size();
+		}
+	}
+
+	/**
+	 * Brings the revocation state of the given distribution point up to date, 
+	 * either through its delta CRLs or by downloading its base CRL again, and 
+	 * stores it in the cache; only one thread at a time runs this method for any 
+	 * given URL.
+	 */
+	private Verified refresh(String url, Collection<String> deltaURLs, X509Certificate issuer) throws IOException, CertificateException, CRLException, CertificateVerificationException, NamingException {
+		Date now = new Date();
+		Verified cached;
+		synchronized(crls) {
+			cached = crls.get(url);
+		}
+		CachedCRL crl = null;
+		if(cached != null && !cached.state.isBaseExpired(now)) {
+			crl = cached.check(issuer);
+			if(!crl.isExpired(now)) {
+				// refreshed by another thread in the meanwhile
+				return cached;
+			}
+			Set<String> urls = getDeltaURLs(crl.getBase(), deltaURLs);
+			if(!urls.isEmpty()) {
+				logger.debug("refreshing revocation state for '{}' through delta CRLs", url);
+				crl = crl.merge(CRL.fromDeltaURLs(urls, issuer));
+			}
+			if(crl.isExpired(now)) {
+				// no delta CRL, or none could be downloaded and applied
+				logger.debug("no fresh delta CRL available, downloading base CRL from '{}' again", url);
+				crl = null;
+			}
+		}
+		if(crl == null) {
+			logger.debug("downloading base CRL from '{}'", url);
+			X509CRL base = CRL.fromURL(url);
+			CRL.verify(base, issuer);
+			crl = new CachedCRL(base);
+			Set<String> urls = getDeltaURLs(base, deltaURLs);
+			if(!urls.isEmpty()) {
+				crl = crl.merge(CRL.fromDeltaURLs(urls, issuer));
+			}
+		}
+		Verified verified = new Verified(crl, issuer.getPublicKey());
+		synchronized(crls) {
+			crls.put(url, verified);
+		}
+		return verified;
+	}
+
+	/**
+	 * Merges the delta CRL distribution points given by the certificate with
+	 * those given by the base CRL.
+	 */
+	private static Set<String> getDeltaURLs(X509CRL base, Collection<String> deltaURLs) throws IOException {
+		Set<String> urls = new LinkedHashSet<>();
+		if(deltaURLs != null) {
+			urls.addAll(deltaURLs);
+		}
+		urls.addAll(CRL.getFreshestCrlDistributionPoints(base));
+		return urls;
+	}
+
+	/**
+	 * A revocation state, along with the key its CRLs were verified with.
+	 */
+	private static class Verified {
+
+		/**
+		 * The revocation state.
+		 */
+		final CachedCRL state;
+
+		/**
+		 * The public key the base and delta CRLs were verified with.
+		 */
+		final PublicKey key;
+
+		/**
+		 * Constructor.
+		 */
+		Verified(CachedCRL state, PublicKey key) {
+			this.state = state;
+			this.key = key;
+		}
+
+		/**
+		 * Returns the revocation state if its CRLs were issued by the given 
+		 * issuer; if they were verified with a different key (e.g. after the 
+		 * issuer was re-keyed), they are verified again with the issuer's key.
+		 */
+		CachedCRL check(X509Certificate issuer) throws CRLException {
+			if(!state.getBase().getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+				throw new CRLException("CRL issued by '" + state.getBase().getIssuerX500Principal() + "' instead of '" + issuer.getSubjectX500Principal() + "'");
+			}
+			if(!key.equals(issuer.getPublicKey())) {
+				CRL.verify(state.getBase(), issuer);
+				if(state.hasDelta()) {
+					CRL.verify(state.getDelta(), issuer);
+				}
+			}
+			return state;
+		}
+	}
+}
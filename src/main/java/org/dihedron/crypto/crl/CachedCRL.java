@@ -0,0 +1,249 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.crl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.CRLReason;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.Extension;
+import org.dihedron.core.License;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The revocation state published by a CRL distribution point, as obtained by
+ * merging a full (base) CRL with the most recent delta CRL (if any). Objects
+ * of this class are immutable: merging a new delta CRL yields a new object, so
+ * they can be safely shared among threads.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class CachedCRL {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(CachedCRL.class);
+
+	/**
+	 * The full (base) CRL.
+	 */
+	private final X509CRL base;
+
+	/**
+	 * The CRL number of the base CRL.
+	 */
+	private final BigInteger baseNumber;
+
+	/**
+	 * The delta CRL merged into the base, or null if none.
+	 */
+	private final X509CRL delta;
+
+	/**
+	 * The revoked certificate entries, by serial number, resulting from merging
+	 * the base CRL and the delta CRL.
+	 */
+	private final Map<BigInteger, X509CRLEntry> revoked;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param base
+	 *   the full (base) CRL.
+	 * @throws IOException
+	 *   if the CRL number extension cannot be parsed.
+	 */
+	public CachedCRL(X509CRL base) throws IOException {
+		this.base = base;
+		this.baseNumber = CRL.getCRLNumber(base);
+		this.delta = null;
+		Map<BigInteger, X509CRLEntry> entries = new HashMap<>();
+		Set<? extends X509CRLEntry> revokedCertificates = base.getRevokedCertificates();
+		if(revokedCertificates != null) {
+			for(X509CRLEntry entry : revokedCertificates) {
+				entries.put(entry.getSerialNumber(), entry);
+			}
+		}
+		this.revoked = Collections.unmodifiableMap(entries);
+	}
+
+	/**
+	 * Private constructor, used when merging a delta CRL.
+	 */
+	private CachedCRL(X509CRL base, BigInteger baseNumber, X509CRL delta, Map<BigInteger, X509CRLEntry> revoked) {
+		this.base = base;
+		this.baseNumber = baseNumber;
+		this.delta = delta;
+		this.revoked = Collections.unmodifiableMap(revoked);
+	}
+
+	/**
+	 * Merges the given delta CRL into the base CRL, returning the resulting
+	 * revocation state; the delta CRL is only applied if it was issued by the
+	 * same issuer as the base CRL, for the same scope (i.e. with the same "Issuing
+	 * Distribution Point" extension), and if it refers to a base CRL no more 
+	 * recent than the one cached here, otherwise the current state is returned 
+	 * unchanged. The signature of the delta CRL is not checked here: callers 
+	 * must verify it against the issuer's key (see {@link CRL#verify(X509CRL, X509Certificate)}) before merging.
+	 * Entries with reason "removeFromCRL" are removed from the revocation state
+	 * (e.g. certificates on hold that have been released).
+	 *
+	 * @param crl
+	 *   the delta CRL to merge.
+	 * @return
+	 *   the merged revocation state.
+	 * @throws IOException
+	 *   if the delta CRL extensions cannot be parsed.
+	 */
+	public CachedCRL merge(X509CRL crl) throws IOException {
+		if(crl == null || !CRL.isDeltaCRL(crl)) {
+			logger.warn("no valid delta CRL to merge");
+			return this;
+		}
+		if(!crl.getIssuerX500Principal().equals(base.getIssuerX500Principal())) {
+			logger.warn("delta CRL issuer '{}' does not match base CRL issuer '{}'", crl.getIssuerX500Principal(), base.getIssuerX500Principal());
+			return this;
+		}
+		String idp = Extension.issuingDistributionPoint.getId();
+		if(!Arrays.equals(crl.getExtensionValue(idp), base.getExtensionValue(idp))) {
+			logger.warn("delta CRL issuing distribution point does not match the base CRL's");
+			return this;
+		}
+		BigInteger referenced = CRL.getBaseCRLNumber(crl);
+		if(baseNumber != null && referenced != null && referenced.compareTo(baseNumber) > 0) {
+			logger.warn("delta CRL refers to base CRL no. {}, more recent than cached base CRL no. {}", referenced, baseNumber);
+			return this;
+		}
+		BigInteger number = CRL.getCRLNumber(crl);
+		if(delta != null && number != null) {
+			BigInteger current = CRL.getCRLNumber(delta);
+			if(current != null && number.compareTo(current) <= 0) {
+				logger.trace("delta CRL no. {} is not more recent than the merged one ({})", number, current);
+				return this;
+			}
+		}
+
+		// a delta CRL lists all changes since its base CRL, so it is always
+		// applied onto the base entries, never onto a previous delta
+		Map<BigInteger, X509CRLEntry> entries = new HashMap<>();
+		Set<? extends X509CRLEntry> revokedCertificates = base.getRevokedCertificates();
+		if(revokedCertificates != null) {
+			for(X509CRLEntry entry : revokedCertificates) {
+				entries.put(entry.getSerialNumber(), entry);
+			}
+		}
+		revokedCertificates = crl.getRevokedCertificates();
+		if(revokedCertificates != null) {
+			for(X509CRLEntry entry : revokedCertificates) {
+				if(entry.getRevocationReason() == CRLReason.REMOVE_FROM_CRL) {
+					entries.remove(entry.getSerialNumber());
+				} else {
+					entries.put(entry.getSerialNumber(), entry);
+				}
+			}
+		}
+		logger.trace("delta CRL no. {} merged, {} revoked entries", number, entries.size());
+		return new CachedCRL(base, baseNumber, crl, entries);
+	}
+
+	/**
+	 * Checks whether the given certificate is revoked according to the merged
+	 * base and delta CRLs.
+	 *
+	 * @param certificate
+	 *   the certificate to check.
+	 * @return
+	 *   whether the certificate has been revoked.
+	 */
+	public boolean isRevoked(X509Certificate certificate) {
+		X509CRLEntry entry = revoked.get(certificate.getSerialNumber());
+		if(entry == null) {
+			return false;
+		}
+		X500Principal issuer = entry.getCertificateIssuer();
+		return issuer == null ? certificate.getIssuerX500Principal().equals(base.getIssuerX500Principal()) : issuer.equals(certificate.getIssuerX500Principal());
+	}
+
+	/**
+	 * Returns whether the base CRL is past its "next update" time, and must
+	 * therefore be downloaded anew.
+	 *
+	 * @param now
+	 *   the reference time.
+	 * @return
+	 *   whether the base CRL is expired.
+	 */
+	public boolean isBaseExpired(Date now) {
+		return base.getNextUpdate() == null || base.getNextUpdate().before(now);
+	}
+
+	/**
+	 * Returns whether the revocation state is past its "next update" time, as
+	 * given by the delta CRL if available, or by the base CRL otherwise.
+	 *
+	 * @param now
+	 *   the reference time.
+	 * @return
+	 *   whether fresher revocation information should be available.
+	 */
+	public boolean isExpired(Date now) {
+		Date next = getNextUpdate();
+		return next == null || next.before(now);
+	}
+
+	/**
+	 * Returns the time by which fresher revocation information will be available.
+	 *
+	 * @return
+	 *   the "next update" time of the delta CRL if available, or of the base CRL
+	 *   otherwise.
+	 */
+	public Date getNextUpdate() {
+		return delta != null ? delta.getNextUpdate() : base.getNextUpdate();
+	}
+
+	/**
+	 * Returns whether a delta CRL has been merged into the base CRL.
+	 *
+	 * @return
+	 *   whether a delta CRL is available.
+	 */
+	public boolean hasDelta() {
+		return delta != null;
+	}
+
+	/**
+	 * Returns the full (base) CRL.
+	 *
+	 * @return
+	 *   the base CRL.
+	 */
+	public X509CRL getBase() {
+		return base;
+	}
+
+	/**
+	 * Returns the delta CRL merged into the base CRL, if any.
+	 *
+	 * @return
+	 *   the delta CRL, or null if none.
+	 */
+	public X509CRL getDelta() {
+		return delta;
+	}
+}
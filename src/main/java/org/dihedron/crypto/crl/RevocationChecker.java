@@ -0,0 +1,469 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.crl;
+
+import java.io.IOException;
+import java.security.cert.CRLException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.naming.NamingException;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateProfile;
+import org.dihedron.crypto.exceptions.CertificateVerificationException;
+import org.dihedron.crypto.ocsp.OCSP;
+import org.dihedron.crypto.ocsp.OCSPChecker;
+import org.dihedron.crypto.ocsp.OCSPStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the revocation status of certificates either through OCSP or through
+ * CRLs, picking for each issuer the method that has proved faster so far: OCSP
+ * is tried first (it is usually far cheaper than downloading a large CRL), and
+ * CRLs take over for those issuers whose CRLs, once cached, answer faster than
+ * their OCSP responders (or whose responders are unavailable). Every now and
+ * then the other method is tried first anyway, so that its latency is sampled
+ * again and the choice can switch back when conditions change.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class RevocationChecker {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(RevocationChecker.class);
+
+	/**
+	 * The weight of the latest sample in the latency moving averages.
+	 */
+	private static final double SMOOTHING = 0.3;
+
+	/**
+	 * The latency (in milliseconds) charged to a method when it fails to provide
+	 * a status, so that failing methods are avoided.
+	 */
+	private static final long FAILURE_PENALTY = 10000;
+
+	/**
+	 * Every how many checks on an issuer the method not currently preferred is
+	 * tried first, to sample its latency again.
+	 */
+	static final int PROBE_INTERVAL = 20;
+
+	/**
+	 * The revocation checker shared by all certificate verifications.
+	 */
+	private static final RevocationChecker defaultChecker = new RevocationChecker(CRL.getCache(), OCSP.getChecker());
+
+	/**
+	 * Returns the revocation checker shared by all certificate verifications.
+	 *
+	 * @return
+	 *   the shared revocation checker.
+	 */
+	public static RevocationChecker getDefault() {
+		return defaultChecker;
+	}
+
+	/**
+	 * The revocation checking methods.
+	 */
+	public enum Method {
+		/**
+		 * Online Certificate Status Protocol.
+		 */
+		OCSP,
+
+		/**
+		 * Certificate Revocation Lists.
+		 */
+		CRL
+	}
+
+	/**
+	 * The cache of CRLs.
+	 */
+	private final CRLCache crls;
+
+	/**
+	 * The OCSP client.
+	 */
+	private final OCSPChecker ocsp;
+
+	/**
+	 * The observed latencies, by issuer.
+	 */
+	private final ConcurrentMap<X500Principal, Latencies> latencies = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param crls
+	 *   the cache of CRLs.
+	 * @param ocsp
+	 *   the OCSP client.
+	 */
+	public RevocationChecker(CRLCache crls, OCSPChecker ocsp) {
+		this.crls = crls;
+		this.ocsp = ocsp;
+	}
+
+	/**
+	 * Checks whether the given certificate has been revoked, using either OCSP
+	 * or CRLs depending on which has proved faster for the certificate's issuer;
+	 * if the preferred method cannot provide a status, the other one is tried.
+	 * As with CRL checks, a certificate whose status cannot be determined by
+	 * any method is not considered revoked.
+	 *
+	 * @param certificate
+	 *   the certificate to check.
+	 * @param issuer
+	 *   the certificate of the certificate's issuer; if null, OCSP cannot be
+	 *   used.
+	 * @throws CertificateVerificationException
+	 *   if the certificate is revoked.
+	 */
+	public void verify(X509Certificate certificate, X509Certificate issuer) throws CertificateVerificationException {
+		verify(certificate, issuer, getLatencies(certificate.getIssuerX500Principal()), null);
+	}
+
+	/**
+	 * Checks whether the given certificate has been revoked, trying the given
+	 * method first if both are available.
+	 *
+	 * @param choice
+	 *   the method to try first, or null to choose it based on the latencies
+	 *   observed so far.
+	 */
+	private void verify(X509Certificate certificate, X509Certificate issuer, Latencies observed, Method choice) throws CertificateVerificationException {
+		CertificateProfile profile = getProfile(certificate);
+		boolean hasOCSP = issuer != null && !profile.getOcspURLs().isEmpty();
+		boolean hasCRL = !profile.getCrlDistributionPoints().isEmpty();
+
+		Method preferred = hasOCSP && (!hasCRL || (choice != null ? choice : observed.choose()) == Method.OCSP) ? Method.OCSP : Method.CRL;
+		logger.trace("checking revocation of '{}' through {} first", certificate.getSubjectX500Principal(), preferred);
+
+		if(preferred == Method.OCSP) {
+			if(!verifyOCSP(certificate, issuer, observed) && hasCRL) {
+				verifyCRL(certificate, issuer, observed);
+			}
+		} else {
+			if(!verifyCRL(certificate, issuer, observed) && hasOCSP) {
+				verifyOCSP(certificate, issuer, observed);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether any of the given certificates, all issued by the same
+	 * issuer, has been revoked; OCSP queries are batched, and the certificates
+	 * whose status cannot be obtained through OCSP are checked against CRLs.
+	 *
+	 * @param certificates
+	 *   the certificates to check.
+	 * @param issuer
+	 *   the certificate of the certificates' issuer.
+	 * @return
+	 *   the certificates that have been revoked.
+	 * @throws CertificateVerificationException
+	 *   if the revocation information of any of the certificates cannot be 
+	 *   parsed, or the OCSP requests cannot be prepared.
+	 */
+	public Collection<X509Certificate> verify(Collection<X509Certificate> certificates, X509Certificate issuer) throws CertificateVerificationException {
+		// reject malformed certificates upfront, so that any failure below means "revoked"
+		for(X509Certificate certificate : certificates) {
+			getProfile(certificate);
+		}
+		Collection<X509Certificate> revoked = new ArrayList<>();
+		Latencies observed = getLatencies(issuer.getSubjectX500Principal());
+		Method choice = observed.choose();
+		if(choice == Method.CRL) {
+			for(X509Certificate certificate : certificates) {
+				try {
+					verify(certificate, issuer, observed, choice);
+				} catch(CertificateVerificationException e) {
+					revoked.add(certificate);
+				}
+			}
+			return revoked;
+		}
+		
+		long start = System.currentTimeMillis();
+		Map<X509Certificate, OCSPStatus> statuses = ocsp.check(certificates, issuer);
+		long elapsed = System.currentTimeMillis() - start;
+		observed.record(Method.OCSP, statuses.isEmpty() ? Math.max(elapsed, FAILURE_PENALTY) : elapsed / statuses.size());
+		for(X509Certificate certificate : certificates) {
+			OCSPStatus status = statuses.get(certificate);
+			if(status == OCSPStatus.REVOKED) {
+				revoked.add(certificate);
+			} else if(status != OCSPStatus.GOOD) {
+				try {
+					verifyCRL(certificate, issuer, observed);
+				} catch(CertificateVerificationException e) {
+					revoked.add(certificate);
+				}
+			}
+		}
+		return revoked;
+	}
+
+	/**
+	 * Checks whether the given certificate has been revoked, looking first into
+	 * the given revocation data (e.g. as embedded in a signature) and going to
+	 * the network only if it does not provide a fresh, trustworthy status.
+	 *
+	 * @param certificate
+	 *   the certificate to check.
+	 * @param issuer
+	 *   the certificate of the certificate's issuer; if null, only CRLs on the
+	 *   network can be used.
+	 * @param embedded
+	 *   the revocation data available offline; may be null.
+	 * @throws CertificateVerificationException
+	 *   if the certificate is revoked.
+	 */
+	public void verify(X509Certificate certificate, X509Certificate issuer, RevocationData embedded) throws CertificateVerificationException {
+		if(embedded != null && issuer != null) {
+			OCSPStatus status = embedded.getStatus(certificate, issuer, ocsp);
+			if(status == OCSPStatus.REVOKED) {
+				logger.info("certificate '{}' is revoked (embedded revocation data)", certificate.getSubjectX500Principal());
+				throw new CertificateVerificationException("The certificate is revoked (embedded revocation data): " + certificate.getSubjectX500Principal());
+			} else if(status == OCSPStatus.GOOD) {
+				logger.trace("certificate '{}' is not revoked (embedded revocation data)", certificate.getSubjectX500Principal());
+				return;
+			}
+		}
+		verify(certificate, issuer);
+	}
+
+	/**
+	 * Gathers the OCSP responses and CRLs proving the revocation status of the
+	 * certificates in a certification path, so that they can be embedded into a
+	 * signature; data is taken from the caches where available (as is the case
+	 * right after the path has been validated), and fetched otherwise. For each
+	 * certificate, an OCSP response is preferred, as it is much smaller than a
+	 * CRL.
+	 *
+	 * @param path
+	 *   the certification path, starting from the end entity certificate.
+	 * @param anchor
+	 *   the trust anchor the path leads to.
+	 * @return
+	 *   the revocation data.
+	 * @throws CertificateVerificationException
+	 *   if the certificates cannot be parsed.
+	 */
+	public RevocationData collect(List<? extends Certificate> path, X509Certificate anchor) throws CertificateVerificationException {
+		RevocationData data = new RevocationData();
+		for(int i = 0; i < path.size(); ++i) {
+			X509Certificate certificate = (X509Certificate)path.get(i);
+			X509Certificate issuer = i + 1 < path.size() ? (X509Certificate)path.get(i + 1) : anchor;
+			CertificateProfile profile = getProfile(certificate);
+			if(issuer != null && !profile.getOcspURLs().isEmpty()) {
+				ocsp.check(certificate, issuer);
+				BasicOCSPResp response = ocsp.getResponse(certificate, issuer);
+				if(response != null) {
+					data.addOCSPResponse(response);
+					continue;
+				}
+			}
+			for(String distributionPoint : profile.getCrlDistributionPoints()) {
+				try {
+					CachedCRL crl = crls.getCRL(distributionPoint, profile.getFreshestCrlDistributionPoints(), issuer);
+					if(!CRL.isInScope(crl.getBase(), certificate, distributionPoint)) {
+						logger.warn("... CRL at '{}' does not cover the certificate", distributionPoint);
+						continue;
+					}
+					data.addCRL(crl.getBase()).addCRL(crl.getDelta());
+					break;
+				} catch(IOException | CertificateException | NamingException | CRLException e) {
+					logger.warn("... error retrieving CRL from distribution point '{}'", distributionPoint);
+					// let's try with the next one
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Returns the revocation checking method currently preferred for the given
+	 * issuer.
+	 *
+	 * @param issuer
+	 *   the issuer's distinguished name.
+	 * @return
+	 *   the preferred method.
+	 */
+	public Method getPreferredMethod(X500Principal issuer) {
+		return getLatencies(issuer).getPreferred();
+	}
+
+	/**
+	 * Returns the cache of CRLs used by this checker.
+	 *
+	 * @return
+	 *   the cache of CRLs.
+	 */
+	public CRLCache getCRLCache() {
+		return crls;
+	}
+
+	/**
+	 * Returns the OCSP client used by this checker.
+	 *
+	 * @return
+	 *   the OCSP client.
+	 */
+	public OCSPChecker getOCSPChecker() {
+		return ocsp;
+	}
+
+	/**
+	 * Checks the certificate through OCSP, returning whether a definitive status
+	 * was obtained.
+	 */
+	private boolean verifyOCSP(X509Certificate certificate, X509Certificate issuer, Latencies observed) throws CertificateVerificationException {
+		long start = System.currentTimeMillis();
+		OCSPStatus status = null;
+		try {
+			status = ocsp.check(certificate, issuer);
+		} finally {
+			long elapsed = System.currentTimeMillis() - start;
+			observed.record(Method.OCSP, status == null || status == OCSPStatus.UNKNOWN ? Math.max(elapsed, FAILURE_PENALTY) : elapsed);
+		}
+		if(status == OCSPStatus.REVOKED) {
+			logger.info("certificate '{}' is revoked (OCSP)", certificate.getSubjectX500Principal());
+			throw new CertificateVerificationException("The certificate is revoked (OCSP): " + certificate.getSubjectX500Principal());
+		}
+		return status == OCSPStatus.GOOD;
+	}
+
+	/**
+	 * Checks the certificate through CRLs, returning whether a definitive status
+	 * was obtained.
+	 */
+	private boolean verifyCRL(X509Certificate certificate, X509Certificate issuer, Latencies observed) throws CertificateVerificationException {
+		long start = System.currentTimeMillis();
+		boolean checked = false;
+		try {
+			CertificateProfile profile = getProfile(certificate);
+			for(String distributionPoint : profile.getCrlDistributionPoints()) {
+				try {
+					CachedCRL crl = crls.getCRL(distributionPoint, profile.getFreshestCrlDistributionPoints(), issuer);
+					if(!CRL.isInScope(crl.getBase(), certificate, distributionPoint)) {
+						logger.warn("... CRL at '{}' does not cover the certificate", distributionPoint);
+						continue;
+					}
+					if(crl.isRevoked(certificate)) {
+						logger.info("certificate is revoked by CRL at '{}'", distributionPoint);
+						throw new CertificateVerificationException("The certificate is revoked by CRL: " + distributionPoint);
+					}
+					checked = true;
+				} catch(IOException | CertificateException | NamingException | CRLException e) {
+					logger.warn("... error verifying against distribution point '{}'", distributionPoint);
+					// let's try with the next one
+				}
+			}
+			return checked;
+		} finally {
+			long elapsed = System.currentTimeMillis() - start;
+			observed.record(Method.CRL, checked ? elapsed : Math.max(elapsed, FAILURE_PENALTY));
+		}
+	}
+
+	/**
+	 * Returns the profile of the given certificate, with its (cached) revocation
+	 * URLs, failing if its revocation information cannot be parsed.
+	 */
+	private static CertificateProfile getProfile(X509Certificate certificate) throws CertificateVerificationException {
+		CertificateProfile profile = CertificateProfile.of(certificate);
+		if(!profile.hasValidRevocationInformation()) {
+			logger.error("error parsing certificate '{}' to get revocation information", certificate.getSubjectX500Principal());
+			throw new CertificateVerificationException("Cannot verify revocation status for certificate: " + certificate.getSubjectX500Principal());
+		}
+		return profile;
+	}
+
+	/**
+	 * Returns the latencies observed for the given issuer.
+	 */
+	private Latencies getLatencies(X500Principal issuer) {
+		Latencies observed = latencies.get(issuer);
+		if(observed == null) {
+			Latencies previous = latencies.putIfAbsent(issuer, observed = new Latencies());
+			if(previous != null) {
+				observed = previous;
+			}
+		}
+		return observed;
+	}
+
+	/**
+	 * The exponential moving averages of the latencies observed for the two
+	 * methods on a given issuer; a negative value means no sample yet.
+	 */
+	static class Latencies {
+
+		/**
+		 * The average OCSP latency.
+		 */
+		private double ocsp = -1;
+
+		/**
+		 * The average CRL latency.
+		 */
+		private double crl = -1;
+
+		/**
+		 * The number of choices made so far.
+		 */
+		private long choices = 0;
+
+		/**
+		 * Records a new latency sample for the given method.
+		 */
+		synchronized void record(Method method, long millis) {
+			if(method == Method.OCSP) {
+				ocsp = ocsp < 0 ? millis : SMOOTHING * millis + (1 - SMOOTHING) * ocsp;
+			} else {
+				crl = crl < 0 ? millis : SMOOTHING * millis + (1 - SMOOTHING) * crl;
+			}
+		}
+
+		/**
+		 * Returns the preferred method: OCSP until CRLs have proved faster.
+		 */
+		synchronized Method getPreferred() {
+			return (ocsp < 0 || crl < 0 || ocsp <= crl) ? Method.OCSP : Method.CRL;
+		}
+
+		/**
+		 * Returns the method to try first for the next check: the preferred one,
+		 * except once every {@link RevocationChecker#PROBE_INTERVAL} checks, when
+		 * the other one is probed.
+		 */
+		synchronized Method choose() {
+			Method preferred = getPreferred();
+			if(++choices % PROBE_INTERVAL != 0) {
+				return preferred;
+			}
+			Method other = preferred == Method.OCSP ? Method.CRL : Method.OCSP;
+			logger.trace("probing {} instead of {}", other, preferred);
+			return other;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.crl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.jcajce.JcaCRLStore;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedGenerator;
+import org.bouncycastle.util.CollectionStore;
+import org.bouncycastle.util.Store;
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateProfile;
+import org.dihedron.crypto.ocsp.OCSPChecker;
+import org.dihedron.crypto.ocsp.OCSPStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of CRLs and OCSP responses about a certification chain, as gathered
+ * while validating a signer's certificate; it can be embedded into a CMS
+ * signature (CRLs in the "crls" field, OCSP responses as "other revocation
+ * info" as per RFC 5940) and later used by verifiers instead of going to the
+ * network, as long as it is fresh.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class RevocationData {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(RevocationData.class);
+
+	/**
+	 * The CRLs (both base and delta).
+	 */
+	private final List<X509CRL> crls = new ArrayList<>();
+
+	/**
+	 * The OCSP responses.
+	 */
+	private final List<BasicOCSPResp> responses = new ArrayList<>();
+
+	/**
+	 * Creates the revocation data embedded in a CMS signature.
+	 *
+	 * @param crls
+	 *   the store of CRLs in the signature, as {@code X509CRLHolder}s; may be null.
+	 * @param responses
+	 *   the store of "other revocation info" of type {@code id-ri-ocsp-response}
+	 *   in the signature; may be null.
+	 * @return
+	 *   the revocation data.
+	 */
+	public static RevocationData fromSignedData(Store crls, Store responses) {
+		RevocationData data = new RevocationData();
+		if(crls != null) {
+			JcaX509CRLConverter converter = new JcaX509CRLConverter().setProvider("BC");
+			for(Object crl : crls.getMatches(null)) {
+				try {
+					data.addCRL(converter.getCRL((X509CRLHolder)crl));
+				} catch(CRLException e) {
+					logger.warn("invalid CRL embedded in signature, skipping", e);
+				}
+			}
+		}
+		if(responses != null) {
+			for(Object response : responses.getMatches(null)) {
+				try {
+					Object basic = new OCSPResp(OCSPResponse.getInstance(response)).getResponseObject();
+					if(basic instanceof BasicOCSPResp) {
+						data.addOCSPResponse((BasicOCSPResp)basic);
+					}
+				} catch(OCSPException | IllegalArgumentException e) {
+					logger.warn("invalid OCSP response embedded in signature, skipping", e);
+				}
+			}
+		}
+		logger.debug("{} CRLs and {} OCSP responses embedded in signature", data.crls.size(), data.responses.size());
+		return data;
+	}
+
+	/**
+	 * Adds a CRL.
+	 *
+	 * @param crl
+	 *   the CRL to add.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public RevocationData addCRL(X509CRL crl) {
+		if(crl != null && !crls.contains(crl)) {
+			crls.add(crl);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds an OCSP response.
+	 *
+	 * @param response
+	 *   the OCSP response to add.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public RevocationData addOCSPResponse(BasicOCSPResp response) {
+		if(response != null && !responses.contains(response)) {
+			responses.add(response);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the CRLs.
+	 *
+	 * @return
+	 *   the CRLs.
+	 */
+	public Collection<X509CRL> getCRLs() {
+		return Collections.unmodifiableList(crls);
+	}
+
+	/**
+	 * Returns the OCSP responses.
+	 *
+	 * @return
+	 *   the OCSP responses.
+	 */
+	public Collection<BasicOCSPResp> getOCSPResponses() {
+		return Collections.unmodifiableList(responses);
+	}
+
+	/**
+	 * Returns whether there is no revocation data.
+	 *
+	 * @return
+	 *   whether there are neither CRLs nor OCSP responses.
+	 */
+	public boolean isEmpty() {
+		return crls.isEmpty() && responses.isEmpty();
+	}
+
+	/**
+	 * Adds the revocation data to the given CMS signature generator.
+	 *
+	 * @param generator
+	 *   the CMS signature generator.
+	 * @throws CMSException
+	 *   if the data cannot be encoded.
+	 */
+	public void addTo(CMSSignedGenerator generator) throws CMSException {
+		try {
+			if(!crls.isEmpty()) {
+				generator.addCRLs(new JcaCRLStore(crls));
+			}
+			if(!responses.isEmpty()) {
+				List<ASN1Encodable> encoded = new ArrayList<>();
+				for(BasicOCSPResp response : responses) {
+					encoded.add(new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, response).toASN1Structure());
+				}
+				generator.addOtherRevocationInfo(CMSObjectIdentifiers.id_ri_ocsp_response, new CollectionStore(encoded));
+			}
+			logger.debug("{} CRLs and {} OCSP responses embedded into signature", crls.size(), responses.size());
+		} catch(CRLException | OCSPException e) {
+			logger.error("error encoding revocation data", e);
+			throw new CMSException("error encoding revocation data", e);
+		}
+	}
+
+	/**
+	 * Determines the revocation status of the given certificate using this data
+	 * only: OCSP responses are looked up first, then CRLs issued by the
+	 * certificate's issuer; stale, untrusted or unrelated data is ignored.
+	 *
+	 * @param certificate
+	 *   the certificate to check.
+	 * @param issuer
+	 *   the certificate of the certificate's issuer.
+	 * @param ocsp
+	 *   the OCSP checker used to validate (and cache) the OCSP responses.
+	 * @return
+	 *   the certificate status, or null if this data cannot tell.
+	 */
+	public OCSPStatus getStatus(X509Certificate certificate, X509Certificate issuer, OCSPChecker ocsp) {
+		for(BasicOCSPResp response : responses) {
+			OCSPStatus status = ocsp.getStatus(response, certificate, issuer);
+			if(status == OCSPStatus.GOOD || status == OCSPStatus.REVOKED) {
+				logger.trace("status of '{}' from embedded OCSP response: {}", certificate.getSubjectX500Principal(), status);
+				return status;
+			}
+		}
+
+		Date now = new Date();
+		CertificateProfile profile = CertificateProfile.of(certificate);
+		CachedCRL state = null;
+		List<X509CRL> deltas = new ArrayList<>();
+		for(X509CRL crl : crls) {
+			if(!crl.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+				continue;
+			}
+			try {
+				CRL.verify(crl, issuer);
+				if(CRL.isDeltaCRL(crl)) {
+					if(isInScope(crl, certificate, profile.getFreshestCrlDistributionPoints()) || isInScope(crl, certificate, profile.getCrlDistributionPoints())) {
+						deltas.add(crl);
+					}
+				} else if(!isInScope(crl, certificate, profile.getCrlDistributionPoints())) {
+					logger.debug("embedded CRL from '{}' does not cover '{}', skipping", crl.getIssuerX500Principal(), certificate.getSubjectX500Principal());
+				} else if(state == null || isNewer(crl, state.getBase())) {
+					state = new CachedCRL(crl);
+				}
+			} catch(CRLException | IOException e) {
+				logger.warn("invalid embedded CRL from '{}', skipping", crl.getIssuerX500Principal());
+			}
+		}
+		if(state == null) {
+			return null;
+		}
+		for(X509CRL delta : deltas) {
+			try {
+				state = state.merge(delta);
+			} catch(IOException e) {
+				logger.warn("invalid embedded delta CRL from '{}', skipping", delta.getIssuerX500Principal());
+			}
+		}
+		if(state.isExpired(now)) {
+			logger.debug("embedded CRLs from '{}' are stale", issuer.getSubjectX500Principal());
+			return null;
+		}
+		OCSPStatus status = state.isRevoked(certificate) ? OCSPStatus.REVOKED : OCSPStatus.GOOD;
+		logger.trace("status of '{}' from embedded CRLs: {}", certificate.getSubjectX500Principal(), status);
+		return status;
+	}
+
+	/**
+	 * Returns whether the given CRL covers the certificate, as retrieved from
+	 * any of the given distribution points; embedded CRLs do not record where
+	 * they were downloaded from, so their "Issuing Distribution Point" must
+	 * match one of the certificate's own.
+	 */
+	private static boolean isInScope(X509CRL crl, X509Certificate certificate, List<String> distributionPoints) throws IOException {
+		if(distributionPoints.isEmpty()) {
+			return CRL.isInScope(crl, certificate, null);
+		}
+		for(String distributionPoint : distributionPoints) {
+			if(CRL.isInScope(crl, certificate, distributionPoint)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the first CRL is more recent than the second one, by CRL
+	 * number or, if unavailable, by issue time.
+	 */
+	private static boolean isNewer(X509CRL crl, X509CRL other) throws IOException {
+		BigInteger number = CRL.getCRLNumber(crl);
+		BigInteger otherNumber = CRL.getCRLNumber(other);
+		if(number == null || otherNumber == null) {
+			return crl.getThisUpdate().after(other.getThisUpdate());
+		}
+		return number.compareTo(otherNumber) > 0;
+	}
+}
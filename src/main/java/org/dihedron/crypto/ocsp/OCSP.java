@@ -0,0 +1,101 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.ocsp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.dihedron.core.License;
+
+/**
+ * Utility methods to extract OCSP related information from certificates, and
+ * access to the OCSP checker shared by all revocation checks.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public final class OCSP {
+
+	/**
+	 * The OCSP checker (and its response cache) shared by all revocation checks.
+	 */
+	private static final OCSPChecker checker = new OCSPChecker();
+
+	/**
+	 * Returns the OCSP checker shared by all revocation checks.
+	 *
+	 * @return
+	 *   the shared OCSP checker.
+	 */
+	public static OCSPChecker getChecker() {
+		return checker;
+	}
+
+	/**
+	 * Extracts all OCSP responder URLs from the "Authority Information Access"
+	 * extension in a X.509 certificate. If the extension is unavailable, returns
+	 * an empty list.
+	 *
+	 * @param certificate
+	 *   the certificate.
+	 * @return
+	 *   the list of OCSP responder URLs.
+	 * @throws IOException
+	 *   if the extension cannot be parsed.
+	 */
+	public static List<String> getOcspURLs(X509Certificate certificate) throws IOException {
+		return getAuthorityInformationAccessURLs(certificate, AccessDescription.id_ad_ocsp);
+	}
+
+	/**
+	 * Extracts all URLs of the given access method from the "Authority Information
+	 * Access" extension in a X.509 certificate. If the extension is unavailable,
+	 * returns an empty list.
+	 *
+	 * @param certificate
+	 *   the certificate.
+	 * @param method
+	 *   the access method, e.g. {@code AccessDescription.id_ad_ocsp}.
+	 * @return
+	 *   the list of URLs.
+	 * @throws IOException
+	 *   if the extension cannot be parsed.
+	 */
+	public static List<String> getAuthorityInformationAccessURLs(X509Certificate certificate, ASN1ObjectIdentifier method) throws IOException {
+		List<String> urls = new ArrayList<>();
+		byte[] extension = certificate.getExtensionValue(Extension.authorityInfoAccess.getId());
+		if(extension == null) {
+			return urls;
+		}
+		try(ASN1InputStream stream = new ASN1InputStream(new ByteArrayInputStream(extension))) {
+			byte[] octets = ((DEROctetString) stream.readObject()).getOctets();
+			try(ASN1InputStream stream2 = new ASN1InputStream(new ByteArrayInputStream(octets))) {
+				for(AccessDescription description : AuthorityInformationAccess.getInstance(stream2.readObject()).getAccessDescriptions()) {
+					GeneralName location = description.getAccessLocation();
+					if(description.getAccessMethod().equals(method) && location.getTagNo() == GeneralName.uniformResourceIdentifier) {
+						urls.add(DERIA5String.getInstance(location.getName()).getString());
+					}
+				}
+			}
+		}
+		return urls;
+	}
+
+	/**
+	 * Private constructor, to prevent instantiation.
+	 */
+	private OCSP() {
+	}
+}
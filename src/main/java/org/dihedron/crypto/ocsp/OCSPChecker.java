@@ -0,0 +1,546 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.ocsp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.CertException;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateProfile;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.crypto.exceptions.CertificateVerificationException;
+import org.dihedron.crypto.providers.ProviderSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An OCSP client; it reads the OCSP responder URLs from the certificates'
+ * "Authority Information Access" extension, batches several certificates
+ * from the same issuer into a single OCSP request, and caches the responses
+ * until their "next update" time (or for at most a configurable age), so that
+ * repeated checks on the same certificates do not hit the network. The cache
+ * is bounded, and the least recently used responses are evicted first.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class OCSPChecker {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(OCSPChecker.class);
+
+	/**
+	 * The default maximum number of certificates per OCSP request.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 20;
+
+	/**
+	 * The default connection timeout, in milliseconds.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * The default read timeout, in milliseconds.
+	 */
+	public static final int DEFAULT_READ_TIMEOUT = 10000;
+
+	/**
+	 * The default maximum number of cached responses.
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/**
+	 * The default maximum age of a cached response, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_AGE = 60 * 60 * 1000L;
+
+	/**
+	 * The cached responses, by certificate id, in access order.
+	 */
+	private final Map<CertificateID, CachedResponse> cache;
+
+	/**
+	 * The maximum age of a cached response, in milliseconds.
+	 */
+	private long maxAge = DEFAULT_MAX_AGE;
+
+	/**
+	 * The maximum number of certificates per OCSP request.
+	 */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * The connection timeout, in milliseconds.
+	 */
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	/**
+	 * The read timeout, in milliseconds.
+	 */
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+	/**
+	 * Constructor, caching up to {@link #DEFAULT_CAPACITY} responses.
+	 */
+	public OCSPChecker() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *   the maximum number of cached responses.
+	 */
+	public OCSPChecker(final int capacity) {
+		this.cache = new LinkedHashMap<CertificateID, CachedResponse>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<CertificateID, CachedResponse> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Sets the maximum age of a cached response: past it, the responder is
+	 * queried again even if the response has not reached its "next update"
+	 * time yet.
+	 *
+	 * @param maxAge
+	 *   the maximum age, in milliseconds.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public OCSPChecker setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of certificates per OCSP request.
+	 *
+	 * @param batchSize
+	 *   the maximum number of certificates per request.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public OCSPChecker setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+
+	/**
+	 * Sets the connection and read timeouts.
+	 *
+	 * @param connectTimeout
+	 *   the connection timeout, in milliseconds.
+	 * @param readTimeout
+	 *   the read timeout, in milliseconds.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public OCSPChecker setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * Checks the revocation status of a single certificate.
+	 *
+	 * @param certificate
+	 *   the certificate to check.
+	 * @param issuer
+	 *   the certificate of the certificate's issuer.
+	 * @return
+	 *   the certificate status, or null if no OCSP responder could provide it.
+	 * @throws CertificateVerificationException
+	 *   if the OCSP request cannot be prepared.
+	 */
+	public OCSPStatus check(X509Certificate certificate, X509Certificate issuer) throws CertificateVerificationException {
+		return check(Collections.singletonList(certificate), issuer).get(certificate);
+	}
+
+	/**
+	 * Checks the revocation status of a set of certificates, all issued by the
+	 * same issuer; statuses are taken from the cache where available, whereas
+	 * the remaining certificates are batched into as few requests as possible.
+	 *
+	 * @param certificates
+	 *   the certificates to check.
+	 * @param issuer
+	 *   the certificate of the certificates' issuer.
+	 * @return
+	 *   a map of certificate statuses; certificates whose status could not be
+	 *   determined (no responder, network errors, untrusted responses) are not
+	 *   in the map.
+	 * @throws CertificateVerificationException
+	 *   if the OCSP requests cannot be prepared.
+	 */
+	public Map<X509Certificate, OCSPStatus> check(Collection<X509Certificate> certificates, X509Certificate issuer) throws CertificateVerificationException {
+		Map<X509Certificate, OCSPStatus> statuses = new HashMap<>();
+		try {
+			Date now = new Date();
+			X509CertificateHolder issuerHolder = new JcaX509CertificateHolder(issuer);
+			DigestCalculator digest = ProviderSelector.getDefault().getDigestCalculatorProvider().get(CertificateID.HASH_SHA1);
+
+			// serve what we can from the cache, and group the rest by responder
+			Map<String, Map<CertificateID, X509Certificate>> pending = new LinkedHashMap<>();
+			for(X509Certificate certificate : certificates) {
+				CertificateID id = new CertificateID(digest, issuerHolder, certificate.getSerialNumber());
+				CachedResponse cached = getCached(id, now);
+				if(cached != null) {
+					logger.trace("using cached OCSP response for certificate '{}'", certificate.getSubjectX500Principal());
+					statuses.put(certificate, cached.getStatus());
+					continue;
+				}
+				CertificateProfile profile = CertificateProfile.of(certificate);
+				if(!profile.hasValidRevocationInformation()) {
+					throw new IOException("invalid authority information access in certificate " + certificate.getSubjectX500Principal());
+				}
+				List<String> urls = profile.getOcspURLs();
+				if(urls.isEmpty()) {
+					logger.trace("no OCSP responder for certificate '{}'", certificate.getSubjectX500Principal());
+					continue;
+				}
+				if(!pending.containsKey(urls.get(0))) {
+					pending.put(urls.get(0), new LinkedHashMap<CertificateID, X509Certificate>());
+				}
+				pending.get(urls.get(0)).put(id, certificate);
+			}
+
+			// now query each responder, in batches
+			for(Map.Entry<String, Map<CertificateID, X509Certificate>> entry : pending.entrySet()) {
+				List<CertificateID> ids = new ArrayList<>(entry.getValue().keySet());
+				for(int i = 0; i < ids.size(); i += batchSize) {
+					query(entry.getKey(), ids.subList(i, Math.min(ids.size(), i + batchSize)), entry.getValue(), issuerHolder, statuses);
+				}
+			}
+			return statuses;
+		} catch(OperatorCreationException | OCSPException | CertificateEncodingException e) {
+			logger.error("error preparing OCSP request", e);
+			throw new CertificateVerificationException("error preparing OCSP request", e);
+		} catch(IOException e) {
+			logger.error("error parsing certificate to get OCSP responders", e);
+			throw new CertificateVerificationException("error parsing certificate to get OCSP responders", e);
+		}
+	}
+
+	/**
+	 * Returns the cached (and still fresh) OCSP response for the given certificate,
+	 * if any.
+	 *
+	 * @param certificate
+	 *   the certificate.
+	 * @param issuer
+	 *   the certificate of the certificate's issuer.
+	 * @return
+	 *   the OCSP response, or null if none available.
+	 */
+	public BasicOCSPResp getResponse(X509Certificate certificate, X509Certificate issuer) {
+		try {
+			DigestCalculator digest = ProviderSelector.getDefault().getDigestCalculatorProvider().get(CertificateID.HASH_SHA1);
+			CachedResponse cached = getCached(new CertificateID(digest, new JcaX509CertificateHolder(issuer), certificate.getSerialNumber()), new Date());
+			if(cached != null) {
+				return cached.response;
+			}
+		} catch(OperatorCreationException | OCSPException | CertificateEncodingException e) {
+			logger.warn("error computing OCSP certificate id", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Extracts the status of the given certificate from an OCSP response obtained
+	 * elsewhere (e.g. embedded in a signature); the response is only used if it
+	 * is signed by the issuer or by an authorised responder, and if it is still
+	 * fresh, in which case it is cached as if it had been fetched.
+	 *
+	 * @param response
+	 *   the OCSP response.
+	 * @param certificate
+	 *   the certificate whose status is requested.
+	 * @param issuer
+	 *   the certificate of the certificate's issuer.
+	 * @return
+	 *   the certificate status, or null if the response does not provide a
+	 *   trustworthy and fresh status for the certificate.
+	 */
+	public OCSPStatus getStatus(BasicOCSPResp response, X509Certificate certificate, X509Certificate issuer) {
+		try {
+			X509CertificateHolder issuerHolder = new JcaX509CertificateHolder(issuer);
+			DigestCalculator digest = ProviderSelector.getDefault().getDigestCalculatorProvider().get(CertificateID.HASH_SHA1);
+			CertificateID id = new CertificateID(digest, issuerHolder, certificate.getSerialNumber());
+			Date now = new Date();
+			for(SingleResp single : response.getResponses()) {
+				if(!single.getCertID().equals(id)) {
+					continue;
+				}
+				CachedResponse cached = new CachedResponse(response, single);
+				if(!cached.isFresh(now)) {
+					logger.debug("OCSP response for certificate '{}' is stale", certificate.getSubjectX500Principal());
+					return null;
+				}
+				if(!isTrusted(response, issuerHolder)) {
+					logger.warn("OCSP response for certificate '{}' is not signed by the issuer or by an authorised responder", certificate.getSubjectX500Principal());
+					return null;
+				}
+				putCached(id, cached);
+				return cached.getStatus();
+			}
+		} catch(OperatorCreationException | OCSPException | CertificateEncodingException e) {
+			logger.warn("error computing OCSP certificate id", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes all cached responses.
+	 */
+	public void clear() {
+		synchronized(cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of cached responses, including those that have 
+	 * expired but have not been looked up since.
+	 *
+	 * @return
+	 *   the number of cached responses.
+	 */
+	public int size() {
+		synchronized(cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Sends a DER-encoded OCSP request to the given responder, returning the
+	 * DER-encoded response.
+	 *
+	 * @param url
+	 *   the responder URL.
+	 * @param request
+	 *   the DER-encoded OCSP request.
+	 * @return
+	 *   the DER-encoded OCSP response.
+	 * @throws IOException
+	 *   if the responder cannot be reached, or returns an error.
+	 */
+	protected byte[] post(String url, byte[] request) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+		try {
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "application/ocsp-request");
+			connection.setRequestProperty("Accept", "application/ocsp-response");
+			try(OutputStream output = connection.getOutputStream()) {
+				output.write(request);
+			}
+			if(connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				throw new IOException("OCSP responder at '" + url + "' returned HTTP status " + connection.getResponseCode());
+			}
+			try(InputStream input = connection.getInputStream(); ByteArrayOutputStream output = new ByteArrayOutputStream()) {
+				Streams.copy(input, output);
+				return output.toByteArray();
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Queries an OCSP responder about a batch of certificates, and collects the
+	 * statuses into the given map.
+	 */
+	private void query(String url, List<CertificateID> ids, Map<CertificateID, X509Certificate> certificates, X509CertificateHolder issuer, Map<X509Certificate, OCSPStatus> statuses) throws OCSPException {
+		OCSPReqBuilder builder = new OCSPReqBuilder();
+		for(CertificateID id : ids) {
+			builder.addRequest(id);
+		}
+		try {
+			logger.debug("querying OCSP responder at '{}' for {} certificates", url, ids.size());
+			OCSPResp response = new OCSPResp(post(url, builder.build().getEncoded()));
+			if(response.getStatus() != OCSPResp.SUCCESSFUL) {
+				logger.warn("OCSP responder at '{}' returned status {}", url, response.getStatus());
+				return;
+			}
+			BasicOCSPResp basic = (BasicOCSPResp)response.getResponseObject();
+			if(basic == null || !isTrusted(basic, issuer)) {
+				logger.warn("OCSP response from '{}' is not signed by the issuer or by an authorised responder", url);
+				return;
+			}
+			Date now = new Date();
+			for(SingleResp single : basic.getResponses()) {
+				X509Certificate certificate = certificates.get(single.getCertID());
+				if(certificate == null || !ids.contains(single.getCertID())) {
+					logger.trace("discarding unrequested response for serial {}", single.getCertID().getSerialNumber());
+					continue;
+				}
+				CachedResponse cached = new CachedResponse(basic, single);
+				if(single.getNextUpdate() != null && single.getNextUpdate().before(now)) {
+					logger.warn("stale OCSP response from '{}' for certificate '{}'", url, certificate.getSubjectX500Principal());
+					continue;
+				}
+				statuses.put(certificate, cached.getStatus());
+				if(single.getNextUpdate() != null) {
+					putCached(single.getCertID(), cached);
+				}
+			}
+		} catch(IOException e) {
+			logger.warn("error querying OCSP responder at '" + url + "'", e);
+		}
+	}
+
+	/**
+	 * Returns the cached response for the given certificate id if it is still
+	 * fresh and not older than the maximum age, dropping it otherwise.
+	 */
+	private CachedResponse getCached(CertificateID id, Date now) {
+		synchronized(cache) {
+			CachedResponse cached = cache.get(id);
+			if(cached != null && !(cached.isFresh(now) && now.getTime() - cached.created < maxAge)) {
+				logger.trace("dropping expired OCSP response for serial {}", id.getSerialNumber());
+				cache.remove(id);
+				cached = null;
+			}
+			return cached;
+		}
+	}
+
+	/**
+	 * Caches a response.
+	 */
+	private void putCached(CertificateID id, CachedResponse cached) {
+		synchronized(cache) {
+			cache.put(id, cached);
+		}
+	}
+
+	/**
+	 * Checks whether the response was signed either by the issuer itself or by
+	 * an OCSP responder authorised by the issuer.
+	 */
+	private static boolean isTrusted(BasicOCSPResp response, X509CertificateHolder issuer) {
+		if(isSignedBy(response, issuer)) {
+			return true;
+		}
+		for(X509CertificateHolder responder : response.getCerts()) {
+			try {
+				if(responder.getIssuer().equals(issuer.getSubject())
+						&& responder.isValidOn(new Date())
+						&& responder.getExtensions() != null
+						&& ExtendedKeyUsage.fromExtensions(responder.getExtensions()) != null
+						&& ExtendedKeyUsage.fromExtensions(responder.getExtensions()).hasKeyPurposeId(KeyPurposeId.id_kp_OCSPSigning)
+						&& responder.isSignatureValid(new JcaContentVerifierProviderBuilder().setProvider("BC").build(issuer))
+						&& isSignedBy(response, responder)) {
+					return true;
+				}
+			} catch(OperatorCreationException | CertException | CertificateException e) {
+				logger.warn("error validating delegated OCSP responder '{}'", responder.getSubject());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether the response was signed by the given certificate's key.
+	 */
+	private static boolean isSignedBy(BasicOCSPResp response, X509CertificateHolder signer) {
+		try {
+			return response.isSignatureValid(new JcaContentVerifierProviderBuilder().setProvider("BC").build(signer));
+		} catch(OperatorCreationException | OCSPException | CertificateException e) {
+			logger.trace("OCSP response not signed by '{}'", signer.getSubject());
+			return false;
+		}
+	}
+
+	/**
+	 * A single certificate status, along with the response it was taken from.
+	 */
+	private static class CachedResponse {
+
+		/**
+		 * The full (signed) response.
+		 */
+		private final BasicOCSPResp response;
+
+		/**
+		 * The response about the single certificate.
+		 */
+		private final SingleResp single;
+
+		/**
+		 * When the response was cached, in milliseconds since the epoch.
+		 */
+		private final long created = System.currentTimeMillis();
+
+		/**
+		 * Constructor.
+		 */
+		CachedResponse(BasicOCSPResp response, SingleResp single) {
+			this.response = response;
+			this.single = single;
+		}
+
+		/**
+		 * Returns whether the response is still within its validity period.
+		 */
+		boolean isFresh(Date now) {
+			return single.getNextUpdate() != null && single.getNextUpdate().after(now);
+		}
+
+		/**
+		 * Returns the certificate status.
+		 */
+		OCSPStatus getStatus() {
+			CertificateStatus status = single.getCertStatus();
+			if(status == CertificateStatus.GOOD) {
+				return OCSPStatus.GOOD;
+			} else if(status instanceof RevokedStatus) {
+				return OCSPStatus.REVOKED;
+			}
+			return OCSPStatus.UNKNOWN;
+		}
+	}
+}
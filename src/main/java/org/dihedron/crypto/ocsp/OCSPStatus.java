@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.ocsp;
+
+import org.dihedron.core.License;
+
+/**
+ * The possible certificate statuses, as reported by an OCSP responder.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public enum OCSPStatus {
+	
+	/**
+	 * The certificate is not revoked.
+	 */
+	GOOD,
+	
+	/**
+	 * The certificate has been revoked.
+	 */
+	REVOKED,
+	
+	/**
+	 * The responder does not know about the certificate.
+	 */
+	UNKNOWN
+}
@@ -0,0 +1,11 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+
+/**
+ * The package containing classes supporting certificate revocation checks 
+ * through the Online Certificate Status Protocol (OCSP).
+ * 
+ * @author Andrea Funto'
+ */
+package org.dihedron.crypto.ocsp;
@@ -3,6 +3,9 @@
  */ 
 package org.dihedron.crypto.operations.decrypt;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import org.dihedron.core.License;
 import org.dihedron.crypto.exceptions.CryptoException;
 
@@ -24,7 +27,7 @@ public abstract class Decryptor {
 	public abstract boolean initialise(Object... parameters) throws CryptoException;
 	
 	/**
-	 * Encrypts the given byte array, returning the encrypted bytes.
+	 * Decrypts the given byte array, returning the plain text bytes.
 	 * 
 	 * @param ciphertext
 	 *   the encrypted data to be decrypted.
@@ -32,5 +35,16 @@ public abstract class Decryptor {
 	 *   the plain text data.
 	 */
 	public abstract byte[] decrypt(byte [] ciphertext) throws CryptoException; 
+	
+	/**
+	 * Decrypts the data read from the given input stream, writing the plain 
+	 * text to the given output stream as it goes; neither stream is closed.
+	 * 
+	 * @param ciphertext
+	 *   the stream from which the encrypted data is read.
+	 * @param plaintext
+	 *   the stream to which the plain text data is written.
+	 */
+	public abstract void decrypt(InputStream ciphertext, OutputStream plaintext) throws CryptoException;
 }
 
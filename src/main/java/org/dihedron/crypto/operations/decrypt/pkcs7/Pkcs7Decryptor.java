@@ -1,140 +1,616 @@
 /**
  * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
- */ 
+ */
 package org.dihedron.crypto.operations.decrypt.pkcs7;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1OctetStringParser;
+import org.bouncycastle.asn1.ASN1SequenceParser;
+import org.bouncycastle.asn1.ASN1SetParser;
+import org.bouncycastle.asn1.ASN1StreamParser;
+import org.bouncycastle.asn1.BERTags;
+import org.bouncycastle.asn1.cms.AuthEnvelopedDataParser;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfoParser;
+import org.bouncycastle.asn1.cms.EncryptedContentInfoParser;
+import org.bouncycastle.asn1.cms.GCMParameters;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.KeyAgreeRecipientIdentifier;
+import org.bouncycastle.asn1.cms.KeyAgreeRecipientInfo;
+import org.bouncycastle.asn1.cms.KeyTransRecipientInfo;
+import org.bouncycastle.asn1.cms.OriginatorPublicKey;
+import org.bouncycastle.asn1.cms.RecipientEncryptedKey;
+import org.bouncycastle.asn1.cms.RecipientIdentifier;
+import org.bouncycastle.asn1.cms.RecipientInfo;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cms.CMSEnvelopedDataParser;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSTypedStream;
+import org.bouncycastle.cms.KeyAgreeRecipientId;
+import org.bouncycastle.cms.KeyTransRecipientId;
+import org.bouncycastle.cms.Recipient;
+import org.bouncycastle.cms.RecipientId;
+import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.jcajce.JceKeyAgreeEnvelopedRecipient;
+import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
 import org.dihedron.core.License;
-import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.crypto.KeyRing;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
 import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.exceptions.UnsupportedFormatException;
 import org.dihedron.crypto.operations.decrypt.Decryptor;
+import org.dihedron.crypto.providers.AutoCloseableProvider;
+import org.dihedron.crypto.providers.ProviderSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Decrypts PKCS#7/CMS envelopes (EnvelopedData, and AuthEnvelopedData with
+ * AES-GCM) for any of the private keys in a key ring, in bounded memory: the
+ * envelope is parsed as it is read and the plain text is written out as soon
+ * as it is decrypted. The content encryption key is decrypted through the key
+ * ring's own provider, so that keys on PKCS#11 tokens (or in the Windows key
+ * store) never leave the device; the content itself is decrypted in software.
+ * Recipients using ECDH key agreement are supported too, but the agreement is
+ * performed in software (by BouncyCastle, unless a provider is forced through
+ * {@link ProviderSelector}), so their keys must be software keys. Likewise,
+ * GCM content is decrypted by BouncyCastle, which releases the plain text as 
+ * it goes, unless a provider is forced: then the forced provider is used, 
+ * and it must support the algorithm or decryption fails. Since the GCM tag
+ * comes after the content, the plain text of AuthEnvelopedData is held back
+ * in memory (up to {@link #setBufferLimit(long)} bytes) and only written out
+ * once it has been authenticated, unless early release of unauthenticated
+ * plain text is explicitly enabled through {@link #setReleaseUnverified(boolean)}.
+ *
  * @author Andrea Funto'
  */
 @License
 public class Pkcs7Decryptor extends Decryptor {
-	
+
 	/**
 	 * The logger
 	 */
-//	private static final Logger logger = LoggerFactory.getLogger(Pkcs7Decryptor.class);
+	private static final Logger logger = LoggerFactory.getLogger(Pkcs7Decryptor.class);
 
 	/**
-	 * Initialises the object and prepares it for signing.
-	 * 
+	 * The size of the buffer used when copying data.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The number of bytes that may need to be read to find the content type.
+	 */
+	private static final int HEADER_SIZE = 64;
+
+	/**
+	 * The default maximum size of the authenticated plain text held back until
+	 * it has been verified.
+	 */
+	public static final long DEFAULT_BUFFER_LIMIT = 64L * 1024 * 1024;
+
+	/**
+	 * The key ring holding the recipients' private keys.
+	 */
+	private KeyRing keyring = null;
+
+	/**
+	 * The provider giving access to the private keys, or null for software keys.
+	 */
+	private Provider provider = null;
+
+	/**
+	 * The password of the private keys, if different from the key store's.
+	 */
+	private String password = null;
+
+	/**
+	 * The maximum size of the authenticated plain text held back until it has
+	 * been verified.
+	 */
+	private long bufferLimit = DEFAULT_BUFFER_LIMIT;
+
+	/**
+	 * Whether authenticated plain text is written out before it is verified.
+	 */
+	private boolean releaseUnverified = false;
+
+	/**
+	 * Sets the maximum size of the plain text of an AuthEnvelopedData that is
+	 * held back in memory until the authentication tag has been verified; 
+	 * larger contents make decryption fail (use the segmented format for 
+	 * them), unless early release is enabled.
+	 *
+	 * @param bufferLimit
+	 *   the maximum size of the held back plain text, in bytes.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public Pkcs7Decryptor setBufferLimit(long bufferLimit) {
+		this.bufferLimit = bufferLimit;
+		return this;
+	}
+
+	/**
+	 * Sets whether the plain text of an AuthEnvelopedData may be written out
+	 * as it is decrypted, before the authentication tag has been verified; if
+	 * so, whatever was written must be discarded when decryption fails. It is 
+	 * disabled by default.
+	 *
+	 * @param releaseUnverified
+	 *   whether unauthenticated plain text may be released.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public Pkcs7Decryptor setReleaseUnverified(boolean releaseUnverified) {
+		this.releaseUnverified = releaseUnverified;
+		return this;
+	}
+
+	/**
+	 * Initialises the object and prepares it for decryption.
+	 *
 	 * @param parameters
 	 *   can be one of the following options:<ol>
-	 *   <li>an X.509 certificate</li>
-	 *   <li>a CertificateLoade and its associated Properties</li>
+	 *   <li>a KeyRing holding software keys</li>
+	 *   <li>a KeyRing and the Provider giving access to its keys (e.g. the
+	 *   PKCS#11 provider of a smart card)</li>
+	 *   <li>a KeyRing, its Provider (possibly null) and the password of the
+	 *   private keys</li>
 	 *   </ol>
 	 * @return
 	 *   whether the object has been properly initialised.
-	 * @throws CertificateLoaderException 
-	 * @see org.dihedron.crypto.operations.encrypt.Encryptor#initialise(java.lang.Object[])
+	 * @see org.dihedron.crypto.operations.decrypt.Decryptor#initialise(java.lang.Object[])
 	 */
 	@Override
-	public boolean initialise(Object... parameters) throws CertificateLoaderException {
-		// TODO: implement
-		/*
-		if(parameters.length == 1) {
-			if(parameters[0] != null && parameters[0] instanceof X509Certificate) {
-				certificate = (X509Certificate)parameters[0];
-				return true;
-			} else {
-				logger.error("invalid input parameters: expected X509Certificate, got {}", parameters[0] == null ? "null" : parameters[0].getClass().getName());
-			}
-		} else if(parameters.length == 2) {
-			CertificateLoader loader = null;
-			Properties properties = null;
-			if(parameters[0] != null && parameters[0] instanceof CertificateLoader) {
-				loader = (CertificateLoader)parameters[0];				
+	public boolean initialise(Object... parameters) {
+		if(parameters.length < 1 || parameters.length > 3) {
+			logger.error("invalid input parameters: expected 1 to 3, got {}", parameters.length);
+			return false;
+		}
+		if(parameters[0] instanceof KeyRing) {
+			keyring = (KeyRing)parameters[0];
+		} else {
+			logger.error("invalid input parameters: expected KeyRing, got {}", parameters[0] == null ? "null" : parameters[0].getClass().getName());
+			return false;
+		}
+		if(parameters.length > 1) {
+			if(parameters[1] instanceof AutoCloseableProvider) {
+				provider = ((AutoCloseableProvider)parameters[1]).getWrappedProvider();
+			} else if(parameters[1] == null || parameters[1] instanceof Provider) {
+				provider = (Provider)parameters[1];
 			} else {
-				logger.error("invalid input parameters: expected CertificateLoader, got {}", parameters[0] == null ? "null" : parameters[0].getClass().getName());
+				logger.error("invalid input parameters: expected Provider, got {}", parameters[1].getClass().getName());
+				return false;
 			}
-			if(parameters[1] != null && parameters[1] instanceof Properties) {
-				properties = (Properties)parameters[1];
+		}
+		if(parameters.length > 2) {
+			if(parameters[2] == null || parameters[2] instanceof String) {
+				password = (String)parameters[2];
 			} else {
-				logger.error("invalid input parameters: expected Properties, got {}", parameters[0] == null ? "null" : parameters[0].getClass().getName());
+				logger.error("invalid input parameters: expected String, got {}", parameters[2].getClass().getName());
+				return false;
 			}
-			certificate = (X509Certificate)loader.loadCertificate(properties);
 		}
-		return false;
-		*/
 		return true;
 	}
 
+	/**
+	 * @see org.dihedron.crypto.operations.decrypt.Decryptor#decrypt(byte[])
+	 */
 	@Override
 	public byte[] decrypt(byte[] ciphertext) throws CryptoException {
-		// TODO: implement
-		/*
+		ByteArrayOutputStream plaintext = new ByteArrayOutputStream(ciphertext.length);
+		// the plain text never leaves this method unless it is authenticated
+		decrypt(new ByteArrayInputStream(ciphertext), plaintext, true);
+		return plaintext.toByteArray();
+	}
+
+	/**
+	 * Decrypts an envelope for the first of its recipients whose private key is
+	 * in the key ring. With AuthEnvelopedData, the plain text is only written 
+	 * out once the authentication tag (which comes last) has been checked, 
+	 * unless early release has been enabled.
+	 *
+	 * @see org.dihedron.crypto.operations.decrypt.Decryptor#decrypt(java.io.InputStream, java.io.OutputStream)
+	 * @see #setReleaseUnverified(boolean)
+	 */
+	@Override
+	public void decrypt(InputStream ciphertext, OutputStream plaintext) throws CryptoException {
+		decrypt(ciphertext, plaintext, releaseUnverified);
+	}
+
+	/**
+	 * Decrypts an envelope, possibly writing out unauthenticated plain text.
+	 */
+	private void decrypt(InputStream ciphertext, OutputStream plaintext, boolean release) throws CryptoException {
+		if(keyring == null) {
+			logger.error("decryptor not initialised");
+			throw new CryptoException("decryptor not initialised");
+		}
+		InputStream input = ciphertext.markSupported() ? ciphertext : new BufferedInputStream(ciphertext, BUFFER_SIZE);
+		try {
+			ASN1ObjectIdentifier type = getContentType(input);
+			logger.debug("decrypting content of type {}", type);
+			if(CMSObjectIdentifiers.envelopedData.equals(type)) {
+				decryptEnvelopedData(input, plaintext);
+			} else if(CMSObjectIdentifiers.authEnvelopedData.equals(type)) {
+				decryptAuthEnvelopedData(input, plaintext, release);
+			} else {
+				logger.error("unsupported content type: {}", type);
+				throw new UnsupportedFormatException("unsupported content type: " + type);
+			}
+		} catch (CMSException e) {
+			logger.error("CMS exception", e);
+			throw new CryptoException("error decrypting envelope", e);
+		} catch (IOException | ClassCastException e) {
+			logger.error("error reading envelope", e);
+			throw new CryptoException("error reading envelope", e);
+		}
+	}
+
+	/**
+	 * Reads the content type of the ContentInfo at the beginning of the stream,
+	 * without consuming it.
+	 */
+	private static ASN1ObjectIdentifier getContentType(InputStream input) throws IOException {
+		input.mark(HEADER_SIZE);
 		try {
-			logger.info("decrypting data through certificate supporting algorithm: '{}'", certificate.getPublicKey().getAlgorithm());
-			
-//			X509CertificateEngine generator = new X509CertificateEngine(  
-//                    "CA.p12", "PASSWORD",  
-//                    "IdentityGardenCA");  
-			
-			CMSEnvelopedData ced = new CMSEnvelopedData(ciphertext);  
-            Collection recip = ced.getRecipientInfos().getRecipients();  
-  
-            KeyTransRecipientInformation rinfo = (KeyTransRecipientInformation)recip.iterator().next();  
-  
-            byte[] contents = rinfo .getContent(generator.getCertificatePrivateKey( user2P12,  
-                            "testUsr2Pwd"), "BC");  
-  
-            System.out.println(contents);  			
-			  
-			String[] issuerInfo = certificate.getIssuerDN().getName().split("(=|, )", -1);
-			String[] subjectInfo = certificate.getSubjectDN().getName().split("(=|, )", -1);
-	
-			logger.debug("common name (CN) : '{}'", subjectInfo[3]);
-			logger.debug("address          : '{}'", subjectInfo[1]);
-	
-			for (int i = 0; i < issuerInfo.length; i += 2){
-				if (issuerInfo[i].equals("C")) {
-					logger.debug("CountryName : '{}'", issuerInfo[i + 1]);
+			return new ContentInfoParser((ASN1SequenceParser)new ASN1StreamParser(input).readObject()).getContentType();
+		} finally {
+			input.reset();
+		}
+	}
+
+	/**
+	 * Decrypts an EnvelopedData through BouncyCastle's streaming parser.
+	 */
+	private void decryptEnvelopedData(InputStream input, OutputStream output) throws CMSException, IOException, CryptoException {
+		CMSEnvelopedDataParser parser = new CMSEnvelopedDataParser(input);
+		try {
+			List<RecipientInformation> infos = new ArrayList<>();
+			List<RecipientId> recipients = new ArrayList<>();
+			for(Object info : parser.getRecipientInfos().getRecipients()) {
+				infos.add((RecipientInformation)info);
+				recipients.add(((RecipientInformation)info).getRID());
+			}
+			Match match = findRecipient(recipients);
+			RecipientInformation recipient = infos.get(match.index);
+
+			ContentEncryptionAlgorithm algorithm = ContentEncryptionAlgorithm.fromOID(parser.getContentEncryptionAlgorithm().getAlgorithm());
+			if(algorithm == null) {
+				logger.error("unsupported content encryption algorithm: {}", parser.getEncryptionAlgOID());
+				throw new UnsupportedFormatException("unsupported content encryption algorithm: " + parser.getEncryptionAlgOID());
+			}
+			logger.info("decrypting content encrypted with {}", algorithm);
+			Recipient decryptor;
+			if(recipient.getRID() instanceof KeyAgreeRecipientId) {
+				decryptor = new JceKeyAgreeEnvelopedRecipient(match.key).setProvider(ProviderSelector.getDefault().getKeyAgreementProvider(recipient.getKeyEncryptionAlgOID())).setContentProvider(ProviderSelector.getDefault().getCipherProvider(algorithm));
+			} else {
+				decryptor = new KeyRingRecipient(match.key, provider, algorithm).setContentProvider(ProviderSelector.getDefault().getCipherProvider(algorithm));
+			}
+			CMSTypedStream content = recipient.getContentStream(decryptor);
+			Streams.copy(content.getContentStream(), output);
+			logger.info("... decryption done!");
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Decrypts an AuthEnvelopedData with AES-GCM content encryption; since
+	 * BouncyCastle has no streaming parser for it, the structure is walked here.
+	 * Unless released early, the plain text is held back until verified.
+	 */
+	private void decryptAuthEnvelopedData(InputStream input, OutputStream sink, boolean release) throws CMSException, IOException, CryptoException {
+		ContentInfoParser contentInfo = new ContentInfoParser((ASN1SequenceParser)new ASN1StreamParser(input).readObject());
+		AuthEnvelopedDataParser data = new AuthEnvelopedDataParser((ASN1SequenceParser)contentInfo.getContent(BERTags.SEQUENCE));
+
+		List<RecipientInfo> infos = new ArrayList<>();
+		ASN1SetParser set = data.getRecipientInfos();
+		ASN1Encodable object;
+		while((object = set.readObject()) != null) {
+			infos.add(RecipientInfo.getInstance(object.toASN1Primitive()));
+		}
+
+		EncryptedContentInfoParser content = data.getAuthEncryptedContentInfo();
+		AlgorithmIdentifier identifier = content.getContentEncryptionAlgorithm();
+		ContentEncryptionAlgorithm algorithm = ContentEncryptionAlgorithm.fromOID(identifier.getAlgorithm());
+		if(algorithm == null || !algorithm.isAuthenticated()) {
+			logger.error("unsupported authenticated content encryption algorithm: {}", identifier.getAlgorithm());
+			throw new UnsupportedFormatException("unsupported authenticated content encryption algorithm: " + identifier.getAlgorithm());
+		}
+		logger.info("decrypting content encrypted with {}", algorithm);
+
+		byte[] secret = getContentEncryptionKey(infos, identifier);
+		HeldBack held = release ? null : new HeldBack();
+		try {
+			GCMParameters parameters = GCMParameters.getInstance(identifier.getParameters());
+			// BouncyCastle's GCM releases the plain text as it goes, other providers
+			// (if forced) may hold all of it back until the tag has been checked
+			Provider gcm = ProviderSelector.getDefault().getProvider(ProviderSelector.Service.CIPHER, algorithm.getTransformation(), algorithm.getKeySize(), "BC");
+			Cipher cipher = Cipher.getInstance(algorithm.getTransformation(), gcm);
+			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new GCMParameterSpec(parameters.getIcvLen() * 8, parameters.getNonce()));
+
+			InputStream encrypted = ((ASN1OctetStringParser)content.getEncryptedContent(BERTags.OCTET_STRING)).getOctetStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int length;
+			while((length = encrypted.read(buffer)) != -1) {
+				byte[] decrypted = cipher.update(buffer, 0, length);
+				if(decrypted != null) {
+					write(decrypted, sink, held);
+				}
+			}
+			if(data.getAuthAttrs() != null) {
+				// they would have to be fed to the cipher before the content
+				logger.error("authenticated attributes are not supported");
+				throw new UnsupportedFormatException("authenticated attributes are not supported");
+			}
+			ASN1OctetString mac = data.getMac();
+			write(cipher.doFinal(mac.getOctets()), sink, held);
+			if(held != null) {
+				held.writeTo(sink);
+			}
+			logger.info("... decryption done, content authenticated!");
+		} catch (GeneralSecurityException e) {
+			logger.error("error decrypting or authenticating content", e);
+			throw new CryptoException("error decrypting or authenticating content", e);
+		} finally {
+			Arrays.fill(secret, (byte)0);
+			if(held != null) {
+				held.wipe();
+			}
+		}
+	}
+
+	/**
+	 * Writes decrypted data either to the sink or, if not yet authenticated, to
+	 * the held back plain text, within the buffer limit.
+	 */
+	private void write(byte[] data, OutputStream sink, HeldBack held) throws IOException, CryptoException {
+		if(held == null) {
+			sink.write(data);
+		} else if(held.size() + (long)data.length > bufferLimit) {
+			logger.error("authenticated content exceeds {} bytes, cannot hold it back until verified", bufferLimit);
+			throw new CryptoException("authenticated content exceeds " + bufferLimit + " bytes, cannot hold it back until verified");
+		} else {
+			held.write(data, 0, data.length);
+		}
+	}
+
+	/**
+	 * Recovers the content encryption key of an envelope, for the first of its 
+	 * key transport or key agreement recipients whose private key is in the key 
+	 * ring; this allows to operate on the envelope without decrypting its 
+	 * content, e.g. to add recipients to it.
+	 * 
+	 * @param infos
+	 *   the recipient information structures of the envelope.
+	 * @param contentEncryptionAlgorithm
+	 *   the content encryption algorithm of the envelope.
+	 * @return
+	 *   the content encryption key; the caller should clear it when done.
+	 * @throws CryptoException
+	 *   if none of the recipients has a key in the key ring, or the key cannot
+	 *   be decrypted.
+	 */
+	public byte[] getContentEncryptionKey(List<RecipientInfo> infos, AlgorithmIdentifier contentEncryptionAlgorithm) throws CryptoException {
+		if(keyring == null) {
+			logger.error("decryptor not initialised");
+			throw new CryptoException("decryptor not initialised");
+		}
+		// collect the key transport and key agreement recipients, the latter
+		// as many times as they have encrypted keys
+		List<RecipientId> recipients = new ArrayList<>();
+		List<ASN1Encodable> candidates = new ArrayList<>();
+		List<byte[]> keys = new ArrayList<>();
+		for(RecipientInfo info : infos) {
+			if(info.getInfo() instanceof KeyTransRecipientInfo) {
+				KeyTransRecipientInfo ktri = (KeyTransRecipientInfo)info.getInfo();
+				candidates.add(ktri);
+				keys.add(ktri.getEncryptedKey().getOctets());
+				recipients.add(getRecipientId(ktri.getRecipientIdentifier()));
+			} else if(info.getInfo() instanceof KeyAgreeRecipientInfo) {
+				KeyAgreeRecipientInfo kari = (KeyAgreeRecipientInfo)info.getInfo();
+				for(ASN1Encodable element : kari.getRecipientEncryptedKeys().toArray()) {
+					RecipientEncryptedKey key = RecipientEncryptedKey.getInstance(element);
+					candidates.add(kari);
+					keys.add(key.getEncryptedKey().getOctets());
+					recipients.add(getRecipientId(key.getIdentifier()));
+				}
+			}
+		}
+		Match match = findRecipient(recipients);
+		ASN1Encodable recipient = candidates.get(match.index);
+		if(recipient instanceof KeyAgreeRecipientInfo) {
+			return new KeyRingAgreeRecipient(match.key).agree((KeyAgreeRecipientInfo)recipient, contentEncryptionAlgorithm, keys.get(match.index));
+		}
+		return decryptKey(match.key, provider, ((KeyTransRecipientInfo)recipient).getKeyEncryptionAlgorithm(), keys.get(match.index));
+	}
+
+	/**
+	 * Looks for the first private key in the key ring whose certificate matches
+	 * one of the given recipients.
+	 *
+	 * @return
+	 *   the matching recipient and its private key.
+	 */
+	private Match findRecipient(List<RecipientId> recipients) throws CryptoException {
+		logger.debug("looking for a key matching any of {} recipients", recipients.size());
+		for(int i = 0; i < recipients.size(); ++i) {
+			String alias = keyring.getAlias(recipients.get(i));
+			if(alias != null) {
+				logger.info("recipient found with alias '{}'", alias);
+				PrivateKey key = (PrivateKey)keyring.getPrivateKey(alias, password);
+				if(key != null) {
+					return new Match(i, key);
 				}
-			  	if (issuerInfo[i].equals("O")) {
-			  		logger.debug("OrganizationName : '{}'", issuerInfo[i + 1]);
-			  	}
-			  	if (issuerInfo[i].equals("CN")) {
-			  		logger.debug("CommonName : '{}'", issuerInfo[i + 1]);
-			  	}
 			}
-			logger.info("certificate is valid from {} until {}, encrypting data...", certificate.getNotBefore(), certificate.getNotAfter());
-			
-			ASN1ObjectIdentifier algorithm = CMSAlgorithm.DES_EDE3_CBC;
-			
-			CMSTypedData messages = new CMSProcessableByteArray(plaintext);
-			CMSEnvelopedDataGenerator generator = new CMSEnvelopedDataGenerator();
-			generator.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator(certificate).setProvider("BC"));
-			CMSEnvelopedData ed = generator.generate(messages, new JceCMSContentEncryptorBuilder(algorithm).setProvider("BC").build());			
-			
-			logger.info("... processing done!");
-			return ed.getEncoded() ;
-						
-		} catch (CMSException e){
-			 logger.error("CMS exception", e);
-			 throw new CryptoException("Error generating enveloped signature", e);
-		} catch (IOException e) {
-			 logger.error("couldn't generate enveloped signature");
-			 throw new CryptoException("Error generating enveloped signature", e);
-		} catch (CertificateEncodingException e) {
-			logger.error("invalid certificate encoding", e);
-			throw new CryptoException("Invalid certificate encoding", e);
-		} catch (OperatorCreationException e) {
-			logger.error("error creating operator", e);
-			throw new CryptoException("Error creating operator", e);
-		}
-		*/
-		return null;
-	}
-
-	/**
-	 * @param args
-	 */
-	public static void main(String[] args) {
-		// TODO Auto-generated method stub
+		}
+		logger.error("none of the {} recipients has a key in the key ring", recipients.size());
+		throw new CryptoException("none of the " + recipients.size() + " recipients has a key in the key ring");
+	}
+
+	/**
+	 * Converts an ASN.1 recipient identifier into a BouncyCastle selector.
+	 */
+	private static RecipientId getRecipientId(RecipientIdentifier identifier) {
+		if(identifier.isTagged()) {
+			return new KeyTransRecipientId(ASN1OctetString.getInstance(identifier.getId()).getOctets());
+		}
+		IssuerAndSerialNumber issuer = IssuerAndSerialNumber.getInstance(identifier.getId());
+		return new KeyTransRecipientId(issuer.getName(), issuer.getSerialNumber().getValue());
+	}
+
+	/**
+	 * Converts an ASN.1 key agreement recipient identifier into a BouncyCastle
+	 * selector.
+	 */
+	private static RecipientId getRecipientId(KeyAgreeRecipientIdentifier identifier) {
+		if(identifier.getIssuerAndSerialNumber() != null) {
+			IssuerAndSerialNumber issuer = identifier.getIssuerAndSerialNumber();
+			return new KeyAgreeRecipientId(issuer.getName(), issuer.getSerialNumber().getValue());
+		}
+		return new KeyAgreeRecipientId(identifier.getRKeyID().getSubjectKeyIdentifier().getOctets());
+	}
+
+	/**
+	 * Decrypts the content encryption key with the recipient's private key,
+	 * through the provider of the key ring if any, so that token keys can be
+	 * used.
+	 */
+	private static byte[] decryptKey(PrivateKey key, Provider provider, AlgorithmIdentifier algorithm, byte[] encrypted) throws CryptoException {
+		if(!PKCSObjectIdentifiers.rsaEncryption.equals(algorithm.getAlgorithm())) {
+			logger.error("unsupported key transport algorithm: {}", algorithm.getAlgorithm());
+			throw new UnsupportedFormatException("unsupported key transport algorithm: " + algorithm.getAlgorithm());
+		}
+		try {
+			Cipher cipher = Cipher.getInstance(ProviderSelector.RSA_KEY_TRANSPORT, provider != null ? provider : ProviderSelector.getDefault().getKeyTransportProvider(ProviderSelector.RSA_KEY_TRANSPORT));
+			cipher.init(Cipher.DECRYPT_MODE, key);
+			return cipher.doFinal(encrypted);
+		} catch (GeneralSecurityException e) {
+			logger.error("error decrypting the content encryption key", e);
+			throw new CryptoException("error decrypting the content encryption key", e);
+		}
+	}
+
+	/**
+	 * A recipient found in the key ring.
+	 */
+	private static class Match {
+
+		final int index;
+
+		final PrivateKey key;
+
+		Match(int index, PrivateKey key) {
+			this.index = index;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A recipient that decrypts the content encryption key through the key
+	 * ring's provider, and the content through the content provider.
+	 */
+	private static class KeyRingRecipient extends JceKeyTransEnvelopedRecipient {
+
+		private final PrivateKey key;
+
+		private final Provider provider;
+
+		private final ContentEncryptionAlgorithm algorithm;
+
+		KeyRingRecipient(PrivateKey key, Provider provider, ContentEncryptionAlgorithm algorithm) {
+			super(key);
+			this.key = key;
+			this.provider = provider;
+			this.algorithm = algorithm;
+		}
+
+		@Override
+		protected Key extractSecretKey(AlgorithmIdentifier keyEncryptionAlgorithm, AlgorithmIdentifier encryptedKeyAlgorithm, byte[] encryptedEncryptionKey) throws CMSException {
+			try {
+				byte[] secret = decryptKey(key, provider, keyEncryptionAlgorithm, encryptedEncryptionKey);
+				Key spec = new SecretKeySpec(secret, algorithm.getTransformation().split("/")[0]);
+				Arrays.fill(secret, (byte)0);
+				return spec;
+			} catch(CryptoException e) {
+				throw new CMSException(e.getMessage(), e);
+			}
+		}
+	}
 
+	/**
+	 * A key agreement recipient that gives access to the unwrapped content 
+	 * encryption key, for the content BouncyCastle cannot decrypt by itself.
+	 */
+	private static class KeyRingAgreeRecipient extends JceKeyAgreeEnvelopedRecipient {
+
+		KeyRingAgreeRecipient(PrivateKey key) {
+			super(key);
+		}
+
+		/**
+		 * Agrees on the key wrapping key with the originator's ephemeral key, 
+		 * and unwraps the content encryption key.
+		 */
+		byte[] agree(KeyAgreeRecipientInfo info, AlgorithmIdentifier contentEncryptionAlgorithm, byte[] encryptedKey) throws CryptoException {
+			OriginatorPublicKey originator = info.getOriginator().getOriginatorKey();
+			if(originator == null) {
+				logger.error("only ephemeral originator keys are supported");
+				throw new UnsupportedFormatException("only ephemeral originator keys are supported");
+			}
+			try {
+				setProvider(ProviderSelector.getDefault().getKeyAgreementProvider(info.getKeyEncryptionAlgorithm().getAlgorithm().getId()));
+				// the originator key comes without the curve, which is the recipient's
+				SubjectPublicKeyInfo sender = new SubjectPublicKeyInfo(getPrivateKeyAlgorithmIdentifier(), originator.getPublicKey().getBytes());
+				return extractSecretKey(info.getKeyEncryptionAlgorithm(), contentEncryptionAlgorithm, sender, info.getUserKeyingMaterial(), encryptedKey).getEncoded();
+			} catch (CMSException e) {
+				logger.error("error agreeing on the key encryption key", e);
+				throw new CryptoException("error agreeing on the key encryption key", e);
+			}
+		}
+	}
+
+	/**
+	 * The plain text held back until it has been authenticated, which can be
+	 * wiped once released or discarded.
+	 */
+	private static class HeldBack extends ByteArrayOutputStream {
+
+		HeldBack() {
+			super(BUFFER_SIZE);
+		}
+
+		/**
+		 * Clears the held back plain text.
+		 */
+		synchronized void wipe() {
+			Arrays.fill(buf, (byte)0);
+			count = 0;
+		}
 	}
 }
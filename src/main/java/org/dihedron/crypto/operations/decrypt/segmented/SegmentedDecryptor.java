@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.decrypt.segmented;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.operations.decrypt.Decryptor;
+import org.dihedron.crypto.operations.decrypt.pkcs7.Pkcs7Decryptor;
+import org.dihedron.crypto.operations.encrypt.segmented.Segments;
+import org.dihedron.crypto.providers.ProviderSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decrypts data in the segmented format (see {@link Segments}) for any of the
+ * private keys in a key ring, either as a whole, in parallel, or by ranges,
+ * decrypting only the chunks that hold the requested bytes. Each chunk is
+ * authenticated before any of its plain text is written out.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class SegmentedDecryptor extends Decryptor {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(SegmentedDecryptor.class);
+
+	/**
+	 * The decryptor used to recover the content encryption key.
+	 */
+	private final Pkcs7Decryptor decryptor = new Pkcs7Decryptor();
+
+	/**
+	 * Whether the object has been initialised.
+	 */
+	private boolean initialised = false;
+
+	/**
+	 * The pool on which chunks are decrypted.
+	 */
+	private ForkJoinPool pool = Segments.getDefaultPool();
+
+	/**
+	 * Sets the pool on which the chunks are decrypted.
+	 *
+	 * @param pool
+	 *   the fork/join pool.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public SegmentedDecryptor setPool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Initialises the object and prepares it for decryption.
+	 *
+	 * @param parameters
+	 *   the same as {@link Pkcs7Decryptor#initialise(Object...)}: a KeyRing,
+	 *   optionally followed by its Provider and by the password of the private
+	 *   keys.
+	 * @return
+	 *   whether the object has been properly initialised.
+	 * @see org.dihedron.crypto.operations.decrypt.Decryptor#initialise(java.lang.Object[])
+	 */
+	@Override
+	public boolean initialise(Object... parameters) {
+		initialised = decryptor.initialise(parameters);
+		return initialised;
+	}
+
+	/**
+	 * @see org.dihedron.crypto.operations.decrypt.Decryptor#decrypt(byte[])
+	 */
+	@Override
+	public byte[] decrypt(byte[] ciphertext) throws CryptoException {
+		ByteArrayOutputStream plaintext = new ByteArrayOutputStream(ciphertext.length);
+		decrypt(new ByteArrayInputStream(ciphertext), plaintext);
+		return plaintext.toByteArray();
+	}
+
+	/**
+	 * Decrypts the whole container read from the given stream; chunks are read
+	 * sequentially, in batches of twice the pool's parallelism, and the chunks
+	 * in each batch are decrypted in parallel.
+	 *
+	 * @see org.dihedron.crypto.operations.decrypt.Decryptor#decrypt(java.io.InputStream, java.io.OutputStream)
+	 */
+	@Override
+	public void decrypt(InputStream ciphertext, OutputStream plaintext) throws CryptoException {
+		Segments.Header header = readHeader(ciphertext);
+		SecretKey key = getKey(header);
+		int size = header.getChunkSize() + Segments.TAG_SIZE;
+		int batchSize = pool.getParallelism() * 2;
+		try {
+			long index = 0;
+			byte[] current = new byte[size];
+			int length = read(ciphertext, current);
+			boolean last = false;
+			while(!last) {
+				List<Segments.Chunk> batch = new ArrayList<>(batchSize);
+				while(batch.size() < batchSize && !last) {
+					// a chunk is the last one if nothing follows it
+					byte[] next = new byte[size];
+					int read = read(ciphertext, next);
+					last = read == 0;
+					if(length < Segments.TAG_SIZE) {
+						logger.error("chunk {} is truncated", index);
+						throw new CryptoException("chunk " + index + " is truncated");
+					}
+					batch.add(new Segments.Chunk(index++, current, length, last));
+					current = next;
+					length = read;
+				}
+				Segments.process(pool, Cipher.DECRYPT_MODE, key, ProviderSelector.getDefault().getCipherProvider(header.getAlgorithm()), header, batch);
+				for(Segments.Chunk chunk : batch) {
+					plaintext.write(chunk.getOutput());
+				}
+			}
+			logger.info("... decryption done, {} chunks authenticated", index);
+		} catch (IOException e) {
+			logger.error("error reading or writing data", e);
+			throw new CryptoException("error reading or writing data", e);
+		}
+	}
+
+	/**
+	 * Returns the length of the plain text in the given container.
+	 *
+	 * @param ciphertext
+	 *   the channel from which the container is read.
+	 * @return
+	 *   the length of the plain text.
+	 * @throws CryptoException
+	 *   if the container header cannot be read.
+	 */
+	public long getLength(SeekableByteChannel ciphertext) throws CryptoException {
+		return new Layout(ciphertext).length;
+	}
+
+	/**
+	 * Decrypts a range of the plain text in the given container, reading and
+	 * decrypting only the chunks that hold it; the range is truncated at the
+	 * end of the plain text.
+	 *
+	 * @param ciphertext
+	 *   the channel from which the container is read.
+	 * @param offset
+	 *   the offset of the first byte of plain text to decrypt.
+	 * @param length
+	 *   the number of bytes of plain text to decrypt.
+	 * @param plaintext
+	 *   the stream to which the plain text is written.
+	 * @throws CryptoException
+	 *   if the offset is past the end of the plain text, or the chunks cannot
+	 *   be read or authenticated.
+	 */
+	public void decrypt(SeekableByteChannel ciphertext, long offset, long length, OutputStream plaintext) throws CryptoException {
+		Layout layout = new Layout(ciphertext);
+		if(offset < 0 || length < 0 || offset > layout.length) {
+			logger.error("invalid range: {} bytes at offset {}, plain text is {} bytes long", length, offset, layout.length);
+			throw new CryptoException("invalid range: " + length + " bytes at offset " + offset + ", plain text is " + layout.length + " bytes long");
+		}
+		length = Math.min(length, layout.length - offset);
+		if(length == 0) {
+			return;
+		}
+		Segments.Header header = layout.header;
+		int chunkSize = header.getChunkSize();
+		long first = offset / chunkSize;
+		long last = (offset + length - 1) / chunkSize;
+		logger.debug("decrypting {} bytes at offset {} from chunks {} to {}", length, offset, first, last);
+
+		SecretKey key = getKey(header);
+		int batchSize = pool.getParallelism() * 2;
+		try {
+			for(long index = first; index <= last; ) {
+				List<Segments.Chunk> batch = new ArrayList<>(batchSize);
+				for(; batch.size() < batchSize && index <= last; ++index) {
+					batch.add(layout.read(index));
+				}
+				Segments.process(pool, Cipher.DECRYPT_MODE, key, ProviderSelector.getDefault().getCipherProvider(header.getAlgorithm()), header, batch);
+				for(Segments.Chunk chunk : batch) {
+					long start = chunk.getIndex() * chunkSize;
+					int from = (int)Math.max(0, offset - start);
+					int to = (int)Math.min(chunk.getOutput().length, offset + length - start);
+					plaintext.write(chunk.getOutput(), from, to - from);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("error reading or writing data", e);
+			throw new CryptoException("error reading or writing data", e);
+		}
+	}
+
+	/**
+	 * Reads the container header.
+	 */
+	private Segments.Header readHeader(InputStream input) throws CryptoException {
+		if(!initialised) {
+			logger.error("decryptor not initialised");
+			throw new CryptoException("decryptor not initialised");
+		}
+		return Segments.Header.read(input);
+	}
+
+	/**
+	 * Recovers the content encryption key through the key ring.
+	 */
+	private SecretKey getKey(Segments.Header header) throws CryptoException {
+		byte[] secret = decryptor.getContentEncryptionKey(header.getRecipientInfos(), header.getContentEncryptionAlgorithm());
+		SecretKey key = new SecretKeySpec(secret, "AES");
+		Arrays.fill(secret, (byte)0);
+		return key;
+	}
+
+	/**
+	 * Fills the buffer from the stream, unless the stream ends first.
+	 *
+	 * @return
+	 *   the number of bytes read.
+	 */
+	private static int read(InputStream input, byte[] buffer) throws IOException {
+		int total = 0;
+		int read;
+		while(total < buffer.length && (read = input.read(buffer, total, buffer.length - total)) != -1) {
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * The position of the chunks in a container, computed from its header and
+	 * its size.
+	 */
+	private class Layout {
+
+		/**
+		 * The channel from which the container is read.
+		 */
+		final SeekableByteChannel channel;
+
+		/**
+		 * The container header.
+		 */
+		final Segments.Header header;
+
+		/**
+		 * The size of the encrypted chunks, tag included.
+		 */
+		final long size;
+
+		/**
+		 * The number of chunks.
+		 */
+		final long chunks;
+
+		/**
+		 * The length of the plain text.
+		 */
+		final long length;
+
+		Layout(SeekableByteChannel channel) throws CryptoException {
+			this.channel = channel;
+			try {
+				channel.position(0);
+				this.header = readHeader(Channels.newInputStream(channel));
+				this.size = header.getChunkSize() + Segments.TAG_SIZE;
+				long data = channel.size() - header.getLength();
+				// there is always a last chunk, possibly empty
+				this.chunks = Math.max(1, (data + size - 1) / size);
+				this.length = data - chunks * Segments.TAG_SIZE;
+				if(length < 0) {
+					logger.error("the last chunk is truncated");
+					throw new CryptoException("the last chunk is truncated");
+				}
+			} catch (IOException e) {
+				logger.error("error reading container", e);
+				throw new CryptoException("error reading container", e);
+			}
+		}
+
+		/**
+		 * Reads the given chunk.
+		 */
+		Segments.Chunk read(long index) throws IOException {
+			long position = header.getLength() + index * size;
+			ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(size, channel.size() - position));
+			channel.position(position);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer) == -1) {
+					break;
+				}
+			}
+			return new Segments.Chunk(index, buffer.array(), buffer.position(), index == chunks - 1);
+		}
+	}
+}
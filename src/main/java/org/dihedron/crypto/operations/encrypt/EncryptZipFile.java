@@ -7,25 +7,18 @@ package org.dihedron.crypto.operations.encrypt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
 import java.util.Properties;
 
-import org.bouncycastle.cms.CMSAlgorithm;
-import org.bouncycastle.cms.CMSEnvelopedData;
-import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
-import org.bouncycastle.cms.CMSEnvelopedDataStreamGenerator;
-import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSProcessableByteArray;
-import org.bouncycastle.cms.CMSTypedData;
-import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
-import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
 import org.dihedron.core.License;
 import org.dihedron.core.streams.Streams;
 import org.dihedron.crypto.certificates.CertificateLoader;
 import org.dihedron.crypto.certificates.CertificateLoaderFactory;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
 import org.dihedron.crypto.exceptions.CertificateLoaderException;
 import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.operations.encrypt.pkcs7.Envelopes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +31,24 @@ public class EncryptZipFile {
 	
 	private static Logger logger = LoggerFactory.getLogger(EncryptZipFile.class);
 	
+	/**
+	 * The algorithm used to encrypt the content.
+	 */
+	private ContentEncryptionAlgorithm algorithm = ContentEncryptionAlgorithm.DEFAULT;
+	
+	/**
+	 * Sets the algorithm used to encrypt the content.
+	 * 
+	 * @param algorithm
+	 *   the content encryption algorithm.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public EncryptZipFile setAlgorithm(ContentEncryptionAlgorithm algorithm) {
+		this.algorithm = algorithm;
+		return this;
+	}
+	
 	@Deprecated
 	public byte[] encrypt(byte[] plaintext, String provider, String url, String name, String filter) throws CryptoException{
 		X509Certificate certificate = null;
@@ -46,7 +57,7 @@ public class EncryptZipFile {
 			Properties configuration = new Properties();
 			configuration.setProperty("provider", provider);
 			configuration.setProperty("ldap.url", url);			
-			CertificateLoader loader = CertificateLoaderFactory.makeCertificateLoader(configuration);
+			CertificateLoader loader = CertificateLoaderFactory.getCertificateLoader(configuration);
 			
 			Properties parameters = new Properties();
 			parameters.put("name", name);
@@ -73,10 +84,7 @@ public class EncryptZipFile {
 			}
 			logger.info("certificate is valid from {} until {}, encrypting data...", certificate.getNotBefore(), certificate.getNotAfter());
 			
-			CMSTypedData message = new CMSProcessableByteArray(plaintext);
-			CMSEnvelopedDataGenerator generator = new CMSEnvelopedDataGenerator();
-			generator.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator(certificate).setProvider("BC"));
-			CMSEnvelopedData envdata = generator.generate(message, new JceCMSContentEncryptorBuilder(CMSAlgorithm.DES_EDE3_CBC).setProvider("BC").build());
+			byte[] envelope = Envelopes.envelope(plaintext, Collections.singletonList(Envelopes.recipient(certificate)), algorithm);
 			
 //			String algorithm = CMSEnvelopedDataGenerator.DES_EDE3_CBC;
 //			int keysize = 192;  // bits			
@@ -85,14 +93,8 @@ public class EncryptZipFile {
 //			CMSProcessableByteArray content = new CMSProcessableByteArray(plaintext);
 //			CMSEnvelopedData envdata = fact.generate(content, algorithm, keysize, "BC");
 			logger.info("... processing done!");
-			return envdata.getEncoded() ;
+			return envelope;
 						
-		} catch (CMSException e){
-			 logger.error("CMS exception", e);
-			 throw new CryptoException("error generating enveloped signature", e);
-		} catch (IOException e) {
-			 logger.error("couldn't generate enveloped signature");
-			 throw new CryptoException("error generating enveloped signature", e);
 //		} catch (NoSuchAlgorithmException e) {
 //			logger.error("no such algorithm", e);
 //			throw new CryptoException("Invalid or unsupported algorithm specified", e);
@@ -102,9 +104,6 @@ public class EncryptZipFile {
 		} catch (CertificateLoaderException e) {
 			logger.error("error loading certificate", e);
 			throw new CryptoException("error loading certificate", e);
-		} catch (CertificateEncodingException e) {
-			logger.error("invalid certificate encoding", e);
-			throw new CryptoException("invalid certificate encoding", e);
 		}
 	}	
 	
@@ -120,7 +119,7 @@ public class EncryptZipFile {
 			Properties configuration = new Properties();
 			configuration.setProperty("provider", provider);
 			configuration.setProperty("ldap.url", url);			
-			CertificateLoader loader = CertificateLoaderFactory.makeCertificateLoader(configuration);
+			CertificateLoader loader = CertificateLoaderFactory.getCertificateLoader(configuration);
 						
 			Properties parameters = new Properties();
 			parameters.put("name", name);
@@ -155,18 +154,14 @@ public class EncryptZipFile {
 		try{
 			logger.info("encrypting data");
 			 
-			CMSEnvelopedDataStreamGenerator edGen = new CMSEnvelopedDataStreamGenerator();
-			edGen.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator(certificate).setProvider("BC"));  
-			OutputStream out = edGen.open(encrypted, new JceCMSContentEncryptorBuilder(CMSAlgorithm.DES_EDE3_CBC).setProvider("BC").build());
+			OutputStream out = Envelopes.open(encrypted, Collections.singletonList(Envelopes.recipient(certificate)), algorithm);
 			Streams.copy(plaintext, out);
 		    out.close();	
 		    
-		} catch(CMSException ex){
-			 logger.error("CMSException: ", ex.getUnderlyingException());
+		} catch(CryptoException e){
+			 logger.error("couldn't generate enveloped data", e);
 		} catch (IOException e) {
-			 logger.error("couldn't generate enveloped signature");
-		} catch (CertificateEncodingException e) {
-			logger.error("certificate encoding error", e);
+			 logger.error("couldn't generate enveloped data");
 //		} catch (OperatorCreationException e) {
 //			logger.error("operator creation error", e);
 		}
@@ -0,0 +1,357 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.encrypt.pkcs7;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.BEROctetStringGenerator;
+import org.bouncycastle.asn1.BERSequenceGenerator;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.GCMParameters;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.cms.CMSAlgorithm;
+import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
+import org.bouncycastle.cms.CMSEnvelopedDataStreamGenerator;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.RecipientInfoGenerator;
+import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
+import org.bouncycastle.cms.jcajce.JceKeyAgreeRecipientInfoGenerator;
+import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
+import org.bouncycastle.operator.GenericKey;
+import org.dihedron.core.License;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.providers.ProviderSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Produces CMS envelopes with a configurable content encryption algorithm.
+ * CBC algorithms produce ordinary EnvelopedData through BouncyCastle's own
+ * generators; GCM algorithms produce AuthEnvelopedData (RFC 5083, RFC 5084),
+ * which BouncyCastle can parse but not generate, so it is written here with
+ * the streaming ASN.1 generators: the content is encrypted as it is written,
+ * and the authentication tag is appended when the stream is closed.
+ * <p>
+ * Content encryption, RSA key transport and ECDH key agreement go through 
+ * {@link ProviderSelector}; other key transport algorithms use BouncyCastle,
+ * unless a provider is forced, in which case it must support them.
+ * </p>
+ *
+ * @author Andrea Funto'
+ */
+@License
+public final class Envelopes {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(Envelopes.class);
+
+	/**
+	 * The size of the GCM nonce, in bytes, as recommended by RFC 5084.
+	 */
+	private static final int NONCE_SIZE = 12;
+
+	/**
+	 * The size of the GCM authentication tag, in bytes.
+	 */
+	private static final int TAG_SIZE = 16;
+
+	/**
+	 * The size of the chunks of the BER encoded content.
+	 */
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * The source of random content encryption keys and nonces.
+	 */
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Returns the recipient information generator for the given certificate,
+	 * whose public key will be used to encrypt the content encryption key.
+	 *
+	 * @param certificate
+	 *   the recipient's certificate.
+	 * @return
+	 *   the recipient information generator.
+	 * @throws CryptoException
+	 *   if the certificate cannot be encoded, or a forced provider is not
+	 *   available.
+	 */
+	public static RecipientInfoGenerator recipient(X509Certificate certificate) throws CryptoException {
+		if(certificate.getPublicKey() instanceof ECPublicKey) {
+			return recipients(Collections.singletonList(certificate)).get(0);
+		}
+		try {
+			JceKeyTransRecipientInfoGenerator generator = new JceKeyTransRecipientInfoGenerator(certificate);
+			if("RSA".equals(certificate.getPublicKey().getAlgorithm())) {
+				return generator.setProvider(ProviderSelector.getDefault().getKeyTransportProvider(ProviderSelector.RSA_KEY_TRANSPORT));
+			}
+			String algorithm = certificate.getPublicKey().getAlgorithm();
+			return generator.setProvider(ProviderSelector.getDefault().getProvider(ProviderSelector.Service.KEY_TRANSPORT, algorithm, 0, "BC"));
+		} catch (CertificateEncodingException e) {
+			logger.error("invalid certificate encoding", e);
+			throw new CryptoException("invalid certificate encoding", e);
+		}
+	}
+
+	/**
+	 * Returns the recipient information generators for the given certificates:
+	 * one key transport generator per RSA certificate, and one key agreement
+	 * generator per elliptic curve, shared by all EC certificates on that curve
+	 * and holding a freshly generated ephemeral key pair. Since the ephemeral
+	 * keys must not be reused, the generators must be used for one envelope
+	 * only.
+	 *
+	 * @param certificates
+	 *   the recipients' certificates.
+	 * @return
+	 *   the recipient information generators.
+	 * @throws CryptoException
+	 *   if a certificate cannot be encoded, or an ephemeral key pair cannot be
+	 *   generated.
+	 */
+	public static List<RecipientInfoGenerator> recipients(Collection<X509Certificate> certificates) throws CryptoException {
+		List<RecipientInfoGenerator> generators = new ArrayList<>();
+		Map<AlgorithmIdentifier, JceKeyAgreeRecipientInfoGenerator> curves = new LinkedHashMap<>();
+		try {
+			for(X509Certificate certificate : certificates) {
+				if(!(certificate.getPublicKey() instanceof ECPublicKey)) {
+					generators.add(recipient(certificate));
+					continue;
+				}
+				ECPublicKey key = (ECPublicKey)certificate.getPublicKey();
+				// the curve, as named or explicit parameters
+				AlgorithmIdentifier curve = SubjectPublicKeyInfo.getInstance(key.getEncoded()).getAlgorithm();
+				JceKeyAgreeRecipientInfoGenerator generator = curves.get(curve);
+				if(generator == null) {
+					logger.debug("generating ephemeral key pair for curve {}", curve.getParameters());
+					// the ephemeral keys come from the provider that uses them
+					Provider provider = ProviderSelector.getDefault().getKeyAgreementProvider(CMSAlgorithm.ECDH_SHA1KDF.getId());
+					KeyPairGenerator keys = KeyPairGenerator.getInstance("EC", provider);
+					keys.initialize(key.getParams(), random);
+					KeyPair ephemeral = keys.generateKeyPair();
+					generator = new JceKeyAgreeRecipientInfoGenerator(CMSAlgorithm.ECDH_SHA1KDF, ephemeral.getPrivate(), ephemeral.getPublic(), CMSAlgorithm.AES256_WRAP)
+						.setProvider(provider)
+						.setSecureRandom(random);
+					curves.put(curve, generator);
+					generators.add(generator);
+				}
+				generator.addRecipient(certificate);
+			}
+		} catch (CertificateEncodingException e) {
+			logger.error("invalid certificate encoding", e);
+			throw new CryptoException("invalid certificate encoding", e);
+		} catch (GeneralSecurityException e) {
+			logger.error("error generating ephemeral key pair", e);
+			throw new CryptoException("error generating ephemeral key pair", e);
+		}
+		logger.debug("{} certificates turned into {} recipient information generators", certificates.size(), generators.size());
+		return generators;
+	}
+
+	/**
+	 * Encrypts the given data for the given recipients.
+	 *
+	 * @param plaintext
+	 *   the data to encrypt.
+	 * @param recipients
+	 *   the recipient information generators.
+	 * @param algorithm
+	 *   the content encryption algorithm.
+	 * @return
+	 *   the DER (for EnvelopedData) or BER (for AuthEnvelopedData) encoded
+	 *   ContentInfo.
+	 * @throws CryptoException
+	 *   if the envelope cannot be generated.
+	 */
+	public static byte[] envelope(byte[] plaintext, List<RecipientInfoGenerator> recipients, ContentEncryptionAlgorithm algorithm) throws CryptoException {
+		if(algorithm.isAuthenticated()) {
+			try {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream(plaintext.length + 1024);
+				OutputStream stream = open(buffer, recipients, algorithm);
+				stream.write(plaintext);
+				stream.close();
+				return buffer.toByteArray();
+			} catch (IOException e) {
+				logger.error("error generating authenticated envelope", e);
+				throw new CryptoException("error generating authenticated envelope", e);
+			}
+		}
+		try {
+			CMSEnvelopedDataGenerator generator = new CMSEnvelopedDataGenerator();
+			for(RecipientInfoGenerator recipient : recipients) {
+				generator.addRecipientInfoGenerator(recipient);
+			}
+			return generator.generate(new CMSProcessableByteArray(plaintext), new JceCMSContentEncryptorBuilder(algorithm.getOID()).setProvider(ProviderSelector.getDefault().getCipherProvider(algorithm)).build()).getEncoded();
+		} catch (CMSException e) {
+			logger.error("CMS exception", e);
+			throw new CryptoException("error generating envelope", e);
+		} catch (IOException e) {
+			logger.error("error encoding envelope", e);
+			throw new CryptoException("error encoding envelope", e);
+		}
+	}
+
+	/**
+	 * Opens a stream that encrypts all data written to it for the given
+	 * recipients, writing the envelope to the given output stream; the envelope
+	 * is complete when the returned stream is closed, which does not close the
+	 * output stream.
+	 *
+	 * @param output
+	 *   the output stream to which the envelope is written.
+	 * @param recipients
+	 *   the recipient information generators.
+	 * @param algorithm
+	 *   the content encryption algorithm.
+	 * @return
+	 *   the stream to which the plaintext must be written.
+	 * @throws CryptoException
+	 *   if the envelope cannot be generated.
+	 */
+	public static OutputStream open(OutputStream output, List<RecipientInfoGenerator> recipients, ContentEncryptionAlgorithm algorithm) throws CryptoException {
+		logger.debug("opening envelope for {} recipients with {}", recipients.size(), algorithm);
+		if(algorithm.isAuthenticated()) {
+			return openAuthenticated(output, recipients, algorithm);
+		}
+		try {
+			CMSEnvelopedDataStreamGenerator generator = new CMSEnvelopedDataStreamGenerator();
+			generator.setBufferSize(BUFFER_SIZE);
+			for(RecipientInfoGenerator recipient : recipients) {
+				generator.addRecipientInfoGenerator(recipient);
+			}
+			return generator.open(output, new JceCMSContentEncryptorBuilder(algorithm.getOID()).setProvider(ProviderSelector.getDefault().getCipherProvider(algorithm)).build());
+		} catch (CMSException e) {
+			logger.error("CMS exception", e);
+			throw new CryptoException("error opening envelope", e);
+		} catch (IOException e) {
+			logger.error("error writing envelope", e);
+			throw new CryptoException("error writing envelope", e);
+		}
+	}
+
+	/**
+	 * Opens a streaming AuthEnvelopedData with AES-GCM content encryption.
+	 */
+	private static OutputStream openAuthenticated(OutputStream output, List<RecipientInfoGenerator> recipients, ContentEncryptionAlgorithm algorithm) throws CryptoException {
+		try {
+			Provider provider = ProviderSelector.getDefault().getCipherProvider(algorithm);
+			KeyGenerator generator = KeyGenerator.getInstance("AES", provider);
+			generator.init(algorithm.getKeySize(), random);
+			SecretKey key = generator.generateKey();
+			byte[] nonce = new byte[NONCE_SIZE];
+			random.nextBytes(nonce);
+			AlgorithmIdentifier identifier = new AlgorithmIdentifier(algorithm.getOID(), new GCMParameters(nonce, TAG_SIZE));
+
+			ASN1EncodableVector infos = new ASN1EncodableVector();
+			for(RecipientInfoGenerator recipient : recipients) {
+				infos.add(recipient.generate(new GenericKey(identifier, key.getEncoded())));
+			}
+
+			final Cipher cipher = Cipher.getInstance(algorithm.getTransformation(), provider);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce), random);
+
+			// ContentInfo ::= SEQUENCE { contentType, [0] EXPLICIT AuthEnvelopedData }
+			final BERSequenceGenerator contentInfo = new BERSequenceGenerator(output);
+			contentInfo.addObject(CMSObjectIdentifiers.authEnvelopedData);
+			// AuthEnvelopedData ::= SEQUENCE { version, recipientInfos, authEncryptedContentInfo, mac }
+			final BERSequenceGenerator envelope = new BERSequenceGenerator(contentInfo.getRawOutputStream(), 0, true);
+			envelope.addObject(new ASN1Integer(0));
+			envelope.addObject(new DERSet(infos));
+			// EncryptedContentInfo ::= SEQUENCE { contentType, algorithm, [0] IMPLICIT OCTET STRING }
+			final BERSequenceGenerator content = new BERSequenceGenerator(envelope.getRawOutputStream());
+			content.addObject(CMSObjectIdentifiers.data);
+			content.addObject(identifier);
+			final BEROctetStringGenerator octets = new BEROctetStringGenerator(content.getRawOutputStream(), 0, false);
+			final OutputStream encrypted = octets.getOctetOutputStream(new byte[BUFFER_SIZE]);
+
+			return new OutputStream() {
+
+				private boolean closed = false;
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte)b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] bytes, int offset, int length) throws IOException {
+					byte[] ciphertext = cipher.update(bytes, offset, length);
+					if(ciphertext != null) {
+						encrypted.write(ciphertext);
+					}
+				}
+
+				@Override
+				public void close() throws IOException {
+					if(closed) {
+						return;
+					}
+					closed = true;
+					byte[] last;
+					try {
+						last = cipher.doFinal();
+					} catch (GeneralSecurityException e) {
+						logger.error("error finalising content encryption", e);
+						throw new IOException("error finalising content encryption", e);
+					}
+					// the JCE appends the tag to the ciphertext, CMS carries it separately
+					encrypted.write(last, 0, last.length - TAG_SIZE);
+					encrypted.close();
+					content.close();
+					byte[] mac = new byte[TAG_SIZE];
+					System.arraycopy(last, last.length - TAG_SIZE, mac, 0, TAG_SIZE);
+					envelope.addObject(new DEROctetString(mac));
+					envelope.close();
+					contentInfo.close();
+				}
+			};
+		} catch (GeneralSecurityException e) {
+			logger.error("error initialising content encryption", e);
+			throw new CryptoException("error initialising content encryption", e);
+		} catch (CMSException e) {
+			logger.error("CMS exception", e);
+			throw new CryptoException("error encrypting content encryption key", e);
+		} catch (IOException e) {
+			logger.error("error writing envelope", e);
+			throw new CryptoException("error writing envelope", e);
+		}
+	}
+
+	/**
+	 * Private constructor, to prevent instantiation.
+	 */
+	private Envelopes() {
+	}
+}
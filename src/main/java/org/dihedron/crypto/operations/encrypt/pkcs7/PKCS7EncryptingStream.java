@@ -6,14 +6,11 @@ package org.dihedron.crypto.operations.encrypt.pkcs7;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
 
-import org.bouncycastle.cms.CMSAlgorithm;
-import org.bouncycastle.cms.CMSEnvelopedDataStreamGenerator;
-import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
-import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.dihedron.crypto.exceptions.CryptoException;
 import org.dihedron.crypto.operations.encrypt.EncryptingStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,7 +30,7 @@ public class PKCS7EncryptingStream extends EncryptingStream {
 	private OutputStream stream;
 	
 	/**
-	 * Constructor.
+	 * Constructor; the content is encrypted with the default algorithm.
 	 * 
 	 * @param output
 	 *   the output stream, to which encrypted data will be written.
@@ -41,6 +38,20 @@ public class PKCS7EncryptingStream extends EncryptingStream {
 	 *   the certificate to be used for encryption.
 	 */
 	public PKCS7EncryptingStream(OutputStream output, Certificate certificate) {
+		this(output, certificate, ContentEncryptionAlgorithm.DEFAULT);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param output
+	 *   the output stream, to which encrypted data will be written.
+	 * @param certificate
+	 *   the certificate to be used for encryption.
+	 * @param algorithm
+	 *   the algorithm used to encrypt the content.
+	 */
+	public PKCS7EncryptingStream(OutputStream output, Certificate certificate, ContentEncryptionAlgorithm algorithm) {
 		super(output, certificate);
 		
 		logger.info("encrypting data through certificate supporting algorithm: '{}'", certificate.getPublicKey().getAlgorithm());
@@ -67,17 +78,11 @@ public class PKCS7EncryptingStream extends EncryptingStream {
 		}
 	
 		try {
-			logger.info("preparing encrypting stream...");
-			CMSEnvelopedDataStreamGenerator generator = new CMSEnvelopedDataStreamGenerator();
-			generator.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator((X509Certificate)certificate).setProvider("BC"));  
-			stream = generator.open(output, new JceCMSContentEncryptorBuilder(CMSAlgorithm.DES_EDE3_CBC).setProvider("BC").build());
+			logger.info("preparing encrypting stream with {}...", algorithm);
+			stream = Envelopes.open(output, Collections.singletonList(Envelopes.recipient((X509Certificate)certificate)), algorithm);
 			logger.info("encrypting stream ready!");
-		} catch(CMSException ex){
-			 logger.error("CMSException: ", ex.getUnderlyingException());
-		} catch (IOException e) {
-			 logger.error("couldn't generate enveloped signature");
-		} catch (CertificateEncodingException e) {
-			logger.error("certificate encoding error", e);
+		} catch(CryptoException e){
+			 logger.error("couldn't generate enveloped data", e);
 		}	
 	}
 	
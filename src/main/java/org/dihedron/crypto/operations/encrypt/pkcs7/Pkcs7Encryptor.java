@@ -3,22 +3,16 @@
  */ 
 package org.dihedron.crypto.operations.encrypt.pkcs7;
 
-import java.io.IOException;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
 
-import org.bouncycastle.asn1.ASN1ObjectIdentifier;
-import org.bouncycastle.cms.CMSAlgorithm;
-import org.bouncycastle.cms.CMSEnvelopedData;
-import org.bouncycastle.cms.CMSEnvelopedDataGenerator;
-import org.bouncycastle.cms.CMSException;
-import org.bouncycastle.cms.CMSProcessableByteArray;
-import org.bouncycastle.cms.CMSTypedData;
-import org.bouncycastle.cms.jcajce.JceCMSContentEncryptorBuilder;
-import org.bouncycastle.cms.jcajce.JceKeyTransRecipientInfoGenerator;
 import org.dihedron.core.License;
 import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
 import org.dihedron.crypto.exceptions.CertificateLoaderException;
 import org.dihedron.crypto.exceptions.CryptoException;
 import org.dihedron.crypto.operations.encrypt.Encryptor;
@@ -36,7 +30,29 @@ public class Pkcs7Encryptor extends Encryptor {
 	 */
 	private static final Logger logger = LoggerFactory.getLogger(Pkcs7Encryptor.class);
 
-	private X509Certificate certificate = null;
+	/**
+	 * The recipients' certificates.
+	 */
+	private List<X509Certificate> certificates = new ArrayList<>();
+	
+	/**
+	 * The algorithm used to encrypt the content.
+	 */
+	private ContentEncryptionAlgorithm algorithm = ContentEncryptionAlgorithm.DEFAULT;
+	
+	/**
+	 * Sets the algorithm used to encrypt the content; GCM algorithms produce
+	 * AuthEnvelopedData, which older readers may not understand.
+	 * 
+	 * @param algorithm
+	 *   the content encryption algorithm.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public Pkcs7Encryptor setAlgorithm(ContentEncryptionAlgorithm algorithm) {
+		this.algorithm = algorithm;
+		return this;
+	}
 	
 	/**
 	 * Initialises the object and prepares it for signing.
@@ -44,6 +60,9 @@ public class Pkcs7Encryptor extends Encryptor {
 	 * @param parameters
 	 *   can be one of the following options:<ol>
 	 *   <li>an X.509 certificate</li>
+	 *   <li>an array or a collection of X.509 certificates, for as many 
+	 *   recipients; the content is encrypted only once, whatever their 
+	 *   number</li>
 	 *   <li>a CertificateLoade and its associated Properties</li>
 	 *   </ol>
 	 * @return
@@ -55,10 +74,14 @@ public class Pkcs7Encryptor extends Encryptor {
 	public boolean initialise(Object... parameters) throws CertificateLoaderException {
 		if(parameters.length == 1) {
 			if(parameters[0] != null && parameters[0] instanceof X509Certificate) {
-				certificate = (X509Certificate)parameters[0];
+				certificates = Arrays.asList((X509Certificate)parameters[0]);
 				return true;
+			} else if(parameters[0] != null && parameters[0] instanceof X509Certificate[]) {
+				return setCertificates(Arrays.asList((X509Certificate[])parameters[0]));
+			} else if(parameters[0] != null && parameters[0] instanceof Collection) {
+				return setCertificates((Collection<?>)parameters[0]);
 			} else {
-				logger.error("invalid input parameters: expected X509Certificate, got {}", parameters[0] == null ? "null" : parameters[0].getClass().getName());
+				logger.error("invalid input parameters: expected X509Certificate or a collection of X509Certificates, got {}", parameters[0] == null ? "null" : parameters[0].getClass().getName());
 			}
 		} else if(parameters.length == 2) {
 			CertificateLoader loader = null;
@@ -73,25 +96,52 @@ public class Pkcs7Encryptor extends Encryptor {
 			} else {
 				logger.error("invalid input parameters: expected Properties, got {}", parameters[0] == null ? "null" : parameters[0].getClass().getName());
 			}
-			certificate = (X509Certificate)loader.loadCertificate(properties);
+			certificates = Arrays.asList((X509Certificate)loader.loadCertificate(properties));
 		}
 		return false;
 	}
+	
+	/**
+	 * Stores the given recipients' certificates, checking their type.
+	 * 
+	 * @param recipients
+	 *   the recipients' certificates.
+	 * @return
+	 *   whether all the elements are X.509 certificates, and there is at least
+	 *   one of them.
+	 */
+	private boolean setCertificates(Collection<?> recipients) {
+		List<X509Certificate> list = new ArrayList<>();
+		for(Object recipient : recipients) {
+			if(recipient instanceof X509Certificate) {
+				list.add((X509Certificate)recipient);
+			} else {
+				logger.error("invalid input parameters: expected X509Certificate, got {}", recipient == null ? "null" : recipient.getClass().getName());
+				return false;
+			}
+		}
+		if(list.isEmpty()) {
+			logger.error("invalid input parameters: no recipients");
+			return false;
+		}
+		certificates = list;
+		return true;
+	}
 
 	/**
 	 * @see org.dihedron.crypto.operations.encrypt.Encryptor#encrypt(byte[])
 	 */
 	@Override
 	public byte[] encrypt(byte[] plaintext) throws CryptoException {
-		try {
+		for(X509Certificate certificate : certificates) {
 			logger.info("encrypting data through certificate supporting algorithm: '{}'", certificate.getPublicKey().getAlgorithm());
 			  
 			String[] issuerInfo = certificate.getIssuerDN().getName().split("(=|, )", -1);
 			String[] subjectInfo = certificate.getSubjectDN().getName().split("(=|, )", -1);
-	
+		
 			logger.debug("common name (CN) : '{}'", subjectInfo[3]);
 			logger.debug("address          : '{}'", subjectInfo[1]);
-	
+		
 			for (int i = 0; i < issuerInfo.length; i += 2){
 				if (issuerInfo[i].equals("C")) {
 					logger.debug("CountryName : '{}'", issuerInfo[i + 1]);
@@ -103,30 +153,13 @@ public class Pkcs7Encryptor extends Encryptor {
 			  		logger.debug("CommonName : '{}'", issuerInfo[i + 1]);
 			  	}
 			}
-			logger.info("certificate is valid from {} until {}, encrypting data...", certificate.getNotBefore(), certificate.getNotAfter());
-			
-			ASN1ObjectIdentifier algorithm = CMSAlgorithm.DES_EDE3_CBC;
-			
-			CMSTypedData message = new CMSProcessableByteArray(plaintext);
-			CMSEnvelopedDataGenerator generator = new CMSEnvelopedDataGenerator();
-			generator.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator(certificate).setProvider("BC"));
-			CMSEnvelopedData ed = generator.generate(message, new JceCMSContentEncryptorBuilder(algorithm).setProvider("BC").build());			
-			
-			logger.info("... processing done!");
-			return ed.getEncoded() ;
-						
-		} catch (CMSException e){
-			 logger.error("CMS exception", e);
-			 throw new CryptoException("Error generating enveloped signature", e);
-		} catch (IOException e) {
-			 logger.error("couldn't generate enveloped signature");
-			 throw new CryptoException("Error generating enveloped signature", e);
-		} catch (CertificateEncodingException e) {
-			logger.error("invalid certificate encoding", e);
-			throw new CryptoException("Invalid certificate encoding", e);
-//		} catch (OperatorCreationException e) {
-//			logger.error("error creating operator", e);
-//			throw new CryptoException("Error creating operator", e);
+			logger.info("certificate is valid from {} until {}", certificate.getNotBefore(), certificate.getNotAfter());
 		}
+		logger.info("encrypting data for {} recipients with {}...", certificates.size(), algorithm);
+		
+		byte[] envelope = Envelopes.envelope(plaintext, Envelopes.recipients(certificates), algorithm);
+		
+		logger.info("... processing done!");
+		return envelope;
 	}
 }
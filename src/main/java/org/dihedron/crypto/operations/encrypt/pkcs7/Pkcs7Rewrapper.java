@@ -0,0 +1,413 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.encrypt.pkcs7;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.Provider;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1OctetStringParser;
+import org.bouncycastle.asn1.ASN1SequenceParser;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.ASN1SetParser;
+import org.bouncycastle.asn1.ASN1StreamParser;
+import org.bouncycastle.asn1.BEROctetStringGenerator;
+import org.bouncycastle.asn1.BERSequenceGenerator;
+import org.bouncycastle.asn1.BERTags;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.cms.AuthEnvelopedDataParser;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfoParser;
+import org.bouncycastle.asn1.cms.EncryptedContentInfoParser;
+import org.bouncycastle.asn1.cms.EnvelopedData;
+import org.bouncycastle.asn1.cms.EnvelopedDataParser;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.KeyAgreeRecipientIdentifier;
+import org.bouncycastle.asn1.cms.KeyAgreeRecipientInfo;
+import org.bouncycastle.asn1.cms.KeyTransRecipientInfo;
+import org.bouncycastle.asn1.cms.OriginatorInfo;
+import org.bouncycastle.asn1.cms.RecipientEncryptedKey;
+import org.bouncycastle.asn1.cms.RecipientIdentifier;
+import org.bouncycastle.asn1.cms.RecipientInfo;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.RecipientInfoGenerator;
+import org.bouncycastle.operator.GenericKey;
+import org.dihedron.core.License;
+import org.dihedron.core.streams.Streams;
+import org.dihedron.crypto.KeyRing;
+import org.dihedron.crypto.certificates.CertificateProfile;
+import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.exceptions.UnsupportedFormatException;
+import org.dihedron.crypto.operations.decrypt.pkcs7.Pkcs7Decryptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Changes the recipients of an existing envelope (EnvelopedData, or
+ * AuthEnvelopedData) without decrypting its content: the content encryption
+ * key is recovered through a private key in the key ring, it is encrypted for
+ * the new recipients, and the encrypted content is copied through unchanged
+ * as the envelope is read, so that the cost of the operation is that of a
+ * sequential copy, whatever the size of the content. With AuthEnvelopedData
+ * the authentication tag stays valid, since it does not cover the recipients.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class Pkcs7Rewrapper {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(Pkcs7Rewrapper.class);
+
+	/**
+	 * The size of the chunks of the BER encoded content.
+	 */
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * The decryptor used to recover the content encryption key.
+	 */
+	private final Pkcs7Decryptor decryptor = new Pkcs7Decryptor();
+
+	/**
+	 * The certificates of the recipients to add.
+	 */
+	private final List<X509Certificate> added = new ArrayList<>();
+
+	/**
+	 * The identifiers of the recipients to remove.
+	 */
+	private final List<Removal> removed = new ArrayList<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param keyring
+	 *   the key ring holding the private key of (at least) one of the current
+	 *   recipients of the envelopes.
+	 */
+	public Pkcs7Rewrapper(KeyRing keyring) {
+		this(keyring, null, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param keyring
+	 *   the key ring holding the private key of (at least) one of the current
+	 *   recipients of the envelopes.
+	 * @param provider
+	 *   the provider giving access to the private keys (e.g. the PKCS#11
+	 *   provider of a smart card), or null for software keys.
+	 * @param password
+	 *   the password of the private keys, if different from the key store's.
+	 */
+	public Pkcs7Rewrapper(KeyRing keyring, Provider provider, String password) {
+		decryptor.initialise(keyring, provider, password);
+	}
+
+	/**
+	 * Adds a recipient to the envelopes.
+	 *
+	 * @param certificate
+	 *   the new recipient's certificate.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public Pkcs7Rewrapper addRecipient(X509Certificate certificate) {
+		added.add(certificate);
+		return this;
+	}
+
+	/**
+	 * Adds some recipients to the envelopes.
+	 *
+	 * @param certificates
+	 *   the new recipients' certificates.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public Pkcs7Rewrapper addRecipients(Collection<X509Certificate> certificates) {
+		added.addAll(certificates);
+		return this;
+	}
+
+	/**
+	 * Removes a recipient from the envelopes, if present; it is matched by
+	 * issuer and serial number, or by subject key identifier.
+	 *
+	 * @param certificate
+	 *   the certificate of the recipient to remove.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public Pkcs7Rewrapper removeRecipient(X509Certificate certificate) {
+		removed.add(new Removal(certificate));
+		return this;
+	}
+
+	/**
+	 * Changes the recipients of the given envelope.
+	 *
+	 * @param envelope
+	 *   the envelope.
+	 * @return
+	 *   the envelope with the new set of recipients.
+	 * @throws CryptoException
+	 *   if the content encryption key cannot be recovered, or the envelope
+	 *   cannot be parsed or generated.
+	 */
+	public byte[] rewrap(byte[] envelope) throws CryptoException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(envelope.length + 1024 * added.size());
+		rewrap(new ByteArrayInputStream(envelope), output);
+		return output.toByteArray();
+	}
+
+	/**
+	 * Changes the recipients of the envelope read from the given stream,
+	 * writing the new envelope to the output stream as the encrypted content
+	 * is read; the output stream is not closed.
+	 *
+	 * @param input
+	 *   the stream from which the envelope is read.
+	 * @param output
+	 *   the stream to which the envelope with the new set of recipients is
+	 *   written.
+	 * @throws CryptoException
+	 *   if the content encryption key cannot be recovered, or the envelope
+	 *   cannot be parsed or generated.
+	 */
+	public void rewrap(InputStream input, OutputStream output) throws CryptoException {
+		try {
+			ContentInfoParser contentInfo = new ContentInfoParser((ASN1SequenceParser)new ASN1StreamParser(input).readObject());
+			ASN1ObjectIdentifier type = contentInfo.getContentType();
+			logger.debug("changing the recipients of content of type {}", type);
+			if(CMSObjectIdentifiers.envelopedData.equals(type)) {
+				rewrapEnvelopedData(new EnvelopedDataParser((ASN1SequenceParser)contentInfo.getContent(BERTags.SEQUENCE)), output);
+			} else if(CMSObjectIdentifiers.authEnvelopedData.equals(type)) {
+				rewrapAuthEnvelopedData(new AuthEnvelopedDataParser((ASN1SequenceParser)contentInfo.getContent(BERTags.SEQUENCE)), output);
+			} else {
+				logger.error("unsupported content type: {}", type);
+				throw new UnsupportedFormatException("unsupported content type: " + type);
+			}
+		} catch (IOException | ClassCastException e) {
+			logger.error("error reading or writing envelope", e);
+			throw new CryptoException("error reading or writing envelope", e);
+		}
+	}
+
+	/**
+	 * Copies an EnvelopedData, with the new recipients.
+	 */
+	private void rewrapEnvelopedData(EnvelopedDataParser data, OutputStream output) throws IOException, CryptoException {
+		ASN1Integer version = data.getVersion();
+		OriginatorInfo originator = data.getOriginatorInfo();
+		List<RecipientInfo> infos = readRecipientInfos(data.getRecipientInfos());
+		EncryptedContentInfoParser content = data.getEncryptedContentInfo();
+		ASN1Set recipients = rewrap(infos, content.getContentEncryptionAlgorithm());
+
+		BERSequenceGenerator contentInfo = new BERSequenceGenerator(output);
+		contentInfo.addObject(CMSObjectIdentifiers.envelopedData);
+		BERSequenceGenerator envelope = new BERSequenceGenerator(contentInfo.getRawOutputStream(), 0, true);
+		// the unprotected attributes, which also affect the version, come after
+		// the content: the original version is kept if higher
+		envelope.addObject(new ASN1Integer(Math.max(EnvelopedData.calculateVersion(originator, recipients, null), version.getValue().intValue())));
+		if(originator != null) {
+			envelope.addObject(new DERTaggedObject(false, 0, originator));
+		}
+		envelope.addObject(recipients);
+		copy(content, envelope.getRawOutputStream());
+		ASN1SetParser attributes = data.getUnprotectedAttrs();
+		if(attributes != null) {
+			envelope.addObject(new DERTaggedObject(false, 1, attributes.toASN1Primitive()));
+		}
+		envelope.close();
+		contentInfo.close();
+	}
+
+	/**
+	 * Copies an AuthEnvelopedData, with the new recipients.
+	 */
+	private void rewrapAuthEnvelopedData(AuthEnvelopedDataParser data, OutputStream output) throws IOException, CryptoException {
+		ASN1Integer version = data.getVersion();
+		OriginatorInfo originator = data.getOriginatorInfo();
+		List<RecipientInfo> infos = readRecipientInfos(data.getRecipientInfos());
+		EncryptedContentInfoParser content = data.getAuthEncryptedContentInfo();
+		ASN1Set recipients = rewrap(infos, content.getContentEncryptionAlgorithm());
+
+		BERSequenceGenerator contentInfo = new BERSequenceGenerator(output);
+		contentInfo.addObject(CMSObjectIdentifiers.authEnvelopedData);
+		BERSequenceGenerator envelope = new BERSequenceGenerator(contentInfo.getRawOutputStream(), 0, true);
+		envelope.addObject(version);
+		if(originator != null) {
+			envelope.addObject(new DERTaggedObject(false, 0, originator));
+		}
+		envelope.addObject(recipients);
+		copy(content, envelope.getRawOutputStream());
+		ASN1SetParser attributes = data.getAuthAttrs();
+		if(attributes != null) {
+			envelope.addObject(new DERTaggedObject(false, 1, attributes.toASN1Primitive()));
+		}
+		envelope.addObject(data.getMac());
+		attributes = data.getUnauthAttrs();
+		if(attributes != null) {
+			envelope.addObject(new DERTaggedObject(false, 2, attributes.toASN1Primitive()));
+		}
+		envelope.close();
+		contentInfo.close();
+	}
+
+	/**
+	 * Reads all the recipient information structures.
+	 */
+	private static List<RecipientInfo> readRecipientInfos(ASN1SetParser set) throws IOException {
+		List<RecipientInfo> infos = new ArrayList<>();
+		ASN1Encodable object;
+		while((object = set.readObject()) != null) {
+			infos.add(RecipientInfo.getInstance(object.toASN1Primitive()));
+		}
+		return infos;
+	}
+
+	/**
+	 * Drops the removed recipients and appends the added ones, whose encrypted
+	 * keys are generated from the recovered content encryption key.
+	 */
+	private ASN1Set rewrap(List<RecipientInfo> infos, AlgorithmIdentifier algorithm) throws CryptoException {
+		// the key is recovered even if no recipients are added, so that only
+		// authorised parties can change the envelope
+		byte[] key = decryptor.getContentEncryptionKey(infos, algorithm);
+		try {
+			ASN1EncodableVector recipients = new ASN1EncodableVector();
+			for(RecipientInfo info : infos) {
+				RecipientInfo kept = filter(info);
+				if(kept != null) {
+					recipients.add(kept);
+				}
+			}
+			logger.debug("{} recipient infos kept out of {}", recipients.size(), infos.size());
+			if(!added.isEmpty()) {
+				for(RecipientInfoGenerator generator : Envelopes.recipients(added)) {
+					recipients.add(generator.generate(new GenericKey(algorithm, key)));
+				}
+				logger.debug("{} recipients added", added.size());
+			}
+			if(recipients.size() == 0) {
+				logger.error("the envelope would have no recipients left");
+				throw new CryptoException("the envelope would have no recipients left");
+			}
+			return new DERSet(recipients);
+		} catch (CMSException e) {
+			logger.error("error encrypting the content encryption key", e);
+			throw new CryptoException("error encrypting the content encryption key", e);
+		} finally {
+			Arrays.fill(key, (byte)0);
+		}
+	}
+
+	/**
+	 * Returns the given recipient information, without the removed recipients,
+	 * or null if none is left.
+	 */
+	private RecipientInfo filter(RecipientInfo info) {
+		if(removed.isEmpty()) {
+			return info;
+		}
+		if(info.getInfo() instanceof KeyTransRecipientInfo) {
+			RecipientIdentifier identifier = ((KeyTransRecipientInfo)info.getInfo()).getRecipientIdentifier();
+			for(Removal removal : removed) {
+				if(identifier.isTagged() ? removal.matches(ASN1OctetString.getInstance(identifier.getId()).getOctets()) : removal.matches(IssuerAndSerialNumber.getInstance(identifier.getId()))) {
+					return null;
+				}
+			}
+		} else if(info.getInfo() instanceof KeyAgreeRecipientInfo) {
+			// several recipients may share the same originator key
+			KeyAgreeRecipientInfo kari = (KeyAgreeRecipientInfo)info.getInfo();
+			ASN1EncodableVector keys = new ASN1EncodableVector();
+			for(ASN1Encodable element : kari.getRecipientEncryptedKeys().toArray()) {
+				KeyAgreeRecipientIdentifier identifier = RecipientEncryptedKey.getInstance(element).getIdentifier();
+				boolean match = false;
+				for(Removal removal : removed) {
+					if(identifier.getIssuerAndSerialNumber() != null ? removal.matches(identifier.getIssuerAndSerialNumber()) : removal.matches(identifier.getRKeyID().getSubjectKeyIdentifier().getOctets())) {
+						match = true;
+						break;
+					}
+				}
+				if(!match) {
+					keys.add(element);
+				}
+			}
+			if(keys.size() == 0) {
+				return null;
+			} else if(keys.size() < kari.getRecipientEncryptedKeys().size()) {
+				return new RecipientInfo(new KeyAgreeRecipientInfo(kari.getOriginator(), kari.getUserKeyingMaterial(), kari.getKeyEncryptionAlgorithm(), new DERSequence(keys)));
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * Copies an encrypted content info, streaming the encrypted content through.
+	 */
+	private static void copy(EncryptedContentInfoParser content, OutputStream output) throws IOException {
+		BERSequenceGenerator info = new BERSequenceGenerator(output);
+		info.addObject(content.getContentType());
+		info.addObject(content.getContentEncryptionAlgorithm());
+		ASN1OctetStringParser encrypted = (ASN1OctetStringParser)content.getEncryptedContent(BERTags.OCTET_STRING);
+		if(encrypted != null) {
+			BEROctetStringGenerator octets = new BEROctetStringGenerator(info.getRawOutputStream(), 0, false);
+			OutputStream stream = octets.getOctetOutputStream(new byte[BUFFER_SIZE]);
+			long length = Streams.copy(encrypted.getOctetStream(), stream);
+			stream.close();
+			logger.debug("{} bytes of encrypted content copied", length);
+		}
+		info.close();
+	}
+
+	/**
+	 * The identifiers of a recipient to remove.
+	 */
+	private static class Removal {
+
+		private final X500Name issuer;
+
+		private final BigInteger serial;
+
+		private final byte[] identifier;
+
+		Removal(X509Certificate certificate) {
+			this.issuer = X500Name.getInstance(certificate.getIssuerX500Principal().getEncoded());
+			this.serial = certificate.getSerialNumber();
+			this.identifier = CertificateProfile.of(certificate).getSubjectKeyIdentifier();
+		}
+
+		boolean matches(IssuerAndSerialNumber id) {
+			return issuer.equals(id.getName()) && serial.equals(id.getSerialNumber().getValue());
+		}
+
+		boolean matches(byte[] id) {
+			return identifier != null && Arrays.equals(identifier, id);
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.encrypt.segmented;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.bouncycastle.asn1.cms.GCMParameters;
+import org.bouncycastle.asn1.cms.RecipientInfo;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.RecipientInfoGenerator;
+import org.bouncycastle.operator.GenericKey;
+import org.dihedron.core.License;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.operations.encrypt.Encryptor;
+import org.dihedron.crypto.operations.encrypt.pkcs7.Envelopes;
+import org.dihedron.crypto.providers.ProviderSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encrypts data in the segmented format (see {@link Segments}): the content
+ * is split into fixed size chunks, which are encrypted with AES-GCM in
+ * parallel on a fork/join pool, while the content encryption key is encrypted
+ * for the recipients as in a CMS envelope. Memory usage is bounded by a few
+ * chunks per thread, whatever the size of the content.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class SegmentedEncryptor extends Encryptor {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(SegmentedEncryptor.class);
+
+	/**
+	 * The source of random content encryption keys and nonce prefixes.
+	 */
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * The recipients' certificates.
+	 */
+	private List<X509Certificate> certificates = new ArrayList<>();
+
+	/**
+	 * The algorithm used to encrypt the chunks.
+	 */
+	private ContentEncryptionAlgorithm algorithm = ContentEncryptionAlgorithm.AES256_GCM;
+
+	/**
+	 * The size of the plain text chunks.
+	 */
+	private int chunkSize = Segments.DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * The pool on which chunks are encrypted.
+	 */
+	private ForkJoinPool pool = Segments.getDefaultPool();
+
+	/**
+	 * Sets the algorithm used to encrypt the chunks, which must be one of the
+	 * AES-GCM algorithms.
+	 *
+	 * @param algorithm
+	 *   the content encryption algorithm.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public SegmentedEncryptor setAlgorithm(ContentEncryptionAlgorithm algorithm) {
+		if(!algorithm.isAuthenticated()) {
+			logger.error("segmented encryption requires an authenticated algorithm, got {}", algorithm);
+			throw new IllegalArgumentException("segmented encryption requires an authenticated algorithm, got " + algorithm);
+		}
+		this.algorithm = algorithm;
+		return this;
+	}
+
+	/**
+	 * Sets the size of the plain text chunks; larger chunks cost more memory,
+	 * smaller ones more authentication tags and a coarser parallelism.
+	 *
+	 * @param chunkSize
+	 *   the size of the chunks, in bytes.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public SegmentedEncryptor setChunkSize(int chunkSize) {
+		if(chunkSize <= 0 || chunkSize > Segments.MAX_CHUNK_SIZE) {
+			logger.error("invalid chunk size: {}", chunkSize);
+			throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * Sets the pool on which the chunks are encrypted.
+	 *
+	 * @param pool
+	 *   the fork/join pool.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public SegmentedEncryptor setPool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * Initialises the object and prepares it for encryption.
+	 *
+	 * @param parameters
+	 *   can be one of the following options:<ol>
+	 *   <li>an X.509 certificate</li>
+	 *   <li>an array or a collection of X.509 certificates, for as many
+	 *   recipients</li>
+	 *   </ol>
+	 * @return
+	 *   whether the object has been properly initialised.
+	 * @see org.dihedron.crypto.operations.encrypt.Encryptor#initialise(java.lang.Object[])
+	 */
+	@Override
+	public boolean initialise(Object... parameters) {
+		if(parameters.length != 1 || parameters[0] == null) {
+			logger.error("invalid input parameters: expected the recipients' certificates");
+			return false;
+		}
+		Collection<?> recipients;
+		if(parameters[0] instanceof X509Certificate) {
+			recipients = Arrays.asList(parameters[0]);
+		} else if(parameters[0] instanceof X509Certificate[]) {
+			recipients = Arrays.asList((X509Certificate[])parameters[0]);
+		} else if(parameters[0] instanceof Collection) {
+			recipients = (Collection<?>)parameters[0];
+		} else {
+			logger.error("invalid input parameters: expected X509Certificate or a collection of X509Certificates, got {}", parameters[0].getClass().getName());
+			return false;
+		}
+		List<X509Certificate> list = new ArrayList<>();
+		for(Object recipient : recipients) {
+			if(recipient instanceof X509Certificate) {
+				list.add((X509Certificate)recipient);
+			} else {
+				logger.error("invalid input parameters: expected X509Certificate, got {}", recipient == null ? "null" : recipient.getClass().getName());
+				return false;
+			}
+		}
+		if(list.isEmpty()) {
+			logger.error("invalid input parameters: no recipients");
+			return false;
+		}
+		certificates = list;
+		return true;
+	}
+
+	/**
+	 * @see org.dihedron.crypto.operations.encrypt.Encryptor#encrypt(byte[])
+	 */
+	@Override
+	public byte[] encrypt(byte[] plaintext) throws CryptoException {
+		ByteArrayOutputStream ciphertext = new ByteArrayOutputStream(plaintext.length + plaintext.length / chunkSize * Segments.TAG_SIZE + 4096);
+		encrypt(new ByteArrayInputStream(plaintext), ciphertext);
+		return ciphertext.toByteArray();
+	}
+
+	/**
+	 * Encrypts the data read from the given input stream, writing the container
+	 * to the given output stream; neither stream is closed. Chunks are read
+	 * and written sequentially, in batches of twice the pool's parallelism,
+	 * and the chunks in each batch are encrypted in parallel.
+	 *
+	 * @param plaintext
+	 *   the stream from which the plain text is read.
+	 * @param ciphertext
+	 *   the stream to which the container is written.
+	 * @throws CryptoException
+	 *   if no recipients were given, or the data cannot be encrypted.
+	 */
+	public void encrypt(InputStream plaintext, OutputStream ciphertext) throws CryptoException {
+		if(certificates.isEmpty()) {
+			logger.error("encryptor not initialised");
+			throw new CryptoException("encryptor not initialised");
+		}
+		try {
+			Provider provider = ProviderSelector.getDefault().getCipherProvider(algorithm);
+			KeyGenerator generator = KeyGenerator.getInstance("AES", provider);
+			generator.init(algorithm.getKeySize(), random);
+			SecretKey key = generator.generateKey();
+			byte[] prefix = new byte[Segments.PREFIX_SIZE];
+			random.nextBytes(prefix);
+			AlgorithmIdentifier identifier = new AlgorithmIdentifier(algorithm.getOID(), new GCMParameters(prefix, Segments.TAG_SIZE));
+
+			List<RecipientInfo> infos = new ArrayList<>();
+			for(RecipientInfoGenerator recipient : Envelopes.recipients(certificates)) {
+				infos.add(recipient.generate(new GenericKey(identifier, key.getEncoded())));
+			}
+			Segments.Header header = new Segments.Header(infos, identifier, chunkSize);
+			header.write(ciphertext);
+			logger.info("encrypting in chunks of {} bytes for {} recipients with {}, {} threads", chunkSize, certificates.size(), algorithm, pool.getParallelism());
+
+			int batchSize = pool.getParallelism() * 2;
+			long index = 0;
+			byte[] current = new byte[chunkSize];
+			int length = read(plaintext, current);
+			boolean last = false;
+			while(!last) {
+				List<Segments.Chunk> batch = new ArrayList<>(batchSize);
+				while(batch.size() < batchSize && !last) {
+					// a chunk is the last one if nothing follows it
+					byte[] next = new byte[chunkSize];
+					int read = read(plaintext, next);
+					last = read == 0;
+					if(index >= Segments.MAX_CHUNKS) {
+						logger.error("too many chunks, the chunk size must be increased");
+						throw new CryptoException("too many chunks, the chunk size must be increased");
+					}
+					batch.add(new Segments.Chunk(index++, current, length, last));
+					current = next;
+					length = read;
+				}
+				Segments.process(pool, Cipher.ENCRYPT_MODE, key, provider, header, batch);
+				for(Segments.Chunk chunk : batch) {
+					ciphertext.write(chunk.getOutput());
+				}
+			}
+			logger.info("... encryption done, {} chunks written", index);
+		} catch (GeneralSecurityException e) {
+			logger.error("error initialising content encryption", e);
+			throw new CryptoException("error initialising content encryption", e);
+		} catch (CMSException e) {
+			logger.error("CMS exception", e);
+			throw new CryptoException("error encrypting content encryption key", e);
+		} catch (IOException e) {
+			logger.error("error reading or writing data", e);
+			throw new CryptoException("error reading or writing data", e);
+		}
+	}
+
+	/**
+	 * Fills the buffer from the stream, unless the stream ends first.
+	 *
+	 * @return
+	 *   the number of bytes read.
+	 */
+	private static int read(InputStream input, byte[] buffer) throws IOException {
+		int total = 0;
+		int read;
+		while(total < buffer.length && (read = input.read(buffer, total, buffer.length - total)) != -1) {
+			total += read;
+		}
+		return total;
+	}
+}
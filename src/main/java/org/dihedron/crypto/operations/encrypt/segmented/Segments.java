@@ -0,0 +1,468 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.encrypt.segmented;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.GCMParameters;
+import org.bouncycastle.asn1.cms.RecipientInfo;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.dihedron.core.License;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.exceptions.UnsupportedFormatException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The segmented encryption format, for very large payloads that must be
+ * encrypted on all cores and decrypted by ranges. The layout is:<pre>
+ * magic     4 bytes, "DSEG"
+ * header    DER encoded SegmentedHeader
+ * chunks    the encrypted chunks, each followed by its 16 bytes GCM tag
+ *
+ * SegmentedHeader ::= SEQUENCE {
+ *   version                     INTEGER (1),
+ *   recipientInfos              SET OF RecipientInfo,     -- as in CMS
+ *   contentEncryptionAlgorithm  AlgorithmIdentifier,      -- AES-GCM
+ *   chunkSize                   INTEGER }
+ * </pre>
+ * The GCM parameters of the algorithm identifier hold a random 7 bytes nonce
+ * prefix; chunk <i>i</i> is encrypted under the nonce made of the prefix, of
+ * <i>i</i> as a 4 bytes big endian integer, and of a last byte that is 1 for
+ * the last chunk and 0 otherwise, so that chunks cannot be reordered, and the
+ * payload cannot be truncated, without failing authentication. All chunks
+ * but the last hold exactly <code>chunkSize</code> bytes of plain text (the
+ * last one may be empty), so the position of any chunk follows from the size
+ * of the header and the chunk size, and the layout is its own index. The
+ * header itself is not authenticated, so that recipients can be changed
+ * without touching the chunks; tampering with the nonce prefix or the chunk
+ * size makes authentication fail.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public final class Segments {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(Segments.class);
+
+	/**
+	 * The bytes at the beginning of the container.
+	 */
+	private static final byte[] MAGIC = { 'D', 'S', 'E', 'G' };
+
+	/**
+	 * The version of the format.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The size of the GCM authentication tag of each chunk, in bytes.
+	 */
+	public static final int TAG_SIZE = 16;
+
+	/**
+	 * The size of the random nonce prefix, in bytes.
+	 */
+	public static final int PREFIX_SIZE = 7;
+
+	/**
+	 * The default size of the plain text chunks, in bytes.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * The maximum size of the plain text chunks, in bytes.
+	 */
+	public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The maximum number of chunks, since the chunk index in the nonce is 4 bytes.
+	 */
+	public static final long MAX_CHUNKS = 1L << 32;
+
+	/**
+	 * The pool used when none is provided, created on first use.
+	 */
+	private static ForkJoinPool pool = null;
+
+	/**
+	 * Returns the fork/join pool used when none is provided, with as many
+	 * threads as there are processors.
+	 *
+	 * @return
+	 *   the default pool.
+	 */
+	public static synchronized ForkJoinPool getDefaultPool() {
+		if(pool == null) {
+			pool = new ForkJoinPool();
+		}
+		return pool;
+	}
+
+	/**
+	 * The header of a segmented container.
+	 */
+	public static class Header {
+
+		/**
+		 * The recipient information structures.
+		 */
+		private final List<RecipientInfo> recipientInfos;
+
+		/**
+		 * The content encryption algorithm, with the nonce prefix.
+		 */
+		private final AlgorithmIdentifier contentEncryptionAlgorithm;
+
+		/**
+		 * The size of the plain text chunks.
+		 */
+		private final int chunkSize;
+
+		/**
+		 * The size of the encoded header, magic included.
+		 */
+		private final int length;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param recipientInfos
+		 *   the recipient information structures.
+		 * @param contentEncryptionAlgorithm
+		 *   the content encryption algorithm, with the nonce prefix.
+		 * @param chunkSize
+		 *   the size of the plain text chunks.
+		 */
+		public Header(List<RecipientInfo> recipientInfos, AlgorithmIdentifier contentEncryptionAlgorithm, int chunkSize) {
+			this(recipientInfos, contentEncryptionAlgorithm, chunkSize, -1);
+		}
+
+		private Header(List<RecipientInfo> recipientInfos, AlgorithmIdentifier contentEncryptionAlgorithm, int chunkSize, int length) {
+			this.recipientInfos = Collections.unmodifiableList(recipientInfos);
+			this.contentEncryptionAlgorithm = contentEncryptionAlgorithm;
+			this.chunkSize = chunkSize;
+			this.length = length;
+		}
+
+		/**
+		 * @return
+		 *   the recipient information structures.
+		 */
+		public List<RecipientInfo> getRecipientInfos() {
+			return recipientInfos;
+		}
+
+		/**
+		 * @return
+		 *   the content encryption algorithm, with the nonce prefix.
+		 */
+		public AlgorithmIdentifier getContentEncryptionAlgorithm() {
+			return contentEncryptionAlgorithm;
+		}
+
+		/**
+		 * @return
+		 *   the content encryption algorithm.
+		 */
+		public ContentEncryptionAlgorithm getAlgorithm() {
+			return ContentEncryptionAlgorithm.fromOID(contentEncryptionAlgorithm.getAlgorithm());
+		}
+
+		/**
+		 * @return
+		 *   the random prefix of the chunk nonces.
+		 */
+		public byte[] getNoncePrefix() {
+			return GCMParameters.getInstance(contentEncryptionAlgorithm.getParameters()).getNonce();
+		}
+
+		/**
+		 * @return
+		 *   the size of the plain text chunks.
+		 */
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		/**
+		 * @return
+		 *   the size of the encoded header, magic included, if the header was
+		 *   read from a container, -1 otherwise.
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Writes the header, magic included, to the given stream.
+		 *
+		 * @param output
+		 *   the stream to which the header is written.
+		 * @throws IOException
+		 *   if the header cannot be written.
+		 */
+		public void write(OutputStream output) throws IOException {
+			ASN1EncodableVector vector = new ASN1EncodableVector();
+			vector.add(new ASN1Integer(VERSION));
+			ASN1EncodableVector infos = new ASN1EncodableVector();
+			for(RecipientInfo info : recipientInfos) {
+				infos.add(info);
+			}
+			vector.add(new DERSet(infos));
+			vector.add(contentEncryptionAlgorithm);
+			vector.add(new ASN1Integer(chunkSize));
+			output.write(MAGIC);
+			output.write(new DERSequence(vector).getEncoded(ASN1Encoding.DER));
+		}
+
+		/**
+		 * Reads the header, magic included, from the given stream; no byte
+		 * past the header is consumed.
+		 *
+		 * @param input
+		 *   the stream from which the header is read.
+		 * @return
+		 *   the header.
+		 * @throws CryptoException
+		 *   if the data is not a segmented container, or its header cannot be
+		 *   read.
+		 */
+		public static Header read(InputStream input) throws CryptoException {
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				new DataInputStream(input).readFully(magic);
+				if(!Arrays.equals(MAGIC, magic)) {
+					logger.error("not a segmented container");
+					throw new UnsupportedFormatException("not a segmented container");
+				}
+				ASN1Sequence sequence = ASN1Sequence.getInstance(new ASN1InputStream(input).readObject());
+				int version = ASN1Integer.getInstance(sequence.getObjectAt(0)).getValue().intValue();
+				if(version != VERSION) {
+					logger.error("unsupported segmented container version: {}", version);
+					throw new UnsupportedFormatException("unsupported segmented container version: " + version);
+				}
+				List<RecipientInfo> infos = new ArrayList<>();
+				for(ASN1Encodable info : ASN1Set.getInstance(sequence.getObjectAt(1)).toArray()) {
+					infos.add(RecipientInfo.getInstance(info));
+				}
+				AlgorithmIdentifier algorithm = AlgorithmIdentifier.getInstance(sequence.getObjectAt(2));
+				ContentEncryptionAlgorithm cea = ContentEncryptionAlgorithm.fromOID(algorithm.getAlgorithm());
+				if(cea == null || !cea.isAuthenticated()) {
+					logger.error("unsupported segmented content encryption algorithm: {}", algorithm.getAlgorithm());
+					throw new UnsupportedFormatException("unsupported segmented content encryption algorithm: " + algorithm.getAlgorithm());
+				}
+				byte[] prefix = GCMParameters.getInstance(algorithm.getParameters()).getNonce();
+				if(prefix.length != PREFIX_SIZE) {
+					logger.error("invalid nonce prefix length: {}", prefix.length);
+					throw new UnsupportedFormatException("invalid nonce prefix length: " + prefix.length);
+				}
+				int chunkSize = ASN1Integer.getInstance(sequence.getObjectAt(3)).getValue().intValue();
+				if(chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+					logger.error("invalid chunk size: {}", chunkSize);
+					throw new UnsupportedFormatException("invalid chunk size: " + chunkSize);
+				}
+				return new Header(infos, algorithm, chunkSize, MAGIC.length + sequence.getEncoded(ASN1Encoding.DER).length);
+			} catch (IOException | IllegalArgumentException e) {
+				logger.error("error reading segmented container header", e);
+				throw new CryptoException("error reading segmented container header", e);
+			}
+		}
+	}
+
+	/**
+	 * A chunk of data to be encrypted or decrypted.
+	 */
+	public static class Chunk {
+
+		/**
+		 * The index of the chunk in the container.
+		 */
+		private final long index;
+
+		/**
+		 * The input data.
+		 */
+		private final byte[] input;
+
+		/**
+		 * The number of valid bytes in the input buffer.
+		 */
+		private final int length;
+
+		/**
+		 * Whether this is the last chunk of the container.
+		 */
+		private final boolean last;
+
+		/**
+		 * The output data, once processed.
+		 */
+		private byte[] output;
+
+		/**
+		 * The error that occurred processing the chunk, if any.
+		 */
+		private GeneralSecurityException error;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param index
+		 *   the index of the chunk in the container.
+		 * @param input
+		 *   the input data.
+		 * @param length
+		 *   the number of valid bytes in the input buffer.
+		 * @param last
+		 *   whether this is the last chunk of the container.
+		 */
+		public Chunk(long index, byte[] input, int length, boolean last) {
+			this.index = index;
+			this.input = input;
+			this.length = length;
+			this.last = last;
+		}
+
+		/**
+		 * @return
+		 *   the index of the chunk in the container.
+		 */
+		public long getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return
+		 *   the output data, once processed.
+		 */
+		public byte[] getOutput() {
+			return output;
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts the given chunks in parallel, on the given pool;
+	 * each chunk is authenticated on its own.
+	 *
+	 * @param pool
+	 *   the fork/join pool.
+	 * @param mode
+	 *   either <code>Cipher.ENCRYPT_MODE</code> or <code>Cipher.DECRYPT_MODE</code>.
+	 * @param key
+	 *   the content encryption key.
+	 * @param provider
+	 *   the provider of the cipher.
+	 * @param header
+	 *   the container header.
+	 * @param chunks
+	 *   the chunks to process.
+	 * @throws CryptoException
+	 *   if any chunk cannot be processed, e.g. because it fails authentication.
+	 */
+	public static void process(ForkJoinPool pool, int mode, SecretKey key, Provider provider, Header header, List<Chunk> chunks) throws CryptoException {
+		pool.invoke(new ChunkTask(mode, key, provider, header.getAlgorithm().getTransformation(), header.getNoncePrefix(), chunks));
+		for(Chunk chunk : chunks) {
+			if(chunk.error != null) {
+				logger.error("error processing chunk " + chunk.index, chunk.error);
+				throw new CryptoException("error processing chunk " + chunk.index + (mode == Cipher.DECRYPT_MODE ? ", it may have been tampered with" : ""), chunk.error);
+			}
+		}
+	}
+
+	/**
+	 * Returns the nonce of the given chunk.
+	 */
+	private static byte[] nonce(byte[] prefix, long index, boolean last) {
+		byte[] nonce = new byte[PREFIX_SIZE + 5];
+		System.arraycopy(prefix, 0, nonce, 0, PREFIX_SIZE);
+		nonce[PREFIX_SIZE] = (byte)(index >>> 24);
+		nonce[PREFIX_SIZE + 1] = (byte)(index >>> 16);
+		nonce[PREFIX_SIZE + 2] = (byte)(index >>> 8);
+		nonce[PREFIX_SIZE + 3] = (byte)index;
+		nonce[PREFIX_SIZE + 4] = (byte)(last ? 1 : 0);
+		return nonce;
+	}
+
+	/**
+	 * Processes a range of chunks, splitting it in halves until a single chunk
+	 * is left.
+	 */
+	private static class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int mode;
+
+		private final SecretKey key;
+
+		private final Provider provider;
+
+		private final String transformation;
+
+		private final byte[] prefix;
+
+		private final List<Chunk> chunks;
+
+		ChunkTask(int mode, SecretKey key, Provider provider, String transformation, byte[] prefix, List<Chunk> chunks) {
+			this.mode = mode;
+			this.key = key;
+			this.provider = provider;
+			this.transformation = transformation;
+			this.prefix = prefix;
+			this.chunks = chunks;
+		}
+
+		@Override
+		protected void compute() {
+			if(chunks.size() > 1) {
+				int middle = chunks.size() / 2;
+				invokeAll(new ChunkTask(mode, key, provider, transformation, prefix, chunks.subList(0, middle)), new ChunkTask(mode, key, provider, transformation, prefix, chunks.subList(middle, chunks.size())));
+			} else if(chunks.size() == 1) {
+				Chunk chunk = chunks.get(0);
+				try {
+					Cipher cipher = Cipher.getInstance(transformation, provider);
+					cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce(prefix, chunk.index, chunk.last)));
+					chunk.output = cipher.doFinal(chunk.input, 0, chunk.length);
+				} catch (GeneralSecurityException e) {
+					chunk.error = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Private constructor, to prevent instantiation.
+	 */
+	private Segments() {
+	}
+}
@@ -0,0 +1,11 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */ 
+
+/**
+ * The package containing the classes providing encryption in the segmented format, 
+ * for very large payloads.
+ *  
+ * @author Andrea Funto'
+ */
+package org.dihedron.crypto.operations.encrypt.segmented;
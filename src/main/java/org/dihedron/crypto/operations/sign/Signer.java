@@ -47,6 +47,12 @@ public abstract class Signer extends CryptoService {
 	 * Whether the signer should encapsulate data along with the signature. 	
 	 */
 	protected boolean encapsulate = true;
+	
+	/**
+	 * Whether the signer should embed the revocation data about the signing 
+	 * certificate into the signature.
+	 */
+	protected boolean embedRevocationData = false;
 		
 	/**
 	 * Constructor.
@@ -91,6 +97,29 @@ public abstract class Signer extends CryptoService {
 		return this.encapsulate;
 	}
 	
+	/**
+	 * Sets whether the CRLs and OCSP responses about the signing certificate's 
+	 * chain should be embedded into the signature, so that verifiers do not 
+	 * need to fetch them.
+	 * 
+	 * @param embedRevocationData
+	 *   whether the revocation data is embedded into the signature.
+	 */
+	public void setEmbedRevocationData(boolean embedRevocationData) {
+		this.embedRevocationData = embedRevocationData;
+	}
+	
+	/**
+	 * Returns whether the revocation data is going to be embedded into the 
+	 * signature.
+	 * 
+	 * @return
+	 *   whether the revocation data is going to be embedded into the signature.
+	 */
+	public boolean isEmbedRevocationData() {
+		return this.embedRevocationData;
+	}
+	
 	/**
 	 * Signs the given set of data.
 	 * 
@@ -20,6 +20,8 @@ import org.dihedron.core.License;
 import org.dihedron.crypto.KeyRing;
 import org.dihedron.crypto.certificates.Certificates;
 import org.dihedron.crypto.constants.SignatureAlgorithm;
+import org.dihedron.crypto.crl.RevocationChecker;
+import org.dihedron.crypto.crl.RevocationData;
 import org.dihedron.crypto.exceptions.CryptoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +39,12 @@ public class SigningStreamConfigurator {
 	 */
 	public static final boolean DEFAULT_VERIFY_CERTIFICATE = true;
 	
+	/**
+	 * Whether by default the revocation data about the signing certificate must
+	 * be embedded into the signature.
+	 */
+	public static final boolean DEFAULT_EMBED_REVOCATION_DATA = false;
+	
 	/**
 	 * The logger.
 	 */
@@ -78,6 +86,17 @@ public class SigningStreamConfigurator {
 	 */
 	protected boolean verifyCertificate = DEFAULT_VERIFY_CERTIFICATE;
 	
+	/**
+	 * Whether the signer should embed the CRLs and OCSP responses about the 
+	 * signing certificate's chain into the signature.
+	 */
+	protected boolean embedRevocationData = DEFAULT_EMBED_REVOCATION_DATA;
+	
+	/**
+	 * The revocation data gathered while retrieving the signing certificate.
+	 */
+	protected RevocationData revocationData = null;
+	
 	/**
 	 * Default constructor.
 	 */
@@ -223,6 +242,43 @@ public class SigningStreamConfigurator {
 		return this;
 	}
 	
+	/**
+	 * Returns whether the signer should embed the revocation data about the 
+	 * signing certificate into the signature.
+	 *
+	 * @return 
+	 *   whether the signer should embed the revocation data into the signature.
+	 */
+	public boolean isEmbedRevocationData() {
+		return embedRevocationData;
+	}
+
+	/**
+	 * Sets whether the signer should embed the CRLs and OCSP responses gathered
+	 * while validating the signing certificate into the signature, so that 
+	 * verifiers do not need to fetch them.
+	 *
+	 * @param embedRevocationData 
+	 *   whether the signer should embed the revocation data into the signature.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public SigningStreamConfigurator setEmbedRevocationData(boolean embedRevocationData) {
+		this.embedRevocationData = embedRevocationData;
+		return this;
+	}
+	
+	/**
+	 * Returns the revocation data gathered by the last call to {@link 
+	 * #getCertificate()}, if revocation data is to be embedded.
+	 *
+	 * @return 
+	 *   the revocation data, or null if not available.
+	 */
+	public RevocationData getRevocationData() {
+		return revocationData;
+	}
+	
 	/**
 	 * Returns the collection of trust anchor certificates.
 	 *
@@ -289,6 +345,7 @@ public class SigningStreamConfigurator {
 		buffer.append("\talgorithm        : '" ).append(algorithm.toString()).append("',\n");
 		buffer.append("\tencapsulate data : '" ).append(encapsulateData).append("',\n");
 		buffer.append("\tverify certif.   : '" ).append(verifyCertificate).append("',\n");
+		buffer.append("\tembed rev. data  : '" ).append(embedRevocationData).append("',\n");
 		buffer.append("\ttrust anchors    : '" ).append(trustAnchors.isEmpty() ? "empty" : trustAnchors.size() + " elements").append("'\n");
 		buffer.append("}");
 		return buffer.toString();
@@ -367,6 +424,13 @@ public class SigningStreamConfigurator {
 				logger.trace("... public key:\n{}", verified.getPublicKey());
 				
 				logger.info("... verification complete");
+				
+				if(embedRevocationData) {
+					revocationData = RevocationChecker.getDefault().collect(verified.getCertPath().getCertificates(), verified.getTrustAnchor().getTrustedCert());
+				}
+			} else if(embedRevocationData) {
+				// no validated path: use the chain in the key ring as is
+				revocationData = RevocationChecker.getDefault().collect(keyring.getCertificateChain(alias), null);
 			}
 			
 			return certificate;
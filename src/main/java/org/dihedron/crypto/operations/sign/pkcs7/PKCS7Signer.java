@@ -8,6 +8,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.KeyStoreException;
 import java.security.PrivateKey;
@@ -18,6 +19,7 @@ import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.bouncycastle.cert.jcajce.JcaCertStore;
@@ -30,15 +32,20 @@ import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.Store;
 import org.dihedron.core.License;
 import org.dihedron.core.streams.Streams;
 import org.dihedron.crypto.KeyRing;
+import org.dihedron.crypto.certificates.CAIssuers;
+import org.dihedron.crypto.certificates.Certificates;
+import org.dihedron.crypto.certificates.TrustAnchors;
 import org.dihedron.crypto.constants.SignatureAlgorithm;
+import org.dihedron.crypto.crl.RevocationChecker;
+import org.dihedron.crypto.exceptions.CertificateVerificationException;
 import org.dihedron.crypto.exceptions.CryptoException;
 import org.dihedron.crypto.operations.sign.Signer;
 import org.dihedron.crypto.providers.AutoCloseableProvider;
+import org.dihedron.crypto.providers.ProviderSelector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,6 +64,11 @@ public class PKCS7Signer extends Signer {
 	 * The underlying BouncyCastle stream data signer.
 	 */
 	private CMSSignedDataStreamGenerator generator = null;
+	
+	/**
+	 * Whether the revocation data has already been added to the generator.
+	 */
+	private boolean revocationDataEmbedded = false;
 
 	/**
 	 * Constructor.
@@ -106,7 +118,7 @@ public class PKCS7Signer extends Signer {
 					.setProvider((provider instanceof AutoCloseableProvider) ? ((AutoCloseableProvider)provider).getWrappedProvider() : provider)
 					.build((PrivateKey)key);	
 			
-			DigestCalculatorProvider digest = new JcaDigestCalculatorProviderBuilder().setProvider("BC").build();
+			DigestCalculatorProvider digest = ProviderSelector.getDefault().getDigestCalculatorProvider();
 			
 			SignerInfoGenerator signerinfo = 
 					new SignerInfoGeneratorBuilder(digest)
@@ -121,7 +133,6 @@ public class PKCS7Signer extends Signer {
 			generator = new CMSSignedDataStreamGenerator();
 			generator.addSignerInfoGenerator(signerinfo);
 			generator.addCertificates(store);
-			//generator.addCRLs(crlStore);
 						
 			logger.debug("signed data stream generator for PKCS#7 is ready");
 			
@@ -197,6 +208,19 @@ public class PKCS7Signer extends Signer {
 	 */
 	@Override
 	public void sign(InputStream input, OutputStream output) throws CryptoException {
+		if(embedRevocationData && !revocationDataEmbedded) {
+			try {
+				List<Certificate> chain = keyring.getCertificateChain(alias);
+				if(chain.isEmpty()) {
+					chain = Collections.singletonList(keyring.getCertificate(alias));
+				}
+				RevocationChecker.getDefault().collect(chain, getAnchor((X509Certificate)chain.get(chain.size() - 1))).addTo(generator);
+				revocationDataEmbedded = true;
+			} catch (KeyStoreException | CertificateVerificationException | CMSException e) {
+				logger.error("error embedding revocation data into signature", e);
+				throw new CryptoException("error embedding revocation data into signature", e);
+			}
+		}
 		try(OutputStream stream = generator.open(output, encapsulate)) {
 			logger.trace("copying data into generator filter stream...");
 			long copied = Streams.copy(input, stream);
@@ -206,4 +230,36 @@ public class PKCS7Signer extends Signer {
 			throw new CryptoException("error opening signature generator wrapper output stream", e);
 		}
 	}
+	
+	/**
+	 * Finds the certificate of the issuer of the last certificate in the signer's
+	 * chain, so that the revocation data about it can be checked against its
+	 * issuer: a self-signed certificate is its own issuer, otherwise the issuer
+	 * is looked up among the JVM's root CAs and then through the certificate's
+	 * "CA Issuers" URLs.
+	 */
+	private static X509Certificate getAnchor(X509Certificate certificate) throws CertificateVerificationException {
+		try {
+			if(Certificates.isSelfSigned(certificate)) {
+				return certificate;
+			}
+			List<X509Certificate> candidates = TrustAnchors.getJavaRootCAs().getIssuerCandidates(certificate);
+			if(candidates.isEmpty()) {
+				candidates = CAIssuers.getDefault().getIssuers(certificate);
+			}
+			for(X509Certificate candidate : candidates) {
+				try {
+					certificate.verify(candidate.getPublicKey());
+					return candidate;
+				} catch(GeneralSecurityException e) {
+					logger.trace("candidate issuer '{}' does not verify certificate", candidate.getSubjectX500Principal());
+				}
+			}
+		} catch(GeneralSecurityException | CryptoException e) {
+			logger.error("error looking up the issuer of '{}'", certificate.getSubjectX500Principal(), e);
+			throw new CertificateVerificationException("Error looking up the issuer of: " + certificate.getSubjectX500Principal(), e);
+		}
+		logger.error("no issuer found for '{}'", certificate.getSubjectX500Principal());
+		throw new CertificateVerificationException("No issuer found for: " + certificate.getSubjectX500Principal());
+	}
 }
@@ -27,7 +27,6 @@ import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.Store;
 import org.dihedron.core.License;
 import org.dihedron.crypto.constants.SignatureAlgorithm;
@@ -35,6 +34,7 @@ import org.dihedron.crypto.exceptions.CryptoException;
 import org.dihedron.crypto.operations.sign.SigningStream;
 import org.dihedron.crypto.operations.sign.SigningStreamConfigurator;
 import org.dihedron.crypto.providers.AutoCloseableProvider;
+import org.dihedron.crypto.providers.ProviderSelector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -97,7 +97,7 @@ public class PKCS7SigningStream extends SigningStream {
 					.setProvider((provider instanceof AutoCloseableProvider) ? ((AutoCloseableProvider)provider).getWrappedProvider() : provider)
 					.build((PrivateKey)key);
 			
-			DigestCalculatorProvider digest = new JcaDigestCalculatorProviderBuilder().setProvider("BC").build();
+			DigestCalculatorProvider digest = ProviderSelector.getDefault().getDigestCalculatorProvider();
 			
 			SignerInfoGenerator signerinfo = 
 					new SignerInfoGeneratorBuilder(digest)
@@ -112,7 +112,9 @@ public class PKCS7SigningStream extends SigningStream {
 			generator = new CMSSignedDataStreamGenerator();
 			generator.addSignerInfoGenerator(signerinfo);
 			generator.addCertificates(store);
-			//generator.addCRLs(crlStore);
+			if(configurator.isEmbedRevocationData() && configurator.getRevocationData() != null) {
+				configurator.getRevocationData().addTo(generator);
+			}
 						
 			logger.debug("signed data stream generator for PKCS#7 is ready");
 			
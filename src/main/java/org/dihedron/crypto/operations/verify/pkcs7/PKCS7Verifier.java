@@ -6,8 +6,13 @@ package org.dihedron.crypto.operations.verify.pkcs7;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
 
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.cert.CertException;
 import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataParser;
@@ -15,11 +20,15 @@ import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.SignerInformationStore;
 import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
 import org.bouncycastle.util.Store;
 import org.dihedron.core.License;
+import org.dihedron.crypto.crl.RevocationChecker;
+import org.dihedron.crypto.crl.RevocationData;
+import org.dihedron.crypto.exceptions.CertificateVerificationException;
 import org.dihedron.crypto.exceptions.CryptoException;
 import org.dihedron.crypto.operations.verify.Verifier;
+import org.dihedron.crypto.providers.ProviderSelector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +43,36 @@ public class PKCS7Verifier extends Verifier {
 	 */
 	private static Logger logger = LoggerFactory.getLogger(PKCS7Verifier.class);
 	
+	/**
+	 * Whether the signers' certificates must be checked for revocation.
+	 */
+	private boolean checkRevocation = false;
+	
+	/**
+	 * Sets whether the signers' certificates must be checked for revocation; if
+	 * so, the CRLs and OCSP responses embedded in the signature are used as long
+	 * as they are fresh, and the network is only used as a fallback.
+	 * 
+	 * @param checkRevocation
+	 *   whether the signers' certificates must be checked for revocation.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public PKCS7Verifier setCheckRevocation(boolean checkRevocation) {
+		this.checkRevocation = checkRevocation;
+		return this;
+	}
+	
+	/**
+	 * Returns whether the signers' certificates are checked for revocation.
+	 * 
+	 * @return
+	 *   whether the signers' certificates are checked for revocation.
+	 */
+	public boolean isCheckRevocation() {
+		return checkRevocation;
+	}
+	
 	/**
 	 * @see org.dihedron.crypto.operations.verify.Verifier#verify(java.io.InputStream)
 	 */
@@ -41,15 +80,17 @@ public class PKCS7Verifier extends Verifier {
 	public boolean verify(InputStream signed) throws CryptoException {
 		boolean result = true;
 		try {
-			CMSSignedDataParser parser = new CMSSignedDataParser(new JcaDigestCalculatorProviderBuilder().setProvider("BC").build(), signed);
+			CMSSignedDataParser parser = new CMSSignedDataParser(ProviderSelector.getDefault().getDigestCalculatorProvider(), signed);
 			parser.getSignedContent().drain();
 			Store store = parser.getCertificates();
+			RevocationData embedded = checkRevocation ? RevocationData.fromSignedData(parser.getCRLs(), parser.getOtherRevocationInfo(CMSObjectIdentifiers.id_ri_ocsp_response)) : null;
 		
 			for(Object signer : parser.getSignerInfos().getSigners()) {				
 				for(Object object : store.getMatches(((SignerInformation)signer).getSID())) {					
 					X509CertificateHolder holder = (X509CertificateHolder)object;
 					logger.trace("verifying signer '{}'", holder.getSubject());
 					result = result && ((SignerInformation)signer).verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(holder));
+					result = result && (!checkRevocation || isNotRevoked(holder, store, embedded));
 					logger.trace("verify returns: {}", result);
 				}
 			}
@@ -96,6 +137,7 @@ public class PKCS7Verifier extends Verifier {
         	Store certificates = signed.getCertificates();
 
         	logger.debug("{} signers found", signers.getSigners().size()); 
+        	RevocationData embedded = checkRevocation ? RevocationData.fromSignedData(signed.getCRLs(), signed.getOtherRevocationInfo(CMSObjectIdentifiers.id_ri_ocsp_response)) : null;
     		
         	// loop over signers and their respective certificates and check if
         	// the signature is verified (no check is made on certificates); exit
@@ -109,6 +151,9 @@ public class PKCS7Verifier extends Verifier {
 						logger.error("signature verification failed for signer '{}'", signer.getSID());
 						return false;
 	    			}
+	    			if(checkRevocation && !isNotRevoked((X509CertificateHolder)certificate, certificates, embedded)) {
+	    				return false;
+	    			}
 	    		}
 	    	}
 	    	logger.info("all signatures successfully verified");
@@ -125,6 +170,41 @@ public class PKCS7Verifier extends Verifier {
 		}
 	}		
 	
+	/**
+	 * Checks the revocation status of a signer's certificate, using the revocation
+	 * data embedded in the signature when fresh, and the network otherwise; the
+	 * issuer's certificate is looked up among those in the signature, and only
+	 * accepted if its key verifies the signer's certificate, so that a forged
+	 * certificate with the issuer's name cannot vouch for forged revocation 
+	 * data.
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean isNotRevoked(X509CertificateHolder holder, Store certificates, RevocationData embedded) throws CertificateException {
+		JcaX509CertificateConverter converter = new JcaX509CertificateConverter().setProvider("BC");
+		X509Certificate certificate = converter.getCertificate(holder);
+		X509Certificate issuer = null;
+		for(X509CertificateHolder candidate : (Collection<X509CertificateHolder>)certificates.getMatches(null)) {
+			if(candidate.getSubject().equals(holder.getIssuer()) && !candidate.equals(holder)) {
+				try {
+					if(holder.isSignatureValid(new JcaContentVerifierProviderBuilder().setProvider("BC").build(candidate))) {
+						issuer = converter.getCertificate(candidate);
+						break;
+					}
+					logger.warn("certificate '{}' has the issuer's name but did not sign '{}'", candidate.getSubject(), holder.getSubject());
+				} catch(OperatorCreationException | CertException e) {
+					logger.warn("error checking whether '{}' issued '{}'", candidate.getSubject(), holder.getSubject());
+				}
+			}
+		}
+		try {
+			RevocationChecker.getDefault().verify(certificate, issuer, embedded);
+			return true;
+		} catch(CertificateVerificationException e) {
+			logger.error("signer certificate '{}' is revoked", holder.getSubject());
+			return false;
+		}
+	}
+	
 //	/**
 //	 * Verifies a detached signature, given the array of bytes on which it was 
 //	 * originally calculated.
@@ -0,0 +1,636 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.providers;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.dihedron.core.License;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.dihedron.crypto.exceptions.ProviderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks, for each digest, cipher and key transport algorithm, the fastest of
+ * the installed security providers, so that bulk operations can take advantage
+ * of the intrinsified implementations in the JDK's own providers (e.g. SHA and
+ * AES-NI in SUN and SunJCE) instead of always going through BouncyCastle.
+ * Candidates are either timed with a short micro-benchmark, or (if the
+ * {@link #BENCHMARK_PROPERTY} system property is "false") ranked according to
+ * a static table of preferences; either way, the choice is made once for each
+ * algorithm and then cached. The common algorithms are selected up front by
+ * {@link #initialise()}, which the library starts in the background when it
+ * is loaded (see {@code CryptoService}); any other algorithm is selected on
+ * first use. Concurrent requests for an algorithm whose selection is under way
+ * wait for it rather than benchmarking the candidates again. For compliance needs, a provider
+ * can be forced for all algorithms through the {@link #PROVIDER_PROPERTY}
+ * system property, or for specific services and algorithms through
+ * {@link #setOverride(Service, String, String)}; providers of private keys
+ * (e.g. smart cards) are never affected, since only the operations on public
+ * or bulk data are routed through this class. Operations that depend on the
+ * features of a specific provider (e.g. BouncyCastle's GCM, which releases 
+ * plain text as it goes, or its ECDH with the CMS key derivation functions) 
+ * use it through {@link #getProvider(Service, String, int, String)}, which 
+ * still honours forced providers: in that case the forced provider must 
+ * support the operation, or it fails.
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class ProviderSelector {
+
+	/**
+	 * The logger.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(ProviderSelector.class);
+
+	/**
+	 * The name of the system property that forces a single provider (e.g. "BC",
+	 * or a FIPS certified one) for all algorithms.
+	 */
+	public static final String PROVIDER_PROPERTY = "org.dihedron.crypto.provider";
+
+	/**
+	 * The name of the system property that, if set to "false", disables the
+	 * micro-benchmarks, in favour of the table of preferences.
+	 */
+	public static final String BENCHMARK_PROPERTY = "org.dihedron.crypto.provider.benchmark";
+
+	/**
+	 * The transformation used for RSA key transport.
+	 */
+	public static final String RSA_KEY_TRANSPORT = "RSA/ECB/PKCS1Padding";
+
+	/**
+	 * The kinds of services routed by the selector.
+	 */
+	public enum Service {
+		/**
+		 * Message digests.
+		 */
+		DIGEST,
+
+		/**
+		 * Symmetric ciphers, for bulk encryption.
+		 */
+		CIPHER,
+
+		/**
+		 * Asymmetric ciphers, for the encryption of content encryption keys.
+		 */
+		KEY_TRANSPORT,
+
+		/**
+		 * Key agreement, for the encryption of content encryption keys.
+		 */
+		KEY_AGREEMENT
+	}
+
+	/**
+	 * The table of preferred providers, by service and algorithm ("*" for any
+	 * algorithm), used to rank candidates when benchmarks are disabled.
+	 */
+	private static final Map<String, List<String>> PREFERENCES = new HashMap<>();
+
+	static {
+		PREFERENCES.put(Service.DIGEST + ":*", Arrays.asList("SUN", "BC"));
+		PREFERENCES.put(Service.CIPHER + ":*", Arrays.asList("SunJCE", "BC"));
+		PREFERENCES.put(Service.KEY_TRANSPORT + ":*", Arrays.asList("SunJCE", "BC"));
+		PREFERENCES.put(Service.KEY_AGREEMENT + ":*", Arrays.asList("BC"));
+	}
+
+	/**
+	 * The size of the buffer processed during benchmarks.
+	 */
+	private static final int BENCHMARK_SIZE = 16 * 1024;
+
+	/**
+	 * The time each candidate is given to warm up, in milliseconds, so that
+	 * the JIT has compiled (and intrinsified) its hot loops before measuring.
+	 */
+	private static final long WARMUP_TIME = 200;
+
+	/**
+	 * The time each candidate is measured for in each round, in milliseconds.
+	 */
+	private static final long MEASURE_TIME = 50;
+
+	/**
+	 * The number of measurement rounds; candidates are measured in turns, and
+	 * the best round of each is kept, so that a pause (e.g. garbage collection
+	 * or another thread) during one round does not decide the choice.
+	 */
+	private static final int MEASURE_ROUNDS = 5;
+
+	/**
+	 * The digest algorithms selected up front by {@link #initialise()}.
+	 */
+	private static final List<String> COMMON_DIGESTS = Arrays.asList("SHA-1", "SHA-256", "SHA-384", "SHA-512");
+
+	/**
+	 * The provider used when no installed provider supports an algorithm.
+	 */
+	private static final Provider FALLBACK = new BouncyCastleProvider();
+
+	/**
+	 * The shared instance.
+	 */
+	private static final ProviderSelector instance = new ProviderSelector(!"false".equalsIgnoreCase(System.getProperty(BENCHMARK_PROPERTY)));
+
+	/**
+	 * Returns the shared instance.
+	 *
+	 * @return
+	 *   the shared instance.
+	 */
+	public static ProviderSelector getDefault() {
+		return instance;
+	}
+
+	/**
+	 * Whether candidates are benchmarked.
+	 */
+	private final boolean benchmark;
+
+	/**
+	 * The providers selected so far, by service and algorithm.
+	 */
+	private final Map<String, Provider> selections = new ConcurrentHashMap<>();
+
+	/**
+	 * The selections under way, by service and algorithm.
+	 */
+	private final ConcurrentMap<String, FutureTask<Provider>> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * The names of the providers forced by the user, by service and algorithm.
+	 */
+	private final Map<String, String> overrides = new ConcurrentHashMap<>();
+
+	/**
+	 * The digest calculator providers, by security provider name.
+	 */
+	private final Map<String, DigestCalculatorProvider> calculators = new ConcurrentHashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param benchmark
+	 *   whether candidates should be benchmarked; if false, they are picked
+	 *   according to the table of preferences.
+	 */
+	public ProviderSelector(boolean benchmark) {
+		this.benchmark = benchmark;
+	}
+
+	/**
+	 * Selects the providers for the common digests, for all the content
+	 * encryption algorithms and for RSA key transport, so that the benchmarks
+	 * do not delay the first operations; it should be invoked at startup.
+	 * Algorithms whose selection is already under way (e.g. on first use by
+	 * another thread) are not benchmarked twice.
+	 *
+	 * @return
+	 *   the object itself, for method chaining.
+	 * @throws ProviderException
+	 *   if a forced provider is not installed.
+	 */
+	public ProviderSelector initialise() throws ProviderException {
+		long start = System.currentTimeMillis();
+		for(String digest : COMMON_DIGESTS) {
+			getDigestProvider(digest);
+		}
+		for(ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			getCipherProvider(algorithm);
+		}
+		getKeyTransportProvider(RSA_KEY_TRANSPORT);
+		logger.info("providers selected in {} ms", System.currentTimeMillis() - start);
+		return this;
+	}
+
+	/**
+	 * Forces the use of a given provider.
+	 *
+	 * @param service
+	 *   the service.
+	 * @param algorithm
+	 *   the algorithm (as passed to the getters), or null for all the
+	 *   algorithms of the service.
+	 * @param provider
+	 *   the name of the provider, or null to remove the override.
+	 * @return
+	 *   the object itself, for method chaining.
+	 */
+	public ProviderSelector setOverride(Service service, String algorithm, String provider) {
+		String key = service + ":" + (algorithm != null ? algorithm : "*");
+		if(provider != null) {
+			overrides.put(key, provider);
+		} else {
+			overrides.remove(key);
+		}
+		selections.clear();
+		return this;
+	}
+
+	/**
+	 * Returns the provider to be used for the given message digest.
+	 *
+	 * @param algorithm
+	 *   the name (e.g. "SHA-256") or object identifier of the digest.
+	 * @return
+	 *   the provider.
+	 * @throws ProviderException
+	 *   if a forced provider is not installed.
+	 */
+	public Provider getDigestProvider(String algorithm) throws ProviderException {
+		return select(Service.DIGEST, algorithm, 0);
+	}
+
+	/**
+	 * Returns the provider to be used for the given symmetric cipher.
+	 *
+	 * @param transformation
+	 *   the JCE transformation, e.g. "AES/CBC/PKCS5Padding".
+	 * @param keySize
+	 *   the size of the key, in bits.
+	 * @return
+	 *   the provider.
+	 * @throws ProviderException
+	 *   if a forced provider is not installed.
+	 */
+	public Provider getCipherProvider(String transformation, int keySize) throws ProviderException {
+		return select(Service.CIPHER, transformation, keySize);
+	}
+
+	/**
+	 * Returns the provider to be used for the given content encryption algorithm.
+	 *
+	 * @param algorithm
+	 *   the content encryption algorithm.
+	 * @return
+	 *   the provider.
+	 * @throws ProviderException
+	 *   if a forced provider is not installed.
+	 */
+	public Provider getCipherProvider(ContentEncryptionAlgorithm algorithm) throws ProviderException {
+		return getCipherProvider(algorithm.getTransformation(), algorithm.getKeySize());
+	}
+
+	/**
+	 * Returns the provider to be used for the given key transport cipher.
+	 *
+	 * @param transformation
+	 *   the JCE transformation, e.g. {@link #RSA_KEY_TRANSPORT}.
+	 * @return
+	 *   the provider.
+	 * @throws ProviderException
+	 *   if a forced provider is not installed.
+	 */
+	public Provider getKeyTransportProvider(String transformation) throws ProviderException {
+		return select(Service.KEY_TRANSPORT, transformation, 0);
+	}
+
+	/**
+	 * Returns the provider to be used for the given key agreement algorithm.
+	 *
+	 * @param algorithm
+	 *   the name or object identifier of the key agreement algorithm, e.g. 
+	 *   that of dhSinglePass-stdDH-sha1kdf-scheme.
+	 * @return
+	 *   the provider.
+	 * @throws ProviderException
+	 *   if a forced provider is not installed.
+	 */
+	public Provider getKeyAgreementProvider(String algorithm) throws ProviderException {
+		return select(Service.KEY_AGREEMENT, algorithm, 0);
+	}
+
+	/**
+	 * Returns the provider to be used for an operation that relies on the
+	 * features of a specific provider: the forced provider if there is one for 
+	 * the service and algorithm, the requested provider otherwise. Unlike the
+	 * other getters, no selection is made and nothing is cached.
+	 *
+	 * @param service
+	 *   the service.
+	 * @param algorithm
+	 *   the algorithm (as passed to the other getters).
+	 * @param keySize
+	 *   the size of the key, in bits, or 0 if not relevant.
+	 * @param preferred
+	 *   the name of the provider to use unless one is forced.
+	 * @return
+	 *   the provider.
+	 * @throws ProviderException
+	 *   if the forced or the preferred provider is not installed.
+	 */
+	public Provider getProvider(Service service, String algorithm, int keySize, String preferred) throws ProviderException {
+		String key = service + ":" + algorithm + (keySize > 0 ? ":" + keySize : "");
+		String name = getForced(service, algorithm);
+		if(name == null) {
+			name = preferred;
+		}
+		Provider provider = Security.getProvider(name);
+		if(provider == null && name.equals(FALLBACK.getName())) {
+			provider = FALLBACK;
+		}
+		if(provider == null) {
+			logger.error("provider '{}' for {} is not installed", name, key);
+			throw new ProviderException("provider '" + name + "' for " + key + " is not installed");
+		}
+		return provider;
+	}
+
+	/**
+	 * Returns a digest calculator provider that routes each digest algorithm
+	 * to its selected provider.
+	 *
+	 * @return
+	 *   the digest calculator provider.
+	 */
+	public DigestCalculatorProvider getDigestCalculatorProvider() {
+		return new DigestCalculatorProvider() {
+			@Override
+			public DigestCalculator get(AlgorithmIdentifier algorithm) throws OperatorCreationException {
+				try {
+					Provider provider = getDigestProvider(algorithm.getAlgorithm().getId());
+					DigestCalculatorProvider calculator = calculators.get(provider.getName());
+					if(calculator == null) {
+						calculator = new JcaDigestCalculatorProviderBuilder().setProvider(provider).build();
+						calculators.put(provider.getName(), calculator);
+					}
+					return calculator.get(algorithm);
+				} catch(ProviderException e) {
+					throw new OperatorCreationException(e.getMessage(), e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the selections made so far, by service and algorithm.
+	 *
+	 * @return
+	 *   an unmodifiable view of the selections.
+	 */
+	public Map<String, Provider> getSelections() {
+		return Collections.unmodifiableMap(selections);
+	}
+
+	/**
+	 * Returns the provider for the given service and algorithm, selecting it
+	 * on first use; only one thread selects it, the others wait.
+	 */
+	private Provider select(final Service service, final String algorithm, final int keySize) throws ProviderException {
+		final String key = service + ":" + algorithm + (keySize > 0 ? ":" + keySize : "");
+		Provider provider = selections.get(key);
+		if(provider != null) {
+			return provider;
+		}
+
+		FutureTask<Provider> task = new FutureTask<>(new Callable<Provider>() {
+			@Override
+			public Provider call() throws ProviderException {
+				return choose(key, service, algorithm, keySize);
+			}
+		});
+		FutureTask<Provider> running = pending.putIfAbsent(key, task);
+		if(running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				pending.remove(key, task);
+			}
+		} else {
+			logger.trace("waiting for running selection of provider for {}", key);
+		}
+		try {
+			return running.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProviderException("interrupted while selecting provider for " + key, e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof ProviderException) {
+				throw (ProviderException)cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			} else if(cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new ProviderException("error selecting provider for " + key, cause);
+		}
+	}
+
+	/**
+	 * Selects the provider for the given service and algorithm, and caches it.
+	 */
+	private Provider choose(String key, Service service, String algorithm, int keySize) throws ProviderException {
+		// another thread may have completed the selection in the meantime
+		Provider provider = selections.get(key);
+		if(provider != null) {
+			return provider;
+		}
+
+		String forced = getForced(service, algorithm);
+		if(forced != null) {
+			provider = Security.getProvider(forced);
+			if(provider == null) {
+				logger.error("forced provider '{}' for {} is not installed", forced, key);
+				throw new ProviderException("forced provider '" + forced + "' for " + key + " is not installed");
+			}
+		} else {
+			List<Provider> candidates = getCandidates(service, algorithm, keySize);
+			if(candidates.isEmpty()) {
+				logger.warn("no installed provider supports {}, falling back to {}", key, FALLBACK.getName());
+				provider = FALLBACK;
+			} else if(candidates.size() == 1 || !benchmark || service == Service.KEY_TRANSPORT || service == Service.KEY_AGREEMENT) {
+				// key transport and agreement are too cheap (and need key pairs) to be worth timing
+				provider = candidates.get(0);
+			} else {
+				double[] throughputs = new double[candidates.size()];
+				for(int i = 0; i < candidates.size(); ++i) {
+					warmup(service, algorithm, keySize, candidates.get(i));
+				}
+				for(int round = 0; round < MEASURE_ROUNDS; ++round) {
+					for(int i = 0; i < candidates.size(); ++i) {
+						throughputs[i] = Math.max(throughputs[i], measure(service, algorithm, keySize, candidates.get(i)));
+					}
+				}
+				double best = -1;
+				for(int i = 0; i < candidates.size(); ++i) {
+					logger.debug("{} on {}: {} MB/s", key, candidates.get(i).getName(), String.format("%.1f", throughputs[i]));
+					if(throughputs[i] > best) {
+						best = throughputs[i];
+						provider = candidates.get(i);
+					}
+				}
+			}
+		}
+		logger.info("selected provider '{}' for {}", provider.getName(), key);
+		selections.put(key, provider);
+		return provider;
+	}
+
+	/**
+	 * Returns the name of the provider forced for the given service and 
+	 * algorithm, if any.
+	 */
+	private String getForced(Service service, String algorithm) {
+		String forced = overrides.get(service + ":" + algorithm);
+		if(forced == null) {
+			forced = overrides.get(service + ":*");
+		}
+		if(forced == null) {
+			forced = System.getProperty(PROVIDER_PROPERTY);
+		}
+		return forced;
+	}
+
+	/**
+	 * Returns the installed providers supporting the given service and
+	 * algorithm, ranked according to the table of preferences.
+	 */
+	private List<Provider> getCandidates(Service service, String algorithm, int keySize) {
+		List<String> preferences = PREFERENCES.get(service + ":" + algorithm);
+		if(preferences == null) {
+			preferences = PREFERENCES.get(service + ":*");
+		}
+		List<Provider> candidates = new ArrayList<>();
+		for(String name : preferences) {
+			Provider provider = Security.getProvider(name);
+			if(provider != null && supports(service, algorithm, keySize, provider)) {
+				candidates.add(provider);
+			}
+		}
+		for(Provider provider : Security.getProviders()) {
+			if(!candidates.contains(provider) && supports(service, algorithm, keySize, provider)) {
+				candidates.add(provider);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Returns whether the given provider supports the given algorithm.
+	 */
+	private static boolean supports(Service service, String algorithm, int keySize, Provider provider) {
+		try {
+			switch(service) {
+			case DIGEST:
+				MessageDigest.getInstance(algorithm, provider);
+				return true;
+			case CIPHER:
+				// also make sure the key size is allowed (e.g. by restrictive policies)
+				Cipher.getInstance(algorithm, provider).init(Cipher.ENCRYPT_MODE, makeKey(algorithm, keySize), new SecureRandom());
+				return true;
+			case KEY_AGREEMENT:
+				KeyAgreement.getInstance(algorithm, provider);
+				return true;
+			default:
+				Cipher.getInstance(algorithm, provider);
+				return true;
+			}
+		} catch(GeneralSecurityException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Runs the given provider for {@link #WARMUP_TIME} without measuring it.
+	 */
+	private static void warmup(Service service, String algorithm, int keySize, Provider provider) {
+		time(service, algorithm, keySize, provider, WARMUP_TIME);
+	}
+
+	/**
+	 * Measures the throughput of the given provider over {@link #MEASURE_TIME},
+	 * in MB/s.
+	 */
+	private static double measure(Service service, String algorithm, int keySize, Provider provider) {
+		return time(service, algorithm, keySize, provider, MEASURE_TIME);
+	}
+
+	/**
+	 * Runs the given provider for the given time, returning its throughput in
+	 * MB/s, or 0 if it fails.
+	 */
+	private static double time(Service service, String algorithm, int keySize, Provider provider, long duration) {
+		try {
+			byte[] buffer = new byte[BENCHMARK_SIZE];
+			if(service == Service.DIGEST) {
+				MessageDigest digest = MessageDigest.getInstance(algorithm, provider);
+				long start = System.nanoTime();
+				long bytes = run(digest, buffer, duration);
+				return bytes * 1000.0 / (System.nanoTime() - start);
+			} else {
+				Cipher cipher = Cipher.getInstance(algorithm, provider);
+				cipher.init(Cipher.ENCRYPT_MODE, makeKey(algorithm, keySize), new SecureRandom());
+				byte[] output = new byte[cipher.getOutputSize(BENCHMARK_SIZE)];
+				long start = System.nanoTime();
+				long bytes = run(cipher, buffer, output, duration);
+				return bytes * 1000.0 / (System.nanoTime() - start);
+			}
+		} catch(GeneralSecurityException | RuntimeException e) {
+			logger.warn("error benchmarking {} on '{}': {}", algorithm, provider.getName(), e.getMessage());
+			return 0;
+		}
+	}
+
+	private static long run(MessageDigest digest, byte[] buffer, long duration) {
+		long end = System.currentTimeMillis() + duration;
+		long bytes = 0;
+		do {
+			digest.update(buffer);
+			bytes += buffer.length;
+		} while(System.currentTimeMillis() < end);
+		digest.digest();
+		return bytes;
+	}
+
+	private static long run(Cipher cipher, byte[] buffer, byte[] output, long duration) throws GeneralSecurityException {
+		long end = System.currentTimeMillis() + duration;
+		long bytes = 0;
+		do {
+			cipher.update(buffer, 0, buffer.length, output);
+			bytes += buffer.length;
+		} while(System.currentTimeMillis() < end);
+		return bytes;
+	}
+
+	/**
+	 * Makes a random key for the given transformation.
+	 */
+	private static SecretKeySpec makeKey(String transformation, int keySize) {
+		byte[] key = new byte[keySize / 8];
+		new SecureRandom().nextBytes(key);
+		return new SecretKeySpec(key, transformation.split("/")[0]);
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cms.KeyTransRecipientId;
+import org.bouncycastle.cms.SignerId;
+import org.dihedron.core.License;
+import org.dihedron.crypto.certificates.CertificateProfile;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class KeyRingTest {
+
+	@Test
+	public void testIndex() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", caKeys);
+		KeyPair keys = TestPKI.makeKeyPair();
+		final KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+		store.load(null, null);
+		X509Certificate[] certificates = new X509Certificate[50];
+		for(int i = 0; i < certificates.length; ++i) {
+			certificates[i] = TestPKI.makeCertificate("CN=User " + i, keys, ca, caKeys.getPrivate(), false);
+			store.setKeyEntry("user" + i, keys.getPrivate(), "secret".toCharArray(), new Certificate[] { certificates[i] });
+		}
+		// a trusted certificate, without a private key
+		store.setCertificateEntry("ca", ca);
+
+		KeyRing keyring = TestPKI.makeKeyRing(store);
+		X500Name issuer = X500Name.getInstance(ca.getSubjectX500Principal().getEncoded());
+		for(int i = 0; i < certificates.length; ++i) {
+			assertEquals("user" + i, keyring.getAlias(new KeyTransRecipientId(issuer, certificates[i].getSerialNumber())));
+			assertEquals("user" + i, keyring.getAlias(new SignerId(issuer, certificates[i].getSerialNumber())));
+		}
+		// all the certificates share the same key, hence the same identifier
+		byte[] identifier = CertificateProfile.of(certificates[0]).getSubjectKeyIdentifier();
+		assertEquals(keyring.getAlias(new KeyTransRecipientId(identifier)), keyring.getAlias(new SignerId(identifier)));
+		assertNull(keyring.getAlias(new KeyTransRecipientId(issuer, ca.getSerialNumber())));
+
+		// new keys are only found after reindexing
+		X509Certificate other = TestPKI.makeCertificate("CN=Other", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false);
+		store.setKeyEntry("other", keys.getPrivate(), "secret".toCharArray(), new Certificate[] { other });
+		assertNull(keyring.getAlias(new KeyTransRecipientId(issuer, other.getSerialNumber())));
+		keyring.reindex();
+		assertEquals("other", keyring.getAlias(new KeyTransRecipientId(issuer, other.getSerialNumber())));
+	}
+}
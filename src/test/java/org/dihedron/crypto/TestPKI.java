@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.dihedron.core.License;
+
+/**
+ * A tiny certification authority, used to generate keys, certificates and
+ * CRLs on the fly in unit tests, so that no network or smart card is needed.
+ * 
+ * @author Andrea Funto'
+ */
+@License
+public class TestPKI {
+	
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+	
+	/**
+	 * One day, in milliseconds.
+	 */
+	public static final long DAY = 24L * 60 * 60 * 1000;
+	
+	/**
+	 * The serial number generator.
+	 */
+	private static long serial = System.currentTimeMillis();
+	
+	/**
+	 * Generates a new RSA key pair.
+	 */
+	public static KeyPair makeKeyPair() throws Exception {
+		return makeKeyPair("RSA", 1024);
+	}
+
+	/**
+	 * Generates a new key pair of the given type and size.
+	 */
+	public static KeyPair makeKeyPair(String algorithm, int size) throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm, "BC");
+		generator.initialize(size, new SecureRandom());
+		return generator.generateKeyPair();
+	}
+	
+	/**
+	 * Creates a self-signed root CA certificate.
+	 */
+	public static X509Certificate makeRootCA(String subject, KeyPair keys) throws Exception {
+		return makeCertificate(subject, keys, null, keys.getPrivate(), true);
+	}
+	
+	/**
+	 * Creates a certificate for the given subject, signed by the given issuer.
+	 */
+	public static X509Certificate makeCertificate(String subject, KeyPair keys, X509Certificate issuer, PrivateKey issuerKey, boolean ca) throws Exception {
+		return makeCertificate(subject, keys, issuer, issuerKey, ca, null);
+	}
+	
+	/**
+	 * Creates a certificate for the given subject, signed by the given issuer and
+	 * pointing to the given OCSP responder (if not null).
+	 */
+	public static X509Certificate makeCertificate(String subject, KeyPair keys, X509Certificate issuer, PrivateKey issuerKey, boolean ca, String ocspURL) throws Exception {
+		return makeCertificate(subject, keys, issuer, issuerKey, ca, ocspURL, null);
+	}
+	
+	/**
+	 * Creates a certificate for the given subject, signed by the given issuer and
+	 * pointing to the given OCSP responder and CA issuers location (if not null).
+	 */
+	public static X509Certificate makeCertificate(String subject, KeyPair keys, X509Certificate issuer, PrivateKey issuerKey, boolean ca, String ocspURL, String caIssuersURL) throws Exception {
+		X500Name name = new X500Name(subject);
+		X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+				issuer != null ? X500Name.getInstance(issuer.getSubjectX500Principal().getEncoded()) : name, 
+				BigInteger.valueOf(nextSerial()), 
+				new Date(System.currentTimeMillis() - DAY), 
+				new Date(System.currentTimeMillis() + 365 * DAY), 
+				name, 
+				keys.getPublic());
+		JcaX509ExtensionUtils utils = new JcaX509ExtensionUtils();
+		builder.addExtension(Extension.subjectKeyIdentifier, false, utils.createSubjectKeyIdentifier(keys.getPublic()));
+		if(issuer != null) {
+			builder.addExtension(Extension.authorityKeyIdentifier, false, utils.createAuthorityKeyIdentifier(issuer));
+		}
+		ASN1EncodableVector access = new ASN1EncodableVector();
+		if(ocspURL != null) {
+			access.add(new AccessDescription(AccessDescription.id_ad_ocsp, new GeneralName(GeneralName.uniformResourceIdentifier, ocspURL)));
+		}
+		if(caIssuersURL != null) {
+			access.add(new AccessDescription(AccessDescription.id_ad_caIssuers, new GeneralName(GeneralName.uniformResourceIdentifier, caIssuersURL)));
+		}
+		if(access.size() > 0) {
+			builder.addExtension(Extension.authorityInfoAccess, false, AuthorityInformationAccess.getInstance(new DERSequence(access)));
+		}
+		if(ca) {
+			builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+			builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+		} else {
+			builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation | KeyUsage.keyEncipherment));
+		}
+		String algorithm = "EC".equals(issuerKey.getAlgorithm()) || "ECDSA".equals(issuerKey.getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA";
+		return new JcaX509CertificateConverter().setProvider("BC").getCertificate(builder.build(new JcaContentSignerBuilder(algorithm).setProvider("BC").build(issuerKey)));
+	}
+	
+	/**
+	 * Creates a CRL (a delta CRL if base is not null) revoking the given certificates.
+	 */
+	public static X509CRL makeCRL(X509Certificate issuer, PrivateKey key, long number, Long base, Date nextUpdate, Object... revoked) throws Exception {
+		return makeScopedCRL(issuer, key, number, base, nextUpdate, null, revoked);
+	}
+	
+	/**
+	 * Creates a CRL (a delta CRL if base is not null) with the given issuing 
+	 * distribution point (if not null), revoking the given certificates.
+	 */
+	public static X509CRL makeScopedCRL(X509Certificate issuer, PrivateKey key, long number, Long base, Date nextUpdate, IssuingDistributionPoint idp, Object... revoked) throws Exception {
+		X509v2CRLBuilder builder = new X509v2CRLBuilder(X500Name.getInstance(issuer.getSubjectX500Principal().getEncoded()), new Date());
+		builder.setNextUpdate(nextUpdate);
+		builder.addExtension(Extension.cRLNumber, false, new ASN1Integer(number));
+		if(base != null) {
+			builder.addExtension(Extension.deltaCRLIndicator, true, new ASN1Integer(base));
+		}
+		if(idp != null) {
+			builder.addExtension(Extension.issuingDistributionPoint, true, idp);
+		}
+		for(int i = 0; i < revoked.length; i += 2) {
+			builder.addCRLEntry(((X509Certificate)revoked[i]).getSerialNumber(), new Date(), (Integer)revoked[i + 1]);
+		}
+		return new JcaX509CRLConverter().setProvider("BC").getCRL(builder.build(new JcaContentSignerBuilder("SHA256withRSA").setProvider("BC").build(key)));
+	}
+	
+	/**
+	 * Wraps a key store into a key ring, without going through a provider.
+	 */
+	public static KeyRing makeKeyRing(final KeyStore store) {
+		return new KeyRing() {
+			{
+				keystore = store;
+			}
+		};
+	}
+	
+	/**
+	 * Creates an in-memory key ring holding the given key and certificate.
+	 */
+	public static KeyRing makeKeyRing(String password, KeyPair keys, X509Certificate certificate) throws Exception {
+		return makeKeyRing(password, new KeyPair[] { keys }, new X509Certificate[] { certificate });
+	}
+	
+	/**
+	 * Creates an in-memory key ring holding the given keys and certificates,
+	 * under aliases "key0", "key1" and so on.
+	 */
+	public static KeyRing makeKeyRing(String password, KeyPair[] keys, X509Certificate[] certificates) throws Exception {
+		KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+		store.load(null, null);
+		for(int i = 0; i < keys.length; ++i) {
+			store.setKeyEntry("key" + i, keys[i].getPrivate(), password.toCharArray(), new Certificate[] { certificates[i] });
+		}
+		return makeKeyRing(store);
+	}
+	
+	private static synchronized long nextSerial() {
+		return ++serial;
+	}
+}
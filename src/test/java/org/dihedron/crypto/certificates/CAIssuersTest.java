@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class CAIssuersTest {
+
+	private static final String URL = "http://localhost/ca.cer";
+
+	/**
+	 * Serves the intermediate CA certificate instead of fetching it.
+	 */
+	private static class LocalCAIssuers extends CAIssuers {
+
+		private final X509Certificate served;
+
+		private int fetches = 0;
+
+		LocalCAIssuers(File directory, X509Certificate served) {
+			super(directory, 16, 16);
+			this.served = served;
+		}
+
+		@Override
+		protected byte[] fetch(String location) throws IOException {
+			assertEquals(URL, location);
+			++fetches;
+			try {
+				return served.getEncoded();
+			} catch(CertificateEncodingException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	@Test
+	public void testComplete() throws Exception {
+		KeyPair rootKeys = TestPKI.makeKeyPair();
+		X509Certificate root = TestPKI.makeRootCA("CN=Root CA", rootKeys);
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeCertificate("CN=Intermediate CA", caKeys, root, rootKeys.getPrivate(), true);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, null, URL);
+		X509Certificate bob = TestPKI.makeCertificate("CN=Bob", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, null, URL);
+
+		File directory = Files.createTempDirectory("aia").toFile();
+		LocalCAIssuers issuers = new LocalCAIssuers(directory, ca);
+		List<X509Certificate> known = Collections.singletonList(root);
+
+		// only the first certificate from the new CA pays for the fetch
+		assertEquals(Arrays.asList(ca), issuers.complete(alice, known));
+		assertEquals(Arrays.asList(ca), issuers.complete(bob, known));
+		assertEquals(1, issuers.fetches);
+
+		// nothing is missing if the intermediate is already known
+		assertTrue(issuers.complete(alice, Arrays.asList(root, ca)).isEmpty());
+
+		// the certificate is also resolved from disk after a restart
+		LocalCAIssuers restarted = new LocalCAIssuers(directory, ca);
+		assertEquals(Arrays.asList(ca), restarted.complete(bob, known));
+		assertEquals(0, restarted.fetches);
+
+		// past their time to live, certificates are fetched again
+		LocalCAIssuers expired = new LocalCAIssuers(directory, ca);
+		expired.setTTL(0);
+		assertEquals(Arrays.asList(ca), expired.complete(bob, known));
+		assertEquals(1, expired.fetches);
+	}
+}
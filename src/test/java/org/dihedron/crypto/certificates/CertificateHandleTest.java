@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.certificates.impl.MemoryCertificateStore;
+import org.dihedron.crypto.certificates.tsl.TSLParser;
+import org.dihedron.crypto.certificates.tsl.TrustedList;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class CertificateHandleTest {
+
+	private static void check(X509Certificate certificate) throws Exception {
+		CertificateHandle handle = new CertificateHandle(certificate.getEncoded());
+		assertEquals(certificate.getSerialNumber(), handle.getSerialNumber());
+		assertEquals(certificate.getIssuerX500Principal(), handle.getIssuer());
+		assertEquals(certificate.getSubjectX500Principal(), handle.getSubject());
+		assertArrayEquals(CertificateProfile.of(certificate).getSubjectKeyIdentifier(), handle.getSubjectKeyIdentifier());
+		assertArrayEquals(CertificateProfile.of(certificate).getFingerprint(), handle.getFingerprint());
+		for(int bit = 0; bit < 9; ++bit) {
+			assertEquals(CertificateProfile.of(certificate).hasKeyUsage(bit), handle.hasKeyUsage(bit));
+		}
+		assertEquals(certificate.getNotAfter(), handle.getNotAfter());
+		assertEquals(certificate, handle.getCertificate());
+		assertSame(handle.getCertificate(), handle.getCertificate());
+		assertEquals(new CertificateHandle(certificate), handle);
+	}
+
+	@Test
+	public void testGeneratedCertificates() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA, O=Dihedron, C=IT", keys);
+		check(ca);
+		check(TestPKI.makeCertificate("CN=Signer, O=Dihedron, C=IT", TestPKI.makeKeyPair(), ca, keys.getPrivate(), false));
+		assertNull(new CertificateHandle(ca.getEncoded()).getExtensionValue("1.2.3.4"));
+	}
+
+	@Test
+	public void testLoader() throws Exception {
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", TestPKI.makeKeyPair());
+		MemoryCertificateStore store = new MemoryCertificateStore();
+		Properties properties = new Properties();
+		properties.setProperty("name", "ca");
+		assertNull(CertificateHandle.of(store, properties));
+		store.storeCertificateData(properties, ca.getEncoded());
+		assertEquals(ca, CertificateHandle.of(store, properties).getCertificate());
+		// the store keeps the handle, so the certificate is only decoded once
+		assertSame(store.loadCertificate(properties), store.loadCertificate(properties));
+	}
+
+	@Test(expected = CertificateParsingException.class)
+	public void testOverlongElement() throws Exception {
+		// a length that would overflow the offset of the element's end
+		new CertificateHandle(new byte[] { 0x30, (byte)0x84, 0x7F, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x30, 0x00 });
+	}
+
+	@Test
+	public void testTSLCertificates() throws Exception {
+		TrustedList list;
+		try(InputStream stream = CertificateHandleTest.class.getResourceAsStream("/org/dihedron/crypto/certificates/tsl/DIGITPA-20141015.xml")) {
+			list = new TSLParser().parse(stream);
+		}
+		for(X509Certificate certificate : list.getCertificates()) {
+			check(certificate);
+		}
+	}
+}
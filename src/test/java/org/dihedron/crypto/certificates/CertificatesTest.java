@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.KeyRing;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.exceptions.CertificateVerificationException;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class CertificatesTest {
+
+	@Test
+	public void testVerifyCertificates() throws Exception {
+		KeyPair firstKeys = TestPKI.makeKeyPair();
+		X509Certificate first = TestPKI.makeRootCA("CN=First CA", firstKeys);
+		KeyPair secondKeys = TestPKI.makeKeyPair();
+		X509Certificate second = TestPKI.makeRootCA("CN=Second CA", secondKeys);
+		KeyPair unknownKeys = TestPKI.makeKeyPair();
+		X509Certificate unknown = TestPKI.makeRootCA("CN=Unknown CA", unknownKeys);
+		TrustStore store = new TrustStore(Arrays.asList(first, second));
+
+		List<X509Certificate> certificates = new ArrayList<>();
+		for(int i = 0; i < 10; ++i) {
+			KeyPair keys = TestPKI.makeKeyPair();
+			certificates.add(TestPKI.makeCertificate("CN=Signer " + i, keys, i % 2 == 0 ? first : second, i % 2 == 0 ? firstKeys.getPrivate() : secondKeys.getPrivate(), false));
+		}
+		X509Certificate untrusted = TestPKI.makeCertificate("CN=Untrusted", TestPKI.makeKeyPair(), unknown, unknownKeys.getPrivate(), false);
+		KeyPair selfKeys = TestPKI.makeKeyPair();
+		X509Certificate self = TestPKI.makeRootCA("CN=Self", selfKeys);
+		certificates.add(untrusted);
+		certificates.add(self);
+
+		Map<X509Certificate, CertificateVerificationException> failures = Certificates.verifyCertificates(certificates, store);
+		assertEquals(2, failures.size());
+		assertTrue(failures.containsKey(untrusted));
+		assertTrue(failures.containsKey(self));
+	}
+
+	@Test
+	public void testNonCAIssuer() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", caKeys);
+		KeyPair signerKeys = TestPKI.makeKeyPair();
+		X509Certificate signer = TestPKI.makeCertificate("CN=Signer", signerKeys, ca, caKeys.getPrivate(), false);
+		KeyPair intermediateKeys = TestPKI.makeKeyPair();
+		X509Certificate intermediate = TestPKI.makeCertificate("CN=Intermediate CA", intermediateKeys, ca, caKeys.getPrivate(), true);
+
+		// an end entity certificate cannot issue certificates, even if trusted
+		X509Certificate forged = TestPKI.makeCertificate("CN=Forged", TestPKI.makeKeyPair(), signer, signerKeys.getPrivate(), false);
+		X509Certificate issued = TestPKI.makeCertificate("CN=Issued", TestPKI.makeKeyPair(), intermediate, intermediateKeys.getPrivate(), false);
+		TrustStore store = new TrustStore(Arrays.asList(ca, signer, intermediate));
+		Map<X509Certificate, CertificateVerificationException> failures = Certificates.verifyCertificates(Arrays.asList(forged, issued), store);
+		assertEquals(1, failures.size());
+		assertTrue(failures.containsKey(forged));
+	}
+
+	@Test
+	public void testProfile() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", caKeys);
+		X509Certificate signer = TestPKI.makeCertificate("CN=Signer", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, "http://localhost/ocsp", "http://localhost/ca.cer");
+
+		CertificateProfile profile = CertificateProfile.of(signer);
+		assertSame(profile, CertificateProfile.of(signer));
+		assertTrue(profile.isSignature());
+		assertTrue(profile.isNonRepudiation());
+		assertTrue(profile.hasCriticalExtension(KeyRing.SIGNATURE_CRITICAL_EXTENSION_OID));
+		assertEquals(Arrays.asList("http://localhost/ocsp"), profile.getOcspURLs());
+		assertEquals(Arrays.asList("http://localhost/ca.cer"), profile.getCAIssuersURLs());
+		assertArrayEquals(CertificateProfile.of(ca).getSubjectKeyIdentifier(), profile.getAuthorityKeyIdentifier());
+
+		assertFalse(CertificateProfile.of(ca).isNonRepudiation());
+		assertTrue(CertificateProfile.of(ca).hasKeyUsage(CertificateProfile.KEY_CERT_SIGN));
+	}
+}
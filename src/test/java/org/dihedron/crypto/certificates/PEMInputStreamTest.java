@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.certificates.impl.Base64CertificateLoader;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class PEMInputStreamTest {
+
+	private static String pem(String label, byte[] data) {
+		StringBuilder buffer = new StringBuilder("-----BEGIN ").append(label).append("-----\r\n");
+		String encoded = Base64.toBase64String(data);
+		for(int i = 0; i < encoded.length(); i += 64) {
+			buffer.append(encoded.substring(i, Math.min(i + 64, encoded.length()))).append("\r\n");
+		}
+		return buffer.append("-----END ").append(label).append("-----\r\n").toString();
+	}
+
+	private static byte[] read(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int c;
+		while((c = input.read()) != -1) {
+			output.write(c);
+		}
+		return output.toByteArray();
+	}
+
+	@Test
+	public void testDecoding() throws Exception {
+		for(int length = 0; length < 20; ++length) {
+			byte[] data = new byte[length];
+			for(int i = 0; i < length; ++i) {
+				data[i] = (byte)(i * 37);
+			}
+			assertArrayEquals(data, read(new PEMInputStream(Base64.toBase64String(data))));
+		}
+	}
+
+	@Test
+	public void testCertificates() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", keys);
+		List<X509Certificate> certificates = new ArrayList<>();
+		certificates.add(ca);
+		for(int i = 0; i < 3; ++i) {
+			certificates.add(TestPKI.makeCertificate("CN=User " + i, TestPKI.makeKeyPair(), ca, keys.getPrivate(), false));
+		}
+
+		// plain base64, as found in XML
+		String base64 = Base64.toBase64String(ca.getEncoded());
+		assertEquals(ca, Certificates.fromBase64(CharBuffer.wrap(base64.toCharArray())).get(0));
+		Base64CertificateLoader loader = new Base64CertificateLoader();
+		assertEquals(ca, loader.loadCertificate(base64));
+		assertArrayEquals(ca.getEncoded(), loader.loadCertificateData(base64));
+
+		// a PEM bundle, with text before and a key in between
+		StringBuilder bundle = new StringBuilder("subject=CN=CA\nissuer=CN=CA\n");
+		bundle.append(pem("CERTIFICATE", ca.getEncoded()));
+		bundle.append(pem("PRIVATE KEY", keys.getPrivate().getEncoded()));
+		for(int i = 1; i < certificates.size(); ++i) {
+			bundle.append(pem("CERTIFICATE", certificates.get(i).getEncoded()));
+		}
+		assertEquals(certificates, Certificates.fromBase64(new StringReader(bundle.toString())));
+		assertEquals(certificates, Certificates.fromBase64(ByteBuffer.wrap(bundle.toString().getBytes(Charset.forName("US-ASCII")))));
+		assertEquals(certificates, loader.loadCertificates(bundle));
+	}
+
+	@Test(expected = CertificateException.class)
+	public void testInvalid() throws Exception {
+		Certificates.fromBase64("MIIBIjANBgkqhkiG9w0B\nAQEFAAOC*AQ8AMIIBCg");
+	}
+}
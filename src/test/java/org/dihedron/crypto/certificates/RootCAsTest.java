@@ -3,6 +3,12 @@
  */ 
 package org.dihedron.crypto.certificates;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+
 import org.dihedron.core.License;
 import org.dihedron.core.variables.SystemPropertyValueProvider;
 import org.dihedron.core.variables.Variables;
@@ -23,6 +29,11 @@ public class RootCAsTest {
 	public void test() throws CryptoException {
 		String truststore = Variables.replaceVariables("${javax.net.ssl.trustStore}", new SystemPropertyValueProvider());
 		logger.info("javax.net.ssl.trustStore: '{}'", truststore);
-		TrustAnchors.fromJavaRootCAs();
+		List<X509Certificate> anchors = TrustAnchors.fromJavaRootCAs();
+		
+		// the key store is loaded once, and each caller gets its own copy
+		assertSame(TrustAnchors.getJavaRootCAs(), TrustAnchors.getJavaRootCAs());
+		anchors.clear();
+		assertEquals(TrustAnchors.getJavaRootCAs().size(), TrustAnchors.fromJavaRootCAs().size());
 	}
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.certificates.CertificateIndex;
+import org.dihedron.crypto.certificates.CertificateProfile;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class BulkCertificateLoaderTest {
+
+	private static String pem(String label, byte[] data) {
+		StringBuilder buffer = new StringBuilder("-----BEGIN ").append(label).append("-----\n");
+		String encoded = Base64.toBase64String(data);
+		for(int i = 0; i < encoded.length(); i += 64) {
+			buffer.append(encoded.substring(i, Math.min(i + 64, encoded.length()))).append("\n");
+		}
+		return buffer.append("-----END ").append(label).append("-----\n").toString();
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", keys);
+		List<X509Certificate> certificates = new ArrayList<>();
+		for(int i = 0; i < 40; ++i) {
+			certificates.add(TestPKI.makeCertificate("CN=User " + i, TestPKI.makeKeyPair(), ca, keys.getPrivate(), false));
+		}
+
+		File directory = Files.createTempDirectory("bulk").toFile();
+		File nested = new File(directory, "nested");
+		nested.mkdir();
+		try {
+			// 20 DER files, some in a subdirectory...
+			for(int i = 0; i < 20; ++i) {
+				Files.write(new File(i % 2 == 0 ? directory : nested, "user" + i + ".der").toPath(), certificates.get(i).getEncoded());
+			}
+			// ... a PEM bundle with the others, the CA, a key and some text...
+			StringBuilder bundle = new StringBuilder("bundle of certificates\n");
+			for(int i = 20; i < 40; ++i) {
+				bundle.append(pem("CERTIFICATE", certificates.get(i).getEncoded()));
+			}
+			bundle.append(pem("PRIVATE KEY", keys.getPrivate().getEncoded()));
+			bundle.append(pem("CERTIFICATE", ca.getEncoded()));
+			Files.write(new File(directory, "bundle.pem").toPath(), bundle.toString().getBytes(Charset.forName("US-ASCII")));
+			// ... a duplicate and some garbage
+			Files.write(new File(directory, "duplicate.cer").toPath(), certificates.get(0).getEncoded());
+			Files.write(new File(directory, "README").toPath(), "not a certificate".getBytes(Charset.forName("US-ASCII")));
+
+			CertificateIndex index = new BulkCertificateLoader().load(directory);
+			assertEquals(41, index.size());
+			for(X509Certificate certificate : certificates) {
+				assertEquals(certificate, index.getByIssuerAndSerial(certificate.getIssuerX500Principal(), certificate.getSerialNumber()));
+				assertEquals(1, index.getBySubject(certificate.getSubjectX500Principal()).size());
+			}
+			assertSame(index.getBySubject(ca.getSubjectX500Principal()).get(0), index.getBySubjectKeyIdentifier(CertificateProfile.of(ca).getSubjectKeyIdentifier()).get(0));
+		} finally {
+			for(File file : nested.listFiles()) {
+				file.delete();
+			}
+			for(File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+}
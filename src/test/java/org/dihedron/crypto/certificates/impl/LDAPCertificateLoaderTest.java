@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class LDAPCertificateLoaderTest {
+
+	/**
+	 * Answers searches from memory instead of querying a directory.
+	 */
+	private static class LocalLDAPCertificateLoader extends LDAPCertificateLoader {
+
+		private final X509Certificate certificate;
+
+		private final AtomicInteger searches = new AtomicInteger();
+
+		private final AtomicInteger batches = new AtomicInteger();
+
+		LocalLDAPCertificateLoader(X509Certificate certificate) throws CertificateLoaderException {
+			super("ldap://localhost:389/");
+			this.certificate = certificate;
+		}
+
+		@Override
+		protected byte[] search(String name, String filter) throws CertificateLoaderException {
+			searches.incrementAndGet();
+			try {
+				return filter.contains("alice") ? certificate.getEncoded() : null;
+			} catch(Exception e) {
+				throw new CertificateLoaderException("error encoding certificate", e);
+			}
+		}
+
+		@Override
+		protected Map<String, byte[]> search(String name, String attribute, List<String> recipients) throws CertificateLoaderException {
+			batches.incrementAndGet();
+			Map<String, byte[]> results = new HashMap<>();
+			for(String recipient : recipients) {
+				if(recipient.startsWith("alice")) {
+					results.put(recipient, search(name, makeFilter(attribute, recipient)));
+				}
+			}
+			return results;
+		}
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", keys);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, keys.getPrivate(), false);
+		LocalLDAPCertificateLoader loader = new LocalLDAPCertificateLoader(alice);
+
+		// hits and misses are both cached
+		for(int i = 0; i < 3; ++i) {
+			assertEquals(alice, loader.loadCertificate("o=test", "(cn=alice)"));
+			assertNull(loader.loadCertificate("o=test", "(cn=bob)"));
+		}
+		assertEquals(2, loader.searches.get());
+
+		// once expired, results are searched again
+		loader.setCacheTTL(0).clearCache();
+		loader.loadCertificate("o=test", "(cn=alice)");
+		loader.loadCertificate("o=test", "(cn=alice)");
+		assertEquals(4, loader.searches.get());
+		assertEquals(0, loader.getCacheSize());
+	}
+
+	@Test
+	public void testCacheCapacity() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", keys);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, keys.getPrivate(), false);
+		LocalLDAPCertificateLoader loader = new LocalLDAPCertificateLoader(alice);
+		loader.setCacheCapacity(10);
+
+		// misses do not grow the cache past its capacity
+		for(int i = 0; i < 100; ++i) {
+			assertNull(loader.loadCertificate("o=test", "(cn=nobody" + i + ")"));
+		}
+		assertEquals(10, loader.getCacheSize());
+
+		// the most recently used results are kept
+		loader.loadCertificate("o=test", "(cn=nobody99)");
+		assertEquals(100, loader.searches.get());
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", keys);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, keys.getPrivate(), false);
+		LocalLDAPCertificateLoader loader = new LocalLDAPCertificateLoader(alice);
+		loader.setBatchSize(50);
+
+		List<String> recipients = new ArrayList<>();
+		for(int i = 0; i < 120; ++i) {
+			recipients.add((i % 2 == 0 ? "alice" : "bob") + i + "@example.com");
+		}
+		Map<String, X509Certificate> certificates = loader.loadCertificates("o=test", "mail", recipients);
+		assertEquals(3, loader.batches.get());
+		assertEquals(60, certificates.size());
+		assertEquals(alice, certificates.get("alice0@example.com"));
+		assertNull(certificates.get("bob1@example.com"));
+
+		// batched results are shared with single lookups, misses included
+		int searches = loader.searches.get();
+		assertEquals(alice, loader.loadCertificate("o=test", "(mail=alice2@example.com)"));
+		assertNull(loader.loadCertificate("o=test", "(mail=bob3@example.com)"));
+		assertEquals(60, loader.loadCertificates("o=test", "mail", recipients).size());
+		assertEquals(searches, loader.searches.get());
+		assertEquals(3, loader.batches.get());
+	}
+
+	@Test
+	public void testFilter() {
+		assertEquals("(cn=a\\2a\\28b\\29\\5c)", LDAPCertificateLoader.makeFilter("cn", "a*(b)\\"));
+	}
+}
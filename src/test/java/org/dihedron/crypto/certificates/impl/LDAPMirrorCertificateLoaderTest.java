@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class LDAPMirrorCertificateLoaderTest {
+
+	/**
+	 * A directory held in memory.
+	 */
+	private static class LocalDirectory extends LDAPCertificateLoader {
+
+		private final Map<String, Attributes> entries = new LinkedHashMap<>();
+
+		private final AtomicInteger searches = new AtomicInteger();
+
+		LocalDirectory() throws CertificateLoaderException {
+			super("ldap://localhost:389/");
+		}
+
+		void add(String mail, X509Certificate certificate, String timestamp) throws Exception {
+			put("mail=" + mail + ",o=test", mail, certificate, timestamp);
+		}
+
+		void put(String entry, String mail, X509Certificate certificate, String timestamp) throws Exception {
+			Attributes attributes = new BasicAttributes(true);
+			attributes.put("mail", mail);
+			if(certificate != null) {
+				attributes.put("userCertificate;binary", certificate.getEncoded());
+			}
+			attributes.put("modifyTimestamp", timestamp);
+			entries.put(entry, attributes);
+		}
+
+		@Override
+		void scan(String name, String filter, String[] attributes, ResultHandler handler) throws CertificateLoaderException {
+			int index = filter.indexOf(">=");
+			String since = index > 0 ? filter.substring(index + 2, filter.indexOf(')', index)) : null;
+			try {
+				for(Map.Entry<String, Attributes> entry : entries.entrySet()) {
+					Attributes values = entry.getValue();
+					if(values.get("userCertificate;binary") == null) {
+						continue;
+					}
+					if(since == null || !new ASN1GeneralizedTime(String.valueOf(values.get("modifyTimestamp").get())).getDate().before(new ASN1GeneralizedTime(since).getDate())) {
+						handler.onResult(entry.getKey(), values);
+					}
+				}
+			} catch(Exception e) {
+				throw new CertificateLoaderException("error scanning directory", e);
+			}
+		}
+
+		@Override
+		protected byte[] search(String name, String filter) throws CertificateLoaderException {
+			searches.incrementAndGet();
+			return null;
+		}
+	}
+
+	@Test
+	public void testSync() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		PrivateKey key = keys.getPrivate();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", keys);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, key, false);
+		X509Certificate bob = TestPKI.makeCertificate("CN=Bob", TestPKI.makeKeyPair(), ca, key, false);
+		X509Certificate carol = TestPKI.makeCertificate("CN=Carol", TestPKI.makeKeyPair(), ca, key, false);
+
+		LocalDirectory directory = new LocalDirectory();
+		directory.add("alice@example.com", alice, "20141015100000Z");
+		directory.add("bob@example.com", bob, "20141015110000Z");
+
+		File snapshot = File.createTempFile("mirror", ".bin");
+		snapshot.delete();
+		try {
+			LDAPMirrorCertificateLoader mirror = new LDAPMirrorCertificateLoader(directory, "o=test", "mail", snapshot);
+			assertEquals(2, mirror.sync());
+			assertEquals(alice, mirror.loadCertificate("Alice@Example.com"));
+			assertEquals(bob, mirror.loadCertificate("bob@example.com"));
+			assertEquals(0, directory.searches.get());
+
+			// only entries changed since the last synchronisation are fetched
+			directory.add("carol@example.com", carol, "20141015120000Z");
+			assertEquals(2, mirror.sync());
+			assertEquals(carol, mirror.loadCertificate("carol@example.com"));
+
+			// misses go to the live directory
+			assertNull(mirror.loadCertificate("dave@example.com"));
+			assertEquals(1, directory.searches.get());
+
+			// the replica survives restarts
+			LDAPMirrorCertificateLoader restarted = new LDAPMirrorCertificateLoader(directory, "o=test", "mail", snapshot);
+			assertEquals(3, restarted.size());
+			assertEquals(bob, restarted.loadCertificate("bob@example.com"));
+			assertEquals(1, restarted.sync());
+
+			// times are compared as instants, not as strings
+			directory.add("dave@example.com", alice, "20141015115959-0100");
+			assertEquals(2, restarted.sync());
+			assertEquals(1, restarted.sync());
+		} finally {
+			snapshot.delete();
+		}
+	}
+
+	@Test
+	public void testDeletions() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		PrivateKey key = keys.getPrivate();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", keys);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, key, false);
+		X509Certificate bob = TestPKI.makeCertificate("CN=Bob", TestPKI.makeKeyPair(), ca, key, false);
+		X509Certificate carol = TestPKI.makeCertificate("CN=Carol", TestPKI.makeKeyPair(), ca, key, false);
+
+		LocalDirectory directory = new LocalDirectory();
+		directory.put("cn=alice,o=test", "alice@example.com", alice, "20141015100000Z");
+		directory.put("cn=bob,o=test", "bob@example.com", bob, "20141015100000Z");
+		directory.put("cn=carol,o=test", "carol@example.com", carol, "20141015100000Z");
+
+		LDAPMirrorCertificateLoader mirror = new LDAPMirrorCertificateLoader(directory, "o=test", "mail", null);
+		assertEquals(3, mirror.sync());
+
+		// alice changes address, bob is deleted, carol's certificate is removed
+		directory.put("cn=alice,o=test", "alice@example.org", alice, "20141016100000Z");
+		directory.entries.remove("cn=bob,o=test");
+		directory.put("cn=carol,o=test", "carol@example.com", null, "20141016100000Z");
+		assertEquals(1, mirror.sync());
+		assertEquals(1, mirror.size());
+		assertEquals(alice, mirror.loadCertificate("alice@example.org"));
+		assertEquals(0, directory.searches.get());
+		assertNull(mirror.loadCertificate("alice@example.com"));
+		assertNull(mirror.loadCertificate("bob@example.com"));
+		assertNull(mirror.loadCertificate("carol@example.com"));
+		assertEquals(3, directory.searches.get());
+
+		// lookups on another context are not answered from the replica
+		Properties properties = new Properties();
+		properties.setProperty("name", "o=other");
+		properties.setProperty("filter", "(mail=alice@example.org)");
+		assertNull(mirror.loadCertificateData(properties));
+		assertEquals(4, directory.searches.get());
+	}
+
+	@Test
+	public void testCorruptSnapshot() throws Exception {
+		File snapshot = File.createTempFile("mirror", ".bin");
+		try {
+			try(DataOutputStream output = new DataOutputStream(new FileOutputStream(snapshot))) {
+				output.writeInt(2);
+				output.writeUTF("20141015100000Z");
+				output.writeLong(System.currentTimeMillis());
+				output.writeInt(1);
+				output.writeUTF("cn=alice,o=test");
+				output.writeInt(1);
+				output.writeUTF("alice@example.com");
+				output.writeInt(Integer.MAX_VALUE);
+			}
+			LDAPMirrorCertificateLoader mirror = new LDAPMirrorCertificateLoader(new LocalDirectory(), "o=test", "mail", snapshot);
+			assertEquals(0, mirror.size());
+		} finally {
+			snapshot.delete();
+		}
+	}
+}
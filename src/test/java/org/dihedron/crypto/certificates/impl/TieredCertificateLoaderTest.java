@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.certificates.CertificateLoader;
+import org.dihedron.crypto.certificates.CertificateLoaderFactory;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class TieredCertificateLoaderTest {
+
+	@Test
+	public void testPromotion() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate certificate = TestPKI.makeRootCA("CN=CA", keys);
+		File file = File.createTempFile("certificate", ".der");
+		File directory = Files.createTempDirectory("certificates").toFile();
+		try {
+			Files.write(file.toPath(), certificate.getEncoded());
+
+			Properties configuration = new Properties();
+			configuration.setProperty("provider", "tiered");
+			configuration.setProperty("tiered.chain", "memory, disk, file");
+			configuration.setProperty("disk.directory", directory.getAbsolutePath());
+			CertificateLoader loader = CertificateLoaderFactory.getCertificateLoader(configuration);
+			assertTrue(loader instanceof TieredCertificateLoader);
+			assertSame(loader, CertificateLoaderFactory.getCertificateLoader(configuration));
+
+			TieredCertificateLoader tiered = (TieredCertificateLoader)loader;
+			MemoryCertificateStore memory = (MemoryCertificateStore)tiered.getTiers().get(0);
+			DiskCertificateStore disk = (DiskCertificateStore)tiered.getTiers().get(1);
+
+			Properties lookup = new Properties();
+			lookup.setProperty(FileCertificateLoader.FILENAME, file.getAbsolutePath());
+			assertNull(memory.loadCertificateData(lookup));
+			assertEquals(certificate, loader.loadCertificate(lookup));
+
+			// the certificate has been promoted to both upper tiers
+			assertArrayEquals(certificate.getEncoded(), memory.loadCertificateData(lookup));
+			assertArrayEquals(certificate.getEncoded(), disk.loadCertificateData(lookup));
+
+			// and is found in memory even when the original is gone
+			file.delete();
+			assertEquals(certificate, loader.loadCertificate(lookup));
+			memory.clear();
+			assertEquals(certificate, loader.loadCertificate(lookup));
+			assertEquals(1, memory.size());
+		} finally {
+			file.delete();
+			for(File cached : directory.listFiles()) {
+				cached.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		X509Certificate certificate = TestPKI.makeRootCA("CN=CA", TestPKI.makeKeyPair());
+		File directory = Files.createTempDirectory("certificates").toFile();
+		try {
+			Properties lookup = new Properties();
+			lookup.setProperty("name", "certificate");
+			MemoryCertificateStore memory = new MemoryCertificateStore();
+			DiskCertificateStore disk = new DiskCertificateStore(directory);
+			for(AbstractCertificateStore store : new AbstractCertificateStore[] { memory, disk }) {
+				store.storeCertificateData(lookup, certificate.getEncoded());
+				assertArrayEquals(certificate.getEncoded(), store.loadCertificateData(lookup));
+				store.setTTL(0).storeCertificateData(lookup, certificate.getEncoded());
+				assertNull(store.loadCertificateData(lookup));
+			}
+			assertEquals(0, memory.size());
+			assertEquals(0, directory.listFiles().length);
+		} finally {
+			for(File cached : directory.listFiles()) {
+				cached.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testCapacity() throws Exception {
+		MemoryCertificateStore memory = new MemoryCertificateStore(2);
+		for(int i = 0; i < 3; ++i) {
+			Properties lookup = new Properties();
+			lookup.setProperty("name", "entry" + i);
+			memory.storeCertificateData(lookup, new byte[] { (byte)i });
+		}
+		assertEquals(2, memory.size());
+		Properties first = new Properties();
+		first.setProperty("name", "entry0");
+		assertNull(memory.loadCertificateData(first));
+	}
+}
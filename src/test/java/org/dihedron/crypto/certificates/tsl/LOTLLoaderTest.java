@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyPair;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.crypto.dsig.spec.XPathFilterParameterSpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.certificates.TrustStore;
+import org.dihedron.crypto.exceptions.CertificateLoaderException;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class LOTLLoaderTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static String copy(String resource, File directory) throws IOException {
+		File file = new File(directory, resource);
+		try(InputStream stream = LOTLLoaderTest.class.getResourceAsStream("/org/dihedron/crypto/certificates/tsl/" + resource)) {
+			Files.copy(stream, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		return file.toURI().toString();
+	}
+
+	/**
+	 * Returns the certificate in the signature of the given TSL, the one that
+	 * must be given for it in the pointer.
+	 */
+	private static X509Certificate getSigner(String location) throws Exception {
+		String document = new String(Files.readAllBytes(Paths.get(new URI(location))), UTF8);
+		int start = document.indexOf("<ds:X509Certificate>", document.indexOf("<ds:Signature ")) + "<ds:X509Certificate>".length();
+		String base64 = document.substring(start, document.indexOf("</ds:X509Certificate>", start));
+		return (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(Base64.decode(base64)));
+	}
+
+	/**
+	 * Adds an enveloped signature over the whole document.
+	 */
+	private static byte[] sign(String document, KeyPair keys) throws Exception {
+		return sign(document, keys, null);
+	}
+
+	/**
+	 * Adds an enveloped signature over the whole document, restricted by the
+	 * given XPath filter, if any.
+	 */
+	private static byte[] sign(String document, KeyPair keys, String xpath) throws Exception {
+		DocumentBuilderFactory builders = DocumentBuilderFactory.newInstance();
+		builders.setNamespaceAware(true);
+		Document parsed = builders.newDocumentBuilder().parse(new ByteArrayInputStream(document.getBytes(UTF8)));
+		XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+		List<Transform> transforms = new ArrayList<>();
+		transforms.add(factory.newTransform(Transform.ENVELOPED, (TransformParameterSpec)null));
+		if(xpath != null) {
+			transforms.add(factory.newTransform(Transform.XPATH, new XPathFilterParameterSpec(xpath)));
+		}
+		Reference reference = factory.newReference("", factory.newDigestMethod(DigestMethod.SHA256, null), transforms, null, null);
+		SignedInfo info = factory.newSignedInfo(factory.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec)null), 
+				factory.newSignatureMethod("http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", null), Collections.singletonList(reference));
+		factory.newXMLSignature(info, null).sign(new DOMSignContext(keys.getPrivate(), parsed.getDocumentElement()));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TransformerFactory.newInstance().newTransformer().transform(new DOMSource(parsed), new StreamResult(output));
+		return output.toByteArray();
+	}
+
+	private static String pointer(String location, String territory, String mimeType, X509Certificate signer) throws Exception {
+		return
+			"<OtherTSLPointer>" +
+				"<ServiceDigitalIdentities><ServiceDigitalIdentity><DigitalId>" +
+					"<X509Certificate>" + Base64.toBase64String(signer.getEncoded()) + "</X509Certificate>" +
+				"</DigitalId></ServiceDigitalIdentity></ServiceDigitalIdentities>" +
+				"<TSLLocation>" + location + "</TSLLocation>" +
+				"<AdditionalInformation>" +
+					"<OtherInformation><SchemeTerritory>" + territory + "</SchemeTerritory></OtherInformation>" +
+					"<OtherInformation><ns4:MimeType>" + mimeType + "</ns4:MimeType></OtherInformation>" +
+				"</AdditionalInformation>" +
+			"</OtherTSLPointer>";
+	}
+
+	/**
+	 * Writes a local stand-in for the EU LOTL, signed with the given keys and
+	 * pointing to two "member states" lists (the second of which is expected
+	 * to be signed by the given certificate), a PDF list (to be skipped) and 
+	 * a missing one.
+	 */
+	private static File makeLOTL(File directory, KeyPair keys, X509Certificate secondSigner) throws Exception {
+		String first = copy("DIGITPA-20140827.xml", directory);
+		String second = copy("DIGITPA-20141015.xml", directory);
+		X509Certificate signer = getSigner(first);
+		String lotl =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+			"<TrustServiceStatusList xmlns=\"http://uri.etsi.org/02231/v2#\" xmlns:ns4=\"http://uri.etsi.org/02231/v2/additionaltypes#\">" +
+				"<SchemeInformation>" +
+					"<TSLSequenceNumber>1</TSLSequenceNumber>" +
+					"<SchemeTerritory>EU</SchemeTerritory>" +
+					"<PointersToOtherTSL>" +
+						pointer(first, "AA", TSLPointer.XML_MIME_TYPE, signer) +
+						pointer(second, "BB", TSLPointer.XML_MIME_TYPE, secondSigner != null ? secondSigner : getSigner(second)) +
+						pointer(second.replace(".xml", ".pdf"), "BB", "application/pdf", signer) +
+						pointer(new File(directory, "missing.xml").toURI().toString(), "CC", TSLPointer.XML_MIME_TYPE, signer) +
+					"</PointersToOtherTSL>" +
+					"<NextUpdate><dateTime>2099-01-01T00:00:00Z</dateTime></NextUpdate>" +
+				"</SchemeInformation>" +
+			"</TrustServiceStatusList>";
+		File file = new File(directory, "lotl.xml");
+		Files.write(file.toPath(), sign(lotl, keys));
+		return file;
+	}
+
+	@Test
+	public void testFederation() throws Exception {
+		File directory = Files.createTempDirectory("lotl").toFile();
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate signer = TestPKI.makeRootCA("CN=LOTL Signer", keys);
+		File file = makeLOTL(directory, keys, null);
+
+		LOTLLoader loader = new LOTLLoader(file.toURI().toString()).setTimeouts(1000, 1000).setSigningCertificates(Collections.singleton(signer));
+		try {
+			TrustStore store = loader.load();
+			assertEquals(2, loader.getTrustedLists().size());
+			TrustedList aa = loader.getTrustedLists().get("AA");
+			TrustedList bb = loader.getTrustedLists().get("BB");
+
+			Set<X509Certificate> expected = new HashSet<>(aa.getCertificates());
+			expected.addAll(bb.getCertificates());
+			assertEquals(expected.size(), store.size());
+
+			// every certificate can be found through the indexes
+			for(X509Certificate certificate : expected) {
+				assertTrue(store.getBySubject(certificate.getSubjectX500Principal()).contains(certificate));
+				byte[] identifier = TrustStore.getSubjectKeyIdentifier(certificate);
+				if(identifier != null) {
+					assertTrue(store.getBySubjectKeyIdentifier(identifier).contains(certificate));
+				}
+			}
+			assertFalse(store.getTrustAnchors().isEmpty());
+
+			// the member lists are expired (their next update is in 2014), so they
+			// are fetched again on refresh, but since they have not changed they
+			// are not parsed again
+			loader.load();
+			assertSame(aa, loader.getTrustedLists().get("AA"));
+			assertSame(bb, loader.getTrustedLists().get("BB"));
+		} finally {
+			loader.shutdown();
+		}
+	}
+
+	@Test
+	public void testSignatures() throws Exception {
+		File directory = Files.createTempDirectory("lotl").toFile();
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate certificate = TestPKI.makeRootCA("CN=LOTL Signer", keys);
+		// the pointer to the second list gives the wrong signing certificate
+		File file = makeLOTL(directory, keys, certificate);
+
+		LOTLLoader loader = new LOTLLoader(file.toURI().toString()).setTimeouts(1000, 1000).setSigningCertificates(Collections.singleton(certificate));
+		try {
+			loader.load();
+			assertEquals(Collections.singleton("AA"), loader.getTrustedLists().keySet());
+
+			// the LOTL must verify against the configured certificate
+			X509Certificate other = TestPKI.makeRootCA("CN=Someone Else", TestPKI.makeKeyPair());
+			try {
+				new LOTLLoader(file.toURI().toString()).setSigningCertificates(Collections.singleton(other)).load();
+				fail("the LOTL signature should not verify");
+			} catch(CertificateLoaderException e) {
+				// expected
+			}
+
+			// and must not have been tampered with
+			byte[] tampered = new String(Files.readAllBytes(file.toPath()), UTF8).replace(">EU<", ">XX<").getBytes(UTF8);
+			Files.write(file.toPath(), tampered);
+			try {
+				new LOTLLoader(file.toURI().toString()).setSigningCertificates(Collections.singleton(certificate)).load();
+				fail("the LOTL signature should not verify");
+			} catch(CertificateLoaderException e) {
+				// expected
+			}
+		} finally {
+			loader.shutdown();
+		}
+	}
+
+	@Test(expected = CertificateLoaderException.class)
+	public void testFilteredSignature() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate certificate = TestPKI.makeRootCA("CN=LOTL Signer", keys);
+		// the signature does not cover the services, which could then be swapped
+		byte[] document = sign("<TrustServiceStatusList><Scheme>EU</Scheme><Services/></TrustServiceStatusList>", keys, "not(ancestor-or-self::Services)");
+		TSLSignature.verify(document, Collections.singleton(certificate));
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import org.dihedron.core.License;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class TSLParserTest {
+
+	@Test
+	public void testParse() throws Exception {
+		TrustedList list;
+		try(InputStream stream = TSLParserTest.class.getResourceAsStream("/org/dihedron/crypto/certificates/tsl/DIGITPA-20141015.xml")) {
+			list = new TSLParser().parse(stream);
+		}
+		assertEquals(BigInteger.valueOf(61), list.getSequenceNumber());
+		assertEquals("IT", list.getTerritory());
+		assertNotNull(list.getNextUpdate());
+
+		int current = 0;
+		int ca = 0;
+		for(TrustService service : list.getServices()) {
+			assertNotNull(service.getCertificate());
+			assertNotNull(service.getStatus());
+			if(!service.isHistorical()) {
+				++current;
+				if("http://uri.etsi.org/TrstSvc/Svctype/CA/QC".equals(service.getType())) {
+					++ca;
+				}
+			}
+		}
+		// the certificates in the TSL signature and in the pointers to other
+		// TSLs must not be taken as trust services
+		assertEquals(154 + 107, list.getServices().size());
+		assertEquals(154, current);
+		assertEquals(107, ca);
+	}
+
+	@Test
+	public void testFilter() throws Exception {
+		TrustedList list;
+		try(InputStream stream = TSLParserTest.class.getResourceAsStream("/org/dihedron/crypto/certificates/tsl/DIGITPA-20141015.xml")) {
+			list = new TSLParser().parse(stream);
+		}
+		TrustServiceFilter ca = TrustServiceFilter.grantedQualifiedCAs();
+		TrustServiceFilter tsa = TrustServiceFilter.grantedTimeStampingAuthorities();
+		int cas = 0;
+		int tsas = 0;
+		for(TrustService service : list.getServices()) {
+			cas += ca.accept(service) ? 1 : 0;
+			tsas += tsa.accept(service) ? 1 : 0;
+		}
+		// accredited or under supervision, current services only
+		assertEquals(72 + 26, cas);
+		assertEquals(25 + 16, tsas);
+
+		List<X509Certificate> certificates = list.getCertificates(tsa);
+		assertFalse(certificates.isEmpty());
+		for(X509Certificate certificate : certificates) {
+			assertFalse(list.getCertificates(ca).contains(certificate));
+		}
+		assertEquals(list.getCertificates().size(), list.getCertificates(new TrustServiceFilter().setIncludeHistorical(true)).size());
+	}
+}
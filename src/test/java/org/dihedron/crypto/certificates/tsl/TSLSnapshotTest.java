@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.certificates.tsl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.dihedron.core.License;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class TSLSnapshotTest {
+
+	@Test
+	public void testSnapshot() throws Exception {
+		File directory = Files.createTempDirectory("tsl").toFile();
+		File tsl = new File(directory, "tsl.xml");
+		try(InputStream stream = TSLSnapshotTest.class.getResourceAsStream("/org/dihedron/crypto/certificates/tsl/DIGITPA-20141015.xml")) {
+			Files.copy(stream, tsl.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		URL url = tsl.toURI().toURL();
+		File snapshots = new File(directory, "snapshots");
+
+		// the first load parses the TSL and writes the snapshot
+		TSLSnapshot snapshot = new TSLSnapshot(snapshots);
+		TrustedList parsed = snapshot.load(url);
+		assertEquals(1, snapshots.listFiles().length);
+		assertSame(parsed, snapshot.load(url));
+
+		// a new instance (e.g. after a restart) reads the snapshot back
+		TrustedList read = new TSLSnapshot(snapshots).load(url);
+		assertNotSame(parsed, read);
+		assertEquals(parsed.getSequenceNumber(), read.getSequenceNumber());
+		assertEquals(parsed.getNextUpdate(), read.getNextUpdate());
+		assertEquals(parsed.getServices().size(), read.getServices().size());
+		for(int i = 0; i < parsed.getServices().size(); ++i) {
+			TrustService expected = parsed.getServices().get(i);
+			TrustService actual = read.getServices().get(i);
+			assertEquals(expected.getCertificate(), actual.getCertificate());
+			assertEquals(expected.getType(), actual.getType());
+			assertEquals(expected.getName(), actual.getName());
+			assertEquals(expected.getStatus(), actual.getStatus());
+			assertEquals(expected.getStatusStartingTime(), actual.getStatusStartingTime());
+			assertEquals(expected.isHistorical(), actual.isHistorical());
+		}
+		assertEquals(parsed.getCertificates(), read.getCertificates());
+
+		// when the source changes, the snapshot is rebuilt
+		assertTrue(tsl.setLastModified(tsl.lastModified() - 60000));
+		assertNotSame(parsed, snapshot.load(url));
+	}
+
+	@Test
+	public void testSourceDigest() throws Exception {
+		File directory = Files.createTempDirectory("tsl").toFile();
+		File tsl = new File(directory, "tsl.xml");
+		try(InputStream stream = TSLSnapshotTest.class.getResourceAsStream("/org/dihedron/crypto/certificates/tsl/DIGITPA-20141015.xml")) {
+			Files.copy(stream, tsl.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		URL url = tsl.toURI().toURL();
+		File snapshots = new File(directory, "snapshots");
+		new TSLSnapshot(snapshots).load(url);
+		File file = snapshots.listFiles()[0];
+		assertTrue(file.setLastModified(0));
+
+		// an unchanged source is served from the snapshot
+		new TSLSnapshot(snapshots).load(url);
+		assertEquals(0, file.lastModified());
+
+		// same size and time, different contents: the snapshot is rebuilt
+		long lastModified = tsl.lastModified();
+		byte[] bytes = Files.readAllBytes(tsl.toPath());
+		// the whitespace before the first attribute of the root element
+		bytes[new String(bytes, "UTF-8").indexOf(" xmlns")] = '\n';
+		Files.write(tsl.toPath(), bytes);
+		assertTrue(tsl.setLastModified(lastModified));
+		new TSLSnapshot(snapshots).load(url);
+		assertTrue(file.lastModified() > 0);
+
+		// a directory other users can write to is not trusted
+		if(FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			assertTrue(file.setLastModified(0));
+			Files.setPosixFilePermissions(snapshots.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+			assertNotNull(new TSLSnapshot(snapshots).load(url));
+			assertEquals(0, file.lastModified());
+		}
+	}
+}
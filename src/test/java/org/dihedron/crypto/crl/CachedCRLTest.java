@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.crl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class CachedCRLTest {
+
+	@Test
+	public void testDeltaMerge() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=Test CA", caKeys);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false);
+		X509Certificate bob = TestPKI.makeCertificate("CN=Bob", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false);
+		Date tomorrow = new Date(System.currentTimeMillis() + TestPKI.DAY);
+		
+		X509CRL base = TestPKI.makeCRL(ca, caKeys.getPrivate(), 10, null, tomorrow, alice, CRLReason.certificateHold);
+		CachedCRL crl = new CachedCRL(base);
+		assertTrue(crl.isRevoked(alice));
+		assertFalse(crl.isRevoked(bob));
+		
+		// alice is released from hold, bob is revoked
+		X509CRL delta = TestPKI.makeCRL(ca, caKeys.getPrivate(), 11, 10L, tomorrow, alice, CRLReason.removeFromCRL, bob, CRLReason.keyCompromise);
+		CachedCRL merged = crl.merge(delta);
+		assertTrue(merged.hasDelta());
+		assertFalse(merged.isRevoked(alice));
+		assertTrue(merged.isRevoked(bob));
+		
+		// an older delta must not overwrite a newer one
+		X509CRL old = TestPKI.makeCRL(ca, caKeys.getPrivate(), 11, 10L, tomorrow);
+		assertSame(merged, merged.merge(old));
+		
+		// a delta referring to a newer base CRL cannot be applied
+		X509CRL future = TestPKI.makeCRL(ca, caKeys.getPrivate(), 13, 12L, tomorrow);
+		assertSame(merged, merged.merge(future));
+		
+		// a full CRL is not a delta
+		assertSame(crl, crl.merge(base));
+	}
+	
+	@Test
+	public void testScope() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=Test CA", caKeys);
+		X509Certificate subCA = TestPKI.makeCertificate("CN=Test Sub CA", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), true);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false);
+		Date tomorrow = new Date(System.currentTimeMillis() + TestPKI.DAY);
+		String url = "http://crl.example.com/users.crl";
+		DistributionPointName name = new DistributionPointName(new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, url)));
+		IssuingDistributionPoint users = new IssuingDistributionPoint(name, true, false, null, false, false);
+		
+		X509CRL base = TestPKI.makeScopedCRL(ca, caKeys.getPrivate(), 10, null, tomorrow, users);
+		assertTrue(CRL.isInScope(base, alice, url));
+		assertFalse(CRL.isInScope(base, subCA, url));
+		assertFalse(CRL.isInScope(base, alice, "http://crl.example.com/other.crl"));
+		
+		// a delta for a different scope must not be merged
+		CachedCRL crl = new CachedCRL(base);
+		X509CRL unscoped = TestPKI.makeCRL(ca, caKeys.getPrivate(), 11, 10L, tomorrow, alice, CRLReason.keyCompromise);
+		assertSame(crl, crl.merge(unscoped));
+		X509CRL delta = TestPKI.makeScopedCRL(ca, caKeys.getPrivate(), 11, 10L, tomorrow, users, alice, CRLReason.keyCompromise);
+		assertTrue(crl.merge(delta).isRevoked(alice));
+	}
+	
+	@Test
+	public void testVerify() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=Test CA", caKeys);
+		KeyPair otherKeys = TestPKI.makeKeyPair();
+		X509Certificate other = TestPKI.makeRootCA("CN=Test CA", otherKeys);
+		Date tomorrow = new Date(System.currentTimeMillis() + TestPKI.DAY);
+		
+		CRL.verify(TestPKI.makeCRL(ca, caKeys.getPrivate(), 10, null, tomorrow), ca);
+		
+		// same issuer name, signed with another key
+		try {
+			CRL.verify(TestPKI.makeCRL(other, otherKeys.getPrivate(), 10, null, tomorrow), ca);
+			fail("CRL signed by a different key accepted");
+		} catch(CRLException e) {
+			// expected
+		}
+		try {
+			CRL.verify(TestPKI.makeCRL(ca, caKeys.getPrivate(), 10, null, tomorrow), null);
+			fail("CRL accepted without issuer");
+		} catch(CRLException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.crl;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.crl.RevocationChecker.Latencies;
+import org.dihedron.crypto.crl.RevocationChecker.Method;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class RevocationCheckerTest {
+
+	@Test
+	public void testDefaultMethod() throws Exception {
+		RevocationChecker checker = new RevocationChecker(new CRLCache(), null);
+		assertEquals(Method.OCSP, checker.getPreferredMethod(new X500Principal("CN=Test CA")));
+	}
+
+	@Test
+	public void testProbing() throws Exception {
+		Latencies latencies = new Latencies();
+		latencies.record(Method.OCSP, 500);
+		latencies.record(Method.CRL, 10);
+		assertEquals(Method.CRL, latencies.getPreferred());
+
+		// the other method is tried once per interval
+		int probes = 0;
+		for(int i = 0; i < RevocationChecker.PROBE_INTERVAL * 3; ++i) {
+			if(latencies.choose() == Method.OCSP) {
+				++probes;
+			}
+		}
+		assertEquals(3, probes);
+	}
+
+	@Test
+	public void testSwitchBack() throws Exception {
+		Latencies latencies = new Latencies();
+		latencies.record(Method.OCSP, 500);
+		latencies.record(Method.CRL, 10);
+		assertEquals(Method.CRL, latencies.getPreferred());
+
+		// the responder has become faster than the CRLs, as probes find out
+		for(int i = 0; i < RevocationChecker.PROBE_INTERVAL * 20 && latencies.getPreferred() == Method.CRL; ++i) {
+			if(latencies.choose() == Method.OCSP) {
+				latencies.record(Method.OCSP, 1);
+			} else {
+				latencies.record(Method.CRL, 10);
+			}
+		}
+		assertEquals(Method.OCSP, latencies.getPreferred());
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.ocsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class OCSPCheckerTest {
+
+	private static final String RESPONDER = "http://localhost/ocsp";
+
+	/**
+	 * An OCSP checker talking to an in-process responder, which counts the
+	 * requests it receives and revokes a single serial number.
+	 */
+	private static class LocalOCSPChecker extends OCSPChecker {
+
+		private final X509Certificate issuer;
+
+		private final PrivateKey key;
+
+		private final BigInteger revoked;
+
+		private int requests = 0;
+
+		LocalOCSPChecker(X509Certificate issuer, PrivateKey key, BigInteger revoked) {
+			this(issuer, key, revoked, DEFAULT_CAPACITY);
+		}
+
+		LocalOCSPChecker(X509Certificate issuer, PrivateKey key, BigInteger revoked, int capacity) {
+			super(capacity);
+			this.issuer = issuer;
+			this.key = key;
+			this.revoked = revoked;
+		}
+
+		@Override
+		protected byte[] post(String url, byte[] request) throws IOException {
+			assertEquals(RESPONDER, url);
+			++requests;
+			try {
+				X509CertificateHolder holder = new JcaX509CertificateHolder(issuer);
+				BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(holder.getSubjectPublicKeyInfo(), new JcaDigestCalculatorProviderBuilder().build().get(RespID.HASH_SHA1)));
+				Date now = new Date();
+				Date next = new Date(now.getTime() + TestPKI.DAY);
+				for(Req req : new OCSPReq(request).getRequestList()) {
+					CertificateStatus status = req.getCertID().getSerialNumber().equals(revoked) ? new RevokedStatus(now, 1) : CertificateStatus.GOOD;
+					builder.addResponse(req.getCertID(), status, now, next, null);
+				}
+				return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, builder.build(new JcaContentSignerBuilder("SHA256withRSA").setProvider("BC").build(key), null, now)).getEncoded();
+			} catch(Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	@Test
+	public void testBatchingAndCaching() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=Test CA", caKeys);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, RESPONDER);
+		X509Certificate bob = TestPKI.makeCertificate("CN=Bob", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, RESPONDER);
+		X509Certificate carol = TestPKI.makeCertificate("CN=Carol", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, RESPONDER);
+
+		LocalOCSPChecker checker = new LocalOCSPChecker(ca, caKeys.getPrivate(), bob.getSerialNumber());
+
+		// all three certificates are checked in a single request
+		Map<X509Certificate, OCSPStatus> statuses = checker.check(Arrays.asList(alice, bob, carol), ca);
+		assertEquals(1, checker.requests);
+		assertEquals(OCSPStatus.GOOD, statuses.get(alice));
+		assertEquals(OCSPStatus.REVOKED, statuses.get(bob));
+		assertEquals(OCSPStatus.GOOD, statuses.get(carol));
+		assertNotNull(checker.getResponse(alice, ca));
+
+		// fresh responses are served from the cache
+		assertEquals(OCSPStatus.REVOKED, checker.check(bob, ca));
+		assertEquals(1, checker.requests);
+
+		// batches are split according to the batch size
+		checker.clear();
+		checker.setBatchSize(2).check(Arrays.asList(alice, bob, carol), ca);
+		assertEquals(3, checker.requests);
+	}
+
+	@Test
+	public void testCacheBounds() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=Test CA", caKeys);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, RESPONDER);
+		X509Certificate bob = TestPKI.makeCertificate("CN=Bob", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, RESPONDER);
+		X509Certificate carol = TestPKI.makeCertificate("CN=Carol", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, RESPONDER);
+
+		// only the most recently used responses are kept
+		LocalOCSPChecker checker = new LocalOCSPChecker(ca, caKeys.getPrivate(), null, 2);
+		checker.check(Arrays.asList(alice, bob, carol), ca);
+		assertEquals(2, checker.size());
+		assertNull(checker.getResponse(alice, ca));
+		assertNotNull(checker.getResponse(carol, ca));
+
+		// responses older than the maximum age are fetched again
+		assertEquals(OCSPStatus.GOOD, checker.setMaxAge(0).check(carol, ca));
+		assertEquals(2, checker.requests);
+	}
+
+	@Test
+	public void testUntrustedResponder() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=Test CA", caKeys);
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", TestPKI.makeKeyPair(), ca, caKeys.getPrivate(), false, RESPONDER);
+
+		// responses signed by an unrelated key must be discarded
+		LocalOCSPChecker checker = new LocalOCSPChecker(ca, TestPKI.makeKeyPair().getPrivate(), null);
+		assertNull(checker.check(alice, ca));
+		assertNull(checker.getResponse(alice, ca));
+	}
+}
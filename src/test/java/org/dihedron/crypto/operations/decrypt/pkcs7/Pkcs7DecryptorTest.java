@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.decrypt.pkcs7;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.operations.encrypt.pkcs7.Envelopes;
+import org.dihedron.crypto.operations.encrypt.pkcs7.Pkcs7Encryptor;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class Pkcs7DecryptorTest {
+
+	private static final String PASSWORD = "secret";
+
+	private static byte[] makeData(int length) {
+		byte[] data = new byte[length];
+		for(int i = 0; i < length; ++i) {
+			data[i] = (byte)(i * 13);
+		}
+		return data;
+	}
+
+	@Test
+	public void testDecrypt() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", caKeys);
+		KeyPair[] keys = { TestPKI.makeKeyPair(), TestPKI.makeKeyPair(), TestPKI.makeKeyPair() };
+		X509Certificate[] certificates = new X509Certificate[keys.length];
+		for(int i = 0; i < keys.length; ++i) {
+			certificates[i] = TestPKI.makeCertificate("CN=User " + i, keys[i], ca, caKeys.getPrivate(), false);
+		}
+		// the key ring only holds the last two keys
+		Pkcs7Decryptor decryptor = new Pkcs7Decryptor();
+		assertTrue(decryptor.initialise(TestPKI.makeKeyRing(PASSWORD, Arrays.copyOfRange(keys, 1, 3), Arrays.copyOfRange(certificates, 1, 3)), null, PASSWORD));
+
+		byte[] data = makeData(300000);
+		for(ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			OutputStream stream = Envelopes.open(buffer, Arrays.asList(Envelopes.recipient(certificates[0]), Envelopes.recipient(certificates[2])), algorithm);
+			stream.write(data);
+			stream.close();
+
+			// a stream without mark support, read by the decryptor in chunks
+			ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+			decryptor.decrypt(new FilterInputStream(new ByteArrayInputStream(buffer.toByteArray())) {
+				@Override
+				public boolean markSupported() {
+					return false;
+				}
+			}, plaintext);
+			assertArrayEquals(algorithm.toString(), data, plaintext.toByteArray());
+			assertArrayEquals(algorithm.toString(), data, decryptor.decrypt(Envelopes.envelope(data, Collections.singletonList(Envelopes.recipient(certificates[1])), algorithm)));
+		}
+	}
+
+	@Test
+	public void testManyRecipients() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", caKeys);
+		KeyPair[] keys = { TestPKI.makeKeyPair(), TestPKI.makeKeyPair("EC", 256), TestPKI.makeKeyPair("EC", 256), TestPKI.makeKeyPair("EC", 384) };
+		X509Certificate[] certificates = new X509Certificate[keys.length];
+		for(int i = 0; i < keys.length; ++i) {
+			certificates[i] = TestPKI.makeCertificate("CN=User " + i + ", O=Dihedron, C=IT", keys[i], ca, caKeys.getPrivate(), false);
+		}
+		// one key transport recipient, and one key agreement per curve
+		assertEquals(3, Envelopes.recipients(Arrays.asList(certificates)).size());
+
+		byte[] data = makeData(10000);
+		for(ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			Pkcs7Encryptor encryptor = new Pkcs7Encryptor().setAlgorithm(algorithm);
+			encryptor.initialise(Arrays.asList(certificates));
+			byte[] envelope = encryptor.encrypt(data);
+			// each recipient can decrypt with its own key only
+			for(int i = 0; i < keys.length; ++i) {
+				Pkcs7Decryptor decryptor = new Pkcs7Decryptor();
+				decryptor.initialise(TestPKI.makeKeyRing(PASSWORD, new KeyPair[] { keys[i] }, new X509Certificate[] { certificates[i] }), null, PASSWORD);
+				assertArrayEquals(algorithm + " for recipient " + i, data, decryptor.decrypt(envelope));
+			}
+		}
+	}
+
+	@Test(expected = CryptoException.class)
+	public void testNoRecipient() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate certificate = TestPKI.makeRootCA("CN=Someone", keys);
+		KeyPair others = TestPKI.makeKeyPair();
+		Pkcs7Decryptor decryptor = new Pkcs7Decryptor();
+		decryptor.initialise(TestPKI.makeKeyRing(PASSWORD, new KeyPair[] { others }, new X509Certificate[] { TestPKI.makeRootCA("CN=Someone else", others) }), null, PASSWORD);
+		decryptor.decrypt(Envelopes.envelope(makeData(100), Collections.singletonList(Envelopes.recipient(certificate)), ContentEncryptionAlgorithm.DEFAULT));
+	}
+
+	@Test(expected = CryptoException.class)
+	public void testTampering() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate certificate = TestPKI.makeRootCA("CN=Someone", keys);
+		Pkcs7Decryptor decryptor = new Pkcs7Decryptor();
+		decryptor.initialise(TestPKI.makeKeyRing(PASSWORD, new KeyPair[] { keys }, new X509Certificate[] { certificate }), null, PASSWORD);
+		byte[] envelope = Envelopes.envelope(makeData(1000), Collections.singletonList(Envelopes.recipient(certificate)), ContentEncryptionAlgorithm.AES256_GCM);
+		envelope[envelope.length - 500] ^= 0x01;
+		decryptor.decrypt(envelope);
+	}
+
+	@Test
+	public void testHoldBack() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate certificate = TestPKI.makeRootCA("CN=Someone", keys);
+		Pkcs7Decryptor decryptor = new Pkcs7Decryptor();
+		decryptor.initialise(TestPKI.makeKeyRing(PASSWORD, keys, certificate), null, PASSWORD);
+		byte[] data = makeData(100000);
+		byte[] envelope = Envelopes.envelope(data, Collections.singletonList(Envelopes.recipient(certificate)), ContentEncryptionAlgorithm.AES256_GCM);
+		envelope[envelope.length - 500] ^= 0x01;
+
+		// tampered content is not released, not even in part
+		ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+		try {
+			decryptor.decrypt(new ByteArrayInputStream(envelope), plaintext);
+			fail("tampered content must not be authenticated");
+		} catch(CryptoException e) {
+			assertEquals(0, plaintext.size());
+		}
+
+		// unless early release is explicitly enabled
+		plaintext.reset();
+		try {
+			decryptor.setReleaseUnverified(true).decrypt(new ByteArrayInputStream(envelope), plaintext);
+			fail("tampered content must not be authenticated");
+		} catch(CryptoException e) {
+			assertTrue(plaintext.size() > 0);
+		}
+
+		// content larger than the limit cannot be held back
+		envelope[envelope.length - 500] ^= 0x01;
+		plaintext.reset();
+		try {
+			decryptor.setReleaseUnverified(false).setBufferLimit(data.length - 1).decrypt(new ByteArrayInputStream(envelope), plaintext);
+			fail("content exceeding the limit must not be held back");
+		} catch(CryptoException e) {
+			assertEquals(0, plaintext.size());
+		}
+		decryptor.setBufferLimit(data.length).decrypt(new ByteArrayInputStream(envelope), plaintext);
+		assertArrayEquals(data, plaintext.toByteArray());
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.encrypt.pkcs7;
+
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.cms.RecipientInfoGenerator;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+
+/**
+ * Measures the throughput of streaming envelope generation for each content
+ * encryption algorithm and a range of payload sizes; it is not run as part of
+ * the test suite, launch it by hand with a warm machine:
+ * <pre>
+ *   java ... org.dihedron.crypto.operations.encrypt.pkcs7.ContentEncryptionBenchmark [seconds per case]
+ * </pre>
+ *
+ * @author Andrea Funto'
+ */
+@License
+public class ContentEncryptionBenchmark {
+
+	/**
+	 * The payload sizes, in bytes.
+	 */
+	private static final int[] SIZES = { 1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024 };
+
+	/**
+	 * The size of the chunks in which the payload is written.
+	 */
+	private static final int CHUNK_SIZE = 8192;
+
+	/**
+	 * An output stream that discards everything, so only encryption is measured.
+	 */
+	private static final OutputStream NULL = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		long duration = (args.length > 0 ? Long.parseLong(args[0]) : 2) * 1000L;
+		KeyPair keys = TestPKI.makeKeyPair("RSA", 2048);
+		X509Certificate certificate = TestPKI.makeRootCA("CN=Benchmark", keys);
+		List<RecipientInfoGenerator> recipients = Collections.singletonList(Envelopes.recipient(certificate));
+
+		System.out.println(String.format("%-12s %10s %10s %12s", "algorithm", "size", "envelopes", "MB/s"));
+		for(ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			for(int size : SIZES) {
+				byte[] chunk = new byte[Math.min(size, CHUNK_SIZE)];
+				// warm up, then measure
+				run(recipients, algorithm, size, chunk, duration / 4);
+				long start = System.nanoTime();
+				long count = run(recipients, algorithm, size, chunk, duration);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.println(String.format("%-12s %10d %10d %12.1f", algorithm.getDescription(), size, count, count * (double)size / (1024 * 1024) / seconds));
+			}
+		}
+	}
+
+	/**
+	 * Generates envelopes of the given size for the given time, returning how
+	 * many were generated.
+	 */
+	private static long run(List<RecipientInfoGenerator> recipients, ContentEncryptionAlgorithm algorithm, int size, byte[] chunk, long duration) throws Exception {
+		long end = System.currentTimeMillis() + duration;
+		long count = 0;
+		do {
+			OutputStream stream = Envelopes.open(NULL, recipients, algorithm);
+			for(int written = 0; written < size; written += chunk.length) {
+				stream.write(chunk, 0, Math.min(chunk.length, size - written));
+			}
+			stream.close();
+			++count;
+		} while(System.currentTimeMillis() < end);
+		return count;
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.encrypt.pkcs7;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.cms.AuthEnvelopedData;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.EncryptedContentInfo;
+import org.bouncycastle.asn1.cms.GCMParameters;
+import org.bouncycastle.asn1.cms.KeyTransRecipientInfo;
+import org.bouncycastle.asn1.cms.RecipientInfo;
+import org.bouncycastle.cms.CMSEnvelopedData;
+import org.bouncycastle.cms.RecipientInformation;
+import org.bouncycastle.cms.jcajce.JceKeyTransEnvelopedRecipient;
+import org.bouncycastle.util.Arrays;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class EnvelopesTest {
+
+	private static byte[] makeData(int length) {
+		byte[] data = new byte[length];
+		for(int i = 0; i < length; ++i) {
+			data[i] = (byte)(i * 31);
+		}
+		return data;
+	}
+
+	private static byte[] openAuthenticated(byte[] envelope, PrivateKey key) throws GeneralSecurityException, IOException {
+		ContentInfo contentInfo = ContentInfo.getInstance(ASN1Primitive.fromByteArray(envelope));
+		assertEquals(CMSObjectIdentifiers.authEnvelopedData, contentInfo.getContentType());
+		AuthEnvelopedData data = AuthEnvelopedData.getInstance(contentInfo.getContent());
+		KeyTransRecipientInfo recipient = KeyTransRecipientInfo.getInstance(RecipientInfo.getInstance(data.getRecipientInfos().getObjectAt(0)).getInfo());
+		Cipher rsa = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC");
+		rsa.init(Cipher.DECRYPT_MODE, key);
+		byte[] secret = rsa.doFinal(recipient.getEncryptedKey().getOctets());
+
+		EncryptedContentInfo content = data.getAuthEncryptedContentInfo();
+		GCMParameters parameters = GCMParameters.getInstance(content.getContentEncryptionAlgorithm().getParameters());
+		Cipher gcm = Cipher.getInstance("AES/GCM/NoPadding", "BC");
+		gcm.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new GCMParameterSpec(parameters.getIcvLen() * 8, parameters.getNonce()));
+		return gcm.doFinal(Arrays.concatenate(content.getEncryptedContent().getOctets(), data.getMac().getOctets()));
+	}
+
+	@Test
+	public void testAlgorithms() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=Recipient, O=Dihedron, C=IT", keys);
+		byte[] data = makeData(100000);
+
+		for(ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			Pkcs7Encryptor encryptor = new Pkcs7Encryptor().setAlgorithm(algorithm);
+			encryptor.initialise(ca);
+			byte[] envelope = encryptor.encrypt(data);
+
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			OutputStream stream = new PKCS7EncryptingStream(buffer, ca, algorithm);
+			for(int i = 0; i < data.length; i += 777) {
+				stream.write(data, i, Math.min(777, data.length - i));
+			}
+			stream.close();
+
+			for(byte[] encrypted : new byte[][] { envelope, buffer.toByteArray() }) {
+				if(algorithm.isAuthenticated()) {
+					assertArrayEquals(algorithm.toString(), data, openAuthenticated(encrypted, keys.getPrivate()));
+				} else {
+					CMSEnvelopedData enveloped = new CMSEnvelopedData(encrypted);
+					assertEquals(algorithm.getOID().getId(), enveloped.getEncryptionAlgOID());
+					RecipientInformation recipient = (RecipientInformation)enveloped.getRecipientInfos().getRecipients().iterator().next();
+					assertArrayEquals(algorithm.toString(), data, recipient.getContent(new JceKeyTransEnvelopedRecipient(keys.getPrivate()).setProvider("BC")));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testTampering() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=Recipient, O=Dihedron, C=IT", keys);
+		Pkcs7Encryptor encryptor = new Pkcs7Encryptor().setAlgorithm(ContentEncryptionAlgorithm.AES128_GCM);
+		encryptor.initialise(ca);
+		byte[] envelope = encryptor.encrypt(makeData(1000));
+		// flip a bit in the middle of the ciphertext
+		envelope[envelope.length - 500] ^= 0x01;
+		try {
+			openAuthenticated(envelope, keys.getPrivate());
+			fail("tampered content must be detected");
+		} catch(GeneralSecurityException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.encrypt.pkcs7;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.operations.decrypt.pkcs7.Pkcs7Decryptor;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class Pkcs7RewrapperTest {
+
+	private static final String PASSWORD = "secret";
+
+	private static byte[] decrypt(byte[] envelope, KeyPair keys, X509Certificate certificate) throws Exception {
+		Pkcs7Decryptor decryptor = new Pkcs7Decryptor();
+		decryptor.initialise(TestPKI.makeKeyRing(PASSWORD, keys, certificate), null, PASSWORD);
+		return decryptor.decrypt(envelope);
+	}
+
+	@Test
+	public void testRewrap() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=CA", caKeys);
+		// an RSA and an EC recipient before, and after
+		KeyPair[] keys = { TestPKI.makeKeyPair(), TestPKI.makeKeyPair("EC", 256), TestPKI.makeKeyPair(), TestPKI.makeKeyPair("EC", 256) };
+		X509Certificate[] certificates = new X509Certificate[keys.length];
+		for(int i = 0; i < keys.length; ++i) {
+			certificates[i] = TestPKI.makeCertificate("CN=User " + i, keys[i], ca, caKeys.getPrivate(), false);
+		}
+		byte[] data = new byte[100000];
+		new Random(42).nextBytes(data);
+
+		for(ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			// both a definite length (for CBC) and a streamed envelope
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			OutputStream stream = Envelopes.open(buffer, Envelopes.recipients(Arrays.asList(certificates[0], certificates[1])), algorithm);
+			stream.write(data);
+			stream.close();
+			byte[][] envelopes = { Envelopes.envelope(data, Envelopes.recipients(Arrays.asList(certificates[0], certificates[1])), algorithm), buffer.toByteArray() };
+
+			for(byte[] envelope : envelopes) {
+				// the EC recipient hands the envelope over to the new recipients
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				new Pkcs7Rewrapper(TestPKI.makeKeyRing(PASSWORD, keys[1], certificates[1]), null, PASSWORD)
+					.addRecipients(Arrays.asList(certificates[2], certificates[3]))
+					.removeRecipient(certificates[0])
+					.removeRecipient(certificates[1])
+					.rewrap(new ByteArrayInputStream(envelope), output);
+				byte[] rewrapped = output.toByteArray();
+
+				assertArrayEquals(algorithm.toString(), data, decrypt(rewrapped, keys[2], certificates[2]));
+				assertArrayEquals(algorithm.toString(), data, decrypt(rewrapped, keys[3], certificates[3]));
+				for(int i = 0; i < 2; ++i) {
+					try {
+						decrypt(rewrapped, keys[i], certificates[i]);
+						fail("recipient " + i + " should have been removed");
+					} catch(CryptoException e) {
+						// expected
+					}
+				}
+			}
+		}
+	}
+
+	@Test(expected = CryptoException.class)
+	public void testUnauthorised() throws Exception {
+		KeyPair keys = TestPKI.makeKeyPair();
+		X509Certificate certificate = TestPKI.makeRootCA("CN=Someone", keys);
+		KeyPair others = TestPKI.makeKeyPair();
+		X509Certificate other = TestPKI.makeRootCA("CN=Someone else", others);
+		byte[] envelope = Envelopes.envelope(new byte[100], Envelopes.recipients(Arrays.asList(certificate)), ContentEncryptionAlgorithm.DEFAULT);
+		new Pkcs7Rewrapper(TestPKI.makeKeyRing(PASSWORD, others, other), null, PASSWORD).addRecipient(other).rewrap(envelope);
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.encrypt.segmented;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.bouncycastle.asn1.cms.GCMParameters;
+import org.bouncycastle.asn1.cms.RecipientInfo;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.dihedron.crypto.exceptions.CryptoException;
+import org.dihedron.crypto.exceptions.UnsupportedFormatException;
+import org.dihedron.crypto.operations.decrypt.segmented.SegmentedDecryptor;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class SegmentedEncryptorTest {
+
+	private static final String PASSWORD = "secret";
+
+	private static final int CHUNK_SIZE = 1000;
+
+	private static KeyPair keys;
+
+	private static X509Certificate certificate;
+
+	private static synchronized SegmentedDecryptor makeDecryptor() throws Exception {
+		if(keys == null) {
+			keys = TestPKI.makeKeyPair("EC", 256);
+			certificate = TestPKI.makeRootCA("CN=Someone", keys);
+		}
+		SegmentedDecryptor decryptor = new SegmentedDecryptor();
+		decryptor.initialise(TestPKI.makeKeyRing(PASSWORD, keys, certificate), null, PASSWORD);
+		return decryptor;
+	}
+
+	private static byte[] encrypt(byte[] data, ContentEncryptionAlgorithm algorithm) throws Exception {
+		SegmentedEncryptor encryptor = new SegmentedEncryptor().setAlgorithm(algorithm).setChunkSize(CHUNK_SIZE);
+		encryptor.initialise(certificate);
+		return encryptor.encrypt(data);
+	}
+
+	@Test
+	public void testEncryptDecrypt() throws Exception {
+		SegmentedDecryptor decryptor = makeDecryptor();
+		Random random = new Random(42);
+		// empty, less than a chunk, exactly some chunks, and more
+		for(int length : new int[] { 0, 10, CHUNK_SIZE * 20, CHUNK_SIZE * 37 + 123 }) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			for(ContentEncryptionAlgorithm algorithm : new ContentEncryptionAlgorithm[] { ContentEncryptionAlgorithm.AES128_GCM, ContentEncryptionAlgorithm.AES256_GCM }) {
+				assertArrayEquals(algorithm + ", " + length + " bytes", data, decryptor.decrypt(encrypt(data, algorithm)));
+			}
+		}
+	}
+
+	@Test
+	public void testRanges() throws Exception {
+		SegmentedDecryptor decryptor = makeDecryptor();
+		byte[] data = new byte[CHUNK_SIZE * 50 + 321];
+		new Random(7).nextBytes(data);
+		Path path = Files.createTempFile("segmented", ".bin");
+		try {
+			Files.write(path, encrypt(data, ContentEncryptionAlgorithm.AES256_GCM));
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				assertEquals(data.length, decryptor.getLength(channel));
+				long[][] ranges = { { 0, 1 }, { 999, 2 }, { 1000, 1000 }, { 12345, 20000 }, { data.length - 10, 100 }, { 0, data.length } };
+				for(long[] range : ranges) {
+					ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+					decryptor.decrypt(channel, range[0], range[1], plaintext);
+					int to = (int)Math.min(data.length, range[0] + range[1]);
+					assertArrayEquals(range[0] + "+" + range[1], Arrays.copyOfRange(data, (int)range[0], to), plaintext.toByteArray());
+				}
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test(expected = CryptoException.class)
+	public void testTruncation() throws Exception {
+		SegmentedDecryptor decryptor = makeDecryptor();
+		byte[] container = encrypt(new byte[CHUNK_SIZE * 10], ContentEncryptionAlgorithm.AES256_GCM);
+		// drop the whole last chunk, so that the previous one looks like the last
+		decryptor.decrypt(Arrays.copyOf(container, container.length - CHUNK_SIZE - Segments.TAG_SIZE));
+	}
+
+	@Test(expected = UnsupportedFormatException.class)
+	public void testInvalidNoncePrefix() throws Exception {
+		makeDecryptor();
+		ByteArrayOutputStream container = new ByteArrayOutputStream();
+		// a standard 12 bytes GCM nonce instead of the 7 bytes prefix
+		new Segments.Header(Collections.<RecipientInfo>emptyList(), new AlgorithmIdentifier(ContentEncryptionAlgorithm.AES256_GCM.getOID(), new GCMParameters(new byte[12], Segments.TAG_SIZE)), CHUNK_SIZE).write(container);
+		Segments.Header.read(new ByteArrayInputStream(container.toByteArray()));
+	}
+
+	@Test(expected = CryptoException.class)
+	public void testTampering() throws Exception {
+		SegmentedDecryptor decryptor = makeDecryptor();
+		byte[] container = encrypt(new byte[CHUNK_SIZE * 10], ContentEncryptionAlgorithm.AES256_GCM);
+		container[container.length - 5 * CHUNK_SIZE] ^= 0x01;
+		decryptor.decrypt(container);
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.operations.verify.pkcs7;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.crl.RevocationData;
+import org.dihedron.crypto.ocsp.OCSP;
+import org.dihedron.crypto.ocsp.OCSPStatus;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class PKCS7VerifierTest {
+
+	private static byte[] sign(KeyPair keys, X509Certificate certificate, X509Certificate ca, RevocationData data) throws Exception {
+		CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+		generator.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().setProvider("BC").build())
+				.build(new JcaContentSignerBuilder("SHA256withRSA").setProvider("BC").build(keys.getPrivate()), certificate));
+		generator.addCertificates(new JcaCertStore(Arrays.asList(certificate, ca)));
+		data.addTo(generator);
+		return generator.generate(new CMSProcessableByteArray("hello, world".getBytes()), true).getEncoded();
+	}
+
+	@Test
+	public void testEmbeddedRevocationData() throws Exception {
+		KeyPair caKeys = TestPKI.makeKeyPair();
+		X509Certificate ca = TestPKI.makeRootCA("CN=Test CA", caKeys);
+		KeyPair aliceKeys = TestPKI.makeKeyPair();
+		X509Certificate alice = TestPKI.makeCertificate("CN=Alice", aliceKeys, ca, caKeys.getPrivate(), false);
+		KeyPair bobKeys = TestPKI.makeKeyPair();
+		X509Certificate bob = TestPKI.makeCertificate("CN=Bob", bobKeys, ca, caKeys.getPrivate(), false);
+		Date tomorrow = new Date(System.currentTimeMillis() + TestPKI.DAY);
+		Date yesterday = new Date(System.currentTimeMillis() - TestPKI.DAY);
+
+		RevocationData data = new RevocationData().addCRL(TestPKI.makeCRL(ca, caKeys.getPrivate(), 1, null, tomorrow, bob, CRLReason.keyCompromise));
+
+		// the embedded CRL survives the round trip through the signature
+		CMSSignedData signed = new CMSSignedData(sign(aliceKeys, alice, ca, data));
+		RevocationData embedded = RevocationData.fromSignedData(signed.getCRLs(), signed.getOtherRevocationInfo(CMSObjectIdentifiers.id_ri_ocsp_response));
+		assertEquals(1, embedded.getCRLs().size());
+		assertEquals(OCSPStatus.GOOD, embedded.getStatus(alice, ca, OCSP.getChecker()));
+		assertEquals(OCSPStatus.REVOKED, embedded.getStatus(bob, ca, OCSP.getChecker()));
+
+		// stale CRLs are not used
+		RevocationData stale = new RevocationData().addCRL(TestPKI.makeCRL(ca, caKeys.getPrivate(), 1, null, yesterday));
+		assertNull(stale.getStatus(alice, ca, OCSP.getChecker()));
+
+		// no network access is needed since the embedded CRL is fresh
+		PKCS7Verifier verifier = new PKCS7Verifier().setCheckRevocation(true);
+		assertTrue(verifier.verify(sign(aliceKeys, alice, ca, data)));
+		assertFalse(verifier.verify(sign(bobKeys, bob, ca, data)));
+	}
+}
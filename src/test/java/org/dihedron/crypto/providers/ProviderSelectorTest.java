@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2012-2014, Andrea Funto'. All rights reserved. See LICENSE for details.
+ */
+package org.dihedron.crypto.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cms.CMSAlgorithm;
+import org.dihedron.core.License;
+import org.dihedron.crypto.TestPKI;
+import org.dihedron.crypto.constants.ContentEncryptionAlgorithm;
+import org.dihedron.crypto.exceptions.ProviderException;
+import org.dihedron.crypto.providers.ProviderSelector.Service;
+import org.junit.Test;
+
+/**
+ * @author Andrea Funto'
+ */
+@License
+public class ProviderSelectorTest {
+
+	static {
+		// installs BouncyCastle
+		TestPKI.class.getName();
+	}
+
+	@Test
+	public void testBenchmark() throws Exception {
+		ProviderSelector selector = new ProviderSelector(true);
+		Provider digest = selector.getDigestProvider("SHA-256");
+		assertNotNull(MessageDigest.getInstance("SHA-256", digest));
+		assertSame(digest, selector.getDigestProvider("SHA-256"));
+		for(ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			assertNotNull(Cipher.getInstance(algorithm.getTransformation(), selector.getCipherProvider(algorithm)));
+		}
+		assertNotNull(selector.getDigestCalculatorProvider().get(new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256)));
+	}
+
+	@Test
+	public void testPreferences() throws Exception {
+		ProviderSelector selector = new ProviderSelector(false);
+		assertEquals("SUN", selector.getDigestProvider("SHA-1").getName());
+		assertEquals("SunJCE", selector.getCipherProvider("AES/CBC/PKCS5Padding", 128).getName());
+		assertEquals("SunJCE", selector.getKeyTransportProvider(ProviderSelector.RSA_KEY_TRANSPORT).getName());
+	}
+
+	@Test
+	public void testInitialise() throws Exception {
+		ProviderSelector selector = new ProviderSelector(false).initialise();
+		assertTrue(selector.getSelections().containsKey(Service.DIGEST + ":SHA-256"));
+		assertTrue(selector.getSelections().containsKey(Service.KEY_TRANSPORT + ":" + ProviderSelector.RSA_KEY_TRANSPORT));
+		for(ContentEncryptionAlgorithm algorithm : ContentEncryptionAlgorithm.values()) {
+			assertTrue(selector.getSelections().containsKey(Service.CIPHER + ":" + algorithm.getTransformation() + ":" + algorithm.getKeySize()));
+		}
+	}
+
+	@Test
+	public void testOverrides() throws Exception {
+		ProviderSelector selector = new ProviderSelector(false);
+		selector.setOverride(Service.DIGEST, null, "BC");
+		assertEquals("BC", selector.getDigestProvider("SHA-1").getName());
+		selector.setOverride(Service.DIGEST, "SHA-1", "SUN");
+		assertEquals("SUN", selector.getDigestProvider("SHA-1").getName());
+		assertEquals("BC", selector.getDigestProvider("SHA-256").getName());
+		selector.setOverride(Service.DIGEST, null, null).setOverride(Service.DIGEST, "SHA-1", null);
+		assertEquals("SUN", selector.getDigestProvider("SHA-256").getName());
+	}
+
+	@Test
+	public void testPreferredProvider() throws Exception {
+		ProviderSelector selector = new ProviderSelector(false);
+		String transformation = ContentEncryptionAlgorithm.AES256_GCM.getTransformation();
+		assertEquals("BC", selector.getProvider(Service.CIPHER, transformation, 256, "BC").getName());
+		assertEquals("BC", selector.getKeyAgreementProvider(CMSAlgorithm.ECDH_SHA1KDF.getId()).getName());
+		// a forced provider wins over the preferred one
+		selector.setOverride(Service.CIPHER, null, "SunJCE");
+		assertEquals("SunJCE", selector.getProvider(Service.CIPHER, transformation, 256, "BC").getName());
+	}
+
+	@Test(expected = ProviderException.class)
+	public void testMissingOverride() throws Exception {
+		new ProviderSelector(true).setOverride(Service.CIPHER, null, "NoSuchProvider").getCipherProvider(ContentEncryptionAlgorithm.DEFAULT);
+	}
+}